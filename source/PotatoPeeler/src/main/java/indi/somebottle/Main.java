@@ -1,16 +1,24 @@
 package indi.somebottle;
 
+import indi.somebottle.constants.ChunkLayoutConstants;
+import indi.somebottle.constants.DurabilityConstants;
+import indi.somebottle.entities.ManifestEntry;
+import indi.somebottle.entities.PeelOptions;
 import indi.somebottle.entities.PeelResult;
+import indi.somebottle.entities.RecompressPolicy;
 import indi.somebottle.exceptions.PeelerArgIncompleteException;
 import indi.somebottle.exceptions.RegionFileNotFoundException;
 import indi.somebottle.exceptions.RegionTaskInterruptedException;
 import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.TimeBudget;
 import indi.somebottle.utils.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Main {
     public static void main(String[] args) {
@@ -84,21 +92,74 @@ public class Main {
         int retainLogFiles = Integer.parseInt(peelerArgs.get("--retain-log-files"));
         boolean dryRun = peelerArgs.containsKey("--dry-run");
         boolean skipPeeler = peelerArgs.containsKey("--skip-peeler");
+        PeelOptions peelOptions = new PeelOptions();
+        peelOptions.linkUnchanged = peelerArgs.containsKey("--link-unchanged");
+        peelOptions.chunkLayout = ChunkLayoutConstants.parse(peelerArgs.get("--chunk-layout"));
+        peelOptions.durability = DurabilityConstants.parse(peelerArgs.get("--durability"));
+        peelOptions.pipeline = peelerArgs.containsKey("--pipeline");
+        peelOptions.ioThreads = Integer.parseInt(peelerArgs.get("--io-threads"));
+        peelOptions.pipelineBufferBytes = Long.parseLong(peelerArgs.get("--pipeline-buffer")) * 1024 * 1024;
+        peelOptions.chunkThreads = Integer.parseInt(peelerArgs.get("--chunk-threads"));
+        peelOptions.virtualThreads = peelerArgs.containsKey("--virtual-threads");
+        peelOptions.ioConcurrency = Integer.parseInt(peelerArgs.get("--io-concurrency"));
+        if (peelerArgs.containsKey("--adaptive-threads"))
+            peelOptions.adaptiveThreads = ArgsUtils.parseThreadsRange(peelerArgs.get("--adaptive-threads"));
+        peelOptions.allDimensions = peelerArgs.containsKey("--all-dimensions");
+        long timeBudget = Long.parseLong(peelerArgs.get("--time-budget"));
+        if (peelerArgs.containsKey("--recompress"))
+            peelOptions.recompressPolicy = RecompressPolicy.parse(peelerArgs.get("--recompress"));
         // 配置日志文件记录器
         GlobalLogger.resetLogFileHandler(maxLogSize, retainLogFiles);
+        // 指定了任务清单时，要处理的世界从清单中读取
+        List<ManifestEntry> manifestEntries = null;
+        if (peelerArgs.containsKey("--manifest")) {
+            try {
+                manifestEntries = ManifestUtils.readManifest(new File(peelerArgs.get("--manifest")), minInhabited);
+            } catch (IOException e) {
+                GlobalLogger.severe("Failed to read manifest: " + peelerArgs.get("--manifest"), e);
+                System.exit(1);
+            }
+        }
         // 列出 PotatoPeeler 相关的参数
         GlobalLogger.info("====== POTATO-PEELER PARAMS ======");
         GlobalLogger.info("Min inhabited time (tick): " + minInhabited);
         GlobalLogger.info("Cool down (min): " + coolDown);
-        GlobalLogger.info("Worker threads num: " + threadsNum);
+        if (peelOptions.adaptiveThreads != null)
+            GlobalLogger.info("Worker threads num: adaptive (" + peelOptions.adaptiveThreads.from + "~" + peelOptions.adaptiveThreads.to + ")");
+        else
+            GlobalLogger.info("Worker threads num: " + threadsNum);
+        GlobalLogger.info("Pipeline: " + peelOptions.pipeline);
+        if (peelOptions.pipeline) {
+            GlobalLogger.info("Pipeline I/O threads num: " + peelOptions.ioThreads);
+            GlobalLogger.info("Pipeline buffer: " + NumUtils.bytesToHumanReadable(peelOptions.pipelineBufferBytes));
+        }
+        GlobalLogger.info("Virtual threads: " + peelOptions.virtualThreads);
+        if (peelOptions.virtualThreads)
+            GlobalLogger.info("I/O concurrency: " + peelOptions.ioConcurrency);
+        GlobalLogger.info("All dimensions: " + peelOptions.allDimensions);
+        GlobalLogger.info("Time budget (s): " + (timeBudget > 0 ? timeBudget : "unlimited"));
+        GlobalLogger.info("Chunk threads num: " + (peelOptions.chunkThreads > 0 ? peelOptions.chunkThreads : "disabled"));
         GlobalLogger.info("Verbose output: " + verboseOutput);
         GlobalLogger.info("Dry run: " + dryRun);
         GlobalLogger.info("Skip peeler: " + skipPeeler);
-        GlobalLogger.info("World dir paths: ");
-        for (String worldDirPath : worldDirPaths) {
-            GlobalLogger.info("\t" + worldDirPath);
+        GlobalLogger.info("Chunk layout: " + ChunkLayoutConstants.nameOf(peelOptions.chunkLayout));
+        GlobalLogger.info("Durability: " + DurabilityConstants.nameOf(peelOptions.durability));
+        GlobalLogger.info("Recompress: " + (peelOptions.recompressPolicy == null ? "off" : peelOptions.recompressPolicy));
+        if (manifestEntries != null) {
+            GlobalLogger.info("Manifest: " + peelerArgs.get("--manifest"));
+            for (ManifestEntry entry : manifestEntries) {
+                GlobalLogger.info("\t" + entry.worldPath + " (min inhabited: " + entry.minInhabited + ", priority: " + entry.priority
+                        + (entry.outputPath.isEmpty() ? "" : ", output: " + entry.outputPath) + ")");
+            }
+        } else {
+            GlobalLogger.info("World dir paths: ");
+            for (String worldDirPath : worldDirPaths) {
+                GlobalLogger.info("\t" + worldDirPath);
+            }
         }
-        if (outputDirPaths.isEmpty()) {
+        if (manifestEntries != null) {
+            GlobalLogger.info("Hard link unchanged regions: " + peelOptions.linkUnchanged);
+        } else if (outputDirPaths.isEmpty()) {
             GlobalLogger.info("In-place operation: true");
         } else {
             GlobalLogger.info("In-place operation: false");
@@ -106,6 +167,7 @@ public class Main {
             for (String outputDirPath : outputDirPaths) {
                 GlobalLogger.info("\t" + outputDirPath);
             }
+            GlobalLogger.info("Hard link unchanged regions: " + peelOptions.linkUnchanged);
         }
         GlobalLogger.info("==================================");
         // 检查输出路径个数是否和世界路径个数一致
@@ -115,7 +177,13 @@ public class Main {
             System.exit(1);
         }
         // 在 minInhabited > 200 时发出警告
-        if (minInhabited > 200) {
+        long maxMinInhabited = minInhabited;
+        if (manifestEntries != null) {
+            for (ManifestEntry entry : manifestEntries) {
+                maxMinInhabited = Math.max(maxMinInhabited, entry.minInhabited);
+            }
+        }
+        if (maxMinInhabited > 200) {
             GlobalLogger.warning("****** WARNING ******");
             GlobalLogger.warning("You are setting 'minInhabited' to a value greater than 200 ticks (10 seconds).");
             GlobalLogger.warning("This may cause some chunks to be removed even if they are currently in use.");
@@ -132,7 +200,7 @@ public class Main {
         }
         // 计算自上次运行过去了多久
         long timeSinceLastRun = TimeUtils.timeNow() - TimeUtils.getLastRunTime();
-        if (worldDirPaths.isEmpty()) {
+        if (manifestEntries != null ? manifestEntries.isEmpty() : worldDirPaths.isEmpty()) {
             // 没有世界可处理，则跳过 Peeler
             GlobalLogger.info("====== POTATO-PEELER SKIPPED ======");
             GlobalLogger.info("No world to process.");
@@ -158,9 +226,35 @@ public class Main {
                 // 提示用户可以打开细节输出
                 GlobalLogger.info("You could use '--verbose' option for more detailed information.");
             }
+            if (timeBudget > 0) {
+                // 从这里开始计时，所有世界共用同一份预算
+                peelOptions.timeBudget = new TimeBudget(System.currentTimeMillis() + timeBudget * 1000, TimeUtils.getLastRunTime(), TimeBudget.PENDING_REGIONS_FILE_PATH);
+                if (peelOptions.timeBudget.getCarriedOverCount() > 0)
+                    GlobalLogger.info(peelOptions.timeBudget.getCarriedOverCount() + " region files left by the last run will be processed first.");
+            }
             // 标记是否进行了处理
             boolean peeled = false;
-            for (int i = 0; i < worldDirPaths.size(); i++) {
+            if (manifestEntries != null) {
+                try {
+                    // 所有世界共用一个线程池
+                    Map<String, PeelResult> peelResults = Potato.peelAll(manifestEntries, threadsNum, dryRun, peelOptions);
+                    PeelResult total = new PeelResult();
+                    for (Map.Entry<String, PeelResult> worldResult : peelResults.entrySet()) {
+                        printWorldResult(worldResult.getKey(), worldResult.getValue());
+                        total.add(worldResult.getValue());
+                    }
+                    GlobalLogger.info("Worlds processed: " + peelResults.size() + "/" + manifestEntries.size());
+                    GlobalLogger.info("Total size reduced: " + NumUtils.bytesToHumanReadable(total.getSizeReduced()));
+                    peeled = !peelResults.isEmpty();
+                } catch (RegionTaskInterruptedException e) {
+                    GlobalLogger.severe("Failed to process regions of the manifest, interrupted.", e);
+                    System.exit(1);
+                } catch (Exception e) {
+                    GlobalLogger.severe("Unexpected exception!", e);
+                    System.exit(1);
+                }
+            }
+            for (int i = 0; manifestEntries == null && i < worldDirPaths.size(); i++) {
                 String worldDirPath = worldDirPaths.get(i);
                 String outputDirPath = "";
                 if (!outputDirPaths.isEmpty()) {
@@ -170,14 +264,8 @@ public class Main {
                 try {
                     GlobalLogger.info(">>> Processing '" + worldDirPath + "' ...");
                     // 开始对这个世界执行处理
-                    PeelResult peelResult = Potato.peel(worldDirPath, outputDirPath, threadsNum, minInhabited, dryRun);
-                    GlobalLogger.info("=========== WORLD RESULT ============");
-                    GlobalLogger.info("World: " + worldDirPath);
-                    GlobalLogger.info("Time elapsed: " + (double) peelResult.getTimeElapsed() / 1000D + "s");
-                    GlobalLogger.info("Regions affected: " + peelResult.getRegionsAffected());
-                    GlobalLogger.info("Chunks removed: " + peelResult.getChunksRemoved());
-                    GlobalLogger.info("Size reduced: " + NumUtils.bytesToHumanReadable(peelResult.getSizeReduced()));
-                    GlobalLogger.info("=====================================");
+                    PeelResult peelResult = Potato.peel(worldDirPath, outputDirPath, threadsNum, minInhabited, dryRun, peelOptions);
+                    printWorldResult(worldDirPath, peelResult);
                     // 标记进行了处理
                     peeled = true;
                 } catch (RegionFileNotFoundException e) {
@@ -199,8 +287,12 @@ public class Main {
                 }
             }
             // 如果有世界被处理，更新上次运行的时间
-            if (peeled)
+            if (peeled) {
+                // 记下没处理到的区域文件，下次运行时优先处理
+                if (peelOptions.timeBudget != null)
+                    peelOptions.timeBudget.save();
                 TimeUtils.setLastRunTime(TimeUtils.timeNow());
+            }
         }
         // 处理完区块后若没有指定 server-jar 则退出
         if (!peelerArgs.containsKey("--server-jar")) {
@@ -223,6 +315,26 @@ public class Main {
         }
     }
 
+    /**
+     * 输出一个世界的处理结果
+     *
+     * @param worldDirPath 世界目录路径
+     * @param peelResult   处理结果
+     */
+    private static void printWorldResult(String worldDirPath, PeelResult peelResult) {
+        GlobalLogger.info("=========== WORLD RESULT ============");
+        GlobalLogger.info("World: " + worldDirPath);
+        GlobalLogger.info("Time elapsed: " + (double) peelResult.getTimeElapsed() / 1000D + "s");
+        GlobalLogger.info("Regions affected: " + peelResult.getRegionsAffected());
+        GlobalLogger.info("Regions deleted: " + peelResult.getRegionsDeleted());
+        GlobalLogger.info("Chunks removed: " + peelResult.getChunksRemoved());
+        GlobalLogger.info("Chunks recompressed: " + peelResult.getChunksRecompressed());
+        if (peelResult.getRegionsSkipped() > 0)
+            GlobalLogger.info("Regions left for the next run: " + peelResult.getRegionsSkipped());
+        GlobalLogger.info("Size reduced: " + NumUtils.bytesToHumanReadable(peelResult.getSizeReduced()));
+        GlobalLogger.info("=====================================");
+    }
+
     /**
      * 打印帮助信息，当命令行选项有 --help 时执行
      */
@@ -235,17 +347,33 @@ public class Main {
         System.out.println("Usage: ");
         System.out.println("\tjava [jvm-options] -jar PotatoPeeler.jar [options] [--world-dirs <worldPath1>,<worldPath2>,...]");
         System.out.println("\t\t[--output-dirs <outputWorldPath1>,<outputWorldPath2>,...]");
+        System.out.println("\tjava [jvm-options] -jar PotatoPeeler.jar [options] --manifest <manifestFile>");
         System.out.println();
         System.out.println("Options:");
         System.out.println("\t--help                           Show this help message and exit.");
         System.out.println("\t--min-inhabited <ticks>          Minimum inhabited time (in ticks) for a chunk to be considered unused. (default: 0)");
         System.out.println("\t--cool-down <minutes>            Cooldown period (in minutes) after the last run before Potato Peeler can run again. (default: 0)");
         System.out.println("\t--threads-num <number>           Number of worker threads to use. (default: 10)");
+        System.out.println("\t--manifest <file>                Process the worlds listed in a manifest file with one shared pool of --threads-num threads,");
+        System.out.println("\t                                 one world per line: <worldPath>[,min-inhabited=<ticks>][,output=<path>][,priority=<weight>]");
+        System.out.println("\t--adaptive-threads <min>~<max>   Adjust the number of workers between min and max by measured throughput, instead of --threads-num.");
         System.out.println("\t--max-log-size <size>            Maximum size of a single log file in bytes. (default: 2097152)");
         System.out.println("\t--retain-log-files <number>      Maximum number of log files to retain. (default: 10)");
         System.out.println("\t--verbose                        Enable verbose output.");
         System.out.println("\t--dry-run                        Perform a dry run without modifying any files (recommended to use with --verbose).");
         System.out.println("\t--skip-peeler                    Skip the Potato Peeler process.");
+        System.out.println("\t--all-dimensions                 Process every dimension (every region directory) of each world together, not just the first one found.");
+        System.out.println("\t--link-unchanged                 Hard link unchanged region files into the output directories instead of copying them.");
+        System.out.println("\t--chunk-layout <index|zorder>    Order of chunks in rewritten region files; 'zorder' keeps neighbouring chunks close on disk. (default: index)");
+        System.out.println("\t--pipeline                       Process regions in a read / evaluate / write pipeline; --threads-num sets the evaluate stage size.");
+        System.out.println("\t--io-threads <number>            Number of threads in each of the read and write stages of the pipeline. (default: 2)");
+        System.out.println("\t--pipeline-buffer <MiB>          Maximum size of region files read ahead but not yet written in the pipeline. (default: 256)");
+        System.out.println("\t--virtual-threads                Process each region in its own virtual thread (Java 21+), for high-latency storage. Can not be used with --pipeline or --adaptive-threads.");
+        System.out.println("\t--io-concurrency <number>        With --virtual-threads, maximum number of region reads and writes in flight. (default: 256)");
+        System.out.println("\t--chunk-threads <number>         Decompress the chunks of large regions in parallel with this many extra threads, 0 to disable. (default: 0)");
+        System.out.println("\t--durability <off|per-file|batched> How rewritten region files are flushed to disk; 'off' leaves it to the OS, 'batched' fsyncs them in groups on a background thread. (default: off)");
+        System.out.println("\t--recompress <rules>             Recompress retained chunks of rewritten regions, e.g. 'lz4-above:72000,zlib-below:1200'.");
+        System.out.println("\t--time-budget <seconds>          Stop taking new regions after this many seconds, most valuable regions first; the rest are processed first next run. 0 to disable. (default: 0)");
         System.out.println("\t--server-jar <server.jar>        Path to the Minecraft server JAR file to launch after processing regions.");
         System.out.println();
         System.out.println("List of protected chunks:");
@@ -262,6 +390,8 @@ public class Main {
         System.out.println("\t- World paths passed to '--world-dirs' and '--output-dirs' should be separated by commas.");
         System.out.println("\t- If '--output-dirs' is not specified, the operations will be in-place.");
         System.out.println("\t- If '--output-dirs' is specified, it must have the same number of paths as '--world-dirs'.");
+        System.out.println("\t- Hard linked region files share data with the original world, so modifying one also modifies the other. Only use '--link-unchanged' if the output world will not be written to while the original is still in use.");
+        System.out.println("\t- '--recompress' rules: 'lz4-above:N' stores chunks with InhabitedTime > N as LZ4 (1.20.5+ chunks only), 'zlib-below:N' stores chunks with InhabitedTime < N as zlib at the highest level. A chunk is only recompressed if it then takes fewer sectors.");
         System.out.println("\t- After the Potato Peeler process completes, the server JAR file will be launched in the current JVM. Any remaining arguments, including JVM options, will be passed to the server jar.");
         System.out.println();
         System.out.println("Example (In-place operation):");
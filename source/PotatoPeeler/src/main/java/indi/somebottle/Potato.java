@@ -1,10 +1,15 @@
 package indi.somebottle;
 
 import indi.somebottle.entities.ForcedChunksLoadResult;
+import indi.somebottle.entities.ManifestEntry;
+import indi.somebottle.entities.PeelOptions;
 import indi.somebottle.entities.TaskParams;
 import indi.somebottle.indexing.ChunksSpatialIndex;
 import indi.somebottle.indexing.ChunksSpatialIndexFactory;
 import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.ChunkFanOutPool;
+import indi.somebottle.tasks.DurabilityBarrier;
+import indi.somebottle.tasks.MultiWorldDispatcher;
 import indi.somebottle.tasks.RegionTaskDispatcher;
 import indi.somebottle.entities.PeelResult;
 import indi.somebottle.exceptions.RegionFileNotFoundException;
@@ -19,6 +24,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Potato {
     /**
@@ -35,6 +44,7 @@ public class Potato {
      * @param threadsNum    线程数
      * @param minInhabited  InhabitedTime 阈值 (tick)
      * @param dryRun        是否是试运行
+     * @param options       其他可选项
      * @return 处理后的结果 PeelResult
      * @throws RegionFileNotFoundException       找不到区域文件时抛出
      * @throws RegionTaskInterruptedException    任务被中断时抛出
@@ -42,19 +52,236 @@ public class Potato {
      * @throws RegionTaskAlreadyStartedException 任务重复启动时抛出
      * @throws IOException                       读取文件时可能抛出
      */
-    public static PeelResult peel(String worldPathStr, String outputPathStr, int threadsNum, long minInhabited, boolean dryRun) throws RegionFileNotFoundException, RegionTaskInterruptedException, RegionTaskNotAcceptedException, RegionTaskAlreadyStartedException, IOException {
-        // 先检查世界目录下的区域文件目录是否存在
+    public static PeelResult peel(String worldPathStr, String outputPathStr, int threadsNum, long minInhabited, boolean dryRun, PeelOptions options) throws RegionFileNotFoundException, RegionTaskInterruptedException, RegionTaskNotAcceptedException, RegionTaskAlreadyStartedException, IOException {
+        if (options.allDimensions)
+            return peelAllDimensions(worldPathStr, outputPathStr, threadsNum, minInhabited, dryRun, options);
+        Path regionDirPath = findRegionDirPath(worldPathStr);
+        List<File> mcaFiles = findRegionFiles(regionDirPath);
+        TaskParams params = buildTaskParams(regionDirPath, worldPathStr, outputPathStr, minInhabited, dryRun, options);
+        // 创建任务调度器
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(threadsNum, params);
+        if (options.virtualThreads) {
+            // 网络存储上读写受延迟限制，让大量读写同时进行
+            dispatcher.useVirtualThreads(options.ioConcurrency);
+        } else if (options.adaptiveThreads != null) {
+            // 根据吞吐量自动调整并发数
+            dispatcher.useAdaptiveThreads(options.adaptiveThreads.from, options.adaptiveThreads.to);
+        } else if (options.pipeline) {
+            // 读取、评估、写入分别由不同的线程池处理
+            dispatcher.usePipeline(options.ioThreads, options.pipelineBufferBytes);
+        }
+        if (options.timeBudget != null) {
+            // 最有价值的区域文件先处理，预算用完后剩下的留到下次
+            dispatcher.useTimeBudget(options.timeBudget);
+        }
+        // 把文件提交给任务调度器
+        for (File mcaFile : mcaFiles) {
+            dispatcher.addTask(mcaFile);
+        }
+        // 试运行不写入任何文件，不需要刷盘
+        DurabilityBarrier durabilityBarrier = dryRun ? null : new DurabilityBarrier(options.durability);
+        params.durabilityBarrier = durabilityBarrier;
+        // 区域文件比线程少或者区域文件很大时，区域内部的区块也可以并行解压
+        ChunkFanOutPool chunkFanOutPool = options.chunkThreads > 0 ? new ChunkFanOutPool(options.chunkThreads) : null;
+        params.chunkFanOutPool = chunkFanOutPool;
+        try {
+            // 启动任务调度器
+            dispatcher.start();
+            // 等待任务完成
+            if (!dispatcher.waitForCompletion()) {
+                // 如果被打断了，抛出异常
+                throw new RegionTaskInterruptedException("Interrupted while waiting for .mca files to be processed.");
+            }
+        } finally {
+            closeSharedResources(chunkFanOutPool, durabilityBarrier);
+        }
+        return dispatcher.getResult();
+    }
+
+    /**
+     * 处理一个世界的所有维度，各维度的区域文件由同一组工作线程一起处理（--all-dimensions）
+     *
+     * @see #peel
+     */
+    private static PeelResult peelAllDimensions(String worldPathStr, String outputPathStr, int threadsNum, long minInhabited, boolean dryRun, PeelOptions options) throws RegionFileNotFoundException, RegionTaskInterruptedException, RegionTaskNotAcceptedException, RegionTaskAlreadyStartedException, IOException {
+        MultiWorldDispatcher dispatcher = new MultiWorldDispatcher(threadsNum);
+        if (options.timeBudget != null)
+            dispatcher.useTimeBudget(options.timeBudget);
+        DurabilityBarrier durabilityBarrier = dryRun ? null : new DurabilityBarrier(options.durability);
+        ChunkFanOutPool chunkFanOutPool = options.chunkThreads > 0 ? new ChunkFanOutPool(options.chunkThreads) : null;
+        int worldIndex;
+        try {
+            worldIndex = addWorld(dispatcher, worldPathStr, outputPathStr, minInhabited, 1, dryRun, options, durabilityBarrier, chunkFanOutPool);
+            dispatcher.start();
+            if (!dispatcher.waitForCompletion()) {
+                throw new RegionTaskInterruptedException("Interrupted while waiting for .mca files to be processed.");
+            }
+        } finally {
+            closeSharedResources(chunkFanOutPool, durabilityBarrier);
+        }
+        return dispatcher.getResult(worldIndex);
+    }
+
+    /**
+     * 按任务清单处理多个世界，所有世界的区域文件由同一组工作线程按权重公平地处理，见 {@link MultiWorldDispatcher} <br>
+     * 找不到区域文件或者读取出错的世界会被跳过（记录警告），不影响其他世界。
+     *
+     * @param entries    清单中的世界
+     * @param threadsNum 线程数
+     * @param dryRun     是否是试运行
+     * @param options    其他可选项（所有世界共用）
+     * @return 每个被处理的世界的结果，键为清单中的世界目录路径，顺序和清单一致
+     * @throws RegionTaskInterruptedException    任务被中断时抛出
+     * @throws RegionTaskNotAcceptedException    任务不被接受时抛出
+     * @throws RegionTaskAlreadyStartedException 任务重复启动时抛出
+     */
+    public static Map<String, PeelResult> peelAll(List<ManifestEntry> entries, int threadsNum, boolean dryRun, PeelOptions options) throws RegionTaskInterruptedException, RegionTaskNotAcceptedException, RegionTaskAlreadyStartedException {
+        MultiWorldDispatcher dispatcher = new MultiWorldDispatcher(threadsNum);
+        if (options.timeBudget != null)
+            dispatcher.useTimeBudget(options.timeBudget);
+        // 刷盘屏障和区块并行解压线程池由所有世界共用
+        DurabilityBarrier durabilityBarrier = dryRun ? null : new DurabilityBarrier(options.durability);
+        ChunkFanOutPool chunkFanOutPool = options.chunkThreads > 0 ? new ChunkFanOutPool(options.chunkThreads) : null;
+        Map<String, Integer> worldIndexes = new LinkedHashMap<>();
+        try {
+            for (ManifestEntry entry : entries) {
+                try {
+                    worldIndexes.put(entry.worldPath, addWorld(dispatcher, entry.worldPath, entry.outputPath, entry.minInhabited, entry.priority, dryRun, options, durabilityBarrier, chunkFanOutPool));
+                } catch (RegionFileNotFoundException e) {
+                    GlobalLogger.warning("Regions of world: '" + entry.worldPath + "' not found, skipped.");
+                } catch (IOException e) {
+                    GlobalLogger.warning("I/O Exception occurred while reading world: '" + entry.worldPath + "', skipped the world.", e);
+                }
+            }
+            dispatcher.start();
+            if (!dispatcher.waitForCompletion()) {
+                throw new RegionTaskInterruptedException("Interrupted while waiting for .mca files to be processed.");
+            }
+        } finally {
+            closeSharedResources(chunkFanOutPool, durabilityBarrier);
+        }
+        Map<String, PeelResult> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> world : worldIndexes.entrySet()) {
+            results.put(world.getKey(), dispatcher.getResult(world.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * 把一个世界加入调度器。指定了 --all-dimensions 时世界的每个维度都会被加入，各自读取维度根目录下的受保护区块清单和强制加载区块
+     *
+     * @param dispatcher        调度器
+     * @param worldPathStr      世界目录路径
+     * @param outputPathStr     输出的世界目录路径（可能为空字串，即未指定）
+     * @param minInhabited      InhabitedTime 阈值 (tick)
+     * @param priority          世界的权重
+     * @param dryRun            是否是试运行
+     * @param options           其他可选项
+     * @param durabilityBarrier 共用的刷盘屏障，可能为 null
+     * @param chunkFanOutPool   共用的区块并行解压线程池，可能为 null
+     * @return 世界在调度器中的编号
+     * @throws RegionFileNotFoundException    世界中任何一个维度都找不到区域文件时抛出
+     * @throws RegionTaskNotAcceptedException 调度器已经启动时抛出
+     * @throws IOException                    读取文件时可能抛出
+     */
+    private static int addWorld(MultiWorldDispatcher dispatcher, String worldPathStr, String outputPathStr, long minInhabited, int priority, boolean dryRun, PeelOptions options, DurabilityBarrier durabilityBarrier, ChunkFanOutPool chunkFanOutPool) throws RegionFileNotFoundException, RegionTaskNotAcceptedException, IOException {
+        List<Path> regionDirPaths = new ArrayList<>();
+        if (options.allDimensions) {
+            regionDirPaths.addAll(RegionUtils.findAllRegionDirPaths(worldPathStr));
+            if (regionDirPaths.isEmpty())
+                throw new RegionFileNotFoundException("Can not find region directory in " + worldPathStr);
+        } else {
+            regionDirPaths.add(findRegionDirPath(worldPathStr));
+        }
+        // 先把各个维度都读好，再加入调度器
+        List<TaskParams> dimensionParams = new ArrayList<>();
+        List<List<File>> dimensionFiles = new ArrayList<>();
+        for (Path regionDirPath : regionDirPaths) {
+            List<File> mcaFiles;
+            try {
+                mcaFiles = findRegionFiles(regionDirPath);
+            } catch (RegionFileNotFoundException e) {
+                if (!options.allDimensions)
+                    throw e;
+                // 还没有生成过区块的维度，跳过
+                GlobalLogger.info("No region files in " + regionDirPath + ", dimension skipped.");
+                continue;
+            }
+            TaskParams params = buildTaskParams(regionDirPath, worldPathStr, outputPathStr, minInhabited, dryRun, options);
+            params.durabilityBarrier = durabilityBarrier;
+            params.chunkFanOutPool = chunkFanOutPool;
+            dimensionParams.add(params);
+            dimensionFiles.add(mcaFiles);
+            if (options.allDimensions)
+                GlobalLogger.info("Dimension found: " + regionDirPath + " (" + mcaFiles.size() + " region files).");
+        }
+        if (dimensionParams.isEmpty())
+            throw new RegionFileNotFoundException("Can not find .mca files in any dimension of " + worldPathStr);
+        int worldIndex = dispatcher.addWorld(priority);
+        int regionFilesCount = 0;
+        for (int i = 0; i < dimensionParams.size(); i++) {
+            dispatcher.addDimension(worldIndex, dimensionParams.get(i), dimensionFiles.get(i));
+            regionFilesCount += dimensionFiles.get(i).size();
+        }
+        GlobalLogger.info("World '" + worldPathStr + "' added: " + dimensionParams.size() + " dimension(s), " + regionFilesCount + " region files, priority " + priority + ".");
+        return worldIndex;
+    }
+
+    /**
+     * 找到世界目录下的区域文件目录
+     *
+     * @param worldPathStr 世界目录路径
+     * @return 区域文件目录
+     * @throws RegionFileNotFoundException 找不到区域文件目录时抛出
+     */
+    private static Path findRegionDirPath(String worldPathStr) throws RegionFileNotFoundException {
         Path regionDirPath = RegionUtils.findRegionDirPath(worldPathStr);
         if (regionDirPath == null) {
             // 没有找到区域文件所在目录
             throw new RegionFileNotFoundException("Can not find region directory in " + worldPathStr);
         }
+        return regionDirPath;
+    }
+
+    /**
+     * 找到区域文件目录中所有可以读写的 .mca 文件
+     *
+     * @param regionDirPath 区域文件目录
+     * @return .mca 文件列表
+     * @throws RegionFileNotFoundException 找不到区域文件时抛出
+     */
+    private static List<File> findRegionFiles(Path regionDirPath) throws RegionFileNotFoundException {
         // 扫描目录下的 .mca 文件
         File[] mcaFiles = regionDirPath.toFile().listFiles(file -> file.getName().endsWith(".mca"));
         if (mcaFiles == null || mcaFiles.length == 0) {
             // 没有找到 .mca 文件
             throw new RegionFileNotFoundException("Can not find .mca files in " + regionDirPath);
         }
+        List<File> accessibleFiles = new ArrayList<>(mcaFiles.length);
+        for (File mcaFile : mcaFiles) {
+            if (!mcaFile.canRead() || !mcaFile.canWrite()) {
+                // 如果没有读写权限，跳过
+                GlobalLogger.warning("File " + mcaFile.getAbsolutePath() + " can not be read or written, skipped.");
+                continue;
+            }
+            accessibleFiles.add(mcaFile);
+        }
+        return accessibleFiles;
+    }
+
+    /**
+     * 读取世界的受保护区块（清单和强制加载区块），构建任务参数
+     *
+     * @param regionDirPath 区域文件目录
+     * @param worldPathStr  世界目录路径
+     * @param outputPathStr 输出的世界目录路径（可能为空字串，即未指定）
+     * @param minInhabited  InhabitedTime 阈值 (tick)
+     * @param dryRun        是否是试运行
+     * @param options       其他可选项
+     * @return 任务参数
+     * @throws IOException 读取文件时可能抛出
+     */
+    private static TaskParams buildTaskParams(Path regionDirPath, String worldPathStr, String outputPathStr, long minInhabited, boolean dryRun, PeelOptions options) throws IOException {
         // 找到世界维度根目录下的受保护区块清单
         Path protectedChunksListPath = regionDirPath.resolveSibling(PROTECTED_CHUNKS_LIST_FILENAME);
         // 建立区块空间索引（R* 树实现）
@@ -77,24 +304,26 @@ public class Potato {
         // 构建任务参数
         Path outputPath = outputPathStr.isEmpty() ? null : Paths.get(outputPathStr);
         TaskParams params = new TaskParams(minInhabited, protectedChunksIndex, dryRun, Paths.get(worldPathStr), outputPath);
-        // 创建任务调度器
-        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(threadsNum, params);
-        // 把文件提交给任务调度器
-        for (File mcaFile : mcaFiles) {
-            if (!mcaFile.canRead() || !mcaFile.canWrite()) {
-                // 如果没有读写权限，跳过
-                GlobalLogger.warning("File " + mcaFile.getAbsolutePath() + " can not be read or written, skipped.");
-                continue;
-            }
-            dispatcher.addTask(mcaFile);
-        }
-        // 启动任务调度器
-        dispatcher.start();
-        // 等待任务完成
-        if (!dispatcher.waitForCompletion()) {
-            // 如果被打断了，抛出异常
-            throw new RegionTaskInterruptedException("Interrupted while waiting for .mca files to be processed.");
+        params.linkUnchanged = options.linkUnchanged;
+        params.chunkLayout = options.chunkLayout;
+        params.recompressPolicy = options.recompressPolicy;
+        return params;
+    }
+
+    /**
+     * 释放处理世界时共用的资源
+     *
+     * @param chunkFanOutPool   按区块并行解压的线程池，可能为 null
+     * @param durabilityBarrier 刷盘屏障，可能为 null
+     */
+    private static void closeSharedResources(ChunkFanOutPool chunkFanOutPool, DurabilityBarrier durabilityBarrier) {
+        if (chunkFanOutPool != null)
+            chunkFanOutPool.close();
+        if (durabilityBarrier != null) {
+            // 等待已经写完的区域文件全部落盘
+            durabilityBarrier.close();
+            if (durabilityBarrier.getFailedCount() > 0)
+                GlobalLogger.warning(durabilityBarrier.getFailedCount() + " region files could not be flushed to disk.");
         }
-        return dispatcher.getResult();
     }
 }
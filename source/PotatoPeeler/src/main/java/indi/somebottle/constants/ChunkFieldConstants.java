@@ -0,0 +1,35 @@
+package indi.somebottle.constants;
+
+/**
+ * 从区块数据中提取的字段（位掩码） <br>
+ * 多个字段按位或组合，在同一次解压中一起提取，见 {@link indi.somebottle.entities.ChunkData}
+ */
+public class ChunkFieldConstants {
+    private ChunkFieldConstants() {
+    }
+
+    /**
+     * InhabitedTime（Long，玩家在区块中累计停留的 tick 数）
+     */
+    public static final int INHABITED_TIME = 1;
+    /**
+     * LastUpdate（Long，区块最后一次被保存时的游戏刻）
+     */
+    public static final int LAST_UPDATE = 1 << 1;
+    /**
+     * Status（String，区块的生成状态，如 minecraft:full）
+     */
+    public static final int STATUS = 1 << 2;
+    /**
+     * DataVersion（Int，区块数据版本）
+     */
+    public static final int DATA_VERSION = 1 << 3;
+    /**
+     * 方块实体数量（1.18 之后的 block_entities 或之前 Level 中的 TileEntities 列表长度）
+     */
+    public static final int BLOCK_ENTITY_COUNT = 1 << 4;
+    /**
+     * 所有字段
+     */
+    public static final int ALL = INHABITED_TIME | LAST_UPDATE | STATUS | DATA_VERSION | BLOCK_ENTITY_COUNT;
+}
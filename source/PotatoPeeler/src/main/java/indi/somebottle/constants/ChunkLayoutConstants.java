@@ -0,0 +1,46 @@
+package indi.somebottle.constants;
+
+/**
+ * 重写区域文件时保留区块在文件中的排列方式
+ */
+public class ChunkLayoutConstants {
+    private ChunkLayoutConstants() {
+    }
+
+    /**
+     * 按头部下标顺序排列（x 先递增，然后 z），和原版写入新区块时的顺序无关，这是默认的排列方式
+     */
+    public static final int INDEX = 0;
+    /**
+     * 按局部坐标的 Z-order（Morton 序）排列 <br>
+     * 世界中相邻的区块在文件中也尽量相邻，服务器加载一片区块时读取的扇区更连续，操作系统的预读也更有效。
+     */
+    public static final int Z_ORDER = 1;
+
+    /**
+     * 解析命令行中的排列方式名称
+     *
+     * @param name 名称（index 或 zorder，不区分大小写）
+     * @return 排列方式，无法识别时返回 -1
+     */
+    public static int parse(String name) {
+        switch (name.toLowerCase()) {
+            case "index":
+                return INDEX;
+            case "zorder":
+                return Z_ORDER;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 获得排列方式的名称
+     *
+     * @param layout 排列方式
+     * @return 名称
+     */
+    public static String nameOf(int layout) {
+        return layout == Z_ORDER ? "zorder" : "index";
+    }
+}
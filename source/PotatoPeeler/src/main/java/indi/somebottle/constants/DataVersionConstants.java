@@ -11,6 +11,14 @@ public class DataVersionConstants {
      * Minecraft 1.12.2 版本的数据版本
      */
     public static final int DATA_VERSION_1_12_2 = 1343;
+    /**
+     * 快照 21w43a（1.18）的数据版本，从这个版本开始区块数据不再包裹在 Level 复合标签中，而是直接放在根标签下
+     */
+    public static final int DATA_VERSION_21W43A = 2844;
+    /**
+     * Minecraft 1.20.5 版本的数据版本，从这个版本开始区域文件中的区块可以使用 LZ4 压缩（类型 4）
+     */
+    public static final int DATA_VERSION_1_20_5 = 3837;
     /**
      * Minecraft 1.21.5 版本的数据版本
      */
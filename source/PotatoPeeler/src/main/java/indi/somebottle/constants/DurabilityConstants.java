@@ -0,0 +1,60 @@
+package indi.somebottle.constants;
+
+/**
+ * 把重写后的区域文件刷到磁盘上的方式
+ */
+public class DurabilityConstants {
+    private DurabilityConstants() {
+    }
+
+    /**
+     * 每个区域文件写完后由工作线程立即 fsync，工作线程要等待磁盘完成刷写
+     */
+    public static final int PER_FILE = 0;
+    /**
+     * 写完的区域文件交给专门的刷盘线程，成批 fsync（连同所在目录） <br>
+     * 工作线程不必等待区域文件最后的刷盘，同一批中的文件所在的目录只需要刷一次。
+     */
+    public static final int BATCHED = 1;
+    /**
+     * 不主动 fsync，和以前的版本一样由操作系统决定何时写回磁盘，这是默认的方式 <br>
+     * 进程崩溃后仍然可以通过重放压实日志恢复，但断电可能丢失最近写入的区域文件。
+     */
+    public static final int OFF = 2;
+
+    /**
+     * 解析命令行中的刷盘方式名称
+     *
+     * @param name 名称（off、per-file 或 batched，不区分大小写）
+     * @return 刷盘方式，无法识别时返回 -1
+     */
+    public static int parse(String name) {
+        switch (name.toLowerCase()) {
+            case "per-file":
+                return PER_FILE;
+            case "batched":
+                return BATCHED;
+            case "off":
+                return OFF;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 获得刷盘方式的名称
+     *
+     * @param durability 刷盘方式
+     * @return 名称
+     */
+    public static String nameOf(int durability) {
+        switch (durability) {
+            case PER_FILE:
+                return "per-file";
+            case BATCHED:
+                return "batched";
+            default:
+                return "off";
+        }
+    }
+}
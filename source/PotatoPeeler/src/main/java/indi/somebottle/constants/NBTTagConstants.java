@@ -50,4 +50,57 @@ public class NBTTagConstants {
      * 这段前缀后面 4 个字节表示 List 中元素的数量
      */
     public static final byte[] TICKETS_COMPOUND_TAG_BIN = {0x09, 0x00, 0x07, 0x74, 0x69, 0x63, 0x6B, 0x65, 0x74, 0x73, 0x0A};
+
+    /*
+        以下是 NBT 标签类型的 ID，用于按结构遍历 NBT 数据
+        参考: https://minecraft.wiki/w/NBT_format#Binary_format
+     */
+    public static final int TAG_END = 0;
+    public static final int TAG_BYTE = 1;
+    public static final int TAG_SHORT = 2;
+    public static final int TAG_INT = 3;
+    public static final int TAG_LONG = 4;
+    public static final int TAG_FLOAT = 5;
+    public static final int TAG_DOUBLE = 6;
+    public static final int TAG_BYTE_ARRAY = 7;
+    public static final int TAG_STRING = 8;
+    public static final int TAG_LIST = 9;
+    public static final int TAG_COMPOUND = 10;
+    public static final int TAG_INT_ARRAY = 11;
+    public static final int TAG_LONG_ARRAY = 12;
+
+    /**
+     * 标签名 InhabitedTime 的 UTF-8 编码
+     */
+    public static final byte[] INHABITED_TIME_NAME = {0x49, 0x6E, 0x68, 0x61, 0x62, 0x69, 0x74, 0x65, 0x64, 0x54, 0x69, 0x6d, 0x65};
+
+    /**
+     * 标签名 DataVersion 的 UTF-8 编码
+     */
+    public static final byte[] DATA_VERSION_NAME = {0x44, 0x61, 0x74, 0x61, 0x56, 0x65, 0x72, 0x73, 0x69, 0x6F, 0x6E};
+
+    /**
+     * 标签名 Level 的 UTF-8 编码（1.18 之前区块数据都包裹在这个复合标签中）
+     */
+    public static final byte[] LEVEL_NAME = {0x4C, 0x65, 0x76, 0x65, 0x6C};
+
+    /**
+     * 标签名 LastUpdate 的 UTF-8 编码
+     */
+    public static final byte[] LAST_UPDATE_NAME = {0x4C, 0x61, 0x73, 0x74, 0x55, 0x70, 0x64, 0x61, 0x74, 0x65};
+
+    /**
+     * 标签名 Status 的 UTF-8 编码
+     */
+    public static final byte[] STATUS_NAME = {0x53, 0x74, 0x61, 0x74, 0x75, 0x73};
+
+    /**
+     * 标签名 block_entities 的 UTF-8 编码（1.18 及之后的方块实体列表）
+     */
+    public static final byte[] BLOCK_ENTITIES_NAME = {0x62, 0x6C, 0x6F, 0x63, 0x6B, 0x5F, 0x65, 0x6E, 0x74, 0x69, 0x74, 0x69, 0x65, 0x73};
+
+    /**
+     * 标签名 TileEntities 的 UTF-8 编码（1.18 之前 Level 中的方块实体列表）
+     */
+    public static final byte[] TILE_ENTITIES_NAME = {0x54, 0x69, 0x6C, 0x65, 0x45, 0x6E, 0x74, 0x69, 0x74, 0x69, 0x65, 0x73};
 }
@@ -1,5 +1,9 @@
 package indi.somebottle.entities;
 
+import indi.somebottle.constants.ChunkFieldConstants;
+
+import java.nio.ByteBuffer;
+
 public class Chunk {
     /**
      * 此区块数据在原文件中距离起始的字节数
@@ -18,9 +22,15 @@ public class Chunk {
      */
     private final int globalZ;
     /**
-     * 此区块的 InhabitedTime （Tick）
+     * 此区块数据的压缩类型（1: GZip, 2: Zlib, 3: 不压缩, 4: LZ4，超出 255 个扇区时最高位为 1）
+     */
+    private final int compressionType;
+    /**
+     * 从区块数据中提取出的字段（InhabitedTime 等），未解压读取时为 null
+     * <p>
+     * 区块先以只含头部信息的形式构造，只有通过了保护、超大等开销较小的检查后才会解压区块数据提取字段
      */
-    private final long inhabitedTime;
+    private ChunkData data = null;
     /**
      * 此区块是否超出了 255 个扇区（1020 KiB）的大小
      * <p>
@@ -34,21 +44,26 @@ public class Chunk {
     private boolean deleteFlag = false;
 
     /**
-     * 构造区块对象
+     * 重新压缩后的区块数据（4 字节长度 + 1 字节压缩类型 + 数据，补齐到扇区的整数倍），为 null 时按原数据原样拷贝
+     */
+    private ByteBuffer rewrittenData = null;
+
+    /**
+     * 构造区块对象（只含头部信息，InhabitedTime 等字段需要之后再读取）
      *
      * @param globalX               区块在整个世界中的 x 坐标
      * @param globalZ               区块在整个世界中的 z 坐标
      * @param offsetInFile          区块数据在原文件中距离起始的字节数
      * @param sectorsOccupiedInFile 这个区块在原文件中占用了多少扇区（4 KiB）
-     * @param inhabitedTime         InhabitedTime （Tick）
+     * @param compressionType       区块数据的压缩类型
      * @param overSized             是否超出了 255 个扇区（1020 KiB）的大小
      */
-    public Chunk(int globalX, int globalZ, long offsetInFile, int sectorsOccupiedInFile, long inhabitedTime, boolean overSized) {
+    public Chunk(int globalX, int globalZ, long offsetInFile, int sectorsOccupiedInFile, int compressionType, boolean overSized) {
         this.globalX = globalX;
         this.globalZ = globalZ;
         this.offsetInFile = offsetInFile;
         this.sectorsOccupiedInFile = sectorsOccupiedInFile;
-        this.inhabitedTime = inhabitedTime;
+        this.compressionType = compressionType;
         this.overSized = overSized;
     }
 
@@ -70,6 +85,33 @@ public class Chunk {
         this.deleteFlag = deleteFlag;
     }
 
+    /**
+     * 获得重新压缩后的区块数据
+     *
+     * @return 区块数据（position 为 0，长度为扇区的整数倍），没有重新压缩时为 null
+     */
+    public ByteBuffer getRewrittenData() {
+        return rewrittenData;
+    }
+
+    /**
+     * 设置重新压缩后的区块数据，写入区域文件时会代替原数据
+     *
+     * @param rewrittenData 区块数据，长度必须是扇区（4 KiB）的整数倍；为 null 时恢复为原样拷贝
+     */
+    public void setRewrittenData(ByteBuffer rewrittenData) {
+        this.rewrittenData = rewrittenData;
+    }
+
+    /**
+     * 获得写入新区域文件时此区块占用的扇区数
+     *
+     * @return 重新压缩过则为新数据占用的扇区数，否则和原文件中一致
+     */
+    public int getSectorsToWrite() {
+        return rewrittenData != null ? rewrittenData.remaining() / 4096 : sectorsOccupiedInFile;
+    }
+
     /**
      * 是否超出了 255 个扇区（1020 KiB）的大小
      *
@@ -115,13 +157,49 @@ public class Chunk {
         return globalZ;
     }
 
+    /**
+     * 获得区块数据的压缩类型
+     *
+     * @return 压缩类型
+     */
+    public int getCompressionType() {
+        return compressionType;
+    }
+
+    /**
+     * 获得从区块数据中提取出的字段
+     *
+     * @return ChunkData，未解压读取时为 null
+     */
+    public ChunkData getData() {
+        return data;
+    }
+
+    /**
+     * 设置从区块数据中提取出的字段
+     *
+     * @param data ChunkData
+     */
+    public void setData(ChunkData data) {
+        this.data = data;
+    }
+
     /**
      * 获得 InhabitedTime
      *
-     * @return InhabitedTime
+     * @return InhabitedTime，未读取时为 -1
      */
     public long getInhabitedTime() {
-        return inhabitedTime;
+        return isInhabitedTimeLoaded() ? data.getInhabitedTime() : -1;
+    }
+
+    /**
+     * 是否已经读取了 InhabitedTime
+     *
+     * @return 是否已经读取
+     */
+    public boolean isInhabitedTimeLoaded() {
+        return data != null && data.has(ChunkFieldConstants.INHABITED_TIME);
     }
 
     @Override
@@ -131,7 +209,8 @@ public class Chunk {
                 ", sectorsOccupiedInFile=" + sectorsOccupiedInFile +
                 ", x=" + globalX +
                 ", z=" + globalZ +
-                ", inhabitedTime=" + inhabitedTime +
+                ", compressionType=" + compressionType +
+                ", data=" + data +
                 ", overSized=" + overSized +
                 '}';
     }
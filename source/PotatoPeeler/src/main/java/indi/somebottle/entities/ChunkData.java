@@ -0,0 +1,181 @@
+package indi.somebottle.entities;
+
+import indi.somebottle.constants.ChunkFieldConstants;
+
+/**
+ * 从区块 NBT 数据中提取出的字段 <br>
+ * 一次解压中按需提取多个字段，没有提取到的字段保持默认值，可以通过 {@link #has(int)} 判断。
+ */
+public class ChunkData {
+    /**
+     * 已经提取到的字段（{@link ChunkFieldConstants} 的位掩码）
+     */
+    private int loadedFields = 0;
+    /**
+     * InhabitedTime （Tick），未提取时为 -1
+     */
+    private long inhabitedTime = -1;
+    /**
+     * LastUpdate （Tick），未提取时为 -1
+     */
+    private long lastUpdate = -1;
+    /**
+     * 区块生成状态，未提取时为 null
+     */
+    private String status = null;
+    /**
+     * 数据版本，未提取时为 -1
+     */
+    private int dataVersion = -1;
+    /**
+     * 方块实体数量，未提取时为 -1
+     */
+    private int blockEntityCount = -1;
+    /**
+     * 提取这些字段时解压出的字节数。提取到所需的字段后就不再解压，不一定是区块数据的全部
+     */
+    private long bytesDecompressed = 0;
+
+    /**
+     * 是否提取到了所有指定的字段
+     *
+     * @param fields 字段位掩码
+     * @return 是否都已提取
+     */
+    public boolean has(int fields) {
+        return (loadedFields & fields) == fields;
+    }
+
+    /**
+     * 获得已经提取到的字段
+     *
+     * @return 字段位掩码
+     */
+    public int getLoadedFields() {
+        return loadedFields;
+    }
+
+    /**
+     * 获得 InhabitedTime
+     *
+     * @return InhabitedTime（Tick），未提取时为 -1
+     */
+    public long getInhabitedTime() {
+        return inhabitedTime;
+    }
+
+    /**
+     * 设置 InhabitedTime，并标记为已提取
+     *
+     * @param inhabitedTime InhabitedTime（Tick）
+     */
+    public void setInhabitedTime(long inhabitedTime) {
+        this.inhabitedTime = inhabitedTime;
+        loadedFields |= ChunkFieldConstants.INHABITED_TIME;
+    }
+
+    /**
+     * 获得 LastUpdate
+     *
+     * @return LastUpdate（Tick），未提取时为 -1
+     */
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * 设置 LastUpdate，并标记为已提取
+     *
+     * @param lastUpdate LastUpdate（Tick）
+     */
+    public void setLastUpdate(long lastUpdate) {
+        this.lastUpdate = lastUpdate;
+        loadedFields |= ChunkFieldConstants.LAST_UPDATE;
+    }
+
+    /**
+     * 获得提取字段时解压出的字节数
+     *
+     * @return 解压出的字节数，不一定是区块数据的全部
+     */
+    public long getBytesDecompressed() {
+        return bytesDecompressed;
+    }
+
+    /**
+     * 设置提取字段时解压出的字节数
+     *
+     * @param bytesDecompressed 解压出的字节数
+     */
+    public void setBytesDecompressed(long bytesDecompressed) {
+        this.bytesDecompressed = bytesDecompressed;
+    }
+
+    /**
+     * 获得区块生成状态
+     *
+     * @return 区块生成状态，未提取时为 null
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * 设置区块生成状态，并标记为已提取
+     *
+     * @param status 区块生成状态
+     */
+    public void setStatus(String status) {
+        this.status = status;
+        loadedFields |= ChunkFieldConstants.STATUS;
+    }
+
+    /**
+     * 获得数据版本
+     *
+     * @return 数据版本，未提取时为 -1
+     */
+    public int getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * 设置数据版本，并标记为已提取
+     *
+     * @param dataVersion 数据版本
+     */
+    public void setDataVersion(int dataVersion) {
+        this.dataVersion = dataVersion;
+        loadedFields |= ChunkFieldConstants.DATA_VERSION;
+    }
+
+    /**
+     * 获得方块实体数量
+     *
+     * @return 方块实体数量，未提取时为 -1
+     */
+    public int getBlockEntityCount() {
+        return blockEntityCount;
+    }
+
+    /**
+     * 设置方块实体数量，并标记为已提取
+     *
+     * @param blockEntityCount 方块实体数量
+     */
+    public void setBlockEntityCount(int blockEntityCount) {
+        this.blockEntityCount = blockEntityCount;
+        loadedFields |= ChunkFieldConstants.BLOCK_ENTITY_COUNT;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkData{" +
+                "inhabitedTime=" + inhabitedTime +
+                ", lastUpdate=" + lastUpdate +
+                ", status=" + status +
+                ", dataVersion=" + dataVersion +
+                ", blockEntityCount=" + blockEntityCount +
+                '}';
+    }
+}
@@ -0,0 +1,30 @@
+package indi.somebottle.entities;
+
+/**
+ * 任务清单（--manifest）中的一个世界 <br>
+ * - worldPath 世界目录路径 <br>
+ * - outputPath 输出的世界目录路径，空字串表示原地处理 <br>
+ * - minInhabited 这个世界的 InhabitedTime 阈值 <br>
+ * - priority 这个世界的权重，越大分到的处理能力越多
+ */
+public class ManifestEntry {
+    /**
+     * 世界目录路径
+     */
+    public String worldPath;
+
+    /**
+     * 输出的世界目录路径，空字串表示原地处理
+     */
+    public String outputPath = "";
+
+    /**
+     * InhabitedTime 阈值 (tick)
+     */
+    public long minInhabited;
+
+    /**
+     * 权重（>= 1），多个世界同时处理时按权重分配处理能力
+     */
+    public int priority = 1;
+}
@@ -0,0 +1,85 @@
+package indi.somebottle.entities;
+
+import indi.somebottle.constants.ChunkLayoutConstants;
+import indi.somebottle.constants.DurabilityConstants;
+import indi.somebottle.tasks.TimeBudget;
+
+/**
+ * 处理世界时的可选项，从命令行参数解析得到，每个世界共用一份 <br>
+ * - linkUnchanged 输出到其他目录时，未修改的区域文件是否以硬链接代替复制 <br>
+ * - chunkLayout 重写区域文件时区块的排列方式 <br>
+ * - recompressPolicy 重写区域文件时对保留区块重新压缩的策略 <br>
+ * - durability 把重写后的区域文件刷到磁盘上的方式 <br>
+ * - pipeline 是否以分阶段的流水线处理区域文件，以及流水线的 I/O 线程数和在途字节预算 <br>
+ * - chunkThreads 在一个区域内部按区块并行解压的线程数 <br>
+ * - virtualThreads 是否每个区域文件一个虚拟线程，以及同时进行的读写数上限 <br>
+ * - adaptiveThreads 自动调整并发数时的上下限 <br>
+ * - allDimensions 是否处理世界的所有维度 <br>
+ * - timeBudget 处理区域文件的时间预算
+ */
+public class PeelOptions {
+    /**
+     * 输出到其他目录时，未修改的区域文件是否以硬链接代替复制
+     */
+    public boolean linkUnchanged = false;
+
+    /**
+     * 重写区域文件时区块的排列方式，见 {@link ChunkLayoutConstants}
+     */
+    public int chunkLayout = ChunkLayoutConstants.INDEX;
+
+    /**
+     * 重写区域文件时对保留区块重新压缩的策略，null 表示不重新压缩
+     */
+    public RecompressPolicy recompressPolicy = null;
+
+    /**
+     * 把重写后的区域文件刷到磁盘上的方式，见 {@link DurabilityConstants}
+     */
+    public int durability = DurabilityConstants.OFF;
+
+    /**
+     * 是否以分阶段的流水线处理区域文件
+     */
+    public boolean pipeline = false;
+
+    /**
+     * 流水线中读取、写入阶段各自的线程数
+     */
+    public int ioThreads = 2;
+
+    /**
+     * 流水线中已经预读但还没处理完的文件总大小上限（字节）
+     */
+    public long pipelineBufferBytes = 256L * 1024 * 1024;
+
+    /**
+     * 在一个区域内部按区块并行解压的线程数，0 表示不并行
+     */
+    public int chunkThreads = 0;
+
+    /**
+     * 是否每个区域文件一个虚拟线程
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * 虚拟线程模式下同时进行的读写数上限
+     */
+    public int ioConcurrency = 256;
+
+    /**
+     * 自动调整并发数时的上下限，null 表示使用固定的线程数
+     */
+    public IntRange adaptiveThreads = null;
+
+    /**
+     * 是否处理世界的所有维度（所有 region 目录），否则只处理最先找到的 region 目录
+     */
+    public boolean allDimensions = false;
+
+    /**
+     * 处理区域文件的时间预算，所有世界共用，null 表示不限制时间
+     */
+    public TimeBudget timeBudget = null;
+}
@@ -7,6 +7,12 @@ public class PeelResult {
     private long chunksRemoved;
     // 受影响的区域数
     private long regionsAffected;
+    // 所有区块都被移除、因而整个文件被删除的区域数（也计入 regionsAffected）
+    private long regionsDeleted;
+    // 被重新压缩的区块数
+    private long chunksRecompressed;
+    // 因为时间预算用完而没处理到的区域数
+    private long regionsSkipped;
     // 耗时（单位：ms）
     private long timeElapsed;
 
@@ -14,6 +20,9 @@ public class PeelResult {
         sizeReduced = 0;
         chunksRemoved = 0;
         regionsAffected = 0;
+        regionsDeleted = 0;
+        chunksRecompressed = 0;
+        regionsSkipped = 0;
         timeElapsed = 0;
     }
 
@@ -41,6 +50,30 @@ public class PeelResult {
         this.regionsAffected = regionsAffected;
     }
 
+    public long getRegionsDeleted() {
+        return regionsDeleted;
+    }
+
+    public void setRegionsDeleted(long regionsDeleted) {
+        this.regionsDeleted = regionsDeleted;
+    }
+
+    public long getChunksRecompressed() {
+        return chunksRecompressed;
+    }
+
+    public void setChunksRecompressed(long chunksRecompressed) {
+        this.chunksRecompressed = chunksRecompressed;
+    }
+
+    public long getRegionsSkipped() {
+        return regionsSkipped;
+    }
+
+    public void setRegionsSkipped(long regionsSkipped) {
+        this.regionsSkipped = regionsSkipped;
+    }
+
     /**
      * 获取耗时（单位：ms）
      *
@@ -69,5 +102,8 @@ public class PeelResult {
         this.sizeReduced += another.sizeReduced;
         this.chunksRemoved += another.chunksRemoved;
         this.regionsAffected += another.regionsAffected;
+        this.regionsDeleted += another.regionsDeleted;
+        this.chunksRecompressed += another.chunksRecompressed;
+        this.regionsSkipped += another.regionsSkipped;
     }
 }
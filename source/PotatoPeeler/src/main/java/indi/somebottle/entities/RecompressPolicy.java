@@ -0,0 +1,131 @@
+package indi.somebottle.entities;
+
+import indi.somebottle.constants.DataVersionConstants;
+
+import java.util.zip.Deflater;
+
+/**
+ * 重写区域文件时对保留区块重新压缩的策略 <br>
+ * 命令行格式为逗号分隔的规则，例如 lz4-above:72000,zlib-below:1200 <br>
+ * - lz4-above:N InhabitedTime 大于 N 的区块改用 LZ4 压缩，服务器加载更快（仅限 1.20.5 及之后的区块） <br>
+ * - zlib-below:N InhabitedTime 小于 N 的区块改用最高压缩级别的 Zlib，占用空间更小 <br>
+ * 两条规则同时命中时优先 LZ4。
+ */
+public class RecompressPolicy {
+    /**
+     * LZ4 压缩类型
+     */
+    public static final int COMPRESSION_LZ4 = 4;
+    /**
+     * Zlib 压缩类型
+     */
+    public static final int COMPRESSION_ZLIB = 2;
+
+    /**
+     * InhabitedTime 大于此值的区块改用 LZ4，-1 表示不启用
+     */
+    private long lz4AboveInhabited = -1;
+
+    /**
+     * InhabitedTime 小于此值的区块改用最高级别的 Zlib，-1 表示不启用
+     */
+    private long zlibBelowInhabited = -1;
+
+    /**
+     * 解析命令行中的重新压缩策略
+     *
+     * @param spec 逗号分隔的规则
+     * @return 策略对象
+     * @throws IllegalArgumentException 规则格式不正确时抛出
+     */
+    public static RecompressPolicy parse(String spec) {
+        RecompressPolicy policy = new RecompressPolicy();
+        for (String rule : spec.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty())
+                continue;
+            int colon = rule.indexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Invalid recompression rule: " + rule);
+            String name = rule.substring(0, colon).trim().toLowerCase();
+            long threshold;
+            try {
+                threshold = Long.parseLong(rule.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid threshold in recompression rule: " + rule);
+            }
+            if (threshold < 0)
+                throw new IllegalArgumentException("Threshold must be >= 0 in recompression rule: " + rule);
+            switch (name) {
+                case "lz4-above":
+                    policy.lz4AboveInhabited = threshold;
+                    break;
+                case "zlib-below":
+                    policy.zlibBelowInhabited = threshold;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown recompression rule: " + rule);
+            }
+        }
+        if (policy.lz4AboveInhabited < 0 && policy.zlibBelowInhabited < 0)
+            throw new IllegalArgumentException("No recompression rule specified.");
+        return policy;
+    }
+
+    /**
+     * 决定区块应该被重新压缩成哪种类型 <br>
+     * 没有读取到 InhabitedTime 的区块（比如受保护的区块）、超大区块不参与重新压缩。
+     *
+     * @param chunk 区块对象，需要已经读取了 InhabitedTime（LZ4 规则还需要 DataVersion）
+     * @return 目标压缩类型，不需要重新压缩时返回 0
+     */
+    public int targetCompressionType(Chunk chunk) {
+        if (chunk.isOverSized() || chunk.isDeleteFlag() || !chunk.isInhabitedTimeLoaded())
+            return 0;
+        long inhabitedTime = chunk.getInhabitedTime();
+        ChunkData data = chunk.getData();
+        if (lz4AboveInhabited >= 0 && inhabitedTime > lz4AboveInhabited) {
+            // 旧版本服务端无法读取 LZ4 压缩的区块
+            boolean lz4Supported = data.getDataVersion() >= DataVersionConstants.DATA_VERSION_1_20_5;
+            if (lz4Supported && chunk.getCompressionType() != COMPRESSION_LZ4)
+                return COMPRESSION_LZ4;
+            return 0;
+        }
+        if (zlibBelowInhabited >= 0 && inhabitedTime < zlibBelowInhabited) {
+            // 原本就是 Zlib 的区块也重新压缩，服务端默认不是以最高级别压缩的
+            return COMPRESSION_ZLIB;
+        }
+        return 0;
+    }
+
+    /**
+     * 获得 Zlib 重新压缩时使用的压缩级别
+     *
+     * @return 压缩级别
+     */
+    public int zlibLevel() {
+        return Deflater.BEST_COMPRESSION;
+    }
+
+    /**
+     * 重新压缩时是否需要知道区块的 DataVersion
+     *
+     * @return 是否需要
+     */
+    public boolean needsDataVersion() {
+        return lz4AboveInhabited >= 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (lz4AboveInhabited >= 0)
+            sb.append("lz4-above:").append(lz4AboveInhabited);
+        if (zlibBelowInhabited >= 0) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append("zlib-below:").append(zlibBelowInhabited);
+        }
+        return sb.toString();
+    }
+}
@@ -17,9 +17,9 @@ public class Region {
      */
     private final Chunk[][] chunks = new Chunk[32][32];
     /**
-     * 存储每个区块最后一次被修改的秒级时间戳
+     * 区域文件头部，存储每个区块的偏移、占用扇区数以及最后一次被修改的秒级时间戳
      */
-    private final long[][] chunkModifiedTimes = new long[32][32];
+    private final RegionHeader header = new RegionHeader();
     /**
      * 存储非 null 的 Chunk 对象
      */
@@ -96,24 +96,22 @@ public class Region {
 
 
     /**
-     * 获得指定坐标区块最后被修改时间戳
+     * 获得区域文件头部
      *
-     * @param x 局部坐标 x
-     * @param z 局部坐标 z
-     * @return 最后修改时间戳
+     * @return 区域文件头部
      */
-    public long getChunkModifiedTimeAt(int x, int z) {
-        return chunkModifiedTimes[x][z];
+    public RegionHeader getHeader() {
+        return header;
     }
 
     /**
-     * 设定指定坐标区块最后被修改时间戳
+     * 获得指定坐标区块最后被修改时间戳
      *
-     * @param x                局部坐标 x
-     * @param z                局部坐标 z
-     * @param lastModifiedTime 最后修改时间戳
+     * @param x 局部坐标 x
+     * @param z 局部坐标 z
+     * @return 最后修改时间戳
      */
-    public void setChunkModifiedTimeAt(int x, int z, long lastModifiedTime) {
-        chunkModifiedTimes[x][z] = lastModifiedTime;
+    public long getChunkModifiedTimeAt(int x, int z) {
+        return header.getTimestamp(RegionHeader.indexOf(x, z));
     }
 }
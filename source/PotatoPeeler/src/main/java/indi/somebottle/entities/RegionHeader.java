@@ -0,0 +1,93 @@
+package indi.somebottle.entities;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * 区域文件头部（8 KiB）的原始数据模型 <br>
+ * - 前 4 KiB 是 1024 个 4 字节大端条目：高 3 字节为偏移扇区数，低 1 字节为占用扇区数 <br>
+ * - 后 4 KiB 是 1024 个 4 字节大端时间戳（纪元秒） <br>
+ * 条目下标为 x + z * 32（x 先递增）。
+ * <br><br>
+ * 参考: <a href="https://zh.minecraft.wiki/w/%E5%8C%BA%E5%9F%9F%E6%96%87%E4%BB%B6%E6%A0%BC%E5%BC%8F">区域文件格式</a>
+ */
+public class RegionHeader {
+    /**
+     * 一个区域内的区块数（32×32）
+     */
+    public static final int CHUNKS_PER_REGION = 1024;
+
+    /**
+     * 偏移表，保持原始的 4 字节条目不拆开
+     */
+    private final int[] locations = new int[CHUNKS_PER_REGION];
+
+    /**
+     * 时间戳表，注意时间戳是无符号数
+     */
+    private final int[] timestamps = new int[CHUNKS_PER_REGION];
+
+    /**
+     * 从 8 KiB 的头部数据中一次性解码出偏移表和时间戳表 <br>
+     * 直接把头部视为大端 int 数组进行批量拷贝，不逐个条目读取，也不分配额外的对象。
+     *
+     * @param headerBuf 头部数据，至少包含 8192 个可读字节，调用后其 position 不变
+     */
+    public void decode(ByteBuffer headerBuf) {
+        IntBuffer intView = headerBuf.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        intView.get(locations);
+        intView.get(timestamps);
+    }
+
+    /**
+     * 根据区块局部坐标算出条目下标
+     *
+     * @param x 局部坐标 x（0-31）
+     * @param z 局部坐标 z（0-31）
+     * @return 条目下标（0-1023）
+     */
+    public static int indexOf(int x, int z) {
+        return x | z << 5;
+    }
+
+    /**
+     * 此条目对应的区块是否存在（偏移和占用扇区数均为 0 时不存在）
+     *
+     * @param index 条目下标
+     * @return 是否存在
+     */
+    public boolean isPresent(int index) {
+        return locations[index] != 0;
+    }
+
+    /**
+     * 获得区块距离文件起点的偏移扇区数
+     *
+     * @param index 条目下标
+     * @return 偏移扇区数
+     */
+    public int getSectorOffset(int index) {
+        return locations[index] >>> 8;
+    }
+
+    /**
+     * 获得区块占用的扇区数
+     *
+     * @param index 条目下标
+     * @return 占用扇区数
+     */
+    public int getSectorCount(int index) {
+        return locations[index] & 0xFF;
+    }
+
+    /**
+     * 获得区块最后一次被修改的秒级时间戳
+     *
+     * @param index 条目下标
+     * @return 时间戳（无符号 32 位整数）
+     */
+    public long getTimestamp(int index) {
+        return timestamps[index] & 0xFFFFFFFFL;
+    }
+}
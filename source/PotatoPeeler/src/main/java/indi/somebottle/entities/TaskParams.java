@@ -1,6 +1,10 @@
 package indi.somebottle.entities;
 
+import indi.somebottle.constants.ChunkLayoutConstants;
 import indi.somebottle.indexing.ChunksSpatialIndex;
+import indi.somebottle.tasks.ChunkFanOutPool;
+import indi.somebottle.tasks.DurabilityBarrier;
+import indi.somebottle.tasks.ProgressTracker;
 
 import java.nio.file.Path;
 
@@ -8,7 +12,13 @@ import java.nio.file.Path;
  * 任务参数 <br>
  * - minInhabited InhabitedTime 阈值 <br>
  * - protectedChunksTree 所有受保护区块的区块空间索引 <br>
- * - dryRun 试运行选项
+ * - dryRun 试运行选项 <br>
+ * - linkUnchanged 输出到其他目录时，未修改的区域文件是否以硬链接代替复制 <br>
+ * - chunkLayout 重写区域文件时区块的排列方式 <br>
+ * - recompressPolicy 重写区域文件时对保留区块重新压缩的策略 <br>
+ * - durabilityBarrier 写完的区域文件交由其刷盘 <br>
+ * - chunkFanOutPool 按区块并行解压的线程池 <br>
+ * - progressTracker 处理进度和吞吐量的统计
  */
 public class TaskParams {
     /**
@@ -35,6 +45,36 @@ public class TaskParams {
      */
     public boolean dryRun;
 
+    /**
+     * 输出到其他目录时，未修改的区域文件是否以硬链接代替复制（默认 false）
+     */
+    public boolean linkUnchanged = false;
+
+    /**
+     * 重写区域文件时区块的排列方式，见 {@link ChunkLayoutConstants}（默认按头部下标顺序）
+     */
+    public int chunkLayout = ChunkLayoutConstants.INDEX;
+
+    /**
+     * 重写区域文件时对保留区块重新压缩的策略，null 表示不重新压缩（默认）
+     */
+    public RecompressPolicy recompressPolicy = null;
+
+    /**
+     * 写完的区域文件交由这个屏障刷盘，为 null 时（比如试运行）由各个操作自行处理
+     */
+    public DurabilityBarrier durabilityBarrier = null;
+
+    /**
+     * 区块足够多的区域交给这个线程池按区块并行解压，为 null 时不并行（默认）
+     */
+    public ChunkFanOutPool chunkFanOutPool = null;
+
+    /**
+     * 各阶段在这里累加处理进度和吞吐量，多个世界（维度）共用一个调度器时共用同一个
+     */
+    public ProgressTracker progressTracker = new ProgressTracker();
+
     /**
      * 构造任务参数
      *
@@ -0,0 +1,33 @@
+package indi.somebottle.streams;
+
+/**
+ * 整段数据都已经在一个字节数组中的窗口输入流（只有一个窗口）
+ */
+public class ByteArrayWindowedInputStream extends WindowedInputStream {
+    /**
+     * 以 buf 的 [offset, offset + length) 作为唯一的窗口
+     *
+     * @param buf    数据
+     * @param offset 起始下标
+     * @param length 长度
+     */
+    public ByteArrayWindowedInputStream(byte[] buf, int offset, int length) {
+        this.window = buf;
+        this.windowPos = offset;
+        this.windowLimit = offset + length;
+    }
+
+    @Override
+    protected boolean fillWindow() {
+        // 数据只有这一个窗口
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // 数组可能来自解压器池，只解开引用
+        window = null;
+        windowPos = 0;
+        windowLimit = 0;
+    }
+}
@@ -0,0 +1,76 @@
+package indi.somebottle.streams;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 把 ByteBuffer（通常是区域文件映射的切片）封装成 InputStream 的类
+ */
+public class ByteBufferInputStream extends InputStream {
+    /**
+     * 待读取的数据，读取范围为 [position, limit)
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 将 ByteBuffer 包装成流 <br>
+     * 注意：读取时会改变 buffer 的 position
+     *
+     * @param buffer 待读取的数据
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * 读取一个字节
+     *
+     * @return 读取的字节，如果已读取完毕则返回 -1
+     */
+    @Override
+    public int read() {
+        if (buffer == null || !buffer.hasRemaining())
+            return -1;
+        // 与上 0xFF，防止 byte 被当成负数提升为 int
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * 批量读取字节
+     *
+     * @param b   目标数组
+     * @param off 写入起始下标
+     * @param len 最多读取的字节数
+     * @return 实际读取的字节数，如果已读取完毕则返回 -1
+     */
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (buffer == null || !buffer.hasRemaining())
+            return -1;
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (buffer == null || n <= 0)
+            return 0;
+        int skipped = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        // 只解开引用，不影响底层的映射
+        buffer = null;
+    }
+}
@@ -3,13 +3,15 @@ package indi.somebottle.streams;
 // 用于解压区块数据的接口
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import indi.somebottle.exceptions.CompressionTypeUnsupportedException;
+import indi.somebottle.utils.IOUtils;
 
 /**
  * 区块数据读取类
  *
- * @apiNote 数据读取完毕后 RandomAccessFile 的指针会后移
+ * @apiNote 数据读取完毕后 payload 的 position 会后移
  */
 public class ChunkDataInputStream extends InputStream {
 
@@ -23,19 +25,35 @@ public class ChunkDataInputStream extends InputStream {
      */
     private boolean isClosed = false;
 
+    /**
+     * 已经解压出（读取或跳过）的字节数
+     */
+    private long bytesInflated = 0;
 
     /**
      * 构造区块数据阅读器
      *
-     * @param chunkReader     读取 Chunk 数据的 RAF 对象
-     * @param dataLen         可读的区块数据总长度
+     * @param payload         区块的（压缩）数据，读取范围为 [position, limit)
+     * @param compressionType 压缩类型
+     * @throws IOException                         IO 异常
+     * @throws CompressionTypeUnsupportedException 压缩类型不支持
+     */
+    public ChunkDataInputStream(ByteBuffer payload, int compressionType) throws IOException, CompressionTypeUnsupportedException {
+        // 先把区块数据切片包装成流，然后再用 InputStreamFactory 根据压缩类型获取解压流
+        this.inflatedStream = DecompressedInputStreamFactory.getStream(compressionType, new ByteBufferInputStream(payload));
+    }
+
+    /**
+     * 构造区块数据阅读器，解压时使用 pool 中的解压器和缓冲区
+     *
+     * @param payload         区块的（压缩）数据，读取范围为 [position, limit)
      * @param compressionType 压缩类型
+     * @param pool            解压器池
      * @throws IOException                         IO 异常
      * @throws CompressionTypeUnsupportedException 压缩类型不支持
      */
-    public ChunkDataInputStream(RandomAccessFile chunkReader, int dataLen, int compressionType) throws IOException, CompressionTypeUnsupportedException {
-        // 先把 RAF 包装成流，然后再用 InputStreamFactory 根据压缩类型获取解压流
-        this.inflatedStream = DecompressedInputStreamFactory.getStream(compressionType, new RandomAccessInputStream(chunkReader, dataLen));
+    public ChunkDataInputStream(ByteBuffer payload, int compressionType, DecompressorPool pool) throws IOException, CompressionTypeUnsupportedException {
+        this.inflatedStream = DecompressedInputStreamFactory.getStream(compressionType, payload, pool);
     }
 
     /**
@@ -48,7 +66,69 @@ public class ChunkDataInputStream extends InputStream {
     public int read() throws IOException {
         if (isClosed)
             return -1;
-        return inflatedStream.read();
+        int b = inflatedStream.read();
+        if (b != -1)
+            bytesInflated++;
+        return b;
+    }
+
+    /**
+     * 通过解压流批量读取区块数据
+     *
+     * @return 读取的字节数，若无更多数据则返回 -1
+     * @throws IOException IO 异常
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (isClosed)
+            return -1;
+        int n = inflatedStream.read(b, off, len);
+        if (n > 0)
+            bytesInflated += n;
+        return n;
+    }
+
+    /**
+     * 跳过解压后的区块数据
+     *
+     * @param n 要跳过的字节数
+     * @return 实际跳过的字节数
+     * @throws IOException IO 异常
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (isClosed)
+            return 0;
+        long skipped = inflatedStream.skip(n);
+        // 跳过的数据同样需要解压
+        bytesInflated += skipped;
+        return skipped;
+    }
+
+    /**
+     * 获得已经解压出（读取或跳过）的字节数，{@link #findAndSkip} 查找过的字节不计入
+     *
+     * @return 字节数
+     */
+    public long getBytesInflated() {
+        return bytesInflated;
+    }
+
+    /**
+     * 在解压后的区块数据中寻找某个字节序列，并跳过这个序列 <br>
+     * 如果解压流是按窗口提供数据的，就直接在窗口上查找，否则退回逐字节查找。
+     *
+     * @param bytesSeq 要寻找的字节序列
+     * @return 是否找到了这个字节序列
+     * @throws IOException IO 异常
+     * @see IOUtils#findAndSkipBytes(InputStream, byte[])
+     */
+    public boolean findAndSkip(byte[] bytesSeq) throws IOException {
+        if (isClosed)
+            return false;
+        if (inflatedStream instanceof WindowedInputStream)
+            return ((WindowedInputStream) inflatedStream).findAndSkip(bytesSeq);
+        return IOUtils.findAndSkipBytes(inflatedStream, bytesSeq);
     }
 
     @Override
@@ -5,15 +5,31 @@ package indi.somebottle.streams;
 import indi.somebottle.exceptions.CompressionTypeUnsupportedException;
 import net.jpountz.lz4.LZ4BlockInputStream;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 /**
  * 解压缩流静态工厂
  */
 public class DecompressedInputStreamFactory {
+    /**
+     * GZip 头部标志位：FHCRC / FEXTRA / FNAME / FCOMMENT
+     */
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    /**
+     * Deflate 数据每次解压输出的窗口大小
+     */
+    private static final int INFLATE_WINDOW_SIZE = 65536;
+
     /**
      * 根据压缩类型获取区块数据读取器实例
      *
@@ -43,4 +59,103 @@ public class DecompressedInputStreamFactory {
         // 其余情况不支持
         throw new CompressionTypeUnsupportedException("Compression type: " + compressionType + " unsupported.");
     }
+
+    /**
+     * 根据压缩类型获取区块数据的窗口读取流，解压所需的 Inflater、LZ4 解压器以及缓冲区均从 pool 中取得 <br>
+     * 压缩数据会被一次性从 payload 中取出，解压结果按窗口提供，避免逐字节的虚调用。
+     *
+     * @param compressionType 压缩类型
+     * @param payload         区块的（压缩）数据，读取范围为 [position, limit)，读取时会改变其 position
+     * @param pool            解压器池
+     * @return WindowedInputStream 实例
+     * @throws CompressionTypeUnsupportedException 压缩类型不支持
+     * @throws IOException                         IO 异常
+     * @apiNote 请记得关闭流；同一时刻同一个 pool 只能有一个流在使用
+     */
+    @SuppressWarnings("EnhancedSwitchMigration")
+    public static WindowedInputStream getStream(int compressionType, ByteBuffer payload, DecompressorPool pool) throws IOException, CompressionTypeUnsupportedException {
+        int len;
+        switch (compressionType) {
+            case 1:
+                // GZip，跳过头部后剩下的是裸 Deflate 数据
+                // 这里只需要读取区块中的标签，因此不校验尾部的 CRC32
+                skipGzipHeader(payload);
+                len = payload.remaining();
+                return new PooledInflaterInputStream(pool.gzipInflater(), copyToInputBuffer(payload, len, pool), len, pool.outputBuffer(INFLATE_WINDOW_SIZE));
+            case 2:
+                // Zlib
+                len = payload.remaining();
+                return new PooledInflaterInputStream(pool.zlibInflater(), copyToInputBuffer(payload, len, pool), len, pool.outputBuffer(INFLATE_WINDOW_SIZE));
+            case 3:
+                // Uncompressed，整段数据就是一个窗口
+                len = payload.remaining();
+                return new ByteArrayWindowedInputStream(copyToInputBuffer(payload, len, pool), 0, len);
+            case 4:
+                // LZ4
+                return new PooledLZ4BlockInputStream(payload, pool);
+        }
+        // 其余情况不支持
+        throw new CompressionTypeUnsupportedException("Compression type: " + compressionType + " unsupported.");
+    }
+
+    /**
+     * 把 payload 剩余的数据一次性拷贝到池中的输入缓冲区开头
+     *
+     * @param payload 数据，拷贝后 position 等于 limit
+     * @param pool    解压器池
+     * @return 池中的输入缓冲区，前 len 个字节为数据
+     */
+    private static byte[] copyToInputBuffer(ByteBuffer payload, int len, DecompressorPool pool) {
+        byte[] buf = pool.inputBuffer(len);
+        payload.get(buf, 0, len);
+        return buf;
+    }
+
+    /**
+     * 读取并跳过 GZip 头部（和 GZIPInputStream 的处理方式一致） <br>
+     * 参考: RFC 1952
+     *
+     * @param payload 数据，读取后 position 指向 Deflate 数据开头
+     * @throws IOException 头部格式有误或者数据不足时抛出
+     */
+    private static void skipGzipHeader(ByteBuffer payload) throws IOException {
+        // 魔数 0x1f8b
+        if (readUByte(payload) != 0x1f || readUByte(payload) != 0x8b)
+            throw new ZipException("Not in GZIP format");
+        // 压缩方法，只支持 Deflate (8)
+        if (readUByte(payload) != 8)
+            throw new ZipException("Unsupported compression method");
+        int flags = readUByte(payload);
+        // 跳过 MTIME(4)、XFL(1)、OS(1)
+        skipFully(payload, 6);
+        if ((flags & GZIP_FEXTRA) != 0) {
+            // 小端的额外字段长度
+            int extraLen = readUByte(payload) | readUByte(payload) << 8;
+            skipFully(payload, extraLen);
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            // 以 0 结尾的文件名
+            while (readUByte(payload) != 0) ;
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            // 以 0 结尾的注释
+            while (readUByte(payload) != 0) ;
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            // 头部 CRC16
+            skipFully(payload, 2);
+        }
+    }
+
+    private static int readUByte(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining())
+            throw new EOFException("Unexpected end of GZIP header");
+        return payload.get() & 0xFF;
+    }
+
+    private static void skipFully(ByteBuffer payload, int n) throws IOException {
+        if (payload.remaining() < n)
+            throw new EOFException("Unexpected end of GZIP header");
+        payload.position(payload.position() + n);
+    }
 }
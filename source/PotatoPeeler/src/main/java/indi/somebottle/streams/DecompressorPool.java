@@ -0,0 +1,146 @@
+package indi.somebottle.streams;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.Closeable;
+import java.util.zip.Inflater;
+
+/**
+ * 解压器池 <br>
+ * 每个区域任务执行器（线程）持有一个，在处理不同区块、不同区域时重复使用其中的 Inflater、LZ4 解压器以及各种缓冲区，
+ * 避免每个区块都新建一个 Inflater（会分配 native 内存）以及一堆缓冲区。
+ *
+ * @apiNote 非线程安全，同一时刻只能被一个线程使用；同一时刻也只能有一个解压流在使用其中的资源
+ */
+public class DecompressorPool implements Closeable {
+    /**
+     * 解压流读取压缩数据时默认的缓冲区大小
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * 用于 Zlib（压缩类型 2）的 Inflater，第一次用到时才创建（会分配 native 内存）
+     */
+    private Inflater zlibInflater;
+
+    /**
+     * 用于 GZip（压缩类型 1）的 Inflater，第一次用到时才创建 <br>
+     * GZip 的头部和尾部由 {@link DecompressedInputStreamFactory} 处理，中间是不带 Zlib 包装的 Deflate 数据，因此 nowrap=true
+     */
+    private Inflater gzipInflater;
+
+    /**
+     * LZ4 解压器（线程安全、无状态）
+     */
+    private final LZ4SafeDecompressor lz4Decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+    /**
+     * 用于校验 LZ4 数据块的 XXHash32（线程安全、无状态）
+     */
+    private final XXHash32 xxHash32 = XXHashFactory.fastestInstance().hash32();
+
+    /**
+     * 压缩数据缓冲区，第一次用到时才分配
+     */
+    private byte[] inputBuffer = new byte[0];
+
+    /**
+     * 解压数据缓冲区（LZ4 数据块解压到这里），第一次用到时才分配
+     */
+    private byte[] outputBuffer = new byte[0];
+
+    /**
+     * 池是否已经关闭
+     */
+    private boolean closed = false;
+
+    /**
+     * 获得重置后的 Zlib Inflater
+     *
+     * @return Inflater
+     */
+    public Inflater zlibInflater() {
+        checkOpen();
+        if (zlibInflater == null)
+            zlibInflater = new Inflater();
+        zlibInflater.reset();
+        return zlibInflater;
+    }
+
+    /**
+     * 获得重置后的 GZip（nowrap）Inflater
+     *
+     * @return Inflater
+     */
+    public Inflater gzipInflater() {
+        checkOpen();
+        if (gzipInflater == null)
+            gzipInflater = new Inflater(true);
+        gzipInflater.reset();
+        return gzipInflater;
+    }
+
+    /**
+     * 获得 LZ4 解压器
+     *
+     * @return LZ4SafeDecompressor
+     */
+    public LZ4SafeDecompressor lz4Decompressor() {
+        return lz4Decompressor;
+    }
+
+    /**
+     * 获得 XXHash32
+     *
+     * @return XXHash32
+     */
+    public XXHash32 xxHash32() {
+        return xxHash32;
+    }
+
+    /**
+     * 获得至少 minSize 字节的压缩数据缓冲区（不够大时会扩容，扩容后内容不保留）
+     *
+     * @param minSize 最小大小
+     * @return 缓冲区
+     */
+    public byte[] inputBuffer(int minSize) {
+        if (inputBuffer.length < minSize)
+            inputBuffer = new byte[Math.max(minSize, DEFAULT_BUFFER_SIZE)];
+        return inputBuffer;
+    }
+
+    /**
+     * 获得至少 minSize 字节的解压数据缓冲区（不够大时会扩容，扩容后内容不保留）
+     *
+     * @param minSize 最小大小
+     * @return 缓冲区
+     */
+    public byte[] outputBuffer(int minSize) {
+        if (outputBuffer.length < minSize)
+            outputBuffer = new byte[Math.max(minSize, DEFAULT_BUFFER_SIZE)];
+        return outputBuffer;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Decompressor pool has been closed.");
+    }
+
+    /**
+     * 释放 Inflater 占用的 native 内存
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (zlibInflater != null)
+                zlibInflater.end();
+            if (gzipInflater != null)
+                gzipInflater.end();
+        }
+    }
+}
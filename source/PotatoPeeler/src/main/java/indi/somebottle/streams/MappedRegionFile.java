@@ -0,0 +1,155 @@
+package indi.somebottle.streams;
+
+import indi.somebottle.exceptions.RegionFormatException;
+import indi.somebottle.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 以内存映射方式读取的区域文件 <br>
+ * 整个 .mca 文件只打开一个 FileChannel 并映射为一个 MappedByteBuffer，头部和区块数据都以切片（slice）的形式读取，
+ * 读取区块时不再需要每个区块都进行 seek 和 read 系统调用。
+ * 也可以包装一份已经读入内存的文件内容（见 {@link #MappedRegionFile(File, ByteBuffer)}），切片的用法相同。
+ *
+ * @apiNote 关闭后映射会被解除，此前取得的切片均不可再使用
+ */
+public class MappedRegionFile implements Closeable {
+    /**
+     * 区域文件头部的大小（偏移表 4 KiB + 时间戳表 4 KiB）
+     */
+    public static final int HEADER_SIZE = 8192;
+
+    /**
+     * 区域文件对象
+     */
+    private final File regionFile;
+
+    /**
+     * 区域文件的通道，整个文件只占用这一个文件描述符；包装内存中的内容时为 null
+     */
+    private final FileChannel channel;
+
+    /**
+     * 映射整个区域文件得到的缓冲区，或者包装的文件内容
+     */
+    private ByteBuffer mappedBuffer;
+
+    /**
+     * 区域文件的大小（字节）
+     */
+    private final int fileSize;
+
+    /**
+     * 以只读方式映射区域文件
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @throws RegionFormatException 文件太小（连头部都放不下）或者太大时抛出
+     * @throws IOException           文件打开或映射失败时抛出
+     */
+    public MappedRegionFile(File regionFile) throws IOException {
+        this.regionFile = regionFile;
+        this.channel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                // 连 8 KiB 的头部都不完整
+                throw new RegionFormatException("MCA File format error in " + regionFile + ", file is too small (" + size + " bytes) to contain a header.");
+            }
+            if (size > Integer.MAX_VALUE) {
+                // 区域文件理论最大约 1 GiB，超过 2 GiB 肯定是有问题的
+                throw new RegionFormatException("MCA File format error in " + regionFile + ", file is too large (" + size + " bytes).");
+            }
+            this.fileSize = (int) size;
+            this.mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            // 构造失败时不要泄露文件描述符
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 包装已经读入内存的区域文件内容，不再打开文件 <br>
+     * 关闭时不会释放 contents，调用方可以在关闭后复用它。
+     *
+     * @param regionFile 区域 .mca 文件对象（只用于错误信息）
+     * @param contents   文件内容，从 position 到 limit
+     * @throws RegionFormatException 内容太少（连头部都放不下）时抛出
+     */
+    public MappedRegionFile(File regionFile, ByteBuffer contents) throws RegionFormatException {
+        this.regionFile = regionFile;
+        this.channel = null;
+        if (contents.remaining() < HEADER_SIZE) {
+            throw new RegionFormatException("MCA File format error in " + regionFile + ", file is too small (" + contents.remaining() + " bytes) to contain a header.");
+        }
+        this.fileSize = contents.remaining();
+        this.mappedBuffer = contents.slice();
+    }
+
+    /**
+     * 获得区域文件的大小
+     *
+     * @return 文件大小（字节）
+     */
+    public int size() {
+        return fileSize;
+    }
+
+    /**
+     * 获得区域文件对象
+     *
+     * @return 区域文件对象
+     */
+    public File getRegionFile() {
+        return regionFile;
+    }
+
+    /**
+     * 获得区域文件头部（8 KiB）的切片
+     *
+     * @return 头部切片，position 为 0，limit 为 8192
+     * @throws IOException 文件已经关闭时抛出
+     */
+    public ByteBuffer header() throws IOException {
+        return slice(0, HEADER_SIZE);
+    }
+
+    /**
+     * 获得文件中 [offset, offset + length) 这一段数据的切片 <br>
+     * 切片拥有独立的 position 和 limit，多个切片之间互不影响。
+     *
+     * @param offset 起始偏移（字节）
+     * @param length 长度（字节）
+     * @return 切片，position 为 0
+     * @throws RegionFormatException 请求的范围超出文件时抛出
+     * @throws IOException           文件已经关闭时抛出
+     */
+    public ByteBuffer slice(long offset, int length) throws IOException {
+        if (mappedBuffer == null)
+            throw new IOException("Region file " + regionFile + " has been closed.");
+        if (offset < 0 || length < 0 || offset + length > fileSize)
+            throw new RegionFormatException("MCA File format error in " + regionFile + ", range [" + offset + ", " + (offset + length) + ") is out of file bounds (" + fileSize + " bytes).");
+        // duplicate 出来的缓冲区和原缓冲区共享数据，但是 position 和 limit 独立
+        ByteBuffer dup = mappedBuffer.duplicate();
+        dup.position((int) offset);
+        dup.limit((int) offset + length);
+        return dup.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mappedBuffer instanceof MappedByteBuffer) {
+            // 尽早解除映射，否则在 Windows 上映射存在期间文件无法被重命名或删除
+            IOUtils.unmap((MappedByteBuffer) mappedBuffer);
+        }
+        mappedBuffer = null;
+        if (channel != null)
+            channel.close();
+    }
+}
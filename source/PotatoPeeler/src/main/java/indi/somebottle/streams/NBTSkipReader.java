@@ -0,0 +1,257 @@
+package indi.somebottle.streams;
+
+import indi.somebottle.constants.NBTTagConstants;
+import indi.somebottle.exceptions.NBTFormatException;
+import indi.somebottle.utils.IOUtils;
+import indi.somebottle.utils.NumUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 按结构流式读取 NBT 二进制数据的阅读器 <br>
+ * 只提供遍历所需的基本操作：读取标签类型、标签名、数值，以及根据声明的长度整体跳过一个标签的负载。
+ * 跳过数组、字符串和列表时不需要逐字节检查其内容。
+ * <p>
+ * 参考: <a href="https://zh.minecraft.wiki/w/NBT%E6%A0%BC%E5%BC%8F">NBT 格式</a>
+ */
+public class NBTSkipReader {
+    /**
+     * 底层输入流（解压后的 NBT 数据）
+     */
+    private final InputStream in;
+
+    /**
+     * 读取数值用的缓冲
+     */
+    private final byte[] numBuf = new byte[8];
+
+    /**
+     * 最近一次读取的标签名
+     */
+    private byte[] nameBuf = new byte[32];
+
+    /**
+     * 最近一次读取的标签名长度
+     */
+    private int nameLen = 0;
+
+    /**
+     * 构造阅读器
+     *
+     * @param in 解压后的 NBT 数据流
+     */
+    public NBTSkipReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 读取一个标签类型 ID
+     *
+     * @return 标签类型（0 ~ 12）
+     * @throws NBTFormatException 数据不足或者类型未知时抛出
+     */
+    public int readTagType() throws IOException {
+        int type = in.read();
+        if (type == -1)
+            throw new NBTFormatException("Unexpected end of NBT data while reading tag type");
+        if (type > NBTTagConstants.TAG_LONG_ARRAY)
+            throw new NBTFormatException("Unknown NBT tag type: " + type);
+        return type;
+    }
+
+    /**
+     * 读取标签名（2 字节大端长度 + UTF-8 字节），之后可以用 {@link #nameEquals(byte[])} 比较
+     *
+     * @throws NBTFormatException 数据不足时抛出
+     */
+    public void readName() throws IOException {
+        nameLen = readUnsignedShort();
+        if (nameBuf.length < nameLen)
+            nameBuf = new byte[nameLen];
+        readFully(nameBuf, nameLen);
+    }
+
+    /**
+     * 跳过标签名
+     *
+     * @throws NBTFormatException 数据不足时抛出
+     */
+    public void skipName() throws IOException {
+        skipFully(readUnsignedShort());
+    }
+
+    /**
+     * 最近一次读取的标签名是否和 expected 相同
+     *
+     * @param expected 标签名的 UTF-8 编码
+     * @return 是否相同
+     */
+    public boolean nameEquals(byte[] expected) {
+        if (expected.length != nameLen)
+            return false;
+        for (int i = 0; i < nameLen; i++) {
+            if (nameBuf[i] != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 读取 TAG_Int 的值
+     *
+     * @return 值
+     * @throws NBTFormatException 数据不足时抛出
+     */
+    public int readInt() throws IOException {
+        readFully(numBuf, 4);
+        return (int) NumUtils.bigEndianToLong(numBuf, 4);
+    }
+
+    /**
+     * 读取 TAG_Long 的值
+     *
+     * @return 值
+     * @throws NBTFormatException 数据不足时抛出
+     */
+    public long readLong() throws IOException {
+        readFully(numBuf, 8);
+        return NumUtils.bigEndianToLong(numBuf, 8);
+    }
+
+    /**
+     * 根据标签类型整体跳过一个标签的负载（不包括类型和标签名） <br>
+     * 数组和字符串按声明的长度直接跳过，元素定长的列表也一次跳过。
+     *
+     * @param type 标签类型
+     * @throws NBTFormatException 数据不足、长度为负或者类型未知时抛出
+     */
+    public void skipPayload(int type) throws IOException {
+        switch (type) {
+            case NBTTagConstants.TAG_BYTE:
+            case NBTTagConstants.TAG_SHORT:
+            case NBTTagConstants.TAG_INT:
+            case NBTTagConstants.TAG_LONG:
+            case NBTTagConstants.TAG_FLOAT:
+            case NBTTagConstants.TAG_DOUBLE:
+                skipFully(fixedPayloadSize(type));
+                break;
+            case NBTTagConstants.TAG_BYTE_ARRAY:
+                skipFully(readLength());
+                break;
+            case NBTTagConstants.TAG_INT_ARRAY:
+                skipFully(readLength() * 4L);
+                break;
+            case NBTTagConstants.TAG_LONG_ARRAY:
+                skipFully(readLength() * 8L);
+                break;
+            case NBTTagConstants.TAG_STRING:
+                skipFully(readUnsignedShort());
+                break;
+            case NBTTagConstants.TAG_LIST:
+                skipListPayload();
+                break;
+            case NBTTagConstants.TAG_COMPOUND: {
+                int childType;
+                while ((childType = readTagType()) != NBTTagConstants.TAG_END) {
+                    skipName();
+                    skipPayload(childType);
+                }
+                break;
+            }
+            default:
+                throw new NBTFormatException("Unexpected NBT tag type: " + type);
+        }
+    }
+
+    /**
+     * 读取 TAG_String 的值
+     *
+     * @return 字符串
+     * @throws NBTFormatException 数据不足时抛出
+     */
+    public String readString() throws IOException {
+        int len = readUnsignedShort();
+        byte[] buf = new byte[len];
+        readFully(buf, len);
+        // NBT 字符串采用 Modified UTF-8，对于常见的字符和 UTF-8 一致
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 跳过 TAG_List 的负载
+     *
+     * @return 列表的元素数
+     * @throws NBTFormatException 数据不足、长度为负或者类型未知时抛出
+     */
+    public int skipListPayload() throws IOException {
+        int elementType = readTagType();
+        int length = readLength();
+        int elementSize = fixedPayloadSize(elementType);
+        if (elementSize > 0) {
+            // 元素定长，整个列表一次跳过
+            skipFully((long) length * elementSize);
+        } else if (elementType != NBTTagConstants.TAG_END) {
+            for (int i = 0; i < length; i++)
+                skipPayload(elementType);
+        }
+        return length;
+    }
+
+    /**
+     * 定长标签负载的字节数
+     *
+     * @param type 标签类型
+     * @return 字节数，不定长的标签返回 0
+     */
+    private static int fixedPayloadSize(int type) {
+        switch (type) {
+            case NBTTagConstants.TAG_BYTE:
+                return 1;
+            case NBTTagConstants.TAG_SHORT:
+                return 2;
+            case NBTTagConstants.TAG_INT:
+            case NBTTagConstants.TAG_FLOAT:
+                return 4;
+            case NBTTagConstants.TAG_LONG:
+            case NBTTagConstants.TAG_DOUBLE:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 读取数组或列表的长度（4 字节有符号大端整数）
+     */
+    private int readLength() throws IOException {
+        int length = readInt();
+        if (length < 0)
+            throw new NBTFormatException("Negative NBT array length: " + length);
+        return length;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        readFully(numBuf, 2);
+        return (int) NumUtils.bigEndianToLong(numBuf, 2);
+    }
+
+    private void readFully(byte[] buf, int len) throws IOException {
+        if (IOUtils.readFully(in, buf, len) != len)
+            throw new NBTFormatException("Unexpected end of NBT data");
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // 有的流 skip 可能返回 0，此时读一个字节确认是否到了末尾
+                if (in.read() == -1)
+                    throw new NBTFormatException("Unexpected end of NBT data");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package indi.somebottle.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * 使用 {@link DecompressorPool} 中的 Inflater 和缓冲区进行解压的流 <br>
+ * 压缩数据一次性交给 Inflater，每次 inflate 都直接解压一整个窗口，读取和查找都在窗口上进行。
+ * 和 InflaterInputStream 不同，这个流不会为每个实例新建缓冲区，关闭时也不会释放 Inflater。
+ */
+public class PooledInflaterInputStream extends WindowedInputStream {
+    /**
+     * 来自池中的 Inflater（已经重置过）
+     */
+    private Inflater inflater;
+
+    /**
+     * 解压输出窗口（来自池）
+     */
+    private final byte[] outputWindow;
+
+    /**
+     * 构造解压流
+     *
+     * @param inflater     已经重置过的 Inflater
+     * @param input        完整的压缩数据
+     * @param inputLen     压缩数据长度
+     * @param outputWindow 解压输出窗口
+     */
+    public PooledInflaterInputStream(Inflater inflater, byte[] input, int inputLen, byte[] outputWindow) {
+        this.inflater = inflater;
+        this.outputWindow = outputWindow;
+        // 压缩数据已经全部在内存中，只需要设置一次
+        inflater.setInput(input, 0, inputLen);
+    }
+
+    @Override
+    protected boolean fillWindow() throws IOException {
+        if (inflater == null)
+            return false;
+        try {
+            int n = inflater.inflate(outputWindow, 0, outputWindow.length);
+            if (n == 0) {
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    // 数据已经解压完毕
+                    return false;
+                }
+                if (inflater.needsInput()) {
+                    // 所有压缩数据都给出去了，却还没解压完
+                    throw new EOFException("Unexpected end of deflate input stream");
+                }
+            }
+            window = outputWindow;
+            windowPos = 0;
+            windowLimit = n;
+            return true;
+        } catch (DataFormatException e) {
+            String msg = e.getMessage();
+            throw new ZipException(msg != null ? msg : "Invalid deflate data format");
+        }
+    }
+
+    @Override
+    public void close() {
+        // Inflater 和缓冲区归池所有，这里不调用 end()，只解开引用
+        inflater = null;
+        window = null;
+        windowPos = 0;
+        windowLimit = 0;
+    }
+}
@@ -0,0 +1,157 @@
+package indi.somebottle.streams;
+
+import net.jpountz.lz4.LZ4Exception;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 使用 {@link DecompressorPool} 中的 LZ4 解压器和缓冲区解压 LZ4 Block 格式数据的流 <br>
+ * 数据格式和 LZ4BlockOutputStream 写出的一致（Minecraft 采用的就是这种格式），每个数据块的头部为：<br>
+ * MAGIC "LZ4Block"（8 B） + token（1 B） + 压缩后长度（4 B 小端） + 原始长度（4 B 小端） + XXHash32 校验值（4 B 小端）<br>
+ * 每个数据块的压缩数据一次性从切片中取出，解压结果作为一个窗口供读取和查找。
+ */
+public class PooledLZ4BlockInputStream extends WindowedInputStream {
+    /**
+     * 数据块的 MAGIC
+     */
+    private static final byte[] MAGIC = {'L', 'Z', '4', 'B', 'l', 'o', 'c', 'k'};
+    /**
+     * 数据块头部长度
+     */
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 4 + 4;
+    /**
+     * 数据块未压缩
+     */
+    private static final int COMPRESSION_METHOD_RAW = 0x10;
+    /**
+     * 数据块经过 LZ4 压缩
+     */
+    private static final int COMPRESSION_METHOD_LZ4 = 0x20;
+    /**
+     * 压缩级别的基数，数据块最大大小为 1 << (基数 + token 低 4 位)
+     */
+    private static final int COMPRESSION_LEVEL_BASE = 10;
+    /**
+     * LZ4BlockOutputStream 计算 XXHash32 校验值时使用的种子
+     */
+    private static final int DEFAULT_SEED = 0x9747b28c;
+
+    /**
+     * 压缩数据，读取范围为 [position, limit)
+     */
+    private ByteBuffer source;
+
+    /**
+     * 解压器池
+     */
+    private final DecompressorPool pool;
+
+    /**
+     * 数据块头部缓冲
+     */
+    private final byte[] headerBuf = new byte[HEADER_LENGTH];
+
+    /**
+     * 是否已经读到了结束标记（空数据块）或者数据末尾
+     */
+    private boolean finished = false;
+
+    /**
+     * 构造解压流
+     *
+     * @param source 压缩数据（读取时会改变其 position）
+     * @param pool   解压器池
+     */
+    public PooledLZ4BlockInputStream(ByteBuffer source, DecompressorPool pool) {
+        this.source = source;
+        this.pool = pool;
+    }
+
+    /**
+     * 读取并解压下一个数据块作为窗口
+     *
+     * @return 没有更多数据块时返回 false
+     * @throws IOException 数据损坏时抛出
+     */
+    @Override
+    protected boolean fillWindow() throws IOException {
+        if (finished || source == null)
+            return false;
+        if (!source.hasRemaining()) {
+            // 没有结束标记就到了数据末尾，和 LZ4BlockInputStream 一样视为结束
+            finished = true;
+            return false;
+        }
+        if (source.remaining() < HEADER_LENGTH)
+            throw new EOFException("LZ4 stream ended prematurely");
+        source.get(headerBuf);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (headerBuf[i] != MAGIC[i])
+                throw new IOException("LZ4 stream is corrupted: bad magic");
+        }
+        int token = headerBuf[MAGIC.length] & 0xFF;
+        int compressionMethod = token & 0xF0;
+        int maxBlockSize = 1 << (COMPRESSION_LEVEL_BASE + (token & 0x0F));
+        int compressedLen = readIntLE(headerBuf, MAGIC.length + 1);
+        int originalLen = readIntLE(headerBuf, MAGIC.length + 5);
+        int checksum = readIntLE(headerBuf, MAGIC.length + 9);
+        if (originalLen > maxBlockSize || originalLen < 0 || compressedLen < 0
+                || (originalLen == 0 && compressedLen != 0)
+                || (originalLen != 0 && compressedLen == 0)
+                || (compressionMethod == COMPRESSION_METHOD_RAW && originalLen != compressedLen)) {
+            throw new IOException("LZ4 stream is corrupted: bad block header");
+        }
+        if (originalLen == 0) {
+            // 空数据块是结束标记
+            finished = true;
+            return false;
+        }
+        if (source.remaining() < compressedLen)
+            throw new EOFException("LZ4 stream ended prematurely");
+        byte[] blockBuf = pool.outputBuffer(originalLen);
+        switch (compressionMethod) {
+            case COMPRESSION_METHOD_RAW:
+                source.get(blockBuf, 0, originalLen);
+                break;
+            case COMPRESSION_METHOD_LZ4:
+                // 整个数据块的压缩数据一次性取出
+                byte[] compressedBuf = pool.inputBuffer(compressedLen);
+                source.get(compressedBuf, 0, compressedLen);
+                try {
+                    int decompressedLen = pool.lz4Decompressor().decompress(compressedBuf, 0, compressedLen, blockBuf, 0, originalLen);
+                    if (decompressedLen != originalLen)
+                        throw new IOException("LZ4 stream is corrupted: block length mismatch");
+                } catch (LZ4Exception e) {
+                    throw new IOException("LZ4 stream is corrupted", e);
+                }
+                break;
+            default:
+                throw new IOException("LZ4 stream is corrupted: unknown compression method " + compressionMethod);
+        }
+        // 和 LZ4BlockOutputStream 一样，校验值只保留低 28 位
+        if ((pool.xxHash32().hash(blockBuf, 0, originalLen, DEFAULT_SEED) & 0xFFFFFFF) != checksum)
+            throw new IOException("LZ4 stream is corrupted: checksum mismatch");
+        window = blockBuf;
+        windowPos = 0;
+        windowLimit = originalLen;
+        return true;
+    }
+
+    /**
+     * 按小端读取 4 字节整数
+     */
+    private static int readIntLE(byte[] buf, int off) {
+        return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public void close() {
+        // 缓冲区归池所有，这里只解开引用
+        source = null;
+        window = null;
+        windowPos = 0;
+        windowLimit = 0;
+    }
+}
@@ -0,0 +1,147 @@
+package indi.somebottle.streams;
+
+import indi.somebottle.utils.ByteSearchUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 以“窗口”为单位提供数据的输入流 <br>
+ * 子类每次把一整块数据（比如一次 inflate 的输出、一个 LZ4 数据块）放进 window 的 [windowPos, windowLimit) 中，
+ * 读取和查找都直接在窗口数组上进行，不需要每个字节都经过一次 read() 虚调用。
+ */
+public abstract class WindowedInputStream extends InputStream {
+    /**
+     * 当前窗口
+     */
+    protected byte[] window;
+
+    /**
+     * 窗口中下一个要读取的字节下标
+     */
+    protected int windowPos = 0;
+
+    /**
+     * 窗口中有效数据的末尾（不包含）
+     */
+    protected int windowLimit = 0;
+
+    /**
+     * 准备下一个窗口的数据（设置 window、windowPos 和 windowLimit）
+     *
+     * @return 没有更多数据时返回 false
+     * @throws IOException 读取或解压失败时抛出
+     */
+    protected abstract boolean fillWindow() throws IOException;
+
+    /**
+     * 保证当前窗口中还有数据可读
+     *
+     * @return 是否还有数据
+     * @throws IOException 读取或解压失败时抛出
+     */
+    private boolean ensureWindow() throws IOException {
+        while (windowPos >= windowLimit) {
+            if (!fillWindow())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow())
+            return -1;
+        return window[windowPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!ensureWindow())
+            return -1;
+        int n = Math.min(len, windowLimit - windowPos);
+        System.arraycopy(window, windowPos, b, off, n);
+        windowPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && ensureWindow()) {
+            int step = (int) Math.min(n - skipped, windowLimit - windowPos);
+            windowPos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return windowLimit - windowPos;
+    }
+
+    /**
+     * 在流中寻找某个字节序列，并跳过这个序列（和 {@link indi.somebottle.utils.IOUtils#findAndSkipBytes} 语义一致）<br>
+     * 窗口内部用 {@link ByteSearchUtils#indexOf} 一次比较 8 个字节，窗口末尾未完成的部分匹配会带到下一个窗口继续匹配，
+     * 因此跨越窗口边界的序列也能被找到。
+     *
+     * @param bytesSeq 要寻找的字节序列
+     * @return 是否找到了这个字节序列，没找到时流会被读到末尾
+     * @throws IOException 读取或解压失败时抛出
+     * @apiNote 需要保证 bytesSeq 中<b>没有任何相等前后缀序列</b>
+     */
+    public boolean findAndSkip(byte[] bytesSeq) throws IOException {
+        int seqLen = bytesSeq.length;
+        // 已经匹配上的字节数，跨窗口保留
+        int searchPtr = 0;
+        while (ensureWindow()) {
+            byte[] w = window;
+            int limit = windowLimit;
+            int i = windowPos;
+            // 1. 先把上个窗口末尾的部分匹配继续下去，直到匹配完成或者失配
+            while (searchPtr > 0 && i < limit) {
+                searchPtr = nextSearchPtr(searchPtr, w[i++], bytesSeq);
+                if (searchPtr == seqLen) {
+                    windowPos = i;
+                    return true;
+                }
+            }
+            if (searchPtr > 0) {
+                // 窗口已经用完，部分匹配还在继续
+                windowPos = limit;
+                continue;
+            }
+            // 2. 窗口内完整出现的序列
+            int found = ByteSearchUtils.indexOf(w, i, limit, bytesSeq);
+            if (found >= 0) {
+                // 下一个读取的字节就是序列后的第一个字节
+                windowPos = found + seqLen;
+                return true;
+            }
+            // 3. 窗口末尾可能有序列的前缀，记下匹配的长度
+            for (int j = Math.max(i, limit - seqLen + 1); j < limit; j++) {
+                searchPtr = nextSearchPtr(searchPtr, w[j], bytesSeq);
+            }
+            windowPos = limit;
+        }
+        return false;
+    }
+
+    /**
+     * 逐字节匹配时的状态转移（和 IOUtils#findAndSkipBytes 一致）
+     *
+     * @param searchPtr 已经匹配的字节数
+     * @param b         新读到的字节
+     * @param bytesSeq  要寻找的字节序列
+     * @return 新的已匹配字节数
+     */
+    private static int nextSearchPtr(int searchPtr, byte b, byte[] bytesSeq) {
+        if (b == bytesSeq[searchPtr])
+            return searchPtr + 1;
+        // 失配时检查当前字节能否作为序列的开头
+        return b == bytesSeq[0] ? 1 : 0;
+    }
+}
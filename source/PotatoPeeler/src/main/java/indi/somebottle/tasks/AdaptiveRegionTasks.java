@@ -0,0 +1,211 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.TaskParams;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.runners.RegionTaskRunner;
+import indi.somebottle.tasks.runners.RegionTaskRunnerFactory;
+import indi.somebottle.utils.NumUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 自动调整并发数的执行方式 <br>
+ * 合适的线程数取决于存储：NVMe 上线程越多越快，机械硬盘上线程多了反而会因为频繁寻道而变慢。
+ * 这里预先启动 max 个工作线程，但同一时刻只允许其中 limit 个处理区域文件，limit 根据测得的吞吐量在 [min, max] 之间调整：
+ * <p>
+ * - 每处理完至少 limit 个区域文件、且经过至少 {@link #WINDOW_MS} 毫秒算作一个窗口，统计窗口内的字节/秒和区域/秒 <br>
+ * - 吞吐量没有明显下降时增加并发数：起步阶段翻倍（慢启动），之后每次加一（加性增） <br>
+ * - 吞吐量比上个窗口下降超过 {@link #DROP_TOLERANCE} 时减少四分之一的并发数（乘性减），并结束慢启动
+ * <p>
+ * 队列按文件大小从大到小排列，越往后文件越小，每个文件的固定开销使字节/秒自然下降，而区域/秒随之上升，
+ * 只看其中一个都会误判。因此只有字节/秒和区域/秒<b>都</b>明显下降时才视为吞吐量下降，并发过高（比如机械硬盘频繁寻道）时两者会一起下降。
+ * <p>
+ * 窗口由处理完区域文件的工作线程顺便结算，不需要额外的线程。
+ */
+public class AdaptiveRegionTasks {
+    /**
+     * 一个统计窗口的最短时长（ms）
+     */
+    static final long WINDOW_MS = 1000;
+
+    /**
+     * 吞吐量下降超过这个比例时视为并发过高
+     */
+    static final double DROP_TOLERANCE = 0.1;
+
+    private final Queue<File> queue; // 所有工作线程共用的区域文件队列
+    private final TaskParams params; // 任务参数
+    private final int minThreads; // 并发数下限
+    private final int maxThreads; // 并发数上限（工作线程数）
+    private final List<RegionTaskRunner> runners = new ArrayList<>(); // 每个工作线程各自的执行器
+    private final AtomicInteger workersLeft; // 还没结束的工作线程数
+
+    // 以下字段均由 this 的锁保护
+    private int limit; // 当前允许的并发数
+    private int active = 0; // 正在处理区域文件的工作线程数
+    private boolean slowStart = true; // 是否处于慢启动阶段
+    private long windowStart; // 当前窗口的开始时间
+    private long windowBytes = 0; // 当前窗口内处理完的字节数
+    private int windowRegions = 0; // 当前窗口内处理完的区域文件数
+    private double lastBytesPerSecond = 0; // 上个窗口的吞吐量（字节/秒）
+    private double lastRegionsPerSecond = 0; // 上个窗口的吞吐量（区域/秒）
+
+    /**
+     * 创建执行方式
+     *
+     * @param queue      区域文件队列
+     * @param params     任务参数
+     * @param minThreads 并发数下限
+     * @param maxThreads 并发数上限
+     */
+    public AdaptiveRegionTasks(Queue<File> queue, TaskParams params, int minThreads, int maxThreads) {
+        this.queue = queue;
+        this.params = params;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.limit = minThreads;
+        this.workersLeft = new AtomicInteger(maxThreads);
+        for (int i = 0; i < maxThreads; i++) {
+            runners.add(RegionTaskRunnerFactory.getTaskRunner(queue, params));
+        }
+    }
+
+    /**
+     * 获得所有工作线程的执行器，用于汇总统计结果
+     *
+     * @return 执行器列表
+     */
+    public List<RegionTaskRunner> getRunners() {
+        return runners;
+    }
+
+    /**
+     * 获得需要的线程数（并发数上限）
+     *
+     * @return 线程数
+     */
+    public int getThreadsNum() {
+        return maxThreads;
+    }
+
+    /**
+     * 获得当前允许的并发数
+     *
+     * @return 并发数
+     */
+    public synchronized int getConcurrencyLimit() {
+        return limit;
+    }
+
+    /**
+     * 把所有工作线程提交到线程池中
+     *
+     * @param executor 线程池，至少要有 {@link #getThreadsNum()} 个线程
+     */
+    public void submitTo(ExecutorService executor) {
+        synchronized (this) {
+            windowStart = System.currentTimeMillis();
+        }
+        GlobalLogger.info("Adaptive concurrency: starting with " + limit + " workers (range " + minThreads + "~" + maxThreads + ").");
+        for (RegionTaskRunner runner : runners) {
+            executor.submit(() -> workerLoop(runner));
+        }
+    }
+
+    /**
+     * 工作线程：拿到并发名额后领取一个区域文件处理，处理完归还名额
+     */
+    private void workerLoop(RegionTaskRunner runner) {
+        long startTime = System.currentTimeMillis();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                acquire();
+                try {
+                    // 拿到名额之后再领取文件，进度按已经领取的文件计算
+                    File mcaFile = queue.poll();
+                    if (mcaFile == null)
+                        break;
+                    RegionTask task = new RegionTask(mcaFile);
+                    try {
+                        if (runner.readStage(task) && runner.evaluateStage(task))
+                            runner.writeStage(task);
+                    } catch (RuntimeException e) {
+                        GlobalLogger.warning("Unexpected exception while processing region file: " + mcaFile.getAbsolutePath(), e);
+                    }
+                    params.progressTracker.regionDone(task.originalLength);
+                    regionDone(task.originalLength, System.currentTimeMillis());
+                } finally {
+                    release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            runner.finish(System.currentTimeMillis() - startTime);
+            if (workersLeft.decrementAndGet() == 0)
+                GlobalLogger.info("Adaptive concurrency: finished with " + getConcurrencyLimit() + " workers.");
+        }
+    }
+
+    private synchronized void acquire() throws InterruptedException {
+        while (active >= limit) {
+            wait();
+        }
+        active++;
+    }
+
+    private synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * 记录一个处理完的区域文件，窗口结束时调整并发数
+     *
+     * @param bytes 区域文件原本的大小
+     * @param now   处理完的时间（ms）
+     */
+    public synchronized void regionDone(long bytes, long now) {
+        windowBytes += bytes;
+        windowRegions++;
+        long elapsed = now - windowStart;
+        // 窗口内要有足够多的区域文件，吞吐量才有参考价值
+        if (elapsed < WINDOW_MS || windowRegions < limit)
+            return;
+        double bytesPerSecond = windowBytes * 1000.0 / elapsed;
+        double regionsPerSecond = windowRegions * 1000.0 / elapsed;
+        int newLimit;
+        // 文件变小时字节/秒下降但区域/秒上升，两者都下降才是并发过高
+        boolean dropped = lastBytesPerSecond > 0
+                && bytesPerSecond < lastBytesPerSecond * (1 - DROP_TOLERANCE)
+                && regionsPerSecond < lastRegionsPerSecond * (1 - DROP_TOLERANCE);
+        if (dropped) {
+            // 乘性减
+            slowStart = false;
+            newLimit = Math.max(minThreads, limit - Math.max(1, limit / 4));
+        } else if (slowStart) {
+            newLimit = Math.min(maxThreads, limit * 2);
+        } else {
+            // 加性增
+            newLimit = Math.min(maxThreads, limit + 1);
+        }
+        if (newLimit != limit) {
+            GlobalLogger.info("Adaptive concurrency: " + limit + " -> " + newLimit + " workers ("
+                    + NumUtils.bytesToHumanReadable((long) bytesPerSecond) + "/s, "
+                    + String.format("%.1f", regionsPerSecond) + " regions/s).");
+            limit = newLimit;
+            // 名额增加时唤醒等待的工作线程
+            notifyAll();
+        }
+        lastBytesPerSecond = bytesPerSecond;
+        lastRegionsPerSecond = regionsPerSecond;
+        windowStart = now;
+        windowBytes = 0;
+        windowRegions = 0;
+    }
+}
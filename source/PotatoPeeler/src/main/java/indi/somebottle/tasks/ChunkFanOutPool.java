@@ -0,0 +1,176 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.Chunk;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.streams.MappedRegionFile;
+import indi.somebottle.utils.ChunkUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 在一个区域内部按区块并行解压的线程池 <br>
+ * 一个区域文件通常只由一个线程逐个区块地处理。区域文件比线程少、或者只剩少数几个大区域文件时，其余的核心都是闲的。
+ * 这时可以把一个区域中最多 1024 个区块的解压分给 ForkJoin 线程池，各个区块从同一个内存映射中取独立的切片读取，互不干扰。
+ * <p>
+ * 解压器池（{@link DecompressorPool}）不是线程安全的，这里维护一个有界的空闲列表，每批区块借用一个，用完归还。
+ * 空闲列表最多保留 parallelism 个解压器池，多出来的直接释放。
+ * <p>
+ * 各个区块都是内存映射的切片，调用方在本方法返回后就会解除映射。因此某个区块解压失败时不能提前返回，
+ * 每一批都会捕获并记录自己的异常，等所有批次都结束后才抛出，保证返回时没有任何线程还在读取这个映射。
+ */
+public class ChunkFanOutPool implements AutoCloseable {
+    /**
+     * 需要解压的区块少于这个数时不值得并行，由调用线程自己解压
+     */
+    public static final int MIN_CHUNKS_TO_FAN_OUT = 64;
+
+    /**
+     * 每批区块数，拆分到不超过这个数时不再拆分
+     */
+    private static final int CHUNKS_PER_BATCH = 16;
+
+    /**
+     * ForkJoin 线程池
+     */
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * 空闲的解压器池
+     */
+    private final Queue<DecompressorPool> idlePools = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 空闲列表中的解压器池数
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * 创建线程池
+     *
+     * @param parallelism 并行解压的线程数
+     */
+    public ChunkFanOutPool(int parallelism) {
+        this.forkJoinPool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * 获得并行解压的线程数
+     *
+     * @return 线程数
+     */
+    public int getParallelism() {
+        return forkJoinPool.getParallelism();
+    }
+
+    /**
+     * 并行解压一个区域中的区块，在一次解压中提取 fields 指定的所有字段，存入各个 Chunk 对象（阻塞到全部完成）
+     *
+     * @param regionData 内存映射的区域文件
+     * @param chunks     要解压的区块，不能有 overSized 的区块
+     * @param fields     要提取的字段，{@link indi.somebottle.constants.ChunkFieldConstants} 的位掩码
+     * @throws IOException 任何一个区块解压失败时抛出（只抛出第一个异常，此时所有区块都已经处理完）
+     */
+    public void loadChunkData(MappedRegionFile regionData, List<Chunk> chunks, int fields) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // 各批不会抛出异常，invoke 返回时所有批次都已经结束
+        forkJoinPool.invoke(new LoadAction(regionData, chunks, fields, 0, chunks.size(), failure));
+        Throwable e = failure.get();
+        if (e == null)
+            return;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw (Error) e;
+    }
+
+    /**
+     * 借用一个解压器池
+     */
+    private DecompressorPool borrow() {
+        DecompressorPool pool = idlePools.poll();
+        if (pool == null)
+            return new DecompressorPool();
+        idleCount.decrementAndGet();
+        return pool;
+    }
+
+    /**
+     * 归还解压器池，空闲列表满了时直接释放
+     */
+    private void giveBack(DecompressorPool pool) {
+        if (idleCount.incrementAndGet() > getParallelism()) {
+            idleCount.decrementAndGet();
+            pool.close();
+            return;
+        }
+        idlePools.add(pool);
+    }
+
+    /**
+     * 停止线程池，释放所有空闲的解压器池
+     */
+    @Override
+    public void close() {
+        forkJoinPool.shutdown();
+        DecompressorPool pool;
+        while ((pool = idlePools.poll()) != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * 解压 chunks 中 [from, to) 这一段区块，超过一批时对半拆分 <br>
+     * 异常记录在 failure 中而不是直接抛出，否则 invokeAll 会在另一半还在运行时就返回。
+     */
+    private final class LoadAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedRegionFile regionData;
+        private final List<Chunk> chunks;
+        private final int fields;
+        private final int from;
+        private final int to;
+        private final AtomicReference<Throwable> failure; // 第一个异常
+
+        LoadAction(MappedRegionFile regionData, List<Chunk> chunks, int fields, int from, int to, AtomicReference<Throwable> failure) {
+            this.regionData = regionData;
+            this.chunks = chunks;
+            this.fields = fields;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNKS_PER_BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LoadAction(regionData, chunks, fields, from, mid, failure),
+                        new LoadAction(regionData, chunks, fields, mid, to, failure));
+                return;
+            }
+            DecompressorPool pool = borrow();
+            try {
+                for (int i = from; i < to; i++) {
+                    try {
+                        ChunkUtils.loadChunkData(regionData, chunks.get(i), fields, pool);
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            } catch (Error e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                giveBack(pool);
+            }
+        }
+    }
+}
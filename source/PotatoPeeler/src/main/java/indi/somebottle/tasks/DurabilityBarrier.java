@@ -0,0 +1,256 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.constants.DurabilityConstants;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.utils.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 区域文件的刷盘屏障 <br>
+ * 工作线程写完一个区域文件后把它提交到这里，同时附上“新文件落盘之后才能删除”的文件（比如压实日志、旧版本留下的 .mca.bak）。
+ * 写到临时文件的区域文件在落盘后才重命名替换原文件；只删除了文件的目录也提交到这里，由刷盘线程让目录项落盘。
+ * <p>
+ * - 成批模式：由一个专门的刷盘线程把积累下来的文件一起 fsync，再对涉及的目录各 fsync 一次，然后才执行延后的删除。
+ * 刷盘线程忙的时候新提交的文件自然会积累成下一批，工作线程不必等待这些刷盘。<br>
+ * - 逐个模式：在提交的线程中立即完成上述操作。<br>
+ * - 关闭模式：在提交的线程中立即重命名和删除，不做任何 fsync。
+ * <p>
+ * 屏障只接管每个区域文件最后的刷盘。原地压实时，压实日志和每个搬移窗口的刷盘仍然由工作线程完成，
+ * 因为下一步修改必须等上一步落盘才能开始（见 {@link indi.somebottle.utils.RegionCompactUtils}），关闭模式下这些刷盘也一并跳过。
+ * <p>
+ * 任何一个文件刷盘失败时，它的延后删除都不会执行，残留的压实日志会在下次运行时被重放。
+ */
+public class DurabilityBarrier implements AutoCloseable {
+    /**
+     * 每批最多刷写的文件数
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * 一个等待落盘的文件
+     */
+    private static final class Entry {
+        final File file; // 需要刷盘的文件，只需要目录项落盘时为 null
+        final File renameTo; // 刷盘后把 file 重命名为这个文件，不需要重命名时为 null
+        final File directory; // 需要落盘的目录
+        final File[] deferredDeletions;
+
+        Entry(File file, File renameTo, File directory, File[] deferredDeletions) {
+            this.file = file;
+            this.renameTo = renameTo;
+            this.directory = directory;
+            this.deferredDeletions = deferredDeletions;
+        }
+    }
+
+    /**
+     * 让刷盘线程退出的标记
+     */
+    private static final Entry STOP = new Entry(null, null, null, new File[0]);
+
+    /**
+     * 等待刷盘的文件队列，逐个模式下为 null
+     */
+    private final BlockingQueue<Entry> pending;
+
+    /**
+     * 刷盘线程，逐个模式下为 null
+     */
+    private final Thread flusher;
+
+    /**
+     * 是否 fsync，关闭模式下为 false
+     */
+    private final boolean sync;
+
+    /**
+     * 刷盘失败的文件数
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * 创建刷盘屏障
+     *
+     * @param durability 刷盘方式，见 {@link DurabilityConstants}，成批模式会启动一个刷盘线程
+     */
+    public DurabilityBarrier(int durability) {
+        sync = durability != DurabilityConstants.OFF;
+        if (durability == DurabilityConstants.BATCHED) {
+            pending = new LinkedBlockingQueue<>();
+            flusher = new Thread(this::flushLoop, "PotatoPeeler-Flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            pending = null;
+            flusher = null;
+        }
+    }
+
+    /**
+     * 提交一个已经写完的文件 <br>
+     * 文件（以及它所在目录）落盘后，deferredDeletions 中的文件才会被删除。
+     *
+     * @param file              已经写完的文件
+     * @param deferredDeletions 新文件落盘后才能删除的文件（不存在的会被忽略）
+     */
+    public void submit(File file, File... deferredDeletions) {
+        enqueue(new Entry(file, null, file.getAbsoluteFile().getParentFile(), deferredDeletions));
+    }
+
+    /**
+     * 提交一个已经写完的临时文件，它落盘之后会被重命名为 target（替换原文件） <br>
+     * 重命名和目录落盘之后，deferredDeletions 中的文件才会被删除。重命名之前崩溃的话原文件保持不变。
+     *
+     * @param tempFile          已经写完的临时文件
+     * @param target            要替换的文件
+     * @param deferredDeletions 替换完成后才能删除的文件（不存在的会被忽略）
+     */
+    public void submitReplacement(File tempFile, File target, File... deferredDeletions) {
+        enqueue(new Entry(tempFile, target, target.getAbsoluteFile().getParentFile(), deferredDeletions));
+    }
+
+    /**
+     * 提交一个目录项有变化（比如删除了文件）的目录，让它落盘
+     *
+     * @param directory 目录
+     */
+    public void submitDirectory(File directory) {
+        enqueue(new Entry(null, null, directory, new File[0]));
+    }
+
+    private void enqueue(Entry entry) {
+        if (pending == null) {
+            flush(Collections.singletonList(entry));
+            return;
+        }
+        pending.add(entry);
+    }
+
+    /**
+     * 是否真的 fsync，关闭模式下返回 false
+     *
+     * @return 是否刷盘
+     */
+    public boolean isSyncing() {
+        return sync;
+    }
+
+    /**
+     * 获得刷盘失败的文件数
+     *
+     * @return 失败数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 把所有已经提交的文件刷到磁盘上，然后停止刷盘线程（阻塞）
+     */
+    @Override
+    public void close() {
+        if (flusher == null)
+            return;
+        pending.add(STOP);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            GlobalLogger.warning("Interrupted while waiting for region files to be flushed to disk.", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 刷盘线程：取出当前积累的所有文件作为一批刷盘，直到遇到退出标记
+     */
+    private void flushLoop() {
+        List<Entry> batch = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped) {
+            batch.clear();
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                // 刷盘线程不响应中断，已提交的文件仍需刷盘
+                continue;
+            }
+            pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+            if (batch.remove(STOP)) {
+                // 退出标记之后不会再有新文件提交，把剩下的也一起刷掉
+                pending.drainTo(batch);
+                stopped = true;
+            }
+            flush(batch);
+        }
+    }
+
+    /**
+     * 刷写一批文件：先 fsync 每个文件（需要时再重命名替换原文件），再对涉及的目录各 fsync 一次，最后执行延后的删除
+     *
+     * @param batch 一批文件
+     */
+    private void flush(List<Entry> batch) {
+        Set<File> directories = new LinkedHashSet<>();
+        List<Entry> durable = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            if (entry.file != null && sync) {
+                // 只需要文件数据和长度落盘，fdatasync 就够了
+                try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                } catch (IOException e) {
+                    failedCount.incrementAndGet();
+                    GlobalLogger.warning("Failed to flush region file to disk: " + entry.file.getAbsolutePath(), e);
+                    continue;
+                }
+            }
+            if (entry.renameTo != null) {
+                // 临时文件已经落盘，可以替换原文件了
+                try {
+                    IOUtils.replaceFile(entry.file, entry.renameTo);
+                } catch (IOException e) {
+                    failedCount.incrementAndGet();
+                    GlobalLogger.warning("Failed to replace region file: " + entry.renameTo.getAbsolutePath(), e);
+                    continue;
+                }
+            }
+            directories.add(entry.directory);
+            durable.add(entry);
+        }
+        // 新文件的目录项落盘
+        for (File directory : directories) {
+            if (sync)
+                IOUtils.forceDirectory(directory);
+        }
+        directories.clear();
+        // 新文件已经落盘，可以删除旧数据了
+        for (Entry entry : durable) {
+            for (File deletion : entry.deferredDeletions) {
+                try {
+                    if (Files.deleteIfExists(deletion.toPath()))
+                        directories.add(deletion.getAbsoluteFile().getParentFile());
+                } catch (IOException e) {
+                    GlobalLogger.warning("Failed to delete file: " + deletion.getAbsolutePath(), e);
+                }
+            }
+        }
+        for (File directory : directories) {
+            if (sync)
+                IOUtils.forceDirectory(directory);
+        }
+        if (batch.size() > 1)
+            GlobalLogger.fine("Flushed " + durable.size() + "/" + batch.size() + " region files to disk.");
+    }
+}
@@ -0,0 +1,341 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.PeelResult;
+import indi.somebottle.entities.TaskParams;
+import indi.somebottle.exceptions.RegionTaskAlreadyStartedException;
+import indi.somebottle.exceptions.RegionTaskNotAcceptedException;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.runners.RegionTaskRunner;
+import indi.somebottle.tasks.runners.RegionTaskRunnerFactory;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个世界共用一个线程池的任务调度器（--manifest） <br>
+ * 逐个世界处理时，小世界用不满线程池，每个世界最后的几个大区域文件又只有少数线程在忙，总耗时是各个世界的尾巴之和。
+ * 这里把所有世界的区域文件交给同一组工作线程，工作线程每次按下面的规则挑一个世界，领取它剩下的最大的区域文件：
+ * <p>
+ * 每个世界记录已经领取的字节数除以权重（priority）得到的“进度值”，总是挑进度值最小的世界（步幅调度）。
+ * 这样各个世界按权重公平地分享线程池，一个大世界不会把其他世界饿着，小世界处理完后线程马上转去处理其他世界。
+ * <p>
+ * 一个世界可以包含多个维度（比如主世界、下界、末地），每个维度有自己的任务参数（受保护区块不同）和执行器（按需创建，最多和线程数一样多）。
+ * 同一个世界所有维度的区域文件放在一起从大到小领取，统计结果按世界汇总。
+ */
+public class MultiWorldDispatcher {
+    private final int threadsNum;
+    private final List<WorldJob> worlds = new ArrayList<>();
+    // 还有区域文件没被领取的世界，按进度值排序，由 this 的锁保护
+    private final PriorityQueue<WorldJob> ready = new PriorityQueue<>(Comparator.comparingDouble((WorldJob world) -> world.pass));
+    private ExecutorService executor;
+    // 所有世界共用的进度统计
+    private final ProgressTracker progressTracker = new ProgressTracker();
+    // 标记是否已经开始运行任务
+    private boolean started = false;
+    // 时间预算，null 表示不限制时间
+    private TimeBudget timeBudget = null;
+
+    /**
+     * 一个世界的处理任务
+     */
+    private static final class WorldJob {
+        final int priority;
+        // 各个维度
+        final List<DimensionJob> dimensions = new ArrayList<>();
+        // 启动前加入的区域文件
+        final List<DimensionTask> pendingTasks = new ArrayList<>();
+        // 还没被领取的区域文件，从大到小
+        final Queue<DimensionTask> tasks = new ArrayDeque<>();
+        // 已经领取的字节数 / 权重
+        double pass = 0;
+        // 还没处理完的区域文件数
+        int tasksLeft = 0;
+        // 因为时间预算用完而没处理到的区域文件数
+        int tasksSkipped = 0;
+        // 第一个区域文件被领取的时间
+        long startTime = 0;
+
+        WorldJob(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * 世界中的一个维度
+     */
+    private static final class DimensionJob {
+        final TaskParams params;
+        // 空闲的执行器
+        final Deque<RegionTaskRunner> idleRunners = new ArrayDeque<>();
+        // 这个维度的所有执行器
+        final List<RegionTaskRunner> runners = new ArrayList<>();
+
+        DimensionJob(TaskParams params) {
+            this.params = params;
+        }
+    }
+
+    /**
+     * 一个区域文件，以及它所属的维度
+     */
+    private static final class DimensionTask {
+        final RegionTask task;
+        final DimensionJob dimension;
+
+        DimensionTask(RegionTask task, DimensionJob dimension) {
+            this.task = task;
+            this.dimension = dimension;
+        }
+    }
+
+    public MultiWorldDispatcher(int threadsNum) {
+        this.threadsNum = threadsNum;
+    }
+
+    /**
+     * 加入一个世界，之后用 {@link #addDimension} 加入它的各个维度
+     *
+     * @param priority 权重（>= 1）
+     * @return 世界的编号，用于 {@link #addDimension} 和 {@link #getResult(int)}
+     * @throws RegionTaskNotAcceptedException 如果在启动执行后尝试加入世界则会抛出
+     */
+    public int addWorld(int priority) throws RegionTaskNotAcceptedException {
+        if (started)
+            throw new RegionTaskNotAcceptedException("Can not add world after start.");
+        worlds.add(new WorldJob(priority));
+        return worlds.size() - 1;
+    }
+
+    /**
+     * 给世界加入一个维度
+     *
+     * @param worldIndex {@link #addWorld} 返回的世界编号
+     * @param params     这个维度的任务参数
+     * @param mcaFiles   这个维度的 .mca 文件
+     * @throws RegionTaskNotAcceptedException 如果在启动执行后尝试加入维度则会抛出
+     */
+    public void addDimension(int worldIndex, TaskParams params, List<File> mcaFiles) throws RegionTaskNotAcceptedException {
+        if (started)
+            throw new RegionTaskNotAcceptedException("Can not add dimension after start.");
+        WorldJob world = worlds.get(worldIndex);
+        DimensionJob dimension = new DimensionJob(params);
+        world.dimensions.add(dimension);
+        // 所有维度的进度都计入同一个统计
+        params.progressTracker = progressTracker;
+        for (File mcaFile : mcaFiles) {
+            RegionTask task = new RegionTask(mcaFile);
+            world.pendingTasks.add(new DimensionTask(task, dimension));
+            progressTracker.addRegions(1, task.originalLength);
+        }
+        world.tasksLeft += mcaFiles.size();
+    }
+
+    /**
+     * 在时间预算内处理各个世界，见 {@link TimeBudget} <br>
+     * 每个世界内部的区域文件改为按处理价值从高到低排序，预算用完后不再领取新的区域文件，正在处理的照常处理完。
+     *
+     * @param timeBudget 时间预算
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后调用则会抛出
+     */
+    public void useTimeBudget(TimeBudget timeBudget) throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * 获得所有世界的总任务完成进度，按已经处理完的区域文件的字节数计算，见 {@link ProgressTracker}
+     *
+     * @return 任务进度（0~100）
+     */
+    public float getTaskProcess() {
+        return progressTracker.getProgress();
+    }
+
+    /**
+     * 启动所有的工作线程，开始处理各个世界的 .mca 文件
+     *
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后尝试再次启动则会抛出
+     */
+    public void start() throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        started = true;
+        synchronized (this) {
+            for (WorldJob world : worlds) {
+                if (timeBudget != null) {
+                    // 有时间预算时最有价值的先处理，不区分维度
+                    sortByValue(world.pendingTasks);
+                } else {
+                    // 每个世界内部也是大文件先处理，不区分维度
+                    world.pendingTasks.sort(Comparator.comparingLong((DimensionTask dimTask) -> dimTask.task.originalLength).reversed());
+                }
+                world.tasks.addAll(world.pendingTasks);
+                world.pendingTasks.clear();
+                if (world.tasks.isEmpty())
+                    continue;
+                ready.add(world);
+            }
+        }
+        progressTracker.start();
+        executor = Executors.newFixedThreadPool(threadsNum);
+        for (int i = 0; i < threadsNum; i++) {
+            executor.submit(this::workerLoop);
+        }
+        // 停止建立新的线程
+        executor.shutdown();
+    }
+
+    /**
+     * 等待所有世界处理完成（阻塞）
+     *
+     * @return 是否正常完成
+     */
+    public boolean waitForCompletion() {
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                // 打印进度
+                GlobalLogger.info(progressTracker.report());
+            }
+        } catch (InterruptedException e) {
+            GlobalLogger.severe("Interrupted while waiting for .mca files to be processed.", e);
+            executor.shutdownNow();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获得一个世界的统计结果，耗时为这个世界从第一个区域文件开始到最后一个区域文件结束的时间
+     *
+     * @param worldIndex {@link #addWorld} 返回的世界编号
+     * @return PeelResult 对象
+     */
+    public synchronized PeelResult getResult(int worldIndex) {
+        PeelResult res = new PeelResult();
+        for (DimensionJob dimension : worlds.get(worldIndex).dimensions) {
+            for (RegionTaskRunner runner : dimension.runners) {
+                PeelResult runnerRes = runner.getTaskResult();
+                res.add(runnerRes);
+                if (runnerRes.getTimeElapsed() > res.getTimeElapsed()) {
+                    res.setTimeElapsed(runnerRes.getTimeElapsed());
+                }
+            }
+        }
+        res.setRegionsSkipped(worlds.get(worldIndex).tasksSkipped);
+        return res;
+    }
+
+    /**
+     * 按时间预算估算的处理价值从高到低排序一个世界的区域文件
+     */
+    private void sortByValue(List<DimensionTask> dimTasks) {
+        Map<File, DimensionTask> byFile = new HashMap<>();
+        for (DimensionTask dimTask : dimTasks) {
+            byFile.put(dimTask.task.mcaFile, dimTask);
+        }
+        List<File> sorted = timeBudget.sortByValue(byFile.keySet());
+        dimTasks.clear();
+        for (File mcaFile : sorted) {
+            dimTasks.add(byFile.get(mcaFile));
+        }
+    }
+
+    /**
+     * 时间预算用完：清空所有世界还没被领取的区域文件，记录到时间预算中留给下次运行（需持有 this 的锁）
+     */
+    private void skipRemainingTasks() {
+        List<File> remaining = new ArrayList<>();
+        for (WorldJob world : worlds) {
+            if (world.tasks.isEmpty())
+                continue;
+            long remainingBytes = 0;
+            for (DimensionTask dimTask : world.tasks) {
+                remaining.add(dimTask.task.mcaFile);
+                remainingBytes += dimTask.task.originalLength;
+            }
+            progressTracker.regionsSkipped(world.tasks.size(), remainingBytes);
+            world.tasksSkipped = world.tasks.size();
+            world.tasksLeft -= world.tasks.size();
+            world.tasks.clear();
+            if (world.tasksLeft == 0)
+                finishWorld(world);
+        }
+        ready.clear();
+        timeBudget.skip(remaining);
+        if (!remaining.isEmpty())
+            GlobalLogger.info("Time budget exhausted, " + remaining.size() + " region files are left for the next run. Waiting for the regions in progress...");
+    }
+
+    /**
+     * 一个世界处理完了，更新统计结果并释放它所有维度的执行器（需持有 this 的锁）
+     */
+    private void finishWorld(WorldJob world) {
+        // 一个区域文件都没领取过的世界耗时为 0
+        long timeElapsed = world.startTime == 0 ? 0 : System.currentTimeMillis() - world.startTime;
+        for (DimensionJob worldDimension : world.dimensions) {
+            for (RegionTaskRunner dimensionRunner : worldDimension.runners) {
+                dimensionRunner.finish(timeElapsed);
+            }
+            worldDimension.idleRunners.clear();
+        }
+    }
+
+    /**
+     * 工作线程：每次挑进度值最小的世界，领取它最大的区域文件，用区域文件所属维度的执行器处理
+     */
+    private void workerLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WorldJob world;
+            DimensionJob dimension;
+            RegionTask task;
+            RegionTaskRunner runner;
+            synchronized (this) {
+                if (timeBudget != null && !ready.isEmpty() && timeBudget.isExhausted())
+                    skipRemainingTasks();
+                world = ready.poll();
+                if (world == null)
+                    break;
+                DimensionTask dimTask = world.tasks.poll();
+                task = dimTask.task;
+                dimension = dimTask.dimension;
+                // 领取的字节越多、权重越小，进度值涨得越快
+                world.pass += (double) Math.max(task.originalLength, 1) / world.priority;
+                if (!world.tasks.isEmpty())
+                    ready.add(world);
+                runner = dimension.idleRunners.poll();
+                if (runner == null) {
+                    // 调度由本类完成，执行器只执行各个阶段，不需要队列
+                    runner = RegionTaskRunnerFactory.getTaskRunner(new ArrayDeque<>(), dimension.params);
+                    dimension.runners.add(runner);
+                }
+                if (world.startTime == 0)
+                    world.startTime = System.currentTimeMillis();
+            }
+            try {
+                if (runner.readStage(task) && runner.evaluateStage(task))
+                    runner.writeStage(task);
+            } catch (RuntimeException e) {
+                GlobalLogger.warning("Unexpected exception while processing region file: " + task.mcaFile.getAbsolutePath(), e);
+            }
+            task.region = null;
+            progressTracker.regionDone(task.originalLength);
+            synchronized (this) {
+                dimension.idleRunners.push(runner);
+                if (--world.tasksLeft == 0)
+                    finishWorld(world);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package indi.somebottle.tasks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 处理进度和吞吐量的统计 <br>
+ * 工作线程在处理区域文件的各个阶段累加计数，等待线程定期调用 {@link #report()} 打印进度。
+ * 计数器都是 {@link LongAdder}，各线程累加时互不竞争，读取时不需要加锁，也不需要查询其他线程正在修改的队列。
+ * <p>
+ * 区域文件的大小差别很大（出生点附近的区域文件可能是边缘区域文件的几十倍），按文件数算的百分比并不能反映剩余的工作量，
+ * 这里的进度和剩余时间都按字节数计算：
+ * <p>
+ * - 进度 = 已处理完的区域文件的原始大小之和 / 所有区域文件的原始大小之和 <br>
+ * - 剩余时间 = 剩余字节数 / 开始以来的平均处理速度 <br>
+ * - MiB/s 和 regions/s 为距离上次报告这段时间内的速度
+ */
+public class ProgressTracker {
+    private final LongAdder totalRegions = new LongAdder(); // 要处理的区域文件数
+    private final LongAdder totalBytes = new LongAdder(); // 要处理的区域文件的原始大小之和
+    private final LongAdder regionsDone = new LongAdder(); // 已处理完的区域文件数
+    private final LongAdder bytesDone = new LongAdder(); // 已处理完的区域文件的原始大小之和
+    private final LongAdder chunksRead = new LongAdder(); // 读取的区块数
+    private final LongAdder bytesRead = new LongAdder(); // 读取的区域文件大小之和
+    private final LongAdder bytesDecompressed = new LongAdder(); // 解压出的字节数
+    private final LongAdder bytesWritten = new LongAdder(); // 写出的区域文件大小之和
+    private volatile long startTime = 0; // 开始处理的时间（ms）
+
+    // 上次报告时的数据，由 this 的锁保护
+    private long lastReportTime = 0;
+    private long lastRegionsDone = 0;
+    private long lastBytesDone = 0;
+
+    /**
+     * 加入要处理的区域文件
+     *
+     * @param regions 区域文件数
+     * @param bytes   区域文件的原始大小之和
+     */
+    public void addRegions(long regions, long bytes) {
+        totalRegions.add(regions);
+        totalBytes.add(bytes);
+    }
+
+    /**
+     * 开始计时
+     */
+    public synchronized void start() {
+        startTime = System.currentTimeMillis();
+        lastReportTime = startTime;
+    }
+
+    /**
+     * 记录一个读取、解压完的区域文件
+     *
+     * @param chunks            读取的区块数
+     * @param bytes             区域文件大小
+     * @param decompressedBytes 解压出的字节数
+     */
+    public void regionRead(long chunks, long bytes, long decompressedBytes) {
+        chunksRead.add(chunks);
+        bytesRead.add(bytes);
+        bytesDecompressed.add(decompressedBytes);
+    }
+
+    /**
+     * 记录写出的区域文件
+     *
+     * @param bytes 写出的字节数
+     */
+    public void regionWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * 记录一个处理完（包括跳过、出错）的区域文件
+     *
+     * @param bytes 区域文件的原始大小
+     */
+    public void regionDone(long bytes) {
+        regionsDone.add(1);
+        bytesDone.add(bytes);
+    }
+
+    /**
+     * 不再处理的区域文件（比如时间预算用完），从总量中去掉
+     *
+     * @param regions 区域文件数
+     * @param bytes   区域文件的原始大小之和
+     */
+    public void regionsSkipped(long regions, long bytes) {
+        totalRegions.add(-regions);
+        totalBytes.add(-bytes);
+    }
+
+    public long getRegionsDone() {
+        return regionsDone.sum();
+    }
+
+    public long getChunksRead() {
+        return chunksRead.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesDecompressed() {
+        return bytesDecompressed.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * 获得按字节数计算的进度
+     *
+     * @return 进度（0~100），没有要处理的区域文件时为 100
+     */
+    public float getProgress() {
+        long total = totalBytes.sum();
+        long done = bytesDone.sum();
+        if (done >= total)
+            return 100f;
+        return (float) done / total * 100;
+    }
+
+    /**
+     * 获得按开始以来的平均速度估算的剩余时间
+     *
+     * @return 剩余时间（ms），还没有处理完任何数据时为 -1
+     */
+    public long getEtaMillis() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        long done = bytesDone.sum();
+        if (startTime == 0 || done == 0 || elapsed <= 0)
+            return -1;
+        long remaining = Math.max(0, totalBytes.sum() - done);
+        return (long) (remaining * ((double) elapsed / done));
+    }
+
+    /**
+     * 生成一行进度报告：进度、区域文件数、最近的速度、剩余时间，以及读取、解压、写出的总量
+     *
+     * @return 进度报告
+     */
+    public synchronized String report() {
+        long now = System.currentTimeMillis();
+        long regions = regionsDone.sum();
+        long done = bytesDone.sum();
+        double seconds = Math.max(now - lastReportTime, 1) / 1000.0;
+        double mibPerSecond = (done - lastBytesDone) / seconds / (1024 * 1024);
+        double regionsPerSecond = (regions - lastRegionsDone) / seconds;
+        lastReportTime = now;
+        lastRegionsDone = regions;
+        lastBytesDone = done;
+        long eta = getEtaMillis();
+        return String.format(">>> Progress: %.2f%% (%d/%d regions), %.1f MiB/s, %.1f regions/s, ETA %s | read %s, decompressed %s, written %s, %d chunks",
+                getProgress(), regions, totalRegions.sum(), mibPerSecond, regionsPerSecond, eta < 0 ? "unknown" : formatDuration(eta),
+                formatMiB(bytesRead.sum()), formatMiB(bytesDecompressed.sum()), formatMiB(bytesWritten.sum()), chunksRead.sum());
+    }
+
+    private static String formatMiB(long bytes) {
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+    }
+
+    private static String formatDuration(long millis) {
+        long hours = TimeUnit.MILLISECONDS.toHours(millis);
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis) % 60;
+        long secs = TimeUnit.MILLISECONDS.toSeconds(millis) % 60;
+        if (hours > 0)
+            return String.format("%dh %02dm %02ds", hours, minutes, secs);
+        if (minutes > 0)
+            return String.format("%dm %02ds", minutes, secs);
+        return secs + "s";
+    }
+}
@@ -0,0 +1,89 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.Region;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * 一个区域文件在处理过程中的状态 <br>
+ * 处理分为三个阶段，由 {@link indi.somebottle.tasks.runners.RegionTaskRunner} 实现，阶段之间通过这个对象传递结果：<br>
+ * - 读取阶段（I/O）：准备工作，比如重放未完成的压实日志、创建输出目录 <br>
+ * - 评估阶段（CPU）：解压读取区块，标记待删除的区块，决定这个区域文件要怎么写 <br>
+ * - 写入阶段（I/O）：按评估的结果写出、压实或者删除区域文件
+ */
+public class RegionTask {
+    /**
+     * 写入阶段：原样输出区域文件（只用于输出到其他目录）
+     */
+    public static final int ACTION_OUTPUT_UNCHANGED = 0;
+    /**
+     * 写入阶段：删除（或者不输出）所有区块都被移除的区域文件
+     */
+    public static final int ACTION_DELETE = 1;
+    /**
+     * 写入阶段：重写区域文件
+     */
+    public static final int ACTION_REWRITE = 2;
+
+    /**
+     * 区域文件
+     */
+    public final File mcaFile;
+
+    /**
+     * 处理前区域文件的大小（字节）
+     */
+    public long originalLength;
+
+    /**
+     * 输出文件的路径（只用于输出到其他目录）
+     */
+    public Path outputPath;
+
+    /**
+     * 读取阶段已经读入内存的文件内容，评估阶段直接从中解析；为 null 时评估阶段自行映射文件
+     */
+    public ByteBuffer contents;
+
+    /**
+     * 读取出的区域对象
+     */
+    public Region region;
+
+    /**
+     * 标记待删除的区块数
+     */
+    public long chunksMarked;
+
+    /**
+     * 被重新压缩的区块数
+     */
+    public int chunksRewritten;
+
+    /**
+     * 是否需要重新排列区块
+     */
+    public boolean relayout;
+
+    /**
+     * 写入阶段要执行的操作
+     */
+    public int action = ACTION_REWRITE;
+
+    /**
+     * 流水线模式下这个任务占用的在途字节预算（KiB）
+     */
+    int inFlightPermits;
+
+    /**
+     * 创建区域文件的处理任务
+     *
+     * @param mcaFile 区域文件
+     */
+    public RegionTask(File mcaFile) {
+        this.mcaFile = mcaFile;
+        this.originalLength = mcaFile.length();
+    }
+}
@@ -10,37 +10,119 @@ import indi.somebottle.tasks.runners.RegionTaskRunnerFactory;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
 
-// 此类用于把 .mca 文件分配给多个线程进行处理
+/*
+ * 此类用于把 .mca 文件分配给多个线程进行处理
+ * 所有线程共用一个按文件大小从大到小排好序的队列，空闲的线程总是领取剩下的最大的文件。
+ * 之前按轮转方式把文件预先分到每个线程独有的队列中，一个线程分到几个很大的出生点区域文件时，其他线程早早就闲了下来。
+ */
 public class RegionTaskDispatcher {
     private final int threadsNum;
     private final TaskParams taskParams;
-    private final ExecutorService executor;
-    // 存放 .mca 文件对象的队列
-    // 每个线程都有一个
-    private final List<Queue<File>> queues = new ArrayList<>();
+    private ExecutorService executor;
+    // 启动前提交的任务，启动时按文件大小排序后放入共享队列
+    private final List<PendingRegion> pendingTasks = new ArrayList<>();
+    // 所有线程共用的 .mca 文件队列
+    private final Queue<File> queue = new ConcurrentLinkedQueue<>();
     // Runner 列表
     private final List<RegionTaskRunner> taskRunners = new ArrayList<>();
-    // 记录总共有多少个任务（有多少 .mca 文件待处理）
-    private int totalTaskCount = 0;
-    // 记录上次把任务加入到哪个下标的队列中了
-    private int enqueueIndex = 0;
     // 标记是否已经开始运行任务
     private boolean started = false;
+    // 流水线模式下读取、写入阶段各自的线程数，0 表示不使用流水线
+    private int pipelineIoThreads = 0;
+    // 流水线模式下的在途字节预算
+    private long pipelineInFlightBytes = 0;
+    // 虚拟线程模式下同时进行的读写数上限，0 表示不使用虚拟线程
+    private int virtualIoConcurrency = 0;
+    // 自动调整并发数时的上下限，上限为 0 表示不自动调整
+    private int adaptiveMinThreads = 0;
+    private int adaptiveMaxThreads = 0;
+    // 时间预算，null 表示不限制时间
+    private TimeBudget timeBudget = null;
+    // 时间预算是否已经用完（已经停止领取新的区域文件）
+    private boolean budgetExhausted = false;
+    // 因为时间预算用完而没处理到的区域文件数
+    private int regionsSkipped = 0;
+
+    /**
+     * 一个待处理的区域文件，以及它的处理开销估计
+     */
+    private static final class PendingRegion {
+        final File mcaFile;
+        /**
+         * 开销估计，取文件大小：要解压的区块数据和要搬移的扇区都和它成正比
+         */
+        final long cost;
+
+        PendingRegion(File mcaFile) {
+            this.mcaFile = mcaFile;
+            this.cost = mcaFile.length();
+        }
+    }
 
     public RegionTaskDispatcher(int threadsNum, TaskParams params) {
         this.threadsNum = threadsNum;
         this.taskParams = params;
-        // 指定线程数初始化线程池
-        this.executor = Executors.newFixedThreadPool(threadsNum);
-        // 为每个线程都初始化一个队列
-        for (int i = 0; i < threadsNum; i++) {
-            queues.add(new LinkedList<>());
-        }
+    }
+
+    /**
+     * 改用分阶段的流水线处理区域文件，见 {@link RegionTaskPipeline} <br>
+     * threadsNum 个线程用于评估阶段，读取和写入阶段另外各有 ioThreads 个线程。
+     *
+     * @param ioThreads        读取、写入阶段各自的线程数
+     * @param maxInFlightBytes 已经预读但还没处理完的文件总大小上限（字节）
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后调用则会抛出
+     */
+    public void usePipeline(int ioThreads, long maxInFlightBytes) throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        this.pipelineIoThreads = ioThreads;
+        this.pipelineInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * 改用每个区域文件一个虚拟线程的方式处理，见 {@link VirtualThreadRegionTasks} <br>
+     * 同时进行的读写数不超过 ioConcurrency，同时进行的解压数不超过 CPU 核心数，threadsNum 不再使用。
+     *
+     * @param ioConcurrency 同时进行的读写数上限
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后调用则会抛出
+     */
+    public void useVirtualThreads(int ioConcurrency) throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        this.virtualIoConcurrency = ioConcurrency;
+    }
+
+    /**
+     * 改为根据测得的吞吐量自动调整并发数，见 {@link AdaptiveRegionTasks} <br>
+     * 并发数在 [minThreads, maxThreads] 之间调整，threadsNum 不再使用。
+     *
+     * @param minThreads 并发数下限
+     * @param maxThreads 并发数上限
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后调用则会抛出
+     */
+    public void useAdaptiveThreads(int minThreads, int maxThreads) throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        this.adaptiveMinThreads = minThreads;
+        this.adaptiveMaxThreads = maxThreads;
+    }
+
+    /**
+     * 在时间预算内处理区域文件，见 {@link TimeBudget} <br>
+     * 区域文件改为按处理价值从高到低排序，预算用完后不再领取新的区域文件，正在处理的照常处理完。
+     *
+     * @param timeBudget 时间预算
+     * @throws RegionTaskAlreadyStartedException 如果在启动执行后调用则会抛出
+     */
+    public void useTimeBudget(TimeBudget timeBudget) throws RegionTaskAlreadyStartedException {
+        if (started)
+            throw new RegionTaskAlreadyStartedException("The task has been started.");
+        this.timeBudget = timeBudget;
     }
 
     /**
@@ -53,24 +135,18 @@ public class RegionTaskDispatcher {
     public void addTask(File mcaFile) throws RegionTaskNotAcceptedException {
         if (started)
             throw new RegionTaskNotAcceptedException("Can not add task after start.");
-        // 把任务均匀地分散到各个队列中
-        queues.get(enqueueIndex).add(mcaFile);
-        enqueueIndex = (enqueueIndex + 1) % threadsNum;
-        totalTaskCount++;
+        PendingRegion task = new PendingRegion(mcaFile);
+        pendingTasks.add(task);
+        taskParams.progressTracker.addRegions(1, task.cost);
     }
 
     /**
-     * 获得当前的任务完成进度
+     * 获得当前的任务完成进度，按已经处理完的区域文件的字节数计算，见 {@link ProgressTracker}
      *
      * @return 任务进度（0~100）
      */
     public float getTaskProcess() {
-        int tasksFinished = totalTaskCount;
-        // 统计剩余任务数
-        for (Queue<File> queue : queues) {
-            tasksFinished -= queue.size();
-        }
-        return (float) tasksFinished / totalTaskCount * 100;
+        return taskParams.progressTracker.getProgress();
     }
 
     /**
@@ -81,9 +157,14 @@ public class RegionTaskDispatcher {
     public boolean waitForCompletion() {
         try {
             // 等待所有线程执行完成
-            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
-                // 打印进度
-                GlobalLogger.info(">>> Progress: " + String.format("%.2f", getTaskProcess()) + "%");
+            while (!executor.awaitTermination(nextWaitMillis(), TimeUnit.MILLISECONDS)) {
+                if (timeBudget != null && !budgetExhausted && timeBudget.isExhausted()) {
+                    // 时间预算用完，不再领取新的区域文件
+                    skipRemainingTasks();
+                    continue;
+                }
+                // 打印进度、吞吐量和剩余时间
+                GlobalLogger.info(taskParams.progressTracker.report());
             }
         } catch (InterruptedException e) {
             GlobalLogger.severe("Interrupted while waiting for .mca files to be processed.", e);
@@ -93,6 +174,35 @@ public class RegionTaskDispatcher {
         return true;
     }
 
+    /**
+     * 下一次等待的时长：每 10 秒打印一次进度，有时间预算时在预算用完时醒来
+     */
+    private long nextWaitMillis() {
+        long waitMillis = TimeUnit.SECONDS.toMillis(10);
+        if (timeBudget != null && !budgetExhausted)
+            waitMillis = Math.max(1, Math.min(waitMillis, timeBudget.remainingMillis()));
+        return waitMillis;
+    }
+
+    /**
+     * 清空队列中还没被领取的区域文件，记录到时间预算中留给下次运行
+     */
+    private void skipRemainingTasks() {
+        budgetExhausted = true;
+        List<File> remaining = new ArrayList<>();
+        long remainingBytes = 0;
+        File mcaFile;
+        while ((mcaFile = queue.poll()) != null) {
+            remaining.add(mcaFile);
+            remainingBytes += mcaFile.length();
+        }
+        taskParams.progressTracker.regionsSkipped(remaining.size(), remainingBytes);
+        regionsSkipped = remaining.size();
+        timeBudget.skip(remaining);
+        if (!remaining.isEmpty())
+            GlobalLogger.info("Time budget exhausted, " + remaining.size() + " region files are left for the next run. Waiting for the regions in progress...");
+    }
+
     /**
      * 获得任务执行的统计结果
      *
@@ -109,6 +219,7 @@ public class RegionTaskDispatcher {
                 res.setTimeElapsed(runnerRes.getTimeElapsed());
             }
         }
+        res.setRegionsSkipped(regionsSkipped);
         return res;
     }
 
@@ -122,12 +233,54 @@ public class RegionTaskDispatcher {
         // 重复启动会抛出异常
         if (started)
             throw new RegionTaskAlreadyStartedException("The task has been started.");
+        if (timeBudget != null) {
+            // 有时间预算时最有价值的先处理，预算用完时剩下的都是价值低的
+            List<File> mcaFiles = new ArrayList<>(pendingTasks.size());
+            for (PendingRegion task : pendingTasks) {
+                mcaFiles.add(task.mcaFile);
+            }
+            queue.addAll(timeBudget.sortByValue(mcaFiles));
+        } else {
+            // 大文件先处理（LPT 调度），最后剩下的都是小文件，各线程几乎同时结束
+            pendingTasks.sort(Comparator.comparingLong((PendingRegion task) -> task.cost).reversed());
+            for (PendingRegion task : pendingTasks) {
+                queue.add(task.mcaFile);
+            }
+        }
+        pendingTasks.clear();
         started = true;
-        // 启动 threadsNum 个线程
-        for (int i = 0; i < threadsNum; i++) {
-            RegionTaskRunner runner = RegionTaskRunnerFactory.getTaskRunner(queues.get(i), taskParams);
-            taskRunners.add(runner);
-            executor.submit(runner);
+        taskParams.progressTracker.start();
+        if (timeBudget != null && timeBudget.isExhausted()) {
+            // 前面的世界已经用完了预算
+            skipRemainingTasks();
+        }
+        if (virtualIoConcurrency > 0) {
+            // 虚拟线程模式，每个区域文件一个线程，由执行器池限流
+            VirtualThreadRegionTasks virtualTasks = new VirtualThreadRegionTasks(queue, taskParams, virtualIoConcurrency, Runtime.getRuntime().availableProcessors());
+            executor = virtualTasks.newExecutor();
+            taskRunners.addAll(virtualTasks.getRunners());
+            virtualTasks.submitTo(executor);
+        } else if (adaptiveMaxThreads > 0) {
+            // 自动调整并发数，先启动上限数量的线程，由名额控制实际并发
+            AdaptiveRegionTasks adaptiveTasks = new AdaptiveRegionTasks(queue, taskParams, adaptiveMinThreads, adaptiveMaxThreads);
+            executor = Executors.newFixedThreadPool(adaptiveTasks.getThreadsNum());
+            adaptiveTasks.submitTo(executor);
+            taskRunners.addAll(adaptiveTasks.getRunners());
+        } else if (pipelineIoThreads > 0) {
+            // 流水线模式，各阶段的线程共用同一个线程池
+            RegionTaskPipeline pipeline = new RegionTaskPipeline(queue, taskParams, pipelineIoThreads, threadsNum, pipelineInFlightBytes);
+            executor = Executors.newFixedThreadPool(pipeline.getThreadsNum());
+            pipeline.submitTo(executor);
+            taskRunners.addAll(pipeline.getRunners());
+        } else {
+            // 指定线程数初始化线程池
+            executor = Executors.newFixedThreadPool(threadsNum);
+            // 启动 threadsNum 个线程，共用同一个队列
+            for (int i = 0; i < threadsNum; i++) {
+                RegionTaskRunner runner = RegionTaskRunnerFactory.getTaskRunner(queue, taskParams);
+                taskRunners.add(runner);
+                executor.submit(runner);
+            }
         }
         // 停止建立新的线程
         executor.shutdown();
@@ -0,0 +1,226 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.TaskParams;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.runners.RegionTaskRunner;
+import indi.somebottle.tasks.runners.RegionTaskRunnerFactory;
+import indi.somebottle.utils.IOUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分阶段处理区域文件的流水线 <br>
+ * 串行处理时，一个线程在等磁盘时 CPU 是闲的，在解压时磁盘又是闲的。流水线把每个区域文件的处理拆成三个阶段，分别交给不同大小的线程池：<br>
+ * - 读取线程（I/O）：执行读取阶段，并把区域文件预读到页缓存中，之后的解压不必再等待磁盘 <br>
+ * - 评估线程（CPU）：解压读取区块并标记待删除的区块 <br>
+ * - 写入线程（I/O）：写出、压实或者删除区域文件
+ * <p>
+ * 阶段之间通过有界队列传递任务，同时限制已经预读但还没处理完的文件总大小（在途字节），
+ * 下游跟不上时上游会被阻塞，预读的数据不会在用到之前就被挤出页缓存。
+ */
+public class RegionTaskPipeline {
+    /**
+     * 表示上游阶段已经结束的标记
+     */
+    private static final RegionTask END = new RegionTask(new File(""));
+
+    private final Queue<File> queue; // 所有读取线程共用的区域文件队列
+    private final TaskParams params; // 任务参数
+    private final int ioThreads; // 读取、写入阶段各自的线程数
+    private final int cpuThreads; // 评估阶段的线程数
+    private final int budgetPermits; // 在途字节预算（KiB）
+    private final Semaphore inFlight; // 剩余的在途字节预算（KiB）
+    private final BlockingQueue<RegionTask> toEvaluate; // 读取阶段 -> 评估阶段
+    private final BlockingQueue<RegionTask> toWrite; // 评估阶段 -> 写入阶段
+    private final AtomicInteger readersLeft; // 还没结束的读取线程数
+    private final AtomicInteger evaluatorsLeft; // 还没结束的评估线程数
+    private final List<RegionTaskRunner> runners = new ArrayList<>(); // 每个阶段线程各自的执行器
+
+    /**
+     * 创建流水线
+     *
+     * @param queue            区域文件队列
+     * @param params           任务参数
+     * @param ioThreads        读取、写入阶段各自的线程数
+     * @param cpuThreads       评估阶段的线程数
+     * @param maxInFlightBytes 在途字节预算
+     */
+    public RegionTaskPipeline(Queue<File> queue, TaskParams params, int ioThreads, int cpuThreads, long maxInFlightBytes) {
+        this.queue = queue;
+        this.params = params;
+        this.ioThreads = ioThreads;
+        this.cpuThreads = cpuThreads;
+        this.budgetPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / 1024));
+        this.inFlight = new Semaphore(budgetPermits);
+        this.toEvaluate = new ArrayBlockingQueue<>(cpuThreads * 2);
+        this.toWrite = new ArrayBlockingQueue<>(ioThreads * 2);
+        this.readersLeft = new AtomicInteger(ioThreads);
+        this.evaluatorsLeft = new AtomicInteger(cpuThreads);
+    }
+
+    /**
+     * 获得所有阶段线程的执行器，用于汇总统计结果
+     *
+     * @return 执行器列表
+     */
+    public List<RegionTaskRunner> getRunners() {
+        return runners;
+    }
+
+    /**
+     * 获得流水线需要的线程总数
+     *
+     * @return 线程数
+     */
+    public int getThreadsNum() {
+        return ioThreads * 2 + cpuThreads;
+    }
+
+    /**
+     * 把所有阶段的线程提交到线程池中
+     *
+     * @param executor 线程池，至少要有 {@link #getThreadsNum()} 个线程
+     */
+    public void submitTo(ExecutorService executor) {
+        for (int i = 0; i < ioThreads; i++) {
+            RegionTaskRunner runner = newRunner();
+            executor.submit(() -> readLoop(runner));
+        }
+        for (int i = 0; i < cpuThreads; i++) {
+            RegionTaskRunner runner = newRunner();
+            executor.submit(() -> evaluateLoop(runner));
+        }
+        for (int i = 0; i < ioThreads; i++) {
+            RegionTaskRunner runner = newRunner();
+            executor.submit(() -> writeLoop(runner));
+        }
+    }
+
+    private RegionTaskRunner newRunner() {
+        RegionTaskRunner runner = RegionTaskRunnerFactory.getTaskRunner(queue, params);
+        runners.add(runner);
+        return runner;
+    }
+
+    /**
+     * 读取线程：从队列中领取区域文件，占用在途字节预算后执行读取阶段并预读文件
+     */
+    private void readLoop(RegionTaskRunner runner) {
+        long startTime = System.currentTimeMillis();
+        try {
+            File mcaFile;
+            while (!Thread.currentThread().isInterrupted() && (mcaFile = queue.poll()) != null) {
+                RegionTask task = new RegionTask(mcaFile);
+                // 超过整个预算的大文件只占用整个预算，否则永远等不到
+                task.inFlightPermits = (int) Math.min(budgetPermits, Math.max(1, (task.originalLength + 1023) / 1024));
+                inFlight.acquire(task.inFlightPermits);
+                boolean handedOff = false;
+                try {
+                    if (runner.readStage(task)) {
+                        IOUtils.prefetch(task.mcaFile);
+                        toEvaluate.put(task);
+                        handedOff = true;
+                    }
+                } catch (RuntimeException e) {
+                    GlobalLogger.warning("Unexpected exception while reading region file: " + mcaFile.getAbsolutePath(), e);
+                } finally {
+                    if (!handedOff)
+                        release(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            runner.finish(System.currentTimeMillis() - startTime);
+            // 最后一个结束的读取线程通知所有评估线程
+            if (readersLeft.decrementAndGet() == 0)
+                endStage(toEvaluate, cpuThreads);
+        }
+    }
+
+    /**
+     * 评估线程：解压读取区块、标记待删除的区块，需要写入的交给写入线程
+     */
+    private void evaluateLoop(RegionTaskRunner runner) {
+        long startTime = System.currentTimeMillis();
+        try {
+            RegionTask task;
+            while ((task = toEvaluate.take()) != END) {
+                boolean handedOff = false;
+                try {
+                    if (runner.evaluateStage(task)) {
+                        toWrite.put(task);
+                        handedOff = true;
+                    }
+                } catch (RuntimeException e) {
+                    GlobalLogger.warning("Unexpected exception while evaluating region file: " + task.mcaFile.getAbsolutePath(), e);
+                } finally {
+                    if (!handedOff)
+                        release(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            runner.finish(System.currentTimeMillis() - startTime);
+            // 最后一个结束的评估线程通知所有写入线程
+            if (evaluatorsLeft.decrementAndGet() == 0)
+                endStage(toWrite, ioThreads);
+        }
+    }
+
+    /**
+     * 写入线程：按评估结果写出区域文件，然后归还在途字节预算
+     */
+    private void writeLoop(RegionTaskRunner runner) {
+        long startTime = System.currentTimeMillis();
+        try {
+            RegionTask task;
+            while ((task = toWrite.take()) != END) {
+                try {
+                    runner.writeStage(task);
+                } catch (RuntimeException e) {
+                    GlobalLogger.warning("Unexpected exception while writing region file: " + task.mcaFile.getAbsolutePath(), e);
+                } finally {
+                    release(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            runner.finish(System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * 任务离开流水线，归还它占用的在途字节预算，计入处理进度
+     */
+    private void release(RegionTask task) {
+        // 尽早释放区域对象
+        task.region = null;
+        inFlight.release(task.inFlightPermits);
+        params.progressTracker.regionDone(task.originalLength);
+    }
+
+    /**
+     * 通知下一阶段的所有线程上游已经结束
+     */
+    private static void endStage(BlockingQueue<RegionTask> next, int consumers) {
+        try {
+            for (int i = 0; i < consumers; i++) {
+                next.put(END);
+            }
+        } catch (InterruptedException e) {
+            // 整个流水线正在被中断，下游线程也会被中断
+            Thread.currentThread().interrupt();
+        }
+    }
+}
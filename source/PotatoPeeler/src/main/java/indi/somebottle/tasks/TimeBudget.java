@@ -0,0 +1,191 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.RegionHeader;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.utils.RegionUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 处理区域文件的时间预算（--time-budget），一次运行中所有世界共用一份 <br>
+ * Peeler 在服务器启动前运行，处理耗时就是停服时间。有了时间预算后：
+ * <p>
+ * - 区域文件按预计能回收的字节数从多到少处理，最有价值的先处理 <br>
+ * - 预算用完后不再领取新的区域文件，正在处理的区域文件照常处理完（写入都是安全的） <br>
+ * - 没处理到的区域文件记录在 {@link #PENDING_REGIONS_FILE_PATH} 中，下次运行时最先处理
+ * <p>
+ * 预计能回收的字节数只读取头部估算：上次运行之后被保存过的区块占用的扇区字节数。
+ * 新生成的区块（InhabitedTime 很小、最可能被删除的区块）只会出现在这些区块中；
+ * 上次运行之后没有变化的区域文件上次已经处理过，再处理也删不掉什么。
+ */
+public class TimeBudget {
+    /**
+     * 记录没处理到的区域文件的文件路径
+     */
+    public static final Path PENDING_REGIONS_FILE_PATH = Paths.get("./peeler.pending");
+
+    private final long deadline; // 预算用完的时间（ms）
+    private final long sinceTime; // 上次运行的时间（秒级时间戳），之后保存的区块才计入估算
+    private final Path pendingFilePath; // 记录没处理到的区域文件的文件
+    private final Set<String> carriedOver = new HashSet<>(); // 上次运行时没处理到的区域文件（绝对路径）
+    private final Set<String> skipped = ConcurrentHashMap.newKeySet(); // 本次运行没处理到的区域文件（绝对路径）
+
+    /**
+     * 创建时间预算，并读取上次运行时没处理到的区域文件
+     *
+     * @param deadline        预算用完的时间（ms 级时间戳）
+     * @param sinceTime       上次运行的时间（秒级时间戳），从没运行过时为 0
+     * @param pendingFilePath 记录没处理到的区域文件的文件
+     */
+    public TimeBudget(long deadline, long sinceTime, Path pendingFilePath) {
+        this.deadline = deadline;
+        this.sinceTime = sinceTime;
+        this.pendingFilePath = pendingFilePath;
+        if (Files.exists(pendingFilePath)) {
+            try {
+                for (String line : Files.readAllLines(pendingFilePath, StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty())
+                        carriedOver.add(line.trim());
+                }
+            } catch (IOException e) {
+                // 读不出来只是失去了优先级，不影响处理
+                GlobalLogger.warning("Failed to read pending regions from file: " + pendingFilePath, e);
+            }
+        }
+    }
+
+    /**
+     * 预算是否已经用完
+     *
+     * @return 是否用完
+     */
+    public boolean isExhausted() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * 获得剩余的预算
+     *
+     * @return 剩余的毫秒数，用完时为 0
+     */
+    public long remainingMillis() {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * 获得上次运行时没处理到的区域文件数
+     *
+     * @return 区域文件数
+     */
+    public int getCarriedOverCount() {
+        return carriedOver.size();
+    }
+
+    /**
+     * 获得本次运行没处理到的区域文件数
+     *
+     * @return 区域文件数
+     */
+    public int getSkippedCount() {
+        return skipped.size();
+    }
+
+    /**
+     * 估算一个区域文件能回收的字节数：上次运行之后被保存过的区块占用的扇区字节数
+     *
+     * @param mcaFile 区域文件
+     * @return 估算的字节数，读不出头部时为 0
+     */
+    public long estimateReclaimableBytes(File mcaFile) {
+        RegionHeader header;
+        try {
+            header = RegionUtils.readRegionHeader(mcaFile);
+        } catch (IOException e) {
+            return 0;
+        }
+        long bytes = 0;
+        for (int index = 0; index < RegionHeader.CHUNKS_PER_REGION; index++) {
+            if (header.isPresent(index) && header.getTimestamp(index) > sinceTime)
+                bytes += header.getSectorCount(index) * RegionUtils.REGION_FILE_SECTOR_SIZE;
+        }
+        return bytes;
+    }
+
+    /**
+     * 把区域文件按处理价值从高到低排序：上次没处理到的最先，然后按估算的回收字节数，相同时大文件先处理
+     *
+     * @param mcaFiles 区域文件
+     * @return 排好序的区域文件
+     */
+    public List<File> sortByValue(Collection<File> mcaFiles) {
+        // 每个文件只读一次头部、取一次大小，排序时不再访问文件系统
+        List<ValuedRegion> valued = new ArrayList<>(mcaFiles.size());
+        for (File mcaFile : mcaFiles) {
+            long value = carriedOver.contains(mcaFile.getAbsolutePath()) ? Long.MAX_VALUE : estimateReclaimableBytes(mcaFile);
+            valued.add(new ValuedRegion(mcaFile, value, mcaFile.length()));
+        }
+        valued.sort(Comparator.comparingLong((ValuedRegion region) -> region.value)
+                .thenComparingLong(region -> region.length)
+                .reversed());
+        List<File> sorted = new ArrayList<>(valued.size());
+        for (ValuedRegion region : valued) {
+            sorted.add(region.mcaFile);
+        }
+        return sorted;
+    }
+
+    /**
+     * 一个区域文件及其排序依据
+     */
+    private static final class ValuedRegion {
+        final File mcaFile;
+        final long value; // 估算的回收字节数
+        final long length; // 文件大小
+
+        ValuedRegion(File mcaFile, long value, long length) {
+            this.mcaFile = mcaFile;
+            this.value = value;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 记录因为预算用完而没处理到的区域文件
+     *
+     * @param mcaFiles 区域文件
+     */
+    public void skip(Collection<File> mcaFiles) {
+        for (File mcaFile : mcaFiles) {
+            skipped.add(mcaFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 把本次没处理到的区域文件写入记录文件，供下次运行时优先处理。都处理完了则删除记录文件
+     */
+    public void save() {
+        try {
+            if (skipped.isEmpty()) {
+                Files.deleteIfExists(pendingFilePath);
+                return;
+            }
+            List<String> lines = new ArrayList<>(skipped);
+            lines.sort(null);
+            Files.write(pendingFilePath, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            GlobalLogger.warning("Failed to write pending regions to file: " + pendingFilePath, e);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package indi.somebottle.tasks;
+
+import indi.somebottle.entities.TaskParams;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.runners.RegionTaskRunner;
+import indi.somebottle.tasks.runners.RegionTaskRunnerFactory;
+import indi.somebottle.utils.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 每个区域文件一个虚拟线程的执行方式 <br>
+ * 在网络存储（NFS、Ceph 等）上读取区域文件主要受延迟限制，固定大小的线程池里大部分线程都在等待 I/O。
+ * 虚拟线程阻塞时不占用平台线程，这里为每个区域文件启动一个虚拟线程，可以同时有成百上千个读写在进行。
+ * <p>
+ * 虚拟线程本身不限制并发，这里用两个有界的执行器池来限流：<br>
+ * - I/O 执行器：读取阶段和写入阶段各借用一个，数量即同时进行的读写数上限 <br>
+ * - CPU 执行器：评估阶段（解压）借用一个，数量为 CPU 核心数，解压不会超出核心数 <br>
+ * 每个执行器持有自己的解压器池（用到时才分配），执行器总数有上限，缓冲区不会随着虚拟线程的数量增长（没有使用 ThreadLocal）。
+ * <p>
+ * 读取阶段用 FileChannel#read 把整个区域文件读入池中的缓冲区，评估阶段直接从缓冲区解析，不使用内存映射：
+ * 访问映射时的缺页会让虚拟线程连同载体线程一起阻塞，同时进行的读取就被限制在了 CPU 核心数；
+ * 而 read 阻塞时 JDK 会临时补充载体线程。缓冲区和 I/O 执行器一样多，读入但还没评估完的区域文件不会超过这个数。
+ * <p>
+ * 虚拟线程需要 Java 21 及以上，运行时通过反射获取；不支持时退化为 I/O 并发数大小的平台线程池，限流方式不变。
+ */
+public class VirtualThreadRegionTasks {
+    private final Queue<File> queue; // 所有任务共用的区域文件队列
+    private final TaskParams params; // 任务参数
+    private final BlockingQueue<RegionTaskRunner> ioRunners; // 空闲的 I/O 执行器
+    private final BlockingQueue<RegionTaskRunner> cpuRunners; // 空闲的 CPU 执行器
+    private final BlockingQueue<ByteBuffer> contentBuffers; // 空闲的文件内容缓冲区，按需扩容
+    private final List<RegionTaskRunner> runners = new ArrayList<>(); // 所有执行器，用于汇总统计结果
+    private final int ioConcurrency; // 同时进行的读写数上限
+    private AtomicInteger tasksLeft; // 还没结束的任务数
+    private long startTime; // 开始执行的时间
+
+    /**
+     * 创建执行方式
+     *
+     * @param queue          区域文件队列
+     * @param params         任务参数
+     * @param ioConcurrency  同时进行的读写数上限
+     * @param cpuConcurrency 同时进行的解压数上限
+     */
+    public VirtualThreadRegionTasks(Queue<File> queue, TaskParams params, int ioConcurrency, int cpuConcurrency) {
+        this.queue = queue;
+        this.params = params;
+        this.ioConcurrency = ioConcurrency;
+        this.ioRunners = new ArrayBlockingQueue<>(ioConcurrency);
+        this.cpuRunners = new ArrayBlockingQueue<>(cpuConcurrency);
+        this.contentBuffers = new ArrayBlockingQueue<>(ioConcurrency);
+        for (int i = 0; i < ioConcurrency; i++) {
+            // 第一次读取时才分配
+            contentBuffers.add(ByteBuffer.allocate(0));
+        }
+        for (int i = 0; i < ioConcurrency; i++) {
+            RegionTaskRunner runner = RegionTaskRunnerFactory.getTaskRunner(queue, params);
+            runners.add(runner);
+            ioRunners.add(runner);
+        }
+        for (int i = 0; i < cpuConcurrency; i++) {
+            RegionTaskRunner runner = RegionTaskRunnerFactory.getTaskRunner(queue, params);
+            runners.add(runner);
+            cpuRunners.add(runner);
+        }
+    }
+
+    /**
+     * 获得所有执行器，用于汇总统计结果
+     *
+     * @return 执行器列表
+     */
+    public List<RegionTaskRunner> getRunners() {
+        return runners;
+    }
+
+    /**
+     * 创建每个任务一个虚拟线程的线程池，不支持虚拟线程时退化为 ioConcurrency 大小的平台线程池
+     *
+     * @return 线程池
+     */
+    public ExecutorService newExecutor() {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() 从 Java 21 开始才有
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            GlobalLogger.warning("Virtual threads are not supported by this Java runtime (requires Java 21+), falling back to " + ioConcurrency + " platform threads.");
+            return Executors.newFixedThreadPool(ioConcurrency);
+        }
+    }
+
+    /**
+     * 为队列中的每个区域文件提交一个任务
+     *
+     * @param executor 线程池
+     */
+    public void submitTo(ExecutorService executor) {
+        int tasksNum = queue.size();
+        tasksLeft = new AtomicInteger(tasksNum);
+        startTime = System.currentTimeMillis();
+        if (tasksNum == 0) {
+            finishAll();
+            return;
+        }
+        for (int i = 0; i < tasksNum; i++) {
+            executor.submit(this::processNext);
+        }
+    }
+
+    /**
+     * 处理队列中的下一个区域文件，三个阶段各自借用执行器，读取和评估阶段还借用一个文件内容缓冲区
+     */
+    private void processNext() {
+        RegionTask task = null;
+        ByteBuffer contents = null;
+        try {
+            contents = contentBuffers.take();
+            RegionTaskRunner runner = ioRunners.take();
+            try {
+                // 拿到 I/O 执行器之后再领取文件，进度按已经领取的文件计算
+                File mcaFile = queue.poll();
+                if (mcaFile == null)
+                    return;
+                task = new RegionTask(mcaFile);
+                if (!runner.readStage(task))
+                    return;
+                contents = IOUtils.readFile(task.mcaFile, contents);
+                task.contents = contents;
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to read region file: " + task.mcaFile.getAbsolutePath() + ", skipped.", e);
+                return;
+            } finally {
+                ioRunners.offer(runner);
+            }
+            runner = cpuRunners.take();
+            try {
+                if (!runner.evaluateStage(task))
+                    return;
+            } finally {
+                cpuRunners.offer(runner);
+                // 区域已经解析完，区块数据不会再引用缓冲区
+                task.contents = null;
+                contentBuffers.offer(contents);
+                contents = null;
+            }
+            runner = ioRunners.take();
+            try {
+                runner.writeStage(task);
+            } finally {
+                ioRunners.offer(runner);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            GlobalLogger.warning("Unexpected exception while processing region file.", e);
+        } finally {
+            if (contents != null)
+                contentBuffers.offer(contents);
+            if (task != null)
+                params.progressTracker.regionDone(task.originalLength);
+            // 最后一个结束的任务负责收尾
+            if (tasksLeft.decrementAndGet() == 0)
+                finishAll();
+        }
+    }
+
+    /**
+     * 所有任务结束后更新各执行器的统计结果，释放它们的解压器池
+     */
+    private void finishAll() {
+        long timeElapsed = System.currentTimeMillis() - startTime;
+        for (RegionTaskRunner runner : runners) {
+            runner.finish(timeElapsed);
+        }
+    }
+}
@@ -1,26 +1,39 @@
 package indi.somebottle.tasks.runners;
 
+import indi.somebottle.constants.ChunkLayoutConstants;
 import indi.somebottle.entities.PeelResult;
 import indi.somebottle.entities.Region;
 import indi.somebottle.entities.TaskParams;
 import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.tasks.RegionTask;
+import indi.somebottle.utils.IOUtils;
+import indi.somebottle.utils.NumUtils;
 import indi.somebottle.utils.RegionUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.Queue;
 
 /**
  * 非原地（复制）处理区域文件的线程 <br>
+ * 没有被修改的区域文件以硬链接或复制的方式输出，被修改的区域文件直接写出，每个输出文件只写一次。
  */
 public class CopyBasedRegionTaskRunner implements RegionTaskRunner {
     private final TaskParams params; // 任务参数
-    private final Queue<File> queue; // 此线程独有的任务队列
+    private final Queue<File> queue; // 任务队列，可能由多个线程共用
     private final PeelResult taskResult = new PeelResult(); // 存储本线程任务结果
+    private final DecompressorPool decompressorPool = new DecompressorPool(); // 本线程独有的解压器池，所有区域共用
+    // 统计
+    private long sizeReduced = 0;
+    private long chunksRemoved = 0;
+    private long regionsAffected = 0;
+    private long regionsDeleted = 0;
+    private long chunksRecompressed = 0;
 
     /**
      * 初始化区域文件队列处理线程(非原地)
@@ -43,110 +56,200 @@ public class CopyBasedRegionTaskRunner implements RegionTaskRunner {
         return taskResult;
     }
 
-    protected Region readRegion(File regionFile) throws Exception {
-        return RegionUtils.readRegion(regionFile);
+    protected Region readRegion(File regionFile, ByteBuffer contents) throws Exception {
+        // 受保护的区块不解压；contents 不为 null 时文件内容已经读入内存
+        return RegionUtils.readRegion(regionFile, contents, chunk -> needsInhabitedTime(chunk, params), chunkFieldsToLoad(params), decompressorPool, params.chunkFanOutPool);
     }
 
     protected long writeRegion(Region region, File sourceFile, File outputFile, boolean dryRun) throws IOException {
-        return RegionUtils.writeRegion(region, sourceFile, outputFile, dryRun);
+        return RegionUtils.writeRegion(region, sourceFile, outputFile, dryRun, params.chunkLayout);
+    }
+
+    /**
+     * 把没有修改的区域文件原样输出到目标路径（试运行时什么都不做） <br>
+     * 指定了 linkUnchanged 时优先创建硬链接，否则复制（支持的文件系统上为 reflink 克隆）。
+     *
+     * @param sourcePath 源区域文件路径
+     * @param outputPath 输出区域文件路径
+     */
+    private void outputUnchanged(Path sourcePath, Path outputPath) {
+        if (params.dryRun)
+            return;
+        try {
+            if (IOUtils.linkOrCopy(sourcePath, outputPath, params.linkUnchanged)) {
+                GlobalLogger.fine("Hard linked unchanged region file: " + outputPath);
+            } else {
+                params.progressTracker.regionWritten(outputPath.toFile().length());
+            }
+            submitDurable(outputPath.toFile());
+        } catch (IOException e) {
+            GlobalLogger.warning("Unexpected! Failed to copy original region file to: " + outputPath, e);
+        }
+    }
+
+    /**
+     * 把写完的输出文件交给刷盘屏障（没有刷盘屏障时什么都不做）
+     *
+     * @param outputFile 输出文件
+     */
+    private void submitDurable(File outputFile) {
+        if (params.durabilityBarrier != null)
+            params.durabilityBarrier.submit(outputFile);
     }
 
     @Override
     public void run() {
-        // 统计
-        long sizeReduced = 0;
-        long chunksRemoved = 0;
-        long regionsAffected = 0;
         long startTime = System.currentTimeMillis();
-        // 队列非空时不断取出进行处理
-        while (!Thread.currentThread().isInterrupted() && !queue.isEmpty()) {
-            File mcaFile = queue.poll();
-            // 原 MCA 文件大小
-            long originalLength = mcaFile.length();
-            // 原 MCA 文件路径
-            Path originalMCAPath = Paths.get(mcaFile.toURI());
-            Path relativeMCAPath = params.absWorldDirPath.relativize(originalMCAPath.toAbsolutePath());
-            // 输出 MCA 文件路径
-            Path outputMCAPath = params.absOutputDirPath.resolve(relativeMCAPath);
-            File outputMCAFile = outputMCAPath.toFile();
-            if (outputMCAFile.exists()) {
-                // 输出文件已经存在则跳过
-                GlobalLogger.warning("Unable to write modified region because output file already exists: " + outputMCAFile.getAbsolutePath());
-                continue;
-            }
-            Path outputMCAParentPath = outputMCAPath.getParent();
+        // 不断从队列中取出任务处理，队列可能由多个线程共用，取不到任务（返回 null）时说明所有任务都已被领取
+        File mcaFile;
+        while (!Thread.currentThread().isInterrupted() && (mcaFile = queue.poll()) != null) {
+            RegionTask task = new RegionTask(mcaFile);
+            if (readStage(task) && evaluateStage(task))
+                writeStage(task);
+            params.progressTracker.regionDone(task.originalLength);
+        }
+        // 记录每个线程执行任务的总耗时
+        finish(System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public boolean readStage(RegionTask task) {
+        // 原 MCA 文件路径
+        Path originalMCAPath = Paths.get(task.mcaFile.toURI());
+        Path relativeMCAPath = params.absWorldDirPath.relativize(originalMCAPath.toAbsolutePath());
+        // 输出 MCA 文件路径
+        Path outputMCAPath = params.absOutputDirPath.resolve(relativeMCAPath);
+        File outputMCAFile = outputMCAPath.toFile();
+        if (outputMCAFile.exists()) {
+            // 输出文件已经存在则跳过
+            GlobalLogger.warning("Unable to write modified region because output file already exists: " + outputMCAFile.getAbsolutePath());
+            return false;
+        }
+        Path outputMCAParentPath = outputMCAPath.getParent();
+        try {
+            // 创建必要目录
+            Files.createDirectories(outputMCAParentPath);
+        } catch (IOException e) {
+            GlobalLogger.warning("Failed to create output directory: " + outputMCAParentPath, e);
+            return false;
+        }
+        task.outputPath = outputMCAPath;
+        return true;
+    }
+
+    @Override
+    public boolean evaluateStage(RegionTask task) {
+        File mcaFile = task.mcaFile;
+        /*
+         * 先读取和筛选，再决定输出文件怎么生成：
+         * 没有修改的区域直接链接/克隆过去，有修改的区域由 writeRegion 直接写出，每个输出文件只写一次。
+         */
+        // ##############################
+        //        Region 文件读取
+        // ##############################
+        Region region;
+        try {
+            region = readRegion(mcaFile, task.contents);
+        } catch (Exception e) {
+            // 读取失败，原样输出
+            GlobalLogger.warning("Exception occurred while reading region file: " + mcaFile.getAbsolutePath(), e);
+            task.action = RegionTask.ACTION_OUTPUT_UNCHANGED;
+            return !params.dryRun;
+        }
+        task.region = region;
+        trackRegionRead(task, params);
+        // ##############################
+        //           区块筛选
+        // ##############################
+        task.chunksMarked = markChunksForRemoval(region, params, mcaFile.getName());
+        if (isRegionEmptied(region, task.chunksMarked)) {
+            // 所有区块都被移除了，不输出这个区域文件（而不是输出一个只有头部的空文件）
+            GlobalLogger.fine("All chunks removed from region file: " + mcaFile.getAbsolutePath() + ", not written to output.");
+            sizeReduced += task.originalLength;
+            regionsAffected++;
+            regionsDeleted++;
+            chunksRemoved += task.chunksMarked;
+            return false;
+        }
+        // 指定了非默认的排列方式，且区块的先后顺序不符合时，即使没有区块被移除也要重写
+        task.relayout = params.chunkLayout != ChunkLayoutConstants.INDEX && !RegionUtils.isInLayoutOrder(region, params.chunkLayout);
+        // 按策略重新压缩保留的区块，有区块被重新压缩时也要重写
+        task.chunksRewritten = recompressChunks(region, mcaFile, params);
+        if (task.chunksMarked == 0 && !task.relayout && task.chunksRewritten == 0) {
+            // 如果这个区域没有被修改过，原样输出
+            GlobalLogger.fine("No chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", skipped.");
+            task.action = RegionTask.ACTION_OUTPUT_UNCHANGED;
+            return !params.dryRun;
+        }
+        if (params.dryRun) {
+            // ------------- Dry-run -------------
             try {
-                // 创建必要目录
-                Files.createDirectories(outputMCAParentPath);
-                // 试运行时不需要复制文件
-                if (!params.dryRun) {
-                    // 正常流程则复制原文件
-                    // 这里复制是因为如果没有区块被修改，则会跳过下面的写入，但是既然是输出到指定目录，文件还是得复制的
-                    Files.copy(originalMCAPath, outputMCAPath, StandardCopyOption.COPY_ATTRIBUTES);
-                }
+                // 只根据头部算出重写后的大小，不读取区块数据
+                long reclaimable = task.originalLength - RegionUtils.estimateRegionSize(region, task.originalLength, mcaFile.getName());
+                GlobalLogger.fine("(dry-run) " + task.chunksMarked + " chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", " + NumUtils.bytesToHumanReadable(reclaimable) + " reclaimable.");
+                sizeReduced += reclaimable;
             } catch (IOException e) {
-                GlobalLogger.warning("Failed to create output directory and copy file: " + outputMCAParentPath, e);
-                continue;
+                GlobalLogger.warning("Failed to estimate size of modified region(dry-run): " + mcaFile.getAbsolutePath(), e);
+                return false;
             }
-            // ##############################
-            //        Region 文件读取
-            // ##############################
-            Region region;
+            recordRewritten(task);
+            return false;
+        }
+        task.action = RegionTask.ACTION_REWRITE;
+        return true;
+    }
+
+    @Override
+    public void writeStage(RegionTask task) {
+        Path originalMCAPath = Paths.get(task.mcaFile.toURI());
+        Path outputMCAPath = task.outputPath;
+        File outputMCAFile = outputMCAPath.toFile();
+        if (task.action == RegionTask.ACTION_OUTPUT_UNCHANGED) {
+            outputUnchanged(originalMCAPath, outputMCAPath);
+            return;
+        }
+        // ------------- 实际运行(输出到指定目录) -------------
+        try {
+            // 直接写出修改后的区域
+            writeRegion(task.region, task.mcaFile, outputMCAFile, false);
+            submitDurable(outputMCAFile);
+            params.progressTracker.regionWritten(outputMCAFile.length());
+            sizeReduced += (task.originalLength - outputMCAFile.length());
+        } catch (IOException e) {
+            GlobalLogger.warning("Failed to write modified region to file: " + outputMCAFile.getAbsolutePath(), e);
+            // 因为写入失败，outputMCAFile 可能不完整，删除后原样输出
             try {
-                region = readRegion(mcaFile);
-            } catch (Exception e) {
-                // 读取失败
-                GlobalLogger.warning("Exception occurred while reading region file: " + mcaFile.getAbsolutePath(), e);
-                continue;
-            }
-            // ##############################
-            //           区块筛选
-            // ##############################
-            long chunksMarked = markChunksForRemoval(region, params, mcaFile.getName());
-            // ##############################
-            //        写入 Region 文件
-            // ##############################
-            if (chunksMarked == 0) {
-                // 如果这个区域没有被修改过，就跳过
-                GlobalLogger.fine("No chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", skipped.");
-                continue;
+                Files.deleteIfExists(outputMCAPath);
+            } catch (IOException ex) {
+                GlobalLogger.warning("Unexpected! Failed to delete incomplete output file: " + outputMCAFile.getAbsolutePath(), ex);
             }
-            if (params.dryRun) {
-                // ------------- Dry-run -------------
-                try {
-                    // 模拟写入区域文件
-                    long bytesWrite = writeRegion(region, mcaFile, null, true);
-                    sizeReduced += (originalLength - bytesWrite);
-                } catch (IOException e) {
-                    GlobalLogger.warning("Failed to write modified region to file(dry-run): ", e);
-                    continue;
-                }
-            } else {
-                // ------------- 实际运行(输出到指定目录) -------------
-                try {
-                    // 写入文件
-                    writeRegion(region, mcaFile, outputMCAFile, false);
-                    sizeReduced += (originalLength - outputMCAFile.length());
-                } catch (IOException e) {
-                    GlobalLogger.warning("Failed to write modified region to file: " + outputMCAFile.getAbsolutePath(), e);
-                    // 因为写入失败，outputMCAFile 可能不完整，需要重新复制一份
-                    try {
-                        Files.copy(originalMCAPath, outputMCAPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-                    } catch (IOException ex) {
-                        GlobalLogger.warning("Unexpected! Failed to copy original region file to: " + outputMCAFile.getAbsolutePath(), ex);
-                    }
-                    continue;
-                }
-            }
-            // 成功写入后才算正确移除区块，处理了这个区域
-            regionsAffected++;
-            chunksRemoved += chunksMarked;
+            outputUnchanged(originalMCAPath, outputMCAPath);
+            return;
         }
+        recordRewritten(task);
+    }
+
+    /**
+     * 记录一个被重写的区域文件（成功写入后才算正确移除区块，处理了这个区域）
+     *
+     * @param task 区域任务
+     */
+    private void recordRewritten(RegionTask task) {
+        regionsAffected++;
+        chunksRemoved += task.chunksMarked;
+        chunksRecompressed += task.chunksRewritten;
+    }
+
+    @Override
+    public void finish(long timeElapsed) {
         // 更新任务结果
         taskResult.setSizeReduced(sizeReduced);
         taskResult.setChunksRemoved(chunksRemoved);
         taskResult.setRegionsAffected(regionsAffected);
-        // 记录每个线程执行任务的总耗时
-        taskResult.setTimeElapsed(System.currentTimeMillis() - startTime);
+        taskResult.setRegionsDeleted(regionsDeleted);
+        taskResult.setChunksRecompressed(chunksRecompressed);
+        taskResult.setTimeElapsed(timeElapsed);
+        // 释放解压器占用的 native 内存
+        decompressorPool.close();
     }
 }
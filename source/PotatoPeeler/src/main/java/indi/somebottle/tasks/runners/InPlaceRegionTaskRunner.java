@@ -1,13 +1,20 @@
 package indi.somebottle.tasks.runners;
 
+import indi.somebottle.constants.ChunkLayoutConstants;
 import indi.somebottle.entities.PeelResult;
 import indi.somebottle.entities.Region;
 import indi.somebottle.entities.TaskParams;
 import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.tasks.RegionTask;
+import indi.somebottle.utils.IOUtils;
+import indi.somebottle.utils.NumUtils;
+import indi.somebottle.utils.RegionCompactUtils;
 import indi.somebottle.utils.RegionUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,11 +22,19 @@ import java.util.Queue;
 
 /**
  * 原地处理区域文件的线程 <br>
+ * 被移除区块空出来的扇区通过在原文件内搬移区块回收，见 {@link RegionCompactUtils}
  */
 public class InPlaceRegionTaskRunner implements RegionTaskRunner {
     private final TaskParams params; // 任务参数
-    private final Queue<File> queue; // 此线程独有的任务队列
+    private final Queue<File> queue; // 任务队列，可能由多个线程共用
     private final PeelResult taskResult = new PeelResult(); // 存储本线程任务结果
+    private final DecompressorPool decompressorPool = new DecompressorPool(); // 本线程独有的解压器池，所有区域共用
+    // 统计
+    private long sizeReduced = 0;
+    private long chunksRemoved = 0;
+    private long regionsAffected = 0;
+    private long regionsDeleted = 0;
+    private long chunksRecompressed = 0;
 
     /**
      * 初始化区域文件队列处理线程(原地)
@@ -37,137 +52,320 @@ public class InPlaceRegionTaskRunner implements RegionTaskRunner {
         return taskResult;
     }
 
-    protected Region readRegion(File regionFile) throws Exception {
-        return RegionUtils.readRegion(regionFile);
+    protected Region readRegion(File regionFile, ByteBuffer contents) throws Exception {
+        // 受保护的区块不解压；contents 不为 null 时文件内容已经读入内存
+        return RegionUtils.readRegion(regionFile, contents, chunk -> needsInhabitedTime(chunk, params), chunkFieldsToLoad(params), decompressorPool, params.chunkFanOutPool);
     }
 
     protected long writeRegion(Region region, File sourceFile, File outputFile, boolean dryRun) throws IOException {
-        return RegionUtils.writeRegion(region, sourceFile, outputFile, dryRun);
+        return RegionUtils.writeRegion(region, sourceFile, outputFile, dryRun, params.chunkLayout);
+    }
+
+    protected long compactRegion(Region region, File regionFile) throws IOException {
+        // 有刷盘屏障时，最后的刷盘和日志删除交给屏障成批完成；屏障不刷盘时压实过程也不刷盘
+        if (params.durabilityBarrier == null)
+            return RegionCompactUtils.compactRegion(region, regionFile);
+        return RegionCompactUtils.compactRegion(region, regionFile, true, params.durabilityBarrier.isSyncing());
+    }
+
+    /**
+     * 判断是否原地压实区域文件，窗口太多时整份重写更划算
+     *
+     * @param region     区域对象
+     * @param regionFile 区域文件
+     * @return 是否原地压实
+     * @throws IOException 区块数据超出文件范围或者相互重叠时抛出
+     */
+    protected boolean compactsInPlace(Region region, File regionFile) throws IOException {
+        return RegionCompactUtils.isWorthCompactingInPlace(region, regionFile);
+    }
+
+    /**
+     * 按指定的排列方式重写区域文件，有刷盘屏障时临时文件的刷盘、替换原文件以及旧版本留下的 .mca.bak 的删除都交给屏障
+     *
+     * @param region     区域对象
+     * @param regionFile 区域文件
+     * @param backupFile 备份文件
+     * @return 重新排列后的文件大小（字节），交给屏障时原文件可能还没有被替换
+     * @throws IOException 写入失败时抛出，此时原文件保持不变
+     */
+    protected long relayoutRegion(Region region, File regionFile, File backupFile) throws IOException {
+        if (params.durabilityBarrier == null)
+            return RegionCompactUtils.relayoutRegion(region, regionFile, params.chunkLayout);
+        long bytesWrite = RegionCompactUtils.writeRelayoutFile(region, regionFile, params.chunkLayout);
+        params.durabilityBarrier.submitReplacement(RegionCompactUtils.getRelayoutFile(regionFile), regionFile, backupFile);
+        return bytesWrite;
+    }
+
+    /**
+     * 把处理完的区域文件交给刷盘屏障，文件落盘之后再删除压实日志和旧版本留下的 .mca.bak <br>
+     * 没有刷盘屏障时压实过程已经自行刷盘并删除了日志，这里什么都不做。
+     *
+     * @param regionFile 区域文件
+     * @param backupFile 备份文件
+     */
+    protected void submitDurable(File regionFile, File backupFile) {
+        if (params.durabilityBarrier == null)
+            return;
+        params.durabilityBarrier.submit(regionFile, RegionCompactUtils.getJournalFile(regionFile), backupFile);
+    }
+
+    /**
+     * 删除所有区块都被移除的区域文件，以及旧版本留下的 .mca.bak 备份 <br>
+     * 有刷盘屏障时目录的刷盘交给屏障成批完成。
+     *
+     * @param regionFile 区域文件
+     * @param backupFile 备份文件
+     * @throws IOException 删除失败时抛出
+     */
+    protected void deleteRegionFile(File regionFile, File backupFile) throws IOException {
+        Files.delete(regionFile.toPath());
+        Files.deleteIfExists(backupFile.toPath());
+        File directory = regionFile.getAbsoluteFile().getParentFile();
+        if (params.durabilityBarrier != null) {
+            params.durabilityBarrier.submitDirectory(directory);
+        } else {
+            IOUtils.forceDirectory(directory);
+        }
+    }
+
+    /**
+     * 获得备份 MCA 文件（旧版本原地处理时留下的 .mca.bak）
+     *
+     * @param mcaFile 区域文件
+     * @return 备份文件对象（不一定存在）
+     */
+    private static File getBackupFile(File mcaFile) {
+        return new File(mcaFile.getPath() + ".bak");
     }
 
     @Override
     public void run() {
-        // 统计
-        long sizeReduced = 0;
-        long chunksRemoved = 0;
-        long regionsAffected = 0;
         long startTime = System.currentTimeMillis();
-        // 队列非空时不断取出进行处理
-        while (!Thread.currentThread().isInterrupted() && !queue.isEmpty()) {
-            // 队列有任务时就取出进行处理
-            File mcaFile = queue.poll();
-            long originalLength = mcaFile.length();
-            // 原 MCA 文件路径
-            Path originalMCAPath = Paths.get(mcaFile.toURI());
-            // 备份 MCA 文件路径 (用于原地操作)
-            Path backupMCAPath = originalMCAPath.resolveSibling(originalMCAPath.getFileName() + ".bak");
-            // 备份 MCA 文件对象 (用于原地操作)
-            File backupFile = backupMCAPath.toFile();
-            // ##############################
-            //        Region 文件读取
-            // ##############################
-            Region region;
+        // 不断从队列中取出任务处理，队列可能由多个线程共用，取不到任务（返回 null）时说明所有任务都已被领取
+        File mcaFile;
+        while (!Thread.currentThread().isInterrupted() && (mcaFile = queue.poll()) != null) {
+            RegionTask task = new RegionTask(mcaFile);
+            if (readStage(task) && evaluateStage(task))
+                writeStage(task);
+            params.progressTracker.regionDone(task.originalLength);
+        }
+        // 记录每个线程执行任务的总耗时
+        finish(System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public boolean readStage(RegionTask task) {
+        File mcaFile = task.mcaFile;
+        // ##############################
+        //      重放未完成的压实日志
+        // ##############################
+        File relayoutFile = RegionCompactUtils.getRelayoutFile(mcaFile);
+        if (!params.dryRun && relayoutFile.exists() && !relayoutFile.delete()) {
+            // 重新排列区块时中断留下的临时文件，原文件没有被修改过，直接删除即可
+            GlobalLogger.warning("Failed to delete leftover temporary file: " + relayoutFile.getAbsolutePath());
+        }
+        if (RegionCompactUtils.getJournalFile(mcaFile).exists()) {
+            if (params.dryRun) {
+                // 试运行不修改文件，而压实到一半的区域文件无法正常读取
+                GlobalLogger.warning("Unfinished compaction journal found for region file: " + mcaFile.getAbsolutePath() + ", skipped in dry-run mode.");
+                return false;
+            }
             try {
-                region = readRegion(mcaFile);
-            } catch (Exception e) {
-                // 读取失败时检查有没有 .mca.bak 文件，如果有就尝试读取 .mca.bak
-                GlobalLogger.warning("Exception occurred while reading region file: " + mcaFile.getAbsolutePath(), e);
-                // 检查有没有 .mca.bak 文件
-                if (backupFile.exists()) {
-                    GlobalLogger.info("Backup file found. Trying to read backup file: " + backupFile.getAbsolutePath());
-                    try {
-                        // 如果有的话尝试读取 .mca.bak
-                        region = readRegion(backupFile);
-                        // dryRun 模式下不执行这个 IO 操作
-                        if (!params.dryRun) {
-                            // 把无法读取的 .mca 移除，然后把备份文件重命名为 .mca，方便进行后面的流程
-                            if (mcaFile.exists() && !mcaFile.delete()) {
-                                GlobalLogger.warning("Failed to delete file: " + mcaFile.getAbsolutePath());
-                                continue;
-                            }
-                            Files.move(backupMCAPath, originalMCAPath);
-                        }
-                    } catch (Exception ex) {
-                        GlobalLogger.warning("Exception occurred while reading backup region file: " + backupFile.getAbsolutePath(), e);
-                        continue;
-                    }
-                } else {
-                    // 跳过此文件继续执行
-                    continue;
+                if (RegionCompactUtils.replayJournal(mcaFile)) {
+                    GlobalLogger.info("Finished interrupted compaction of region file: " + mcaFile.getAbsolutePath());
+                    // 重放后文件大小变了
+                    task.originalLength = mcaFile.length();
                 }
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to replay compaction journal of region file: " + mcaFile.getAbsolutePath() + ", skipped.", e);
+                return false;
             }
-            // ##############################
-            //           区块筛选
-            // ##############################
-            long chunksMarked = markChunksForRemoval(region, params, mcaFile.getName());
-            // ##############################
-            //        写入 Region 文件
-            // ##############################
-            if (chunksMarked == 0) {
-                // 如果这个区域没有被修改过，就跳过
-                GlobalLogger.fine("No chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", skipped.");
-                continue;
-            }
-            if (params.dryRun) {
-                // ------------- Dry-run -------------
-                try {
-                    // 模拟写入区域文件
-                    long bytesWrite = writeRegion(region, mcaFile, null, true);
-                    sizeReduced += (originalLength - bytesWrite);
-                } catch (IOException e) {
-                    GlobalLogger.warning("Failed to write modified region to file(dry-run): ", e);
-                    continue;
-                }
-            } else {
-                // ------------- 实际运行(原地操作) -------------
-                try {
-                    // 先检查目标 backup 文件是否存在，若存在则移除
-                    if (backupFile.exists() && !backupFile.delete()) {
-                        GlobalLogger.warning("Failed to delete previous backup file: " + backupFile.getAbsolutePath());
-                        continue;
-                    }
-                    // 把原文件临时重命名为 .mca.bak
-                    Files.move(originalMCAPath, backupMCAPath);
-                } catch (IOException e) {
-                    // 文件重命名失败
-                    GlobalLogger.warning("Failed to backup(rename) file:" + mcaFile.getAbsolutePath(), e);
-                    continue;
-                }
-                // 把修改后的区域写回原 mcaFile
+        }
+        return true;
+    }
+
+    @Override
+    public boolean evaluateStage(RegionTask task) {
+        File mcaFile = task.mcaFile;
+        // 原 MCA 文件路径
+        Path originalMCAPath = Paths.get(mcaFile.toURI());
+        // 备份 MCA 文件对象 (用于原地操作)
+        File backupFile = getBackupFile(mcaFile);
+        // ##############################
+        //        Region 文件读取
+        // ##############################
+        Region region;
+        try {
+            region = readRegion(mcaFile, task.contents);
+        } catch (Exception e) {
+            // 读取失败时检查有没有 .mca.bak 文件（旧版本原地处理时留下的备份），如果有就尝试读取 .mca.bak
+            GlobalLogger.warning("Exception occurred while reading region file: " + mcaFile.getAbsolutePath(), e);
+            // 检查有没有 .mca.bak 文件
+            if (backupFile.exists()) {
+                GlobalLogger.info("Backup file found. Trying to read backup file: " + backupFile.getAbsolutePath());
                 try {
-                    // 注意，到这里时原 .mca 文件已经被重命名了 .mca.bak
-                    // 因此要从 .mca.bak 拷贝数据到新生成的 .mca
-                    writeRegion(region, backupFile, mcaFile, false);
-                } catch (IOException e) {
-                    // 写入失败，恢复备份
-                    GlobalLogger.warning("Failed to write modified region to file: " + mcaFile.getAbsolutePath() + ", restoring backup...", e);
-                    try {
-                        // 如果 mcaFile 存在则尝试删除
+                    // 如果有的话尝试读取 .mca.bak
+                    region = readRegion(backupFile, null);
+                    // dryRun 模式下不执行这个 IO 操作
+                    if (!params.dryRun) {
+                        // 把无法读取的 .mca 移除，然后把备份文件重命名为 .mca，方便进行后面的流程
                         if (mcaFile.exists() && !mcaFile.delete()) {
-                            GlobalLogger.severe("Failed to delete file: " + mcaFile.getAbsolutePath(), e);
+                            GlobalLogger.warning("Failed to delete file: " + mcaFile.getAbsolutePath());
+                            return false;
                         }
-                        Files.move(backupMCAPath, originalMCAPath);
-                    } catch (IOException ex) {
-                        GlobalLogger.severe("Unexpected! Failed to restore backup file: " + backupMCAPath, ex);
+                        Files.move(backupFile.toPath(), originalMCAPath);
                     }
-                    continue;
+                } catch (Exception ex) {
+                    GlobalLogger.warning("Exception occurred while reading backup region file: " + backupFile.getAbsolutePath(), e);
+                    return false;
                 }
-                // 若成功写入则删除备份
-                if (!backupFile.delete()) {
-                    GlobalLogger.warning("Failed to delete backup file: " + backupFile.getAbsolutePath());
+            } else {
+                // 跳过此文件继续执行
+                return false;
+            }
+        }
+        task.region = region;
+        trackRegionRead(task, params);
+        // ##############################
+        //           区块筛选
+        // ##############################
+        task.chunksMarked = markChunksForRemoval(region, params, mcaFile.getName());
+        if (isRegionEmptied(region, task.chunksMarked)) {
+            // 所有区块都被移除了，直接删除区域文件（而不是留下一个只有头部的空文件）
+            task.action = RegionTask.ACTION_DELETE;
+            if (params.dryRun) {
+                GlobalLogger.fine("(dry-run) All chunks removed from region file: " + mcaFile.getAbsolutePath() + ", it would be deleted, " + NumUtils.bytesToHumanReadable(task.originalLength) + " reclaimable.");
+                recordDeleted(task);
+                return false;
+            }
+            return true;
+        }
+        // 指定了非默认的排列方式，且区块的先后顺序不符合时，需要重新排列区块
+        task.relayout = params.chunkLayout != ChunkLayoutConstants.INDEX && !RegionUtils.isInLayoutOrder(region, params.chunkLayout);
+        // 按策略重新压缩保留的区块，有区块被重新压缩时也要重写
+        task.chunksRewritten = recompressChunks(region, mcaFile, params);
+        if (task.chunksMarked == 0 && !task.relayout && task.chunksRewritten == 0) {
+            // 如果这个区域没有被修改过，就跳过
+            GlobalLogger.fine("No chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", skipped.");
+            return false;
+        }
+        if (params.dryRun) {
+            // ------------- Dry-run -------------
+            try {
+                // 只根据头部算出重写后的大小，不读取区块数据
+                long reclaimable = task.originalLength - RegionUtils.estimateRegionSize(region, task.originalLength, mcaFile.getName());
+                GlobalLogger.fine("(dry-run) " + task.chunksMarked + " chunks marked for removal in region file: " + mcaFile.getAbsolutePath() + ", " + NumUtils.bytesToHumanReadable(reclaimable) + " reclaimable.");
+                sizeReduced += reclaimable;
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to estimate size of modified region(dry-run): " + mcaFile.getAbsolutePath(), e);
+                return false;
+            }
+            recordRewritten(task);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void writeStage(RegionTask task) {
+        File mcaFile = task.mcaFile;
+        File backupFile = getBackupFile(mcaFile);
+        // ##############################
+        //        写入 Region 文件
+        // ##############################
+        if (task.action == RegionTask.ACTION_DELETE) {
+            try {
+                deleteRegionFile(mcaFile, backupFile);
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to delete emptied region file: " + mcaFile.getAbsolutePath(), e);
+                return;
+            }
+            GlobalLogger.fine("All chunks removed from region file: " + mcaFile.getAbsolutePath() + ", deleted.");
+            recordDeleted(task);
+            return;
+        }
+        long newLength;
+        boolean rewrite = task.relayout;
+        if (!rewrite) {
+            try {
+                rewrite = !compactsInPlace(task.region, mcaFile);
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to plan compaction of region file: " + mcaFile.getAbsolutePath(), e);
+                return;
+            }
+        }
+        if (rewrite) {
+            // ------------- 实际运行(重新排列区块或整份重写) -------------
+            // 改变区块先后顺序时无法在原文件内安全搬移，写到临时文件后原子替换；原地搬移代价太高时也这样重写
+            try {
+                newLength = relayoutRegion(task.region, mcaFile, backupFile);
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to rewrite region file with " + ChunkLayoutConstants.nameOf(params.chunkLayout) + " layout: " + mcaFile.getAbsolutePath(), e);
+                return;
+            }
+        } else {
+            // ------------- 实际运行(原地压实) -------------
+            /*
+             * 不再把原文件重命名为 .mca.bak 再整份重写，而是在原文件内把空出来的扇区之后的区块往前挪，
+             * 写入新头部后截断文件。修改文件前会先写好重做日志，任何一步失败都可以通过重放日志完成压实。
+             */
+            try {
+                compactRegion(task.region, mcaFile);
+            } catch (IOException e) {
+                GlobalLogger.warning("Failed to compact region file in place: " + mcaFile.getAbsolutePath() + ", replaying journal...", e);
+                try {
+                    // 日志已经写好的话，立即重放完成压实；日志还没写好说明原文件没有被修改过
+                    if (!RegionCompactUtils.replayJournal(mcaFile))
+                        return;
+                } catch (IOException ex) {
+                    GlobalLogger.severe("Failed to replay compaction journal of " + mcaFile.getAbsolutePath() + ", it will be replayed in the next run.", ex);
+                    return;
                 }
-                // 统计减少的数据大小
-                sizeReduced += (originalLength - mcaFile.length());
             }
-            // 成功写入后才算正确移除区块和处理了区域
-            regionsAffected++;
-            chunksRemoved += chunksMarked;
+            // 新文件落盘之后才删除日志和旧备份
+            submitDurable(mcaFile, backupFile);
+            newLength = mcaFile.length();
         }
+        // 统计减少的数据大小
+        params.progressTracker.regionWritten(newLength);
+        sizeReduced += (task.originalLength - newLength);
+        recordRewritten(task);
+    }
+
+    /**
+     * 记录一个被删除的区域文件
+     *
+     * @param task 区域任务
+     */
+    private void recordDeleted(RegionTask task) {
+        sizeReduced += task.originalLength;
+        regionsAffected++;
+        regionsDeleted++;
+        chunksRemoved += task.chunksMarked;
+    }
+
+    /**
+     * 记录一个被重写的区域文件（成功写入后才算正确移除区块和处理了区域）
+     *
+     * @param task 区域任务
+     */
+    private void recordRewritten(RegionTask task) {
+        regionsAffected++;
+        chunksRemoved += task.chunksMarked;
+        chunksRecompressed += task.chunksRewritten;
+    }
+
+    @Override
+    public void finish(long timeElapsed) {
         // 更新任务结果
         taskResult.setSizeReduced(sizeReduced);
         taskResult.setChunksRemoved(chunksRemoved);
         taskResult.setRegionsAffected(regionsAffected);
-        // 记录每个线程执行任务的总耗时
-        taskResult.setTimeElapsed(System.currentTimeMillis() - startTime);
+        taskResult.setRegionsDeleted(regionsDeleted);
+        taskResult.setChunksRecompressed(chunksRecompressed);
+        taskResult.setTimeElapsed(timeElapsed);
+        // 释放解压器占用的 native 内存
+        decompressorPool.close();
     }
 }
@@ -1,15 +1,21 @@
 package indi.somebottle.tasks.runners;
 
+import indi.somebottle.constants.ChunkFieldConstants;
 import indi.somebottle.entities.Chunk;
 import indi.somebottle.entities.PeelResult;
 import indi.somebottle.entities.Region;
 import indi.somebottle.entities.TaskParams;
 import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.tasks.RegionTask;
+import indi.somebottle.utils.RecompressUtils;
 
+import java.io.File;
 import java.util.List;
 
 /**
  * 区块任务执行器接口，Runnable <br>
+ * 每个区域文件的处理分为读取、评估、写入三个阶段，run() 在同一个线程中依次执行；
+ * 流水线模式下三个阶段分别由不同的线程池执行，见 {@link indi.somebottle.tasks.RegionTaskPipeline}
  */
 public interface RegionTaskRunner extends Runnable {
     /**
@@ -19,6 +25,80 @@ public interface RegionTaskRunner extends Runnable {
      */
     PeelResult getTaskResult();
 
+    /**
+     * 读取阶段（I/O）：处理区域文件前的准备工作
+     *
+     * @param task 区域任务
+     * @return 是否继续进入评估阶段
+     */
+    boolean readStage(RegionTask task);
+
+    /**
+     * 评估阶段（CPU）：解压读取区块，标记待删除的区块，决定写入阶段要执行的操作 <br>
+     * 试运行时在这个阶段就完成统计。
+     *
+     * @param task 区域任务
+     * @return 是否需要进入写入阶段
+     */
+    boolean evaluateStage(RegionTask task);
+
+    /**
+     * 写入阶段（I/O）：按评估的结果写出、压实或者删除区域文件，成功后计入统计结果
+     *
+     * @param task 区域任务
+     */
+    void writeStage(RegionTask task);
+
+    /**
+     * 所有任务处理完之后调用：更新统计结果，释放本执行器占用的资源
+     *
+     * @param timeElapsed 执行任务的总耗时（ms）
+     */
+    void finish(long timeElapsed);
+
+    /**
+     * 把读取、解压完的区域计入处理进度
+     *
+     * @param task   区域任务（region 已经读取）
+     * @param params 任务参数
+     */
+    default void trackRegionRead(RegionTask task, TaskParams params) {
+        List<Chunk> existingChunks = task.region.getExistingChunks();
+        long bytesDecompressed = 0;
+        for (Chunk chunk : existingChunks) {
+            if (chunk.getData() != null)
+                bytesDecompressed += chunk.getData().getBytesDecompressed();
+        }
+        params.progressTracker.regionRead(existingChunks.size(), task.originalLength, bytesDecompressed);
+    }
+
+    /**
+     * 判断区块是否需要解压读取 InhabitedTime <br>
+     * 受保护的区块无论如何都不会被删除，因此没有必要解压。
+     *
+     * @param chunk  只含头部信息的区块对象
+     * @param params 任务参数
+     * @return 是否需要解压
+     */
+    default boolean needsInhabitedTime(Chunk chunk, TaskParams params) {
+        return !params.protectedChunksIndex.contains(chunk.getGlobalX(), chunk.getGlobalZ());
+    }
+
+    /**
+     * 解压区块时需要提取的字段 <br>
+     * 所有字段在同一次解压中提取，删除策略需要更多字段时在这里加上即可，不会增加解压次数。
+     *
+     * @param params 任务参数
+     * @return {@link ChunkFieldConstants} 的位掩码
+     */
+    default int chunkFieldsToLoad(TaskParams params) {
+        if (params.recompressPolicy != null && params.recompressPolicy.needsDataVersion()) {
+            // LZ4 只能用于 1.20.5 及之后的区块
+            return ChunkFieldConstants.INHABITED_TIME | ChunkFieldConstants.DATA_VERSION;
+        }
+        return ChunkFieldConstants.INHABITED_TIME;
+    }
+
     /**
      * 标记区域文件中有待删除的区块 <br>
      *
@@ -41,6 +121,10 @@ public interface RegionTaskRunner extends Runnable {
                 GlobalLogger.fine("Chunk at (" + chunk.getGlobalX() + "," + chunk.getGlobalZ() + ") in " + mcaFileName + " is protected, ignored.");
                 continue;
             }
+            if (!chunk.isInhabitedTimeLoaded()) {
+                // 没有读取过 InhabitedTime 的区块无法判断，不进行删除
+                continue;
+            }
             if (chunk.getInhabitedTime() <= params.minInhabited) {
                 // 如果区块的 inhabitedTime 小于等于阈值，就将其标记为待删除
                 GlobalLogger.fine("Marked the chunk at (" + chunk.getGlobalX() + "," + chunk.getGlobalZ() + ") in " + mcaFileName + " for removal.");
@@ -50,4 +134,39 @@ public interface RegionTaskRunner extends Runnable {
         }
         return chunksToBeRemoved;
     }
+
+    /**
+     * 判断区域中的区块是否全部被标记删除（或者区域本来就没有任何区块） <br>
+     * 这种情况下不再写出只有 8 KiB 头部的空文件，而是直接删除（不输出）整个区域文件。
+     *
+     * @param region       区域文件对象
+     * @param chunksMarked 标记待删除的区块数
+     * @return 是否所有区块都会被删除
+     */
+    default boolean isRegionEmptied(Region region, long chunksMarked) {
+        return chunksMarked == region.getExistingChunks().size();
+    }
+
+    /**
+     * 按任务参数中的策略重新压缩区域中保留的区块（没有指定策略时什么都不做） <br>
+     * 重新压缩失败不影响区块的删除，区块保持原样写出。
+     *
+     * @param region     区域文件对象（区块已经完成删除标记）
+     * @param regionFile 区域文件
+     * @param params     任务参数
+     * @return 被重新压缩的区块数
+     */
+    default int recompressChunks(Region region, File regionFile, TaskParams params) {
+        if (params.recompressPolicy == null)
+            return 0;
+        try {
+            int recompressed = RecompressUtils.recompressChunks(region, regionFile, params.recompressPolicy);
+            if (recompressed > 0)
+                GlobalLogger.fine("Recompressed " + recompressed + " chunks in " + regionFile.getName() + ".");
+            return recompressed;
+        } catch (Exception e) {
+            GlobalLogger.warning("Failed to recompress chunks in region file: " + regionFile.getAbsolutePath(), e);
+            return 0;
+        }
+    }
 }
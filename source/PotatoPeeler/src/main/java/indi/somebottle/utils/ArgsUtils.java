@@ -1,5 +1,9 @@
 package indi.somebottle.utils;
 
+import indi.somebottle.constants.ChunkLayoutConstants;
+import indi.somebottle.constants.DurabilityConstants;
+import indi.somebottle.entities.IntRange;
+import indi.somebottle.entities.RecompressPolicy;
 import indi.somebottle.exceptions.PeelerArgIncompleteException;
 import indi.somebottle.logger.GlobalLogger;
 
@@ -43,6 +47,34 @@ public class ArgsUtils {
         PEELER_ARGS.put("--help", false);
         // 试运行选项
         PEELER_ARGS.put("--dry-run", false);
+        // 输出到其他目录时，未修改的区域文件以硬链接代替复制
+        PEELER_ARGS.put("--link-unchanged", false);
+        // 重写区域文件时区块的排列方式（index 或 zorder）
+        PEELER_ARGS.put("--chunk-layout", true);
+        // 重写区域文件时对保留区块重新压缩的策略
+        PEELER_ARGS.put("--recompress", true);
+        // 把重写后的区域文件刷到磁盘上的方式（per-file 或 batched）
+        PEELER_ARGS.put("--durability", true);
+        // 以分阶段的流水线处理区域文件
+        PEELER_ARGS.put("--pipeline", false);
+        // 流水线中读取、写入阶段各自的线程数
+        PEELER_ARGS.put("--io-threads", true);
+        // 流水线中已经预读但还没处理完的文件总大小上限(MiB)
+        PEELER_ARGS.put("--pipeline-buffer", true);
+        // 在一个区域内部按区块并行解压的线程数
+        PEELER_ARGS.put("--chunk-threads", true);
+        // 每个区域文件一个虚拟线程
+        PEELER_ARGS.put("--virtual-threads", false);
+        // 虚拟线程模式下同时进行的读写数上限
+        PEELER_ARGS.put("--io-concurrency", true);
+        // 任务清单文件，列出要处理的世界
+        PEELER_ARGS.put("--manifest", true);
+        // 自动调整并发数时的上下限
+        PEELER_ARGS.put("--adaptive-threads", true);
+        // 处理世界的所有维度
+        PEELER_ARGS.put("--all-dimensions", false);
+        // 处理区域文件的时间预算(秒)
+        PEELER_ARGS.put("--time-budget", true);
     }
 
     /**
@@ -88,6 +120,23 @@ public class ArgsUtils {
         return worldDirList;
     }
 
+    /**
+     * 解析 --adaptive-threads 参数，形如 "min~max"，只写一个数时上下限相同
+     *
+     * @param rangeStr 参数值
+     * @return 线程数范围，格式不正确时返回 null
+     */
+    public static IntRange parseThreadsRange(String rangeStr) {
+        // 线程数必须有明确的上限，不接受 '*'
+        if (rangeStr.contains("*"))
+            return null;
+        try {
+            return ParseUtils.parseSingleIntRange(rangeStr);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * 检查传递给 PotatoPeeler 的参数是否合法
      *
@@ -123,6 +172,83 @@ public class ArgsUtils {
             GlobalLogger.warning("PotatoPeeler parameter --threads-num must be >= 1.");
             return false;
         }
+        if (!CheckUtils.isInt(peelerArgs.get("--io-threads"))) {
+            GlobalLogger.warning("PotatoPeeler parameter --io-threads must be an integer.");
+            return false;
+        }
+        if (Long.parseLong(peelerArgs.get("--io-threads")) < 1) {
+            // 不能小于 1
+            GlobalLogger.warning("PotatoPeeler parameter --io-threads must be >= 1.");
+            return false;
+        }
+        if (!CheckUtils.isInt(peelerArgs.get("--pipeline-buffer"))) {
+            GlobalLogger.warning("PotatoPeeler parameter --pipeline-buffer must be an integer.");
+            return false;
+        }
+        if (Long.parseLong(peelerArgs.get("--pipeline-buffer")) < 1) {
+            // 不能小于 1
+            GlobalLogger.warning("PotatoPeeler parameter --pipeline-buffer must be >= 1.");
+            return false;
+        }
+        if (!CheckUtils.isInt(peelerArgs.get("--chunk-threads"))) {
+            GlobalLogger.warning("PotatoPeeler parameter --chunk-threads must be an integer.");
+            return false;
+        }
+        if (Long.parseLong(peelerArgs.get("--chunk-threads")) < 0) {
+            // 不能小于 0
+            GlobalLogger.warning("PotatoPeeler parameter --chunk-threads must be >= 0.");
+            return false;
+        }
+        if (!CheckUtils.isInt(peelerArgs.get("--io-concurrency"))) {
+            GlobalLogger.warning("PotatoPeeler parameter --io-concurrency must be an integer.");
+            return false;
+        }
+        if (Long.parseLong(peelerArgs.get("--io-concurrency")) < 1) {
+            // 不能小于 1
+            GlobalLogger.warning("PotatoPeeler parameter --io-concurrency must be >= 1.");
+            return false;
+        }
+        if (!CheckUtils.isInt(peelerArgs.get("--time-budget"))) {
+            GlobalLogger.warning("PotatoPeeler parameter --time-budget must be an integer.");
+            return false;
+        }
+        if (Long.parseLong(peelerArgs.get("--time-budget")) < 0) {
+            // 不能小于 0
+            GlobalLogger.warning("PotatoPeeler parameter --time-budget must be >= 0.");
+            return false;
+        }
+        if (peelerArgs.containsKey("--adaptive-threads")) {
+            IntRange range = parseThreadsRange(peelerArgs.get("--adaptive-threads"));
+            if (range == null) {
+                GlobalLogger.warning("PotatoPeeler parameter --adaptive-threads must be a range like '2~16'.");
+                return false;
+            }
+            if (range.from < 1) {
+                // 不能小于 1
+                GlobalLogger.warning("PotatoPeeler parameter --adaptive-threads must be >= 1.");
+                return false;
+            }
+        }
+        int executionModes = 0;
+        for (String mode : new String[]{"--pipeline", "--virtual-threads", "--adaptive-threads"}) {
+            if (peelerArgs.containsKey(mode))
+                executionModes++;
+        }
+        if (peelerArgs.containsKey("--manifest") && (executionModes > 0 || !peelerArgs.get("--world-dirs").isEmpty() || !peelerArgs.get("--output-dirs").isEmpty())) {
+            // 清单模式下所有世界共用 --threads-num 个线程，世界由清单指定
+            GlobalLogger.warning("PotatoPeeler parameter --manifest can not be used with --world-dirs, --output-dirs, --pipeline, --virtual-threads or --adaptive-threads.");
+            return false;
+        }
+        if (peelerArgs.containsKey("--all-dimensions") && executionModes > 0) {
+            // 各个维度的区域文件由同一组工作线程一起调度
+            GlobalLogger.warning("PotatoPeeler parameter --all-dimensions can not be used with --pipeline, --virtual-threads or --adaptive-threads.");
+            return false;
+        }
+        if (executionModes > 1) {
+            // 几种执行方式只能选一种
+            GlobalLogger.warning("PotatoPeeler parameters --pipeline, --virtual-threads and --adaptive-threads can not be used together.");
+            return false;
+        }
         if (!CheckUtils.isInt(peelerArgs.get("--max-log-size"))) {
             GlobalLogger.warning("PotatoPeeler parameter --max-log-size must be an integer.");
             return false;
@@ -141,6 +267,22 @@ public class ArgsUtils {
             GlobalLogger.warning("PotatoPeeler parameter --retain-log-files must be >= 1.");
             return false;
         }
+        if (ChunkLayoutConstants.parse(peelerArgs.get("--chunk-layout")) < 0) {
+            GlobalLogger.warning("PotatoPeeler parameter --chunk-layout must be 'index' or 'zorder'.");
+            return false;
+        }
+        if (DurabilityConstants.parse(peelerArgs.get("--durability")) < 0) {
+            GlobalLogger.warning("PotatoPeeler parameter --durability must be 'off', 'per-file' or 'batched'.");
+            return false;
+        }
+        if (peelerArgs.containsKey("--recompress")) {
+            try {
+                RecompressPolicy.parse(peelerArgs.get("--recompress"));
+            } catch (IllegalArgumentException e) {
+                GlobalLogger.warning("PotatoPeeler parameter --recompress is invalid: " + e.getMessage());
+                return false;
+            }
+        }
         return true;
     }
 
@@ -178,6 +320,34 @@ public class ArgsUtils {
         if (!peelerArgs.containsKey("--retain-log-files")) {
             peelerArgs.put("--retain-log-files", "10");
         }
+        // 如果没有指定区块排列方式，默认按头部下标顺序
+        if (!peelerArgs.containsKey("--chunk-layout")) {
+            peelerArgs.put("--chunk-layout", "index");
+        }
+        // 如果没有指定刷盘方式，默认不主动刷盘（和以前的版本一样）
+        if (!peelerArgs.containsKey("--durability")) {
+            peelerArgs.put("--durability", "off");
+        }
+        // 如果没有指定流水线的 I/O 线程数，默认为 2
+        if (!peelerArgs.containsKey("--io-threads")) {
+            peelerArgs.put("--io-threads", "2");
+        }
+        // 如果没有指定流水线的在途字节预算，默认为 256 MiB
+        if (!peelerArgs.containsKey("--pipeline-buffer")) {
+            peelerArgs.put("--pipeline-buffer", "256");
+        }
+        // 如果没有指定区域内部并行解压的线程数，默认不并行
+        if (!peelerArgs.containsKey("--chunk-threads")) {
+            peelerArgs.put("--chunk-threads", "0");
+        }
+        // 如果没有指定虚拟线程模式下的读写并发数，默认为 256
+        if (!peelerArgs.containsKey("--io-concurrency")) {
+            peelerArgs.put("--io-concurrency", "256");
+        }
+        // 如果没有指定时间预算，默认不限制时间
+        if (!peelerArgs.containsKey("--time-budget")) {
+            peelerArgs.put("--time-budget", "0");
+        }
     }
 
     /**
@@ -0,0 +1,88 @@
+package indi.somebottle.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 在字节数组中查找字节序列的工具方法 <br>
+ * 采用 SWAR（SIMD Within A Register）的方式，一次用一个 long 比较 8 个字节：
+ * 先同时比较候选位置上的序列首字节和尾字节，两者都相等的位置才逐字节确认整个序列。
+ * <p>
+ * 注：Vector API 在 Java 8 上不可用，而本项目需要支持 Java 8，因此这里用 long 上的位运算实现。
+ */
+public class ByteSearchUtils {
+    /**
+     * 每个字节都是 0x01
+     */
+    private static final long ONES = 0x0101010101010101L;
+    /**
+     * 每个字节都是 0x7F
+     */
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * 找出 word 中和 pattern 对应字节相等的字节
+     *
+     * @param word    8 个字节
+     * @param pattern 8 个重复的目标字节
+     * @return 相等的字节最高位为 1，其余位全为 0（精确结果，不会有借位导致的误报）
+     */
+    private static long equalBytesMask(long word, long pattern) {
+        long x = word ^ pattern;
+        // 对每个字节，低 7 位加上 0x7F 后，只要有任意一位为 1，最高位就会变成 1
+        long t = (x & LOW7) + LOW7;
+        // 只有整个字节都是 0 的字节最高位才会保持为 0
+        return ~(t | x | LOW7);
+    }
+
+    /**
+     * 在 buf 的 [from, to) 范围内查找 bytesSeq 第一次完整出现的位置
+     *
+     * @param buf      字节数组
+     * @param from     起始下标（包含）
+     * @param to       结束下标（不包含）
+     * @param bytesSeq 要查找的字节序列（长度至少为 1）
+     * @return 序列起始下标，没找到时返回 -1
+     */
+    public static int indexOf(byte[] buf, int from, int to, byte[] bytesSeq) {
+        int seqLen = bytesSeq.length;
+        // 序列能够开始的最后一个位置
+        int lastStart = to - seqLen;
+        int i = from;
+        if (seqLen > 1) {
+            long firstPattern = (bytesSeq[0] & 0xFFL) * ONES;
+            long lastPattern = (bytesSeq[seqLen - 1] & 0xFFL) * ONES;
+            // 小端读取，第 k 个字节位于 long 的第 8k ~ 8k+7 位
+            ByteBuffer words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            // 每轮检查 i ~ i+7 这 8 个起始位置，需要读取 [i, i+8) 和 [i+seqLen-1, i+seqLen+7)
+            for (; i + 7 <= lastStart; i += 8) {
+                long mask = equalBytesMask(words.getLong(i), firstPattern)
+                        & equalBytesMask(words.getLong(i + seqLen - 1), lastPattern);
+                while (mask != 0) {
+                    int candidate = i + (Long.numberOfTrailingZeros(mask) >>> 3);
+                    if (matchesAt(buf, candidate, bytesSeq))
+                        return candidate;
+                    // 清除最低的一个候选位
+                    mask &= mask - 1;
+                }
+            }
+        }
+        // 剩下不足 8 个起始位置，逐个检查
+        for (; i <= lastStart; i++) {
+            if (buf[i] == bytesSeq[0] && matchesAt(buf, i, bytesSeq))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 检查 buf 中 pos 开始的字节是否就是 bytesSeq
+     */
+    private static boolean matchesAt(byte[] buf, int pos, byte[] bytesSeq) {
+        for (int j = 0; j < bytesSeq.length; j++) {
+            if (buf[pos + j] != bytesSeq[j])
+                return false;
+        }
+        return true;
+    }
+}
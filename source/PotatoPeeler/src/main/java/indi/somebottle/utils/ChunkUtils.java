@@ -1,19 +1,26 @@
 package indi.somebottle.utils;
 
+import indi.somebottle.constants.ChunkFieldConstants;
 import indi.somebottle.constants.NBTTagConstants;
 import indi.somebottle.entities.Chunk;
+import indi.somebottle.entities.ChunkData;
 import indi.somebottle.entities.IntRange;
 import indi.somebottle.exceptions.NBTFormatException;
 import indi.somebottle.exceptions.RegionFormatException;
 import indi.somebottle.exceptions.CompressionTypeUnsupportedException;
 import indi.somebottle.indexing.ChunksSpatialIndex;
+import indi.somebottle.streams.ByteArrayWindowedInputStream;
 import indi.somebottle.streams.ChunkDataInputStream;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.streams.MappedRegionFile;
+import indi.somebottle.streams.NBTSkipReader;
 import indi.somebottle.constants.DataVersionConstants;
 import indi.somebottle.versioned.ChunksDatReadHandlerFactory;
 import indi.somebottle.entities.ForcedChunksLoadResult;
 import indi.somebottle.versioned.handlers.ChunksDatReadHandler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,9 +33,9 @@ import java.util.zip.GZIPInputStream;
 public class ChunkUtils {
 
     /**
-     * 从 .mca 文件中根据偏移读出特定的区块
+     * 从 .mca 文件中根据偏移读出特定的区块，并立即解压读取其 InhabitedTime
      *
-     * @param reader                mca 文件 RandomAccessFile 对象
+     * @param regionData            内存映射的区域文件
      * @param offsetInFile          区块数据起始位置距离 Region 文件开头的偏移
      * @param sectorsOccupiedInFile 区块占用的扇区数
      * @param x                     区块在区域内的局部坐标 x（0-31）
@@ -37,34 +44,41 @@ public class ChunkUtils {
      * @param regionZ               区块所在区域的 Z 坐标
      * @return Chunk 对象
      * @throws RegionFormatException 当区块数据有误时抛出
-     * @apiNote 注意：这个方法会改变 RandomAccessFile 的指针位置
      */
-    public static Chunk readChunk(RandomAccessFile reader, long offsetInFile, int sectorsOccupiedInFile, int x, int z, int regionX, int regionZ) throws IOException {
+    public static Chunk readChunk(MappedRegionFile regionData, long offsetInFile, int sectorsOccupiedInFile, int x, int z, int regionX, int regionZ) throws IOException {
+        Chunk chunk = readChunkDescriptor(regionData, offsetInFile, sectorsOccupiedInFile, x, z, regionX, regionZ);
+        if (!chunk.isOverSized()) {
+            loadInhabitedTime(regionData, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * 从 .mca 文件中根据偏移读出特定区块的描述信息（只读取区块数据前 5 个字节，不解压）
+     *
+     * @param regionData            内存映射的区域文件
+     * @param offsetInFile          区块数据起始位置距离 Region 文件开头的偏移
+     * @param sectorsOccupiedInFile 区块占用的扇区数
+     * @param x                     区块在区域内的局部坐标 x（0-31）
+     * @param z                     区块在区域内的局部坐标 z（0-31）
+     * @param regionX               区块所在区域的 X 坐标
+     * @param regionZ               区块所在区域的 Z 坐标
+     * @return 尚未读取 InhabitedTime 的 Chunk 对象
+     * @throws RegionFormatException 当区块数据有误时抛出
+     */
+    public static Chunk readChunkDescriptor(MappedRegionFile regionData, long offsetInFile, int sectorsOccupiedInFile, int x, int z, int regionX, int regionZ) throws IOException {
         // 把区块局部坐标转换为全局坐标
         // 低 5 位为区块局部坐标，高 27 位为区域坐标
         // 参考: https://zh.minecraft.wiki/w/%E5%8C%BA%E5%9F%9F%E6%96%87%E4%BB%B6%E6%A0%BC%E5%BC%8F#%E5%8C%BA%E5%9F%9F
         int globalX = regionX << 5 | x;
         int globalZ = regionZ << 5 | z;
-        byte[] buffer = new byte[4];
-        // 先把指针移动到区块数据起始处
-        reader.seek(offsetInFile);
-        // 获得区块数据真实长度
-        // 区块数据前 4 个字节是大端存储的
-        if (reader.read(buffer, 0, 4) < 4) {
-            // 读取失败
-            throw new RegionFormatException("Chunk data error: unable to read data length of chunk (" + x + ", " + z + ")");
-        }
-        // 按大端方式转换为整数，因为有 4 个字节，而 Java 没有无符号数，这里需要用 long 进行存储
-        // long chunkDataLen = (long) (buffer[0] & 0xFF) << 24 | (long) (buffer[1] & 0xFF) << 16 | (long) (buffer[2] & 0xFF) << 8 | (long) (buffer[3] & 0xFF);
-        long chunkDataLen = NumUtils.bigEndianToLong(buffer, 4);
-        // 因为这个是从压缩方式这一个字节开始算的，因此实际数据长度还要减去 1 字节
-        chunkDataLen--;
-        // 继续读取 1 个字节，这个字节是压缩格式
-        int compressionType = reader.read();
-        if (compressionType < 0) {
+        // 区块数据前 4 个字节是大端存储的数据长度，随后 1 个字节是压缩格式
+        if (offsetInFile + 5 > regionData.size()) {
             // 读取失败
-            throw new RegionFormatException("Chunk data error: unable to read compression type of chunk (" + x + ", " + z + ")");
+            throw new RegionFormatException("Chunk data error: unable to read data length and compression type of chunk (" + x + ", " + z + ")");
         }
+        // 跳过 4 字节的数据长度，读取压缩格式
+        int compressionType = regionData.slice(offsetInFile + 4, 1).get() & 0xFF;
         /*
             数据长度超出 255 个扇区的区块，其压缩类型的最高字节会被标记为 1，此时其值会 > 128
             SomeBottle 2024.8.10
@@ -72,53 +86,190 @@ public class ChunkUtils {
                 - https://minecraft.wiki/w/Region_file_format#Payload
                 - https://zh.minecraft.wiki/w/%E5%8C%BA%E5%9F%9F%E6%96%87%E4%BB%B6%E6%A0%BC%E5%BC%8F
          */
-        if (compressionType > 128) {
-            // 对于超出 255 个扇区的区块应当设定为 overSized，且不读取其 inhabitedTime，直接返回
-            return new Chunk(globalX, globalZ, offsetInFile, sectorsOccupiedInFile, -1, true);
+        // 对于超出 255 个扇区的区块应当设定为 overSized，之后也不会读取其 inhabitedTime
+        return new Chunk(globalX, globalZ, offsetInFile, sectorsOccupiedInFile, compressionType, compressionType > 128);
+    }
+
+    /**
+     * 解压区块数据，读取 InhabitedTime 并存入 Chunk 对象
+     *
+     * @param regionData 内存映射的区域文件
+     * @param chunk      由 readChunkDescriptor 得到的 Chunk 对象，不能是 overSized 的区块
+     * @throws RegionFormatException 当区块数据有误时抛出
+     */
+    public static void loadInhabitedTime(MappedRegionFile regionData, Chunk chunk) throws IOException {
+        try (DecompressorPool pool = new DecompressorPool()) {
+            loadInhabitedTime(regionData, chunk, pool);
+        }
+    }
+
+    /**
+     * 解压区块数据，读取 InhabitedTime 并存入 Chunk 对象，解压时使用 pool 中的解压器和缓冲区
+     *
+     * @param regionData 内存映射的区域文件
+     * @param chunk      由 readChunkDescriptor 得到的 Chunk 对象，不能是 overSized 的区块
+     * @param pool       解压器池
+     * @throws RegionFormatException 当区块数据有误时抛出
+     */
+    public static void loadInhabitedTime(MappedRegionFile regionData, Chunk chunk, DecompressorPool pool) throws IOException {
+        loadChunkData(regionData, chunk, ChunkFieldConstants.INHABITED_TIME, pool);
+    }
+
+    /**
+     * 解压区块数据，在一次解压中提取 fields 指定的所有字段，存入 Chunk 对象
+     *
+     * @param regionData 内存映射的区域文件
+     * @param chunk      由 readChunkDescriptor 得到的 Chunk 对象，不能是 overSized 的区块
+     * @param fields     要提取的字段，{@link ChunkFieldConstants} 的位掩码
+     * @param pool       解压器池
+     * @throws RegionFormatException 当区块数据有误，或者要求提取 InhabitedTime 但没有找到时抛出
+     */
+    public static void loadChunkData(MappedRegionFile regionData, Chunk chunk, int fields, DecompressorPool pool) throws IOException {
+        long offsetInFile = chunk.getOffsetInFile();
+        // 直接取出区块数据起始处到文件末尾的切片，不需要 seek
+        ByteBuffer chunkBuf = regionData.slice(offsetInFile, (int) (regionData.size() - offsetInFile));
+        // 按大端方式转换为整数，因为有 4 个字节，而 Java 没有无符号数，这里需要用 long 进行存储
+        // ByteBuffer 默认就是大端序
+        long chunkDataLen = chunkBuf.getInt() & 0xFFFFFFFFL;
+        // 因为这个是从压缩方式这一个字节开始算的，因此实际数据长度还要减去 1 字节
+        chunkDataLen--;
+        // 跳过 1 个字节的压缩格式，这在 readChunkDescriptor 中已经读过了
+        chunkBuf.get();
+        // 和原先读到文件末尾为止的行为保持一致，数据长度最多到文件末尾
+        if (chunkDataLen >= 0 && chunkDataLen < chunkBuf.remaining()) {
+            chunkBuf.limit(chunkBuf.position() + (int) chunkDataLen);
         }
         try {
-            // 此处 reader 指针已经指向区块数据起始字节
-            long inhabitedTime = findInhabitedTime(reader, (int) chunkDataLen, compressionType);
-            // 构建新的区块对象
-            return new Chunk(globalX, globalZ, offsetInFile, sectorsOccupiedInFile, inhabitedTime, false);
+            // 此处 chunkBuf 的 position 已经指向区块数据起始字节
+            ChunkData data = extractChunkData(chunkBuf.slice(), chunk.getCompressionType(), fields, pool);
+            // InhabitedTime 是判断区块能否删除的依据，要求提取却没有找到时视为区块数据有误
+            if ((fields & ChunkFieldConstants.INHABITED_TIME) != 0 && !data.has(ChunkFieldConstants.INHABITED_TIME))
+                throw new NBTFormatException("InhabitedTime not found in chunk data");
+            chunk.setData(data);
         } catch (NBTFormatException | CompressionTypeUnsupportedException e) {
-            // 发生 NBTFormatException 后加上区块坐标信息
-            throw new RegionFormatException(e.getMessage() + " in chunk (" + x + ", " + z + ")");
+            // 发生 NBTFormatException 后加上区块坐标信息（局部坐标）
+            throw new RegionFormatException(e.getMessage() + " in chunk (" + (chunk.getGlobalX() & 31) + ", " + (chunk.getGlobalZ() & 31) + ")");
         }
     }
 
     /**
      * 解压并读取区块的 InhabitedTime 数据
      *
-     * @param chunkReader     区块文件读取 RandomAccessFile
-     * @param dataLen         最多读取多少数据长度（记得去掉“压缩方式”占用的一个字节）
+     * @param payload         区块的（压缩）数据切片，不包括“数据长度”和“压缩方式”这 5 个字节
      * @param compressionType 压缩类型
      * @return 读取出的 InhabitedTime 数据（Long）
      * @throws IOException                         如果读取失败会抛出此异常
      * @throws NBTFormatException                  当区块数据有误，读取不到 InhabitedTime 时抛出
      * @throws CompressionTypeUnsupportedException 如果压缩类型不支持会抛出此异常
-     * @apiNote 调用前，请把 chunkReader 指针移动到开始读取的位置。注意，读取完毕后 chunkReader 指针应该在读取的最后一个字节处。
      */
-    public static long findInhabitedTime(RandomAccessFile chunkReader, int dataLen, int compressionType) throws IOException, CompressionTypeUnsupportedException {
-        // 其实可以读取 nbt 文件的二进制流，找到指定的字节，虽然标签没有明显的头部和尾部标记，但是要找到 InhabitedTime 这个 Long 标签还是不难的
-        try (ChunkDataInputStream cdis = new ChunkDataInputStream(chunkReader, dataLen, compressionType)) {
-            if (IOUtils.findAndSkipBytes(cdis, NBTTagConstants.INHABITED_TIME_TAG_BIN)) {
-                // 如果找到了标签名，便接着读取后 8 个字节
-                // 注意 nbt Long 标签值是有符号数，因此用 long 存储
-                byte[] numBuf = new byte[8];
-                if (cdis.read(numBuf) == 8) {
-                    // 正好读入了 8 字节，按大端序进行转换
-                    // 虽然只有 8 个字节，但不用担心会变成负数
-                    // InhabitedTime 怎么也不可能这么大
-                    return NumUtils.bigEndianToLong(numBuf, 8);
-                } else {
-                    // 否则读取失败
-                    throw new NBTFormatException("InhabitedTime was found, but no enough bytes to read");
-                }
+    public static long findInhabitedTime(ByteBuffer payload, int compressionType) throws IOException, CompressionTypeUnsupportedException {
+        try (DecompressorPool pool = new DecompressorPool()) {
+            return findInhabitedTime(payload, compressionType, pool);
+        }
+    }
+
+    /**
+     * 解压并读取区块的 InhabitedTime 数据，解压时使用 pool 中的解压器和缓冲区
+     *
+     * @param payload         区块的（压缩）数据切片，不包括“数据长度”和“压缩方式”这 5 个字节
+     * @param compressionType 压缩类型
+     * @param pool            解压器池
+     * @return 读取出的 InhabitedTime 数据（Long）
+     * @throws IOException                         如果读取失败会抛出此异常
+     * @throws NBTFormatException                  当区块数据有误，读取不到 InhabitedTime 时抛出
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持会抛出此异常
+     */
+    public static long findInhabitedTime(ByteBuffer payload, int compressionType, DecompressorPool pool) throws IOException, CompressionTypeUnsupportedException {
+        ChunkData data = extractChunkData(payload, compressionType, ChunkFieldConstants.INHABITED_TIME, pool);
+        if (!data.has(ChunkFieldConstants.INHABITED_TIME)) {
+            // 没有找到
+            throw new NBTFormatException("InhabitedTime not found in chunk data");
+        }
+        return data.getInhabitedTime();
+    }
+
+    /**
+     * 解压区块数据，在一次解压中提取 fields 指定的所有字段 <br>
+     * 提取到所有指定字段后就不再继续解压；区块中不存在的字段不会被设置（{@link ChunkData#has(int)} 为 false）。
+     *
+     * @param payload         区块的（压缩）数据切片，不包括“数据长度”和“压缩方式”这 5 个字节
+     * @param compressionType 压缩类型
+     * @param fields          要提取的字段，{@link ChunkFieldConstants} 的位掩码
+     * @param pool            解压器池
+     * @return 提取出的字段
+     * @throws IOException                         如果读取失败会抛出此异常
+     * @throws NBTFormatException                  当区块 NBT 结构有误时抛出
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持会抛出此异常
+     */
+    public static ChunkData extractChunkData(ByteBuffer payload, int compressionType, int fields, DecompressorPool pool) throws IOException, CompressionTypeUnsupportedException {
+        /*
+         * 以前是在解压后的二进制流中直接查找 InhabitedTime 标签对应的字节序列，
+         * 这样需要检查 InhabitedTime 之前的每一个字节（包括 sections 中很长的 BlockStates 等数组），而且字符串内容中如果恰好有这段字节也会误匹配。
+         * 现在按 NBT 结构遍历根复合标签，数组、字符串和列表都按声明的长度直接跳过。
+         */
+        ChunkData data = new ChunkData();
+        try (ChunkDataInputStream cdis = new ChunkDataInputStream(payload, compressionType, pool)) {
+            NBTSkipReader reader = new NBTSkipReader(cdis);
+            // 根标签必须是一个复合标签
+            if (reader.readTagType() != NBTTagConstants.TAG_COMPOUND)
+                throw new NBTFormatException("Root tag of chunk data is not a compound");
+            reader.skipName();
+            extractFieldsInCompound(reader, fields, data, true);
+            data.setBytesDecompressed(cdis.getBytesInflated());
+        }
+        return data;
+    }
+
+    /**
+     * 在复合标签中提取字段 <br>
+     * - 1.18（21w43a）及之后，字段都位于根标签下，方块实体列表名为 block_entities <br>
+     * - 在此之前，区块数据包裹在根标签下的 Level 复合标签中（DataVersion 除外），方块实体列表名为 TileEntities
+     *
+     * @param reader NBT 阅读器，下一个读取的是复合标签的第一个子标签类型
+     * @param fields 要提取的字段
+     * @param data   提取结果
+     * @param isRoot 是否是根复合标签（只有根标签下才需要处理 DataVersion 和 Level）
+     * @return 是否已经提取到了所有字段（此时复合标签可能还没读取完毕）
+     * @throws IOException 读取失败或者 NBT 结构有误时抛出
+     */
+    private static boolean extractFieldsInCompound(NBTSkipReader reader, int fields, ChunkData data, boolean isRoot) throws IOException {
+        int type;
+        while ((type = reader.readTagType()) != NBTTagConstants.TAG_END) {
+            reader.readName();
+            if (type == NBTTagConstants.TAG_LONG && reader.nameEquals(NBTTagConstants.INHABITED_TIME_NAME)
+                    && (fields & ChunkFieldConstants.INHABITED_TIME) != 0) {
+                data.setInhabitedTime(reader.readLong());
+            } else if (type == NBTTagConstants.TAG_LONG && reader.nameEquals(NBTTagConstants.LAST_UPDATE_NAME)
+                    && (fields & ChunkFieldConstants.LAST_UPDATE) != 0) {
+                data.setLastUpdate(reader.readLong());
+            } else if (type == NBTTagConstants.TAG_STRING && reader.nameEquals(NBTTagConstants.STATUS_NAME)
+                    && (fields & ChunkFieldConstants.STATUS) != 0) {
+                // 状态只有少数几种取值，驻留后各区块共用同一个字符串
+                data.setStatus(reader.readString().intern());
+            } else if (type == NBTTagConstants.TAG_LIST
+                    && (reader.nameEquals(NBTTagConstants.BLOCK_ENTITIES_NAME) || reader.nameEquals(NBTTagConstants.TILE_ENTITIES_NAME))
+                    && (fields & ChunkFieldConstants.BLOCK_ENTITY_COUNT) != 0) {
+                data.setBlockEntityCount(reader.skipListPayload());
+            } else if (isRoot && type == NBTTagConstants.TAG_INT && reader.nameEquals(NBTTagConstants.DATA_VERSION_NAME)) {
+                // 无论是否要求提取，DataVersion 都需要用来判断区块数据的结构
+                data.setDataVersion(reader.readInt());
+            } else if (isRoot && type == NBTTagConstants.TAG_COMPOUND && reader.nameEquals(NBTTagConstants.LEVEL_NAME)
+                    && (!data.has(ChunkFieldConstants.DATA_VERSION) || data.getDataVersion() < DataVersionConstants.DATA_VERSION_21W43A)) {
+                // 旧版本区块数据在 Level 中（DataVersion 如果出现在 Level 之后，这里还是未知的，也进入查找）
+                if (extractFieldsInCompound(reader, fields, data, false))
+                    return true;
+                continue;
+            } else {
+                // 其余标签整体跳过
+                reader.skipPayload(type);
+                continue;
+            }
+            if (data.has(fields)) {
+                // 所有字段都提取到了，后面的数据就不用再读了
+                return true;
             }
         }
-        // 没有找到
-        throw new NBTFormatException("InhabitedTime not found in chunk data");
+        return false;
     }
 
 
@@ -202,7 +353,8 @@ public class ChunkUtils {
             }
             decompressedData = baos.toByteArray();
         }
-        InputStream bais = new ByteArrayInputStream(decompressedData);
+        // 整个文件已经解压在内存中，作为一个窗口直接查找
+        InputStream bais = new ByteArrayWindowedInputStream(decompressedData, 0, decompressedData.length);
         // 根据 wiki，如果没有 DataVersion 字段，默认为 1343（JE 1.12.2）
         int dataVersion = DataVersionConstants.DATA_VERSION_1_12_2;
         if (IOUtils.findAndSkipBytes(bais, NBTTagConstants.DATA_VERSION_TAG_BIN)) {
@@ -1,7 +1,21 @@
 package indi.somebottle.utils;
 
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.streams.WindowedInputStream;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * 和文件 I/O 相关的工具方法
@@ -19,6 +33,10 @@ public class IOUtils {
      * @apiNote 使用此方法时需要保证 bytesSeq 中<b>没有任何相等前后缀序列</b>（由 KMP 算法性质决定）
      */
     public static boolean findAndSkipBytes(InputStream is, byte[] bytesSeq) throws IOException {
+        if (is instanceof WindowedInputStream) {
+            // 按窗口提供数据的流可以直接在窗口上批量查找
+            return ((WindowedInputStream) is).findAndSkip(bytesSeq);
+        }
         // 用于进行字节匹配的指针
         int searchPtr = 0;
         int byteRead;
@@ -42,4 +60,164 @@ public class IOUtils {
         }
         return false;
     }
+
+    /**
+     * 从输入流中读取 len 个字节到 buf 开头，直到读满或者流结束
+     *
+     * @param is  输入流
+     * @param buf 缓冲区
+     * @param len 要读取的字节数
+     * @return 实际读取的字节数，小于 len 说明流已经结束
+     * @throws IOException 读取出现异常时抛出
+     */
+    public static int readFully(InputStream is, byte[] buf, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = is.read(buf, total, len - total);
+            if (n == -1)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * 在 target 处生成一份和 source 内容相同的文件 <br>
+     * allowHardLink 为 true 时优先创建硬链接，不占用额外空间；文件系统不支持（或跨设备）时退回到复制。<br>
+     * 复制使用 Files.copy，较新的 JDK 在 Linux 上会先尝试 reflink（FICLONE）克隆，Btrfs、XFS 等文件系统上几乎不产生额外写入。
+     *
+     * @param source        源文件
+     * @param target        目标文件（不能已经存在）
+     * @param allowHardLink 是否允许创建硬链接
+     * @return 是否创建的是硬链接
+     * @throws IOException 链接和复制都失败时抛出
+     * @apiNote 硬链接和源文件共享同一份数据，之后修改其中任意一个，另一个也会跟着变化
+     */
+    public static boolean linkOrCopy(Path source, Path target, boolean allowHardLink) throws IOException {
+        if (allowHardLink) {
+            try {
+                Files.createLink(target, source);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                // 不支持硬链接，退回到复制
+                GlobalLogger.fine("Unable to create hard link " + target + ", falling back to copy: " + e.getMessage());
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        return false;
+    }
+
+    /**
+     * 用 source 原子地替换 target（同一目录下重命名） <br>
+     * 文件系统不支持原子重命名时退回到普通的替换。
+     *
+     * @param source 新文件
+     * @param target 要替换的文件
+     * @throws IOException 重命名失败时抛出，此时 target 保持不变
+     */
+    public static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 尽力把目录项的变化（文件的创建、删除、重命名）刷到磁盘上 <br>
+     * 在 Linux 等系统上可以通过对目录本身 fsync 实现；Windows 上无法以这种方式打开目录，此时静默忽略。
+     *
+     * @param directory 目录
+     */
+    public static void forceDirectory(File directory) {
+        if (directory == null)
+            return;
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // 平台不支持，交给文件系统自行处理
+        }
+    }
+
+    /**
+     * 尽力把整个文件读入操作系统的页缓存 <br>
+     * 通过内存映射后逐页访问（MappedByteBuffer#load）实现，数据不经过 Java 堆，之后再读取（或映射）这个文件时不再需要等待磁盘。
+     * 失败时静默忽略，之后照常从磁盘读取即可。
+     *
+     * @param file 文件
+     */
+    public static void prefetch(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE)
+                return;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.load();
+            unmap(buffer);
+        } catch (IOException ignored) {
+            // 预读只是优化
+        }
+    }
+
+    /**
+     * 用 FileChannel#read 把整个文件读入 buffer，buffer 放不下时换一个足够大的直接缓冲区 <br>
+     * 和内存映射不同，读取在 read 系统调用中完成，之后访问数据不会再因为缺页而阻塞。
+     *
+     * @param file   文件
+     * @param buffer 用来装文件内容的缓冲区，可以为 null
+     * @return 装有文件内容的缓冲区（position 为 0，limit 为读到的字节数），可能不是传入的 buffer
+     * @throws IOException 读取失败或者文件超过 2 GiB 时抛出
+     */
+    public static ByteBuffer readFile(File file, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File " + file + " is too large (" + size + " bytes) to be read into memory.");
+            if (buffer == null || buffer.capacity() < size)
+                buffer = ByteBuffer.allocateDirect((int) size);
+            buffer.clear();
+            buffer.limit((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // 读满为止，文件在此期间变短时读到末尾就停下
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * 尽力解除 MappedByteBuffer 的内存映射 <br>
+     * JDK 没有提供公开的解除映射 API，映射要等到缓冲区被 GC 回收才会解除。在 Windows 上映射存在期间文件无法被重命名、删除或截断，因此这里通过反射主动解除映射。<br>
+     * - Java 9 及之后：sun.misc.Unsafe#invokeCleaner <br>
+     * - Java 8：DirectBuffer#cleaner().clean()
+     *
+     * @param buffer 要解除映射的缓冲区
+     * @apiNote 解除映射后再访问这个缓冲区（及其切片）会导致 JVM 崩溃，调用方必须保证之后不再使用它。解除失败时静默忽略，等待 GC 回收即可。
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Throwable ignored) {
+            // 可能是 Java 8，继续尝试下面的方法
+        }
+        try {
+            // Java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Throwable ignored) {
+            // 解除失败则交给 GC
+        }
+    }
 }
@@ -0,0 +1,101 @@
+package indi.somebottle.utils;
+
+import indi.somebottle.entities.ManifestEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 此类是用于读取任务清单（--manifest）的工具类
+ */
+public class ManifestUtils {
+    /**
+     * 从任务清单文件中读取要处理的世界 <br>
+     * 支持类似 .gitignore 的 # 注释，每行一个世界，形如： <br>
+     * world/path[,min-inhabited=ticks][,output=output/path][,priority=weight] <br>
+     * 没有指定 min-inhabited 的世界使用 defaultMinInhabited。
+     *
+     * @param manifestFile        清单文件 File 对象
+     * @param defaultMinInhabited 默认的 InhabitedTime 阈值
+     * @return 清单中的世界，顺序和文件中一致
+     * @throws IOException 文件读取出错或者格式错误时抛出
+     */
+    public static List<ManifestEntry> readManifest(File manifestFile, long defaultMinInhabited) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        Set<String> worldPaths = new HashSet<>();
+        long lineCnt = 0; // 记录行号，方便定位错误
+        String line;
+        try (
+                FileReader fr = new FileReader(manifestFile);
+                BufferedReader br = new BufferedReader(fr)
+        ) {
+            while ((line = br.readLine()) != null) {
+                lineCnt++;
+                // 可能有行内注释，用 # 开头，忽略 # 之后的部分即可
+                line = line.split("#")[0].trim();
+                // 跳过空行
+                if (line.isEmpty())
+                    continue;
+                try {
+                    ManifestEntry entry = parseEntry(line, defaultMinInhabited);
+                    // 同一个世界不能出现两次，否则会被同时处理
+                    if (!worldPaths.add(new File(entry.worldPath).getAbsolutePath()))
+                        throw new IOException("Duplicate world '" + entry.worldPath + "'");
+                    entries.add(entry);
+                } catch (Exception e) {
+                    // 在头部加上行号再抛出
+                    throw new IOException("(" + manifestFile.getAbsolutePath() + " format error) Line " + lineCnt + ": " + e.getMessage() + ": Invalid line here: '" + line + "'");
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 解析清单中的一行
+     *
+     * @param line                去除注释和首尾空白后的一行
+     * @param defaultMinInhabited 默认的 InhabitedTime 阈值
+     * @return 清单项
+     * @throws IOException           格式错误时抛出
+     * @throws NumberFormatException 数字无法解析时抛出
+     */
+    private static ManifestEntry parseEntry(String line, long defaultMinInhabited) throws IOException {
+        String[] parts = line.split(",");
+        ManifestEntry entry = new ManifestEntry();
+        entry.worldPath = parts[0].trim();
+        entry.minInhabited = defaultMinInhabited;
+        if (entry.worldPath.isEmpty())
+            throw new IOException("World path is empty");
+        for (int i = 1; i < parts.length; i++) {
+            String[] kv = parts[i].split("=", 2);
+            if (kv.length != 2)
+                throw new IOException("Expected key=value, got '" + parts[i].trim() + "'");
+            String value = kv[1].trim();
+            switch (kv[0].trim()) {
+                case "min-inhabited":
+                    entry.minInhabited = Long.parseLong(value);
+                    if (entry.minInhabited < 0)
+                        throw new IOException("min-inhabited must be >= 0");
+                    break;
+                case "output":
+                    entry.outputPath = value;
+                    break;
+                case "priority":
+                    entry.priority = Integer.parseInt(value);
+                    if (entry.priority < 1)
+                        throw new IOException("priority must be >= 1");
+                    break;
+                default:
+                    throw new IOException("Unknown key '" + kv[0].trim() + "'");
+            }
+        }
+        return entry;
+    }
+}
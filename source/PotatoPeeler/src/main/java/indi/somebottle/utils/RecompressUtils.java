@@ -0,0 +1,142 @@
+package indi.somebottle.utils;
+
+import indi.somebottle.entities.Chunk;
+import indi.somebottle.entities.RecompressPolicy;
+import indi.somebottle.entities.Region;
+import indi.somebottle.exceptions.CompressionTypeUnsupportedException;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.streams.ByteBufferInputStream;
+import indi.somebottle.streams.DecompressedInputStreamFactory;
+import indi.somebottle.streams.MappedRegionFile;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 对保留下来的区块重新压缩的工具方法 <br>
+ * 重新压缩只在重写区域文件前进行，结果存放在 {@link Chunk#setRewrittenData(ByteBuffer)} 中，写入时代替原数据。
+ */
+public class RecompressUtils {
+    /**
+     * 按策略重新压缩区域中保留的区块 <br>
+     * 改用 Zlib 的区块只有少占至少一个扇区时才会被替换；改用 LZ4 是为了加载更快，不多占扇区就会被替换。其余区块保持原样。
+     * 区块在调用线程中逐个处理，多个区域之间本来就由多个工作线程并行处理。
+     *
+     * @param region     区域对象（区块已经完成删除标记）
+     * @param regionFile 区域 .mca 文件对象，从中读取区块原数据
+     * @param policy     重新压缩策略
+     * @return 被重新压缩的区块数
+     * @throws IOException 区域文件无法打开时抛出
+     */
+    public static int recompressChunks(Region region, File regionFile, RecompressPolicy policy) throws IOException {
+        List<Chunk> candidates = new ArrayList<>();
+        for (Chunk chunk : region.getExistingChunks()) {
+            if (policy.targetCompressionType(chunk) != 0)
+                candidates.add(chunk);
+        }
+        if (candidates.isEmpty())
+            return 0;
+        int recompressed = 0;
+        try (MappedRegionFile regionData = new MappedRegionFile(regionFile)) {
+            for (Chunk chunk : candidates) {
+                try {
+                    if (recompressChunk(regionData, chunk, policy.targetCompressionType(chunk), policy.zlibLevel()))
+                        recompressed++;
+                } catch (IOException | CompressionTypeUnsupportedException e) {
+                    // 重新压缩失败的区块保持原样
+                    GlobalLogger.fine("Failed to recompress chunk at (" + chunk.getGlobalX() + "," + chunk.getGlobalZ() + ") in " + regionFile.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return recompressed;
+    }
+
+    /**
+     * 把单个区块重新压缩为 targetType
+     *
+     * @param regionData 内存映射的区域文件
+     * @param chunk      区块对象
+     * @param targetType 目标压缩类型（2: Zlib，4: LZ4）
+     * @param zlibLevel  Zlib 压缩级别
+     * @return 是否替换了区块数据（改用 Zlib 时新数据没有少占扇区、改用 LZ4 时新数据多占了扇区都不替换）
+     * @throws IOException                         读取或压缩失败时抛出
+     * @throws CompressionTypeUnsupportedException 原压缩类型不支持时抛出
+     */
+    private static boolean recompressChunk(MappedRegionFile regionData, Chunk chunk, int targetType, int zlibLevel) throws IOException, CompressionTypeUnsupportedException {
+        int sectorBytes = (int) (RegionUtils.REGION_FILE_SECTOR_SIZE * chunk.getSectorsOccupiedInFile());
+        ByteBuffer chunkBuf = regionData.slice(chunk.getOffsetInFile(), sectorBytes);
+        // 数据长度从压缩类型这一个字节算起
+        int payloadLen = chunkBuf.getInt() - 1;
+        chunkBuf.get();
+        if (payloadLen < 0 || payloadLen > chunkBuf.remaining())
+            throw new IOException("chunk data length out of range");
+        chunkBuf.limit(chunkBuf.position() + payloadLen);
+        // 完整解压出 NBT 数据
+        byte[] nbt;
+        try (InputStream is = DecompressedInputStreamFactory.getStream(chunk.getCompressionType(), new ByteBufferInputStream(chunkBuf.slice()))) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(payloadLen * 4);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                raw.write(buf, 0, n);
+            }
+            nbt = raw.toByteArray();
+        }
+        byte[] compressed = compress(nbt, targetType, zlibLevel);
+        // 4 字节长度 + 1 字节压缩类型 + 数据，补齐到扇区的整数倍
+        int recordLen = 5 + compressed.length;
+        int sectors = (int) ((recordLen + RegionUtils.REGION_FILE_SECTOR_SIZE - 1) / RegionUtils.REGION_FILE_SECTOR_SIZE);
+        // LZ4 的输出几乎总是比 Zlib 大，要求它省下扇区的话这条规则基本不会生效；它是为了加载更快，不多占扇区就值得替换
+        int maxSectors = targetType == RecompressPolicy.COMPRESSION_LZ4 ? chunk.getSectorsOccupiedInFile() : chunk.getSectorsOccupiedInFile() - 1;
+        if (sectors > maxSectors) {
+            // Zlib 省不下一个扇区，或者 LZ4 要多占扇区，没有必要替换
+            return false;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) (sectors * RegionUtils.REGION_FILE_SECTOR_SIZE));
+        record.putInt(compressed.length + 1);
+        record.put((byte) targetType);
+        record.put(compressed);
+        record.clear();
+        chunk.setRewrittenData(record);
+        return true;
+    }
+
+    /**
+     * 以指定的区块压缩类型压缩数据
+     *
+     * @param data      未压缩的数据
+     * @param type      压缩类型（2: Zlib，4: LZ4）
+     * @param zlibLevel Zlib 压缩级别
+     * @return 压缩后的数据
+     * @throws IOException 压缩失败或者类型不支持时抛出
+     */
+    static byte[] compress(byte[] data, int type, int zlibLevel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        if (type == RecompressPolicy.COMPRESSION_ZLIB) {
+            Deflater deflater = new Deflater(zlibLevel);
+            try (OutputStream os = new DeflaterOutputStream(out, deflater)) {
+                os.write(data);
+            } finally {
+                // 自行传入的 Deflater 需要手动释放 native 内存
+                deflater.end();
+            }
+        } else if (type == RecompressPolicy.COMPRESSION_LZ4) {
+            // 和原版一致：默认 64 KiB 的块，快速压缩器，XXHash32 校验
+            try (OutputStream os = new LZ4BlockOutputStream(out)) {
+                os.write(data);
+            }
+        } else {
+            throw new IOException("Unsupported target compression type: " + type);
+        }
+        return out.toByteArray();
+    }
+}
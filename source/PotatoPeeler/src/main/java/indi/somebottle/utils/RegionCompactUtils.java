@@ -0,0 +1,677 @@
+package indi.somebottle.utils;
+
+import indi.somebottle.entities.Chunk;
+import indi.somebottle.entities.Region;
+import indi.somebottle.entities.RegionHeader;
+import indi.somebottle.exceptions.RegionFormatException;
+import indi.somebottle.logger.GlobalLogger;
+import indi.somebottle.streams.MappedRegionFile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 原地压实区域文件的工具方法 <br>
+ * 第一个被释放的扇区之前的区块原地不动，只把之后的区块依次往前挪，然后写入新的头部并截断文件，不再整份重写区域文件。
+ * <p>
+ * 为了在任何一步崩溃后都能恢复，修改区域文件之前会先写一份重做日志（r.x.z.mca.journal），
+ * 其中包含新的头部、所有搬移操作，以及重新压缩过的区块的新数据。
+ * 日志会在下次处理这个区域文件时（或者本次失败后立即）被重放，重放是幂等的。
+ * <p>
+ * 搬移按窗口进行：每个窗口开始前只把本窗口会覆盖、但还没读取的源数据暂存到日志末尾的暂存区，
+ * 窗口完成并落盘后记录进度，下一个窗口复用同一块暂存区。暂存的数据量受窗口开头空出来的间隙限制，
+ * 和要搬移的数据量无关，代价是每个窗口要刷三次盘，窗口太多时改为整份重写（见 {@link #isWorthCompactingInPlace}）。
+ */
+public class RegionCompactUtils {
+    /**
+     * 重做日志文件的后缀
+     */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * 重新排列区块时临时文件的后缀
+     */
+    public static final String RELAYOUT_SUFFIX = ".relayout";
+
+    /**
+     * 原地压实最多允许的窗口数，超过时整份重写区域文件
+     */
+    public static final int MAX_IN_PLACE_WINDOWS = 8;
+
+    /**
+     * 日志文件魔数 "PPJ2"
+     */
+    private static final int JOURNAL_MAGIC = 0x50504A32;
+
+    /**
+     * 日志固定头部的大小 <br>
+     * 魔数(4) + 已完成的搬移数(4) + 搬移数(4) + 压实后的文件大小(8) + 日志体 CRC32(4) + 日志体长度(8)
+     * + 暂存区所属窗口的第一个搬移(4) + 暂存数据 CRC32(4)
+     */
+    private static final int JOURNAL_FIXED_SIZE = 40;
+
+    /**
+     * 日志固定头部中“已完成的搬移数”字段的位置，会在每个窗口完成后原地更新
+     */
+    private static final int COMPLETED_MOVES_POS = 4;
+
+    /**
+     * 日志固定头部中暂存区信息（所属窗口 + CRC32）的位置，会在每个窗口开始前原地更新
+     */
+    private static final int STASH_WINDOW_POS = 32;
+
+    /**
+     * 每条搬移记录的大小：源偏移(8) + 目标偏移(8) + 长度(4) + 新数据在日志中的偏移(8)
+     */
+    private static final int MOVE_RECORD_SIZE = 28;
+
+    /**
+     * 搬移数据时使用的缓冲区大小
+     */
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 一次区块数据的搬移操作
+     */
+    private static final class Move {
+        final long source;
+        final long target;
+        final int length;
+        /**
+         * 重新压缩过的区块的新数据在日志中的位置，-1 表示照搬源数据
+         */
+        long dataPosition = -1;
+        /**
+         * 重新压缩过的区块的新数据，null 表示照搬源数据
+         */
+        ByteBuffer data;
+
+        Move(long source, long target, int length) {
+            this.source = source;
+            this.target = target;
+            this.length = length;
+        }
+
+        /**
+         * 源区间中落在窗口目标范围内的那一段，窗口搬到一半崩溃会毁掉这段源数据，需要先暂存到日志中 <br>
+         * 源区间从前往后排列，这一段总是源区间的开头部分。新数据已经在日志里，不需要暂存。
+         *
+         * @param targetEnd 窗口中所有搬移的目标区间的最远终点
+         * @return 需要暂存的字节数
+         */
+        int stashLength(long targetEnd) {
+            if (data != null || dataPosition >= 0)
+                return 0;
+            return (int) Math.max(0, Math.min(length, targetEnd - source));
+        }
+    }
+
+    /**
+     * 压实计划
+     */
+    private static final class Plan {
+        final ByteBuffer header; // 新的 8 KiB 头部
+        final Move[] moves; // 搬移操作，按源偏移升序排列
+        final long newFileSize; // 压实后的文件大小
+
+        Plan(ByteBuffer header, Move[] moves, long newFileSize) {
+            this.header = header;
+            this.moves = moves;
+            this.newFileSize = newFileSize;
+        }
+    }
+
+    /**
+     * 获得区域文件对应的重做日志文件
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @return 日志文件对象（不一定存在）
+     */
+    public static File getJournalFile(File regionFile) {
+        return new File(regionFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * 获得重新排列区块时使用的临时文件
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @return 临时文件对象（不一定存在）
+     */
+    public static File getRelayoutFile(File regionFile) {
+        return new File(regionFile.getPath() + RELAYOUT_SUFFIX);
+    }
+
+    /**
+     * 按 layout 重新排列区域文件中保留的区块 <br>
+     * 改变区块的先后顺序没法在原文件内安全地搬移完成，因此先把新文件完整写到临时文件并刷盘，再以原子重命名替换原文件。
+     * 任何一步失败时原文件都保持不变，残留的临时文件可以直接删除。
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @param layout     区块的排列方式，见 {@link indi.somebottle.constants.ChunkLayoutConstants}
+     * @return 重新排列后的文件大小（字节）
+     * @throws IOException IO 异常
+     */
+    public static long relayoutRegion(Region region, File regionFile, int layout) throws IOException {
+        File tempFile = getRelayoutFile(regionFile);
+        try {
+            long bytesWrite = writeRelayoutFile(region, regionFile, layout);
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            IOUtils.replaceFile(tempFile, regionFile);
+            IOUtils.forceDirectory(regionFile.getAbsoluteFile().getParentFile());
+            return bytesWrite;
+        } finally {
+            // 成功时临时文件已经被重命名，失败时清理残留
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * 按 layout 把区域文件重新排列后写到临时文件（{@link #getRelayoutFile(File)}），不刷盘，也不替换原文件 <br>
+     * 调用方负责在临时文件落盘后用它替换原文件（比如交给 {@link indi.somebottle.tasks.DurabilityBarrier} 成批处理）。
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @param layout     区块的排列方式，见 {@link indi.somebottle.constants.ChunkLayoutConstants}
+     * @return 重新排列后的文件大小（字节）
+     * @throws IOException IO 异常，此时临时文件已被删除，原文件保持不变
+     */
+    public static long writeRelayoutFile(Region region, File regionFile, int layout) throws IOException {
+        File tempFile = getRelayoutFile(regionFile);
+        try {
+            return RegionUtils.writeRegion(region, regionFile, tempFile, false, layout);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * 判断原地压实是否比整份重写区域文件更划算 <br>
+     * 原地压实要写入搬移的数据和每个窗口暂存的源数据，每个窗口还要刷三次盘；
+     * 间隙很小而后面要搬移的数据很多时窗口会非常多，此时应该改为整份重写（见 {@link #relayoutRegion}）。
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @return 窗口数不超过 {@link #MAX_IN_PLACE_WINDOWS}，且写入量不超过压实后的文件大小时返回 true
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出
+     */
+    public static boolean isWorthCompactingInPlace(Region region, File regionFile) throws IOException {
+        Plan plan = planCompaction(region, regionFile, regionFile.length());
+        Move[] moves = plan.moves;
+        int windows = 0;
+        long bytesWrite = 0;
+        for (int start = 0, end; start < moves.length; start = end) {
+            end = windowEnd(moves, start);
+            windows++;
+            bytesWrite += stashSize(moves, start, end);
+            for (int i = start; i < end; i++)
+                bytesWrite += moves[i].length;
+        }
+        return windows <= MAX_IN_PLACE_WINDOWS && bytesWrite <= plan.newFileSize;
+    }
+
+    /**
+     * 原地压实区域文件，被标记为 deleted 的区块占用的扇区会被回收
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象（即读出 region 的那个文件）
+     * @return 压实后的文件大小（字节）
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出，此时区域文件不会被修改
+     * @throws IOException           IO 异常。如果日志已经写好，区域文件可能处于搬移了一半的状态，需要调用 {@link #replayJournal(File)} 恢复
+     */
+    public static long compactRegion(Region region, File regionFile) throws IOException {
+        return compactRegion(region, regionFile, false);
+    }
+
+    /**
+     * 原地压实区域文件，被标记为 deleted 的区块占用的扇区会被回收
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象（即读出 region 的那个文件）
+     * @param deferSync  为 true 时写入新头部并截断后不再刷盘，也不删除日志，交给调用方在文件落盘后删除日志（见 {@link #replayJournal(File, boolean)}）
+     * @return 压实后的文件大小（字节）
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出，此时区域文件不会被修改
+     * @throws IOException           IO 异常。如果日志已经写好，区域文件可能处于搬移了一半的状态，需要调用 {@link #replayJournal(File)} 恢复
+     */
+    public static long compactRegion(Region region, File regionFile, boolean deferSync) throws IOException {
+        return compactRegion(region, regionFile, deferSync, true);
+    }
+
+    /**
+     * 原地压实区域文件，被标记为 deleted 的区块占用的扇区会被回收
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象（即读出 region 的那个文件）
+     * @param deferSync  为 true 时写入新头部并截断后不再刷盘，也不删除日志，交给调用方在文件落盘后删除日志（见 {@link #replayJournal(File, boolean)}）
+     * @param sync       为 false 时不做任何刷盘（包括日志和每个窗口的刷盘），只能在进程崩溃后恢复，断电后无法保证
+     * @return 压实后的文件大小（字节）
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出，此时区域文件不会被修改
+     * @throws IOException           IO 异常。如果日志已经写好，区域文件可能处于搬移了一半的状态，需要调用 {@link #replayJournal(File)} 恢复
+     */
+    public static long compactRegion(Region region, File regionFile, boolean deferSync, boolean sync) throws IOException {
+        prepareCompaction(region, regionFile, sync);
+        replayJournal(regionFile, deferSync, sync);
+        return regionFile.length();
+    }
+
+    /**
+     * 规划压实操作并写好重做日志，但不修改区域文件 <br>
+     * 方法返回时日志已经刷到磁盘上，之后对区域文件的修改都可以通过重放日志完成。
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @return 日志文件对象
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出
+     * @throws IOException           IO 异常
+     */
+    public static File prepareCompaction(Region region, File regionFile) throws IOException {
+        return prepareCompaction(region, regionFile, true);
+    }
+
+    /**
+     * 规划压实操作并写好重做日志，但不修改区域文件
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @param sync       是否把日志刷到磁盘上
+     * @return 日志文件对象
+     * @throws IOException IO 异常
+     */
+    private static File prepareCompaction(Region region, File regionFile, boolean sync) throws IOException {
+        File journalFile = getJournalFile(regionFile);
+        try (FileChannel regionChannel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ)) {
+            Plan plan = planCompaction(region, regionFile, regionChannel.size());
+            writeJournal(journalFile, regionChannel, plan, sync);
+        }
+        return journalFile;
+    }
+
+    /**
+     * 规划压实后的新布局：新的头部，以及按源偏移升序排列的搬移操作
+     *
+     * @param region     区域对象
+     * @param regionFile 区域 .mca 文件对象
+     * @param regionSize 区域文件当前的大小
+     * @return 压实计划
+     * @throws RegionFormatException 区块数据超出文件范围或者区块之间相互重叠时抛出
+     */
+    private static Plan planCompaction(Region region, File regionFile, long regionSize) throws RegionFormatException {
+        // 保留下来的区块按在文件中的位置排序
+        List<Chunk> retainedChunks = new ArrayList<>();
+        for (Chunk chunk : region.getExistingChunks()) {
+            if (!chunk.isDeleteFlag())
+                retainedChunks.add(chunk);
+        }
+        retainedChunks.sort((a, b) -> Long.compare(a.getOffsetInFile(), b.getOffsetInFile()));
+        ByteBuffer header = ByteBuffer.allocate(MappedRegionFile.HEADER_SIZE);
+        List<Move> moves = new ArrayList<>();
+        long cursor = MappedRegionFile.HEADER_SIZE; // 下一个区块在新布局中的起始字节
+        for (Chunk chunk : retainedChunks) {
+            long offset = chunk.getOffsetInFile();
+            int length = (int) (RegionUtils.REGION_FILE_SECTOR_SIZE * chunk.getSectorsOccupiedInFile());
+            // 重新压缩过的区块在新布局中只占新数据的长度
+            int newLength = (int) (RegionUtils.REGION_FILE_SECTOR_SIZE * chunk.getSectorsToWrite());
+            if (offset + length > regionSize) {
+                throw new RegionFormatException("MCA File format error in " + regionFile.getName() + ", unable to compact chunk data, no enough bytes.");
+            }
+            if (offset < cursor) {
+                // 区块之间有重叠（或者区块和头部重叠），无法安全地原地搬移
+                throw new RegionFormatException("MCA File format error in " + regionFile.getName() + ", chunks overlap each other, unable to compact in place.");
+            }
+            /*
+             * 在第一个空出来的扇区之前，区块的位置正好等于 cursor，原地不动；
+             * 之后每个区块都比 cursor 靠后，一律往前挪到 cursor 处。
+             */
+            if (chunk.getRewrittenData() != null) {
+                // 新数据一律写到 cursor 处，即使位置没变
+                Move move = new Move(offset, cursor, newLength);
+                move.data = chunk.getRewrittenData();
+                moves.add(move);
+            } else if (offset != cursor) {
+                // 拆成不超过间隙两倍长的几段，这样每个窗口需要暂存的数据都不会超过间隙（见 windowEnd）
+                long piece = 2 * (offset - cursor);
+                for (long done = 0; done < length; done += piece)
+                    moves.add(new Move(offset + done, cursor + done, (int) Math.min(piece, length - done)));
+            }
+            int index = (chunk.getGlobalX() & 31) + (chunk.getGlobalZ() & 31) * 32;
+            int x = index & 31;
+            int z = index >>> 5;
+            header.putInt(index * 4, (int) (cursor / RegionUtils.REGION_FILE_SECTOR_SIZE) << 8 | chunk.getSectorsToWrite());
+            header.putInt(RegionHeader.CHUNKS_PER_REGION * 4 + index * 4, (int) region.getChunkModifiedTimeAt(x, z));
+            cursor += newLength;
+        }
+        return new Plan(header, moves.toArray(new Move[0]), cursor);
+    }
+
+    /**
+     * 如果区域文件存在重做日志，就重放它把区域文件压实完，然后删除日志 <br>
+     * 日志不完整（写日志时崩溃）说明区域文件还没有被动过，此时直接删除日志。
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @return 是否重放了一份完整的日志
+     * @throws IOException 重放失败时抛出，此时日志会被保留，下次可以继续重放
+     */
+    public static boolean replayJournal(File regionFile) throws IOException {
+        return replayJournal(regionFile, false);
+    }
+
+    /**
+     * 如果区域文件存在重做日志，就重放它把区域文件压实完 <br>
+     * deferSync 为 true 时，写入新头部并截断后不再对区域文件做最后一次刷盘，日志也保留下来，
+     * 调用方必须在区域文件落盘之后再删除日志（比如交给 {@link indi.somebottle.tasks.DurabilityBarrier} 成批处理）。
+     * 在此之前崩溃的话，下次运行会再次重放这份日志，此时所有搬移都已完成，只会重写头部并截断。
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @param deferSync  是否把最后的刷盘和日志删除交给调用方
+     * @return 是否重放了一份完整的日志
+     * @throws IOException 重放失败时抛出，此时日志会被保留，下次可以继续重放
+     */
+    public static boolean replayJournal(File regionFile, boolean deferSync) throws IOException {
+        return replayJournal(regionFile, deferSync, true);
+    }
+
+    /**
+     * 如果区域文件存在重做日志，就重放它把区域文件压实完
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @param deferSync  是否把最后的刷盘和日志删除交给调用方
+     * @param sync       为 false 时不做任何刷盘
+     * @return 是否重放了一份完整的日志
+     * @throws IOException 重放失败时抛出，此时日志会被保留，下次可以继续重放
+     */
+    private static boolean replayJournal(File regionFile, boolean deferSync, boolean sync) throws IOException {
+        File journalFile = getJournalFile(regionFile);
+        if (!journalFile.exists())
+            return false;
+        if (!replayJournal(regionFile, journalFile, deferSync, sync)) {
+            // 日志没写完整，区域文件还没有被修改过。通道关闭之后再删除日志
+            GlobalLogger.warning("Discarding incomplete compaction journal: " + journalFile.getAbsolutePath());
+            Files.deleteIfExists(journalFile.toPath());
+            return false;
+        }
+        if (deferSync)
+            return true;
+        // 区域文件已经压实完成，日志可以删除了
+        Files.delete(journalFile.toPath());
+        if (sync)
+            IOUtils.forceDirectory(journalFile.getAbsoluteFile().getParentFile());
+        return true;
+    }
+
+    /**
+     * 校验并重放日志，不删除日志
+     *
+     * @param regionFile  区域 .mca 文件对象
+     * @param journalFile 日志文件对象
+     * @param deferSync   是否跳过最后一次刷盘
+     * @param sync        为 false 时不做任何刷盘
+     * @return 日志是否完整（不完整时没有修改区域文件）
+     * @throws IOException 重放失败时抛出
+     */
+    private static boolean replayJournal(File regionFile, File journalFile, boolean deferSync, boolean sync) throws IOException {
+        try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer fixed = ByteBuffer.allocate(JOURNAL_FIXED_SIZE);
+            if (journal.size() < JOURNAL_FIXED_SIZE || !readFully(journal, fixed, 0, false)
+                    || fixed.getInt(0) != JOURNAL_MAGIC
+                    || fixed.getLong(24) < 0 || fixed.getLong(24) > journal.size() - JOURNAL_FIXED_SIZE
+                    || (int) computeCrc(journal, JOURNAL_FIXED_SIZE, JOURNAL_FIXED_SIZE + fixed.getLong(24)) != fixed.getInt(20)) {
+                return false;
+            }
+            int completedMoves = fixed.getInt(COMPLETED_MOVES_POS);
+            int moveCount = fixed.getInt(8);
+            long newFileSize = fixed.getLong(12);
+            long slotPosition = JOURNAL_FIXED_SIZE + fixed.getLong(24); // 暂存区紧跟在日志体之后
+            int stashedWindow = fixed.getInt(STASH_WINDOW_POS);
+            int stashCrc = fixed.getInt(STASH_WINDOW_POS + 4);
+            // 读入新头部和搬移记录
+            ByteBuffer header = ByteBuffer.allocate(MappedRegionFile.HEADER_SIZE);
+            readFully(journal, header, JOURNAL_FIXED_SIZE, true);
+            ByteBuffer records = ByteBuffer.allocate(moveCount * MOVE_RECORD_SIZE);
+            readFully(journal, records, JOURNAL_FIXED_SIZE + MappedRegionFile.HEADER_SIZE, true);
+            Move[] moves = new Move[moveCount];
+            for (int i = 0; i < moveCount; i++) {
+                moves[i] = new Move(records.getLong(), records.getLong(), records.getInt());
+                moves[i].dataPosition = records.getLong();
+            }
+            GlobalLogger.fine("Replaying compaction journal: " + journalFile.getAbsolutePath() + " (" + completedMoves + "/" + moveCount + " moves done)");
+            try (FileChannel regionChannel = FileChannel.open(regionFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer copyBuffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                ByteBuffer progress = ByteBuffer.allocate(4);
+                // -------------------------------------------------- 逐个窗口搬移区块
+                while (completedMoves < moveCount) {
+                    int windowEnd = windowEnd(moves, completedMoves);
+                    long targetEnd = moves[windowEnd - 1].target + moves[windowEnd - 1].length;
+                    long stashSize = stashSize(moves, completedMoves, windowEnd);
+                    if (stashSize > 0 && (stashedWindow != completedMoves || journal.size() < slotPosition + stashSize
+                            || (int) computeCrc(journal, slotPosition, slotPosition + stashSize) != stashCrc)) {
+                        // 暂存区里不是这个窗口的数据，说明这个窗口还没有开始修改区域文件，源数据是完好的
+                        stashWindow(journal, regionChannel, moves, completedMoves, windowEnd, slotPosition, copyBuffer);
+                        if (sync)
+                            journal.force(false);
+                        stashedWindow = completedMoves;
+                    }
+                    long stashPosition = slotPosition;
+                    for (int i = completedMoves; i < windowEnd; i++) {
+                        Move move = moves[i];
+                        if (move.dataPosition >= 0) {
+                            copy(journal, move.dataPosition, regionChannel, move.target, move.length, copyBuffer);
+                            continue;
+                        }
+                        // 会被本窗口覆盖的前一段从暂存区读取，其余部分在本窗口的目标范围之外，直接从区域文件读取
+                        int stashed = move.stashLength(targetEnd);
+                        copy(journal, stashPosition, regionChannel, move.target, stashed, copyBuffer);
+                        copy(regionChannel, move.source + stashed, regionChannel, move.target + stashed, move.length - stashed, copyBuffer);
+                        stashPosition += stashed;
+                    }
+                    // 这个窗口的数据落盘之后才能记录进度，之后暂存区会被下一个窗口覆盖
+                    if (sync)
+                        regionChannel.force(false);
+                    completedMoves = windowEnd;
+                    progress.clear();
+                    progress.putInt(0, completedMoves);
+                    writeFully(journal, progress, COMPLETED_MOVES_POS);
+                    if (sync)
+                        journal.force(false);
+                }
+                // -------------------------------------------------- 写入新头部并截断
+                writeFully(regionChannel, header, 0);
+                regionChannel.truncate(newFileSize);
+                if (sync && !deferSync)
+                    regionChannel.force(true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入重做日志并刷到磁盘上 <br>
+     * 第一个窗口的暂存数据也一起写入，省掉重放时的一次刷盘。
+     *
+     * @param journalFile   日志文件
+     * @param regionChannel 区域文件通道（用于读取需要暂存的源数据）
+     * @param plan          压实计划
+     * @param sync          是否把日志刷到磁盘上
+     * @throws IOException IO 异常
+     */
+    private static void writeJournal(File journalFile, FileChannel regionChannel, Plan plan, boolean sync) throws IOException {
+        Move[] moves = plan.moves;
+        // 先算出每个重新压缩过的区块的新数据在日志中的位置
+        long bodyEnd = JOURNAL_FIXED_SIZE + MappedRegionFile.HEADER_SIZE + (long) moves.length * MOVE_RECORD_SIZE;
+        for (Move move : moves) {
+            if (move.data != null) {
+                move.dataPosition = bodyEnd;
+                bodyEnd += move.length;
+            }
+        }
+        try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // -------------------------------------------------- 日志体：新头部 + 搬移记录 + 新数据
+            long position = JOURNAL_FIXED_SIZE;
+            plan.header.clear();
+            position += writeFully(journal, plan.header, position);
+            ByteBuffer records = ByteBuffer.allocate(moves.length * MOVE_RECORD_SIZE);
+            for (Move move : moves) {
+                records.putLong(move.source).putLong(move.target).putInt(move.length).putLong(move.dataPosition);
+            }
+            records.flip();
+            writeFully(journal, records, position);
+            for (Move move : moves) {
+                if (move.data != null)
+                    writeFully(journal, move.data.duplicate(), move.dataPosition);
+            }
+            // -------------------------------------------------- 固定头部
+            ByteBuffer fixed = ByteBuffer.allocate(JOURNAL_FIXED_SIZE);
+            fixed.putInt(JOURNAL_MAGIC)
+                    .putInt(0)
+                    .putInt(moves.length)
+                    .putLong(plan.newFileSize)
+                    .putInt((int) computeCrc(journal, JOURNAL_FIXED_SIZE, bodyEnd))
+                    .putLong(bodyEnd - JOURNAL_FIXED_SIZE)
+                    .putInt(-1)
+                    .putInt(0);
+            fixed.flip();
+            writeFully(journal, fixed, 0);
+            // -------------------------------------------------- 第一个窗口的暂存区
+            if (moves.length > 0)
+                stashWindow(journal, regionChannel, moves, 0, windowEnd(moves, 0), bodyEnd, ByteBuffer.allocate(COPY_BUFFER_SIZE));
+            // 日志完整落盘之后才能开始修改区域文件
+            if (sync)
+                journal.force(true);
+        }
+        if (sync)
+            IOUtils.forceDirectory(journalFile.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * 把 [start, end) 这个窗口中会被覆盖的源数据复制到日志的暂存区，并在固定头部中记下窗口和暂存数据的 CRC32，不刷盘 <br>
+     * 只有在这个窗口还没有开始修改区域文件时才能调用。暂存区和固定头部一起刷盘后才能开始搬移，
+     * 刷盘前崩溃的话 CRC32 对不上，重放时会重新暂存。
+     *
+     * @param journal       日志文件通道
+     * @param regionChannel 区域文件通道
+     * @param moves         所有搬移操作
+     * @param start         窗口中的第一个搬移
+     * @param end           窗口中最后一个搬移的下一个下标
+     * @param slotPosition  暂存区在日志中的位置
+     * @param buffer        拷贝缓冲区
+     * @throws IOException IO 异常
+     */
+    private static void stashWindow(FileChannel journal, FileChannel regionChannel, Move[] moves, int start, int end, long slotPosition, ByteBuffer buffer) throws IOException {
+        long targetEnd = moves[end - 1].target + moves[end - 1].length;
+        long position = slotPosition;
+        for (int i = start; i < end; i++) {
+            int stashed = moves[i].stashLength(targetEnd);
+            copy(regionChannel, moves[i].source, journal, position, stashed, buffer);
+            position += stashed;
+        }
+        ByteBuffer fields = ByteBuffer.allocate(8);
+        fields.putInt(start).putInt((int) computeCrc(journal, slotPosition, position));
+        fields.flip();
+        writeFully(journal, fields, STASH_WINDOW_POS);
+    }
+
+    /**
+     * 找出从 start 开始的一个窗口 <br>
+     * 窗口中所有搬移的目标区间都在之后窗口的源区间前面（目标区间连续递增，且每个目标都不在源的后面），
+     * 所以一个窗口完成并落盘之后，之后的窗口的源数据仍然完好；窗口内被覆盖的源数据则先暂存到日志中。
+     * <p>
+     * 窗口不断往后扩展，直到需要暂存的数据超过窗口开头处空出来的间隙为止（每个窗口至少一个搬移）。
+     * 一段搬移的长度不超过间隙的两倍（见 {@link #planCompaction}），单独一段需要暂存的数据也不会超过间隙。
+     * 因此日志中的暂存数据只和间隙大小有关，而不是和要搬移的数据量有关。
+     *
+     * @param moves 搬移操作，按源偏移升序排列
+     * @param start 窗口中的第一个搬移
+     * @return 窗口中最后一个搬移的下一个下标
+     */
+    private static int windowEnd(Move[] moves, int start) {
+        long budget = moves[start].source - moves[start].target;
+        int end = start + 1;
+        while (end < moves.length && stashSize(moves, start, end + 1) <= budget)
+            end++;
+        return end;
+    }
+
+    /**
+     * 计算 [start, end) 这个窗口需要暂存的字节数
+     */
+    private static long stashSize(Move[] moves, int start, int end) {
+        long targetEnd = moves[end - 1].target + moves[end - 1].length;
+        long size = 0;
+        for (int i = start; i < end; i++)
+            size += moves[i].stashLength(targetEnd);
+        return size;
+    }
+
+    /**
+     * 从 source 的 sourcePos 处拷贝 length 个字节到 target 的 targetPos 处 <br>
+     * 按从前往后的顺序拷贝，因此同一个文件内往前搬移时即使区间重叠，也不会读到已经被覆盖的数据。
+     */
+    private static void copy(FileChannel source, long sourcePos, FileChannel target, long targetPos, int length, ByteBuffer buffer) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+            readFully(source, buffer, sourcePos + copied, true);
+            writeFully(target, buffer, targetPos + copied);
+            copied += buffer.limit();
+        }
+    }
+
+    /**
+     * 计算通道中 [from, to) 这一段数据的 CRC32
+     */
+    private static long computeCrc(FileChannel channel, long from, long to) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        for (long pos = from; pos < to; pos += buffer.limit()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - pos));
+            readFully(channel, buffer, pos, true);
+            crc.update(buffer.array(), 0, buffer.limit());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 从通道的 position 处读满 buffer 的剩余空间，读完后 buffer 的 position 被重置为 0
+     *
+     * @param mustFill 为 true 时数据不足会抛出 EOFException，否则返回 false
+     * @return 是否读满
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, boolean mustFill) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - start);
+            if (n < 0) {
+                if (mustFill)
+                    throw new EOFException("Unexpected end of file while compacting region.");
+                return false;
+            }
+        }
+        buffer.position(start);
+        return true;
+    }
+
+    /**
+     * 把 buffer 的剩余数据全部写到通道的 position 处
+     *
+     * @return 写入的字节数
+     */
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
@@ -1,22 +1,35 @@
 package indi.somebottle.utils;
 
+import indi.somebottle.constants.ChunkFieldConstants;
+import indi.somebottle.constants.ChunkLayoutConstants;
 import indi.somebottle.entities.Chunk;
 import indi.somebottle.entities.Region;
+import indi.somebottle.entities.RegionHeader;
 import indi.somebottle.exceptions.RegionChunkInitializedException;
 import indi.somebottle.exceptions.RegionFormatException;
 import indi.somebottle.exceptions.RegionPosNotFoundException;
 import indi.somebottle.exceptions.CompressionTypeUnsupportedException;
 import indi.somebottle.logger.GlobalLogger;
-import indi.somebottle.streams.ByteCountingOutputStream;
-import indi.somebottle.streams.NullOutputStream;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.streams.MappedRegionFile;
+import indi.somebottle.tasks.ChunkFanOutPool;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.function.Predicate;
 
 // 区域 Region 文件相关的工具方法
 public class RegionUtils {
@@ -26,6 +39,23 @@ public class RegionUtils {
      */
     public static final long REGION_FILE_SECTOR_SIZE = 4096;
 
+    /**
+     * 按 Z-order（Morton 序）排列的头部下标 <br>
+     * 局部坐标 x 的各位放在偶数位，z 的各位放在奇数位，交错得到 Morton 码，按码从小到大排列。
+     */
+    private static final int[] Z_ORDER_INDICES = new int[RegionHeader.CHUNKS_PER_REGION];
+
+    static {
+        for (int code = 0; code < RegionHeader.CHUNKS_PER_REGION; code++) {
+            int x = 0, z = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                x |= ((code >>> (2 * bit)) & 1) << bit;
+                z |= ((code >>> (2 * bit + 1)) & 1) << bit;
+            }
+            Z_ORDER_INDICES[code] = x + z * 32;
+        }
+    }
+
     /**
      * 扫描世界目录，找到其中的 region 目录（.mca 文件所在目录）
      *
@@ -65,7 +95,84 @@ public class RegionUtils {
     }
 
     /**
-     * 从文件中读取 Region 数据
+     * 找到世界目录中所有维度的 region 目录 <br>
+     * 只看存档中维度的固定位置：主世界的 world/region、下界和末地等 world/DIM*&#47;region，
+     * 以及数据包添加的维度 world/dimensions/&lt;namespace&gt;/&lt;name&gt;/region。
+     * 不会递归扫描其他目录（比如 world/backups/x/region 不是维度），也不跟随符号链接。
+     *
+     * @param worldPath 世界目录
+     * @return 找到的所有 region 目录，主世界在最前面，其余按名称排序。没有找到时返回空列表
+     */
+    public static List<Path> findAllRegionDirPaths(String worldPath) {
+        List<Path> regionDirPaths = new ArrayList<>();
+        Path world = Paths.get(worldPath).toAbsolutePath();
+        addRegionDirPath(world, regionDirPaths);
+        for (Path dimension : listSubDirectories(world)) {
+            if (dimension.getFileName().toString().startsWith("DIM"))
+                addRegionDirPath(dimension, regionDirPaths);
+        }
+        Path datapackDimensions = world.resolve("dimensions");
+        if (!Files.isDirectory(datapackDimensions, LinkOption.NOFOLLOW_LINKS))
+            return regionDirPaths;
+        for (Path namespace : listSubDirectories(datapackDimensions)) {
+            for (Path dimension : listSubDirectories(namespace)) {
+                addRegionDirPath(dimension, regionDirPaths);
+            }
+        }
+        return regionDirPaths;
+    }
+
+    /**
+     * 如果维度目录下有 region 目录（不是符号链接），就把它加入列表
+     *
+     * @param dimension      维度目录
+     * @param regionDirPaths region 目录列表
+     */
+    private static void addRegionDirPath(Path dimension, List<Path> regionDirPaths) {
+        Path regionDir = dimension.resolve("region");
+        if (Files.isDirectory(regionDir, LinkOption.NOFOLLOW_LINKS))
+            regionDirPaths.add(regionDir);
+    }
+
+    /**
+     * 列出目录下的所有子目录（不包括指向目录的符号链接），按名称排序保证每次结果顺序一致
+     *
+     * @param dir 目录（世界目录本身可以是符号链接）
+     * @return 子目录列表，目录不存在或者无法读取时为空
+     */
+    private static List<Path> listSubDirectories(Path dir) {
+        List<Path> subDirs = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return subDirs;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+                    subDirs.add(path);
+            }
+        } catch (IOException e) {
+            GlobalLogger.warning("Failed to list directory: " + dir, e);
+        }
+        Collections.sort(subDirs);
+        return subDirs;
+    }
+
+    /**
+     * 只读取区域文件的 8 KiB 头部（偏移表和时间戳表），不解压任何区块
+     *
+     * @param regionFile 区域 .mca 文件对象
+     * @return 解码后的头部
+     * @throws IOException 如果文件读取失败或者文件放不下头部会抛出此异常
+     */
+    public static RegionHeader readRegionHeader(File regionFile) throws IOException {
+        RegionHeader header = new RegionHeader();
+        try (MappedRegionFile regionData = new MappedRegionFile(regionFile)) {
+            header.decode(regionData.header());
+        }
+        return header;
+    }
+
+    /**
+     * 从文件中读取 Region 数据，所有区块（除了超大区块）都会被解压以读取 InhabitedTime
      *
      * @param regionFile 区域 .mca 文件对象
      * @return 读取到的 Region 对象
@@ -76,17 +183,111 @@ public class RegionUtils {
      * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
      */
     public static Region readRegion(File regionFile) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
+        return readRegion(regionFile, chunk -> true);
+    }
+
+    /**
+     * 从文件中读取 Region 数据（延迟解压） <br>
+     * 先根据头部构造出所有区块的描述信息，只有不是超大区块、且通过了 inflateFilter 检查的区块才会被解压以读取 InhabitedTime。
+     * 其余区块的 {@link Chunk#isInhabitedTimeLoaded()} 为 false。
+     *
+     * @param regionFile    区域 .mca 文件对象
+     * @param inflateFilter 判断区块是否需要解压的过滤器（比如受保护的区块就没有必要解压）
+     * @return 读取到的 Region 对象
+     * @throws RegionPosNotFoundException          如果文件名字格式不正确会抛出此异常
+     * @throws IOException                         如果文件读取失败会抛出此异常
+     * @throws RegionFormatException               如果 .mca 文件格式不正确会抛出此异常
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持，会抛出此异常
+     * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
+     */
+    public static Region readRegion(File regionFile, Predicate<Chunk> inflateFilter) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
+        try (DecompressorPool pool = new DecompressorPool()) {
+            return readRegion(regionFile, inflateFilter, pool);
+        }
+    }
+
+    /**
+     * 从文件中读取 Region 数据（延迟解压），解压时复用 pool 中的解压器和缓冲区
+     *
+     * @param regionFile    区域 .mca 文件对象
+     * @param inflateFilter 判断区块是否需要解压的过滤器（比如受保护的区块就没有必要解压）
+     * @param pool          解压器池，通常每个任务线程持有一个
+     * @return 读取到的 Region 对象
+     * @throws RegionPosNotFoundException          如果文件名字格式不正确会抛出此异常
+     * @throws IOException                         如果文件读取失败会抛出此异常
+     * @throws RegionFormatException               如果 .mca 文件格式不正确会抛出此异常
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持，会抛出此异常
+     * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
+     */
+    public static Region readRegion(File regionFile, Predicate<Chunk> inflateFilter, DecompressorPool pool) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
+        return readRegion(regionFile, inflateFilter, ChunkFieldConstants.INHABITED_TIME, pool);
+    }
+
+    /**
+     * 从文件中读取 Region 数据（延迟解压），每个需要解压的区块在一次解压中提取 fields 指定的所有字段
+     *
+     * @param regionFile    区域 .mca 文件对象
+     * @param inflateFilter 判断区块是否需要解压的过滤器（比如受保护的区块就没有必要解压）
+     * @param fields        要提取的字段，{@link ChunkFieldConstants} 的位掩码
+     * @param pool          解压器池，通常每个任务线程持有一个
+     * @return 读取到的 Region 对象
+     * @throws RegionPosNotFoundException          如果文件名字格式不正确会抛出此异常
+     * @throws IOException                         如果文件读取失败会抛出此异常
+     * @throws RegionFormatException               如果 .mca 文件格式不正确会抛出此异常
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持，会抛出此异常
+     * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
+     */
+    public static Region readRegion(File regionFile, Predicate<Chunk> inflateFilter, int fields, DecompressorPool pool) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
+        return readRegion(regionFile, inflateFilter, fields, pool, null);
+    }
+
+    /**
+     * 从文件中读取 Region 数据（延迟解压），需要解压的区块足够多时交给 fanOutPool 并行解压 <br>
+     * 头部和区块描述信息仍由调用线程读取，只有解压被分出去，各区块的结果直接存入区域中对应的 Chunk 对象。
+     *
+     * @param regionFile    区域 .mca 文件对象
+     * @param inflateFilter 判断区块是否需要解压的过滤器（比如受保护的区块就没有必要解压）
+     * @param fields        要提取的字段，{@link ChunkFieldConstants} 的位掩码
+     * @param pool          解压器池，调用线程自己解压时使用
+     * @param fanOutPool    按区块并行解压的线程池，为 null 时不并行
+     * @return 读取到的 Region 对象
+     * @throws RegionPosNotFoundException          如果文件名字格式不正确会抛出此异常
+     * @throws IOException                         如果文件读取失败会抛出此异常
+     * @throws RegionFormatException               如果 .mca 文件格式不正确会抛出此异常
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持，会抛出此异常
+     * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
+     */
+    public static Region readRegion(File regionFile, Predicate<Chunk> inflateFilter, int fields, DecompressorPool pool, ChunkFanOutPool fanOutPool) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
+        return readRegion(regionFile, null, inflateFilter, fields, pool, fanOutPool);
+    }
+
+    /**
+     * 从文件中读取 Region 数据（延迟解压），文件内容已经读入内存时直接从 contents 中解析，不再映射文件
+     *
+     * @param regionFile    区域 .mca 文件对象
+     * @param contents      已经读入内存的文件内容（见 {@link IOUtils#readFile}），为 null 时映射文件
+     * @param inflateFilter 判断区块是否需要解压的过滤器（比如受保护的区块就没有必要解压）
+     * @param fields        要提取的字段，{@link ChunkFieldConstants} 的位掩码
+     * @param pool          解压器池，调用线程自己解压时使用
+     * @param fanOutPool    按区块并行解压的线程池，为 null 时不并行
+     * @return 读取到的 Region 对象
+     * @throws RegionPosNotFoundException          如果文件名字格式不正确会抛出此异常
+     * @throws IOException                         如果文件读取失败会抛出此异常
+     * @throws RegionFormatException               如果 .mca 文件格式不正确会抛出此异常
+     * @throws CompressionTypeUnsupportedException 如果压缩类型不支持，会抛出此异常
+     * @throws RegionChunkInitializedException     如果 Chunk 被重复初始化，会抛出此异常（不应该有这种情况）
+     */
+    public static Region readRegion(File regionFile, ByteBuffer contents, Predicate<Chunk> inflateFilter, int fields, DecompressorPool pool, ChunkFanOutPool fanOutPool) throws RegionPosNotFoundException, IOException, RegionFormatException, RegionChunkInitializedException {
         Region region = new Region(regionFile);
         GlobalLogger.fine("Reading region file: " + regionFile.getAbsolutePath());
-        // regionStream 用于读取 .mca 文件头部元数据
-        // chunkReader 用于读取区块数据
-        try (
-                BufferedInputStream regionStream = new BufferedInputStream(new FileInputStream(regionFile));
-                RandomAccessFile chunkReader = new RandomAccessFile(regionFile, "r")
-        ) {
+        // 整个文件只打开一次并映射到内存中（或者直接使用已经读入的内容）
+        // 头部元数据和区块数据都从映射中以切片的形式读取，不需要再分别打开流和 RandomAccessFile
+        try (MappedRegionFile regionData = contents == null ? new MappedRegionFile(regionFile) : new MappedRegionFile(regionFile, contents)) {
             // 参考文档：https://zh.minecraft.wiki/w/%E5%8C%BA%E5%9F%9F%E6%96%87%E4%BB%B6%E6%A0%BC%E5%BC%8F
-            byte[] buffer = new byte[4];
-            // 一共有 1024 个区块的偏移和长度数据，逐个读取
+            // 一次性解码 8 KiB 头部中的偏移表和时间戳表
+            RegionHeader header = region.getHeader();
+            header.decode(regionData.header());
+            // 一共有 1024 个区块的偏移和长度数据，逐个处理
             /*
              * 注意，如果你改变了这里的遍历顺序，那么底下 writeRegion 拷贝区块数据的逻辑就要重写。
              *  SomeBottle 2024.8.5
@@ -98,52 +299,45 @@ public class RegionUtils {
              * 但是 wiki 里是：x 先递增。
              *  SomeBottle 2024.8.5
              */
-            for (int z = 0; z < 32; z++) {
-                for (int x = 0; x < 32; x++) {
-                    // 先读取距离文件起点的偏移扇区数目
-                    // 前 3 B 是大端存储的偏移扇区数目
-                    if (regionStream.read(buffer, 0, 3) < 3) {
-                        // 读取失败，文件格式错误
-                        throw new RegionFormatException("MCA File format error in " + regionFile + ", unable to find sector offset of chunk " + x + ", " + z);
-                    }
-                    // 偏移扇区数目按大端方式转换为整数
-                    // 通过与 0xFF，先提升为 int（因为 Java 的 byte 是 8 bit 有符号数），因为是大端。首个 8 位左移 16 位组成数值的最高字节， 以此类推把各个字节移动到对应位置上，通过或运算组成最终数值
-                    // 因为单位是扇区，再乘上 4 KiB 得到偏移字节数
-                    // long chunkOffset = ((long) (buffer[0] & 0xFF) << 16 | (long) (buffer[1] & 0xFF) << 8 | (long) (buffer[2] & 0xFF)) * 4096;
-                    long chunkOffset = NumUtils.bigEndianToLong(buffer, 3) * REGION_FILE_SECTOR_SIZE;
-                    // 接下来一个字节是此区块占用的扇区数
-                    int sectorsOccupied = regionStream.read();
-                    if (sectorsOccupied < 0) {
-                        // 读取失败，文件格式错误
-                        throw new RegionFormatException("MCA File format error in " + regionFile + ", unable to find sectors occupied number of chunk " + x + ", " + z);
-                    }
-                    // 如果以上两个字段均为 0，说明此区块不存在
-                    if (chunkOffset == 0 && sectorsOccupied == 0) {
-                        continue;
-                    }
-                    // 继续读取区块
-                    try {
-                        Chunk chunk = ChunkUtils.readChunk(chunkReader, chunkOffset, sectorsOccupied, x, z, region.getRegionX(), region.getRegionZ());
-                        // 初始化区域对象中的区块结构
-                        region.initChunkAt(x, z, chunk);
-                    } catch (RegionFormatException e) {
-                        // 在 RegionFormatException 的信息中添加 Region 信息后重新抛出
-                        throw new RegionFormatException(e.getMessage() + " in Region " + regionFile.getName());
+            // 需要解压的区块，先收集起来，最后统一解压
+            List<Chunk> toInflate = new ArrayList<>();
+            for (int index = 0; index < RegionHeader.CHUNKS_PER_REGION; index++) {
+                // 如果偏移和占用扇区数均为 0，说明此区块不存在
+                if (!header.isPresent(index)) {
+                    continue;
+                }
+                // 下标为 x + z * 32，x 先递增
+                int x = index & 31;
+                int z = index >>> 5;
+                // 因为单位是扇区，再乘上 4 KiB 得到偏移字节数
+                long chunkOffset = header.getSectorOffset(index) * REGION_FILE_SECTOR_SIZE;
+                int sectorsOccupied = header.getSectorCount(index);
+                // 继续读取区块
+                try {
+                    // 先只读取区块的描述信息
+                    Chunk chunk = ChunkUtils.readChunkDescriptor(regionData, chunkOffset, sectorsOccupied, x, z, region.getRegionX(), region.getRegionZ());
+                    // 初始化区域对象中的区块结构
+                    region.initChunkAt(x, z, chunk);
+                    // 只有通过了检查的区块才需要解压
+                    if (!chunk.isOverSized() && inflateFilter.test(chunk)) {
+                        toInflate.add(chunk);
                     }
+                } catch (RegionFormatException e) {
+                    // 在 RegionFormatException 的信息中添加 Region 信息后重新抛出
+                    throw new RegionFormatException(e.getMessage() + " in Region " + regionFile.getName());
                 }
             }
-            // 读取时间戳表到 Region 中
-            // 紧接着的是 1024 个 4 字节大端时间戳（纪元秒）
-            for (int z = 0; z < 32; z++) {
-                for (int x = 0; x < 32; x++) {
-                    if (regionStream.read(buffer, 0, 4) < 4) {
-                        // 读取失败，文件格式错误
-                        throw new RegionFormatException("MCA File format error in " + regionFile + ", unable to find timestamp of chunk " + x + ", " + z);
+            try {
+                if (fanOutPool != null && toInflate.size() >= ChunkFanOutPool.MIN_CHUNKS_TO_FAN_OUT) {
+                    // 区块足够多，分给线程池并行解压
+                    fanOutPool.loadChunkData(regionData, toInflate, fields);
+                } else {
+                    for (Chunk chunk : toInflate) {
+                        ChunkUtils.loadChunkData(regionData, chunk, fields, pool);
                     }
-                    // 将读出来的时间戳存入时间戳表
-                    long timestamp = NumUtils.bigEndianToLong(buffer, 4);
-                    region.setChunkModifiedTimeAt(x, z, timestamp);
                 }
+            } catch (RegionFormatException e) {
+                throw new RegionFormatException(e.getMessage() + " in Region " + regionFile.getName());
             }
         }
         return region;
@@ -163,94 +357,197 @@ public class RegionUtils {
      * @apiNote sourceFile 用于读取原本的区块数据
      */
     public static long writeRegion(Region region, File sourceFile, File outputFile, boolean dryRun) throws IOException, RegionFormatException {
+        return writeRegion(region, sourceFile, outputFile, dryRun, ChunkLayoutConstants.INDEX);
+    }
+
+    /**
+     * 把 Region 对象重新写入到指定文件 outputFile 中，保留的区块按 layout 指定的方式排列 <br>
+     * 被标记为 deleted 的区块不会再被写入。
+     *
+     * @param region     区域对象
+     * @param sourceFile 区域原数据所在文件的对象
+     * @param outputFile 输出文件对象，dryRun=true 时此项可为 null。注意，outputFile 会被完全重写。
+     * @param dryRun     是否是试运行，试运行时不会写入任何文件
+     * @param layout     区块的排列方式，见 {@link ChunkLayoutConstants}
+     * @return 写入文件的总字节数
+     * @throws RegionFormatException 如果 .mca 文件格式不正确会抛出此异常
+     * @throws IOException           IO 异常
+     */
+    public static long writeRegion(Region region, File sourceFile, File outputFile, boolean dryRun, int layout) throws IOException, RegionFormatException {
         if (dryRun) {
-            GlobalLogger.fine("(dry-run) Simulate writing region to file: " + sourceFile.getAbsolutePath());
-        } else {
-            GlobalLogger.fine("Writing region to file: " + outputFile.getAbsolutePath());
+            // 试运行时不写入任何文件，写入的字节数只取决于头部
+            return estimateRegionSize(region, sourceFile.length(), sourceFile.getName());
         }
-        long bytesWrite;
-        try (
-                OutputStream os = dryRun ? new NullOutputStream() : new FileOutputStream(outputFile);
-                BufferedOutputStream bos = new BufferedOutputStream(os);
-                ByteCountingOutputStream cfos = new ByteCountingOutputStream(bos);
-                RandomAccessFile chunkReader = new RandomAccessFile(sourceFile, "r")
-        ) {
-            // 缓冲区
-            byte[] dataBuf = new byte[4096];
-            Chunk chunkTmp;
-            // 按照写区块偏移的顺序，记录现存的、没有被移除的区块列表
-            List<Chunk> existingNonDeletedChunks = new LinkedList<>();
-            // -------------------------------------------------- 写入区块偏移和占用扇区数表
-            // 记录当前区块起始位置在 mca 文件中的偏移扇区数
-            int currChunkOffset = 2; // 初始为 2 个扇区
-            for (int z = 0; z < 32; z++) {
-                for (int x = 0; x < 32; x++) {
-                    chunkTmp = region.getChunkAt(x, z);
-                    if (chunkTmp == null || chunkTmp.isDeleteFlag()) {
-                        // 若区块不存在或被标记为已删除，区块偏移和占用扇区数全置零
-                        Arrays.fill(dataBuf, 0, 4, (byte) 0);
-                    } else {
-                        // 如果区块存在，写入偏移和长度
-                        // 偏移扇区数（3 字节大端）
-                        NumUtils.longToBigEndian(currChunkOffset, dataBuf, 3);
-                        // 再加 1 字节的占用扇区数
-                        int sectorsOccupied = chunkTmp.getSectorsOccupiedInFile();
-                        dataBuf[3] = (byte) sectorsOccupied;
-                        // 累加到扇区偏移上
-                        currChunkOffset += sectorsOccupied;
-                        // 把现存且未被删除的区块加入列表，后面会按照这个列表的顺序把区块数据写入
-                        existingNonDeletedChunks.add(chunkTmp);
-                    }
-                    // 把每个区块的扇区偏移和占用扇区数写入
-                    cfos.write(dataBuf, 0, 4);
+        GlobalLogger.fine("Writing region to file: " + outputFile.getAbsolutePath());
+        // 按照写区块偏移的顺序，记录现存的、没有被移除的区块列表
+        List<Chunk> retainedChunks = new ArrayList<>();
+        ByteBuffer header = encodeRetainedHeader(region, retainedChunks, layout);
+        try (FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)) {
+            // 先检查原文件中区块数据是否完整，和试运行使用同一个检查
+            estimateRegionSize(region, source.size(), sourceFile.getName());
+            try (FileChannel output = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // -------------------------------------------------- 写入 8 KiB 头部
+                while (header.hasRemaining()) {
+                    output.write(header);
                 }
-            }
-            // -------------------------------------------------- 接着写入时间戳表
-            for (int z = 0; z < 32; z++) {
-                for (int x = 0; x < 32; x++) {
-                    chunkTmp = region.getChunkAt(x, z);
-                    if (chunkTmp == null || chunkTmp.isDeleteFlag()) {
-                        // 若区块不存在或被标记为已删除，时间戳 4 字节置 0
-                        Arrays.fill(dataBuf, 0, 4, (byte) 0);
-                    } else {
-                        // 否则把区块时间戳转换为大端 4 字节
-                        NumUtils.longToBigEndian(region.getChunkModifiedTimeAt(x, z), dataBuf, 4);
-                    }
-                    // 把每个区块的时间戳写入
-                    cfos.write(dataBuf, 0, 4);
-                }
-            }
-            // -------------------------------------------------- 最后拷贝现存区块的数据
-            // 区块占用的空间实际上以扇区为单位，这里其实就是把原文件中区块对应的扇区复制过来
-            // existingNonDeletedChunks 中的区块是按照写入区块偏移的顺序排列的，因此直接按照这个顺序把区块数据写入输出文件即可
-            for (Chunk chunk : existingNonDeletedChunks) {
-                // 这里的 chunk 保证是存在且未被移除的
+                // -------------------------------------------------- 拷贝现存区块的数据
                 /*
-                    因为区块占用的空间是扇区（4 KiB）的整数倍，因此拷贝的时候也可以直接以扇区为单位进行拷贝。
-
-                    SomeBottle 2024.8.5
+                 * 区块占用的空间是扇区（4 KiB）的整数倍，拷贝时直接把区块对应的扇区整体搬过来。
+                 * 在原文件中首尾相接的连续多个区块合并为一次 transferTo，
+                 * 数据由内核直接在文件之间拷贝（Linux 上为 copy_file_range / sendfile），不经过 Java 堆。
                  */
-                // 未被移除的区块直接把占用的扇区数据拷贝过来即可
-                // 需要读取 bytesRemaining 字节
-                long bytesRemaining = REGION_FILE_SECTOR_SIZE * chunk.getSectorsOccupiedInFile();
-                // 跳转到区块数据在原文件中的起始位置
-                chunkReader.seek(chunk.getOffsetInFile());
-                while (bytesRemaining > 0) {
-                    // 读取的字节数
-                    int bytesToRead = (int) Math.min(bytesRemaining, dataBuf.length);
-                    // 读取区块数据
-                    if (chunkReader.read(dataBuf, 0, bytesToRead) != bytesToRead) {
-                        throw new RegionFormatException("MCA File format error in " + sourceFile.getName() + ", unable to copy chunk data, no enough bytes.");
+                int runStart = 0;
+                while (runStart < retainedChunks.size()) {
+                    Chunk first = retainedChunks.get(runStart);
+                    if (first.getRewrittenData() != null) {
+                        // 重新压缩过的区块直接写入新数据
+                        ByteBuffer data = first.getRewrittenData().duplicate();
+                        while (data.hasRemaining()) {
+                            output.write(data);
+                        }
+                        runStart++;
+                        continue;
+                    }
+                    long runOffset = first.getOffsetInFile();
+                    long runBytes = REGION_FILE_SECTOR_SIZE * first.getSectorsOccupiedInFile();
+                    int runEnd = runStart + 1;
+                    while (runEnd < retainedChunks.size() && retainedChunks.get(runEnd).getRewrittenData() == null && retainedChunks.get(runEnd).getOffsetInFile() == runOffset + runBytes) {
+                        runBytes += REGION_FILE_SECTOR_SIZE * retainedChunks.get(runEnd).getSectorsOccupiedInFile();
+                        runEnd++;
                     }
-                    // 写入到输出文件
-                    cfos.write(dataBuf, 0, bytesToRead);
-                    // 更新剩余字节数
-                    bytesRemaining -= bytesToRead;
+                    transferFully(source, runOffset, runBytes, output, sourceFile);
+                    runStart = runEnd;
                 }
+                return output.position();
             }
-            bytesWrite = cfos.getBytesCount();
+        }
+    }
+
+    /**
+     * 只根据头部信息算出重写后区域文件的大小（8 KiB 头部 + 保留区块占用的扇区），不读取任何区块数据 <br>
+     * 试运行时以此代替模拟写入。和实际写入一样，区块数据超出原文件范围时抛出异常，保证两者结果一致。
+     *
+     * @param region     区域对象（区块已经完成删除标记）
+     * @param sourceSize 原区域文件的大小（字节）
+     * @param sourceName 原区域文件名，用于异常信息
+     * @return 重写后的文件大小（字节）
+     * @throws RegionFormatException 区块数据超出原文件范围时抛出
+     */
+    public static long estimateRegionSize(Region region, long sourceSize, String sourceName) throws RegionFormatException {
+        long bytesWrite = MappedRegionFile.HEADER_SIZE;
+        for (Chunk chunk : region.getExistingChunks()) {
+            if (chunk.isDeleteFlag())
+                continue;
+            if (chunk.getRewrittenData() == null && chunk.getOffsetInFile() + REGION_FILE_SECTOR_SIZE * chunk.getSectorsOccupiedInFile() > sourceSize) {
+                throw new RegionFormatException("MCA File format error in " + sourceName + ", unable to copy chunk data, no enough bytes.");
+            }
+            bytesWrite += REGION_FILE_SECTOR_SIZE * chunk.getSectorsToWrite();
         }
         return bytesWrite;
     }
-}
 
+    /**
+     * 根据区块的删除标记生成新的区域文件头部（偏移表 + 时间戳表） <br>
+     * 现存且未被删除的区块按照头部下标顺序（x 先递增）从第 2 个扇区开始依次排列。
+     *
+     * @param region         区域对象
+     * @param retainedChunks 输出参数，按新文件中的排列顺序存放保留下来的区块
+     * @return 8 KiB 头部数据，position 为 0
+     */
+    public static ByteBuffer encodeRetainedHeader(Region region, List<Chunk> retainedChunks) {
+        return encodeRetainedHeader(region, retainedChunks, ChunkLayoutConstants.INDEX);
+    }
+
+    /**
+     * 根据区块的删除标记生成新的区域文件头部（偏移表 + 时间戳表） <br>
+     * 现存且未被删除的区块按照 layout 指定的顺序从第 2 个扇区开始依次排列。
+     *
+     * @param region         区域对象
+     * @param retainedChunks 输出参数，按新文件中的排列顺序存放保留下来的区块
+     * @param layout         区块的排列方式，见 {@link ChunkLayoutConstants}
+     * @return 8 KiB 头部数据，position 为 0
+     */
+    public static ByteBuffer encodeRetainedHeader(Region region, List<Chunk> retainedChunks, int layout) {
+        ByteBuffer header = ByteBuffer.allocate(MappedRegionFile.HEADER_SIZE);
+        // 记录当前区块起始位置在 mca 文件中的偏移扇区数
+        int currChunkOffset = 2; // 初始为 2 个扇区
+        /*
+         * 注意这里的遍历顺序，下标为 x + z * 32，x 先递增。
+         * SomeBottle 2024.8.5
+         */
+        for (int i = 0; i < RegionHeader.CHUNKS_PER_REGION; i++) {
+            int index = layoutIndexAt(i, layout);
+            int x = index & 31;
+            int z = index >>> 5;
+            Chunk chunk = region.getChunkAt(x, z);
+            // 若区块不存在或被标记为已删除，区块偏移、占用扇区数和时间戳全置零（ByteBuffer 初始就是全零）
+            if (chunk == null || chunk.isDeleteFlag())
+                continue;
+            // 重新压缩过的区块按新数据占用的扇区数计算
+            int sectorsOccupied = chunk.getSectorsToWrite();
+            // 偏移扇区数（3 字节大端）+ 1 字节的占用扇区数
+            header.putInt(index * 4, currChunkOffset << 8 | sectorsOccupied);
+            // 时间戳（4 字节大端）
+            header.putInt(RegionHeader.CHUNKS_PER_REGION * 4 + index * 4, (int) region.getChunkModifiedTimeAt(x, z));
+            // 累加到扇区偏移上
+            currChunkOffset += sectorsOccupied;
+            retainedChunks.add(chunk);
+        }
+        return header;
+    }
+
+    /**
+     * 检查保留下来的区块在文件中的先后顺序是否已经符合 layout 指定的排列方式 <br>
+     * 顺序已经符合时，原地压实（只把区块往前挪，不改变先后顺序）就足够了，不需要重新排列。
+     *
+     * @param region 区域对象
+     * @param layout 区块的排列方式，见 {@link ChunkLayoutConstants}
+     * @return 是否已经按 layout 排列
+     */
+    public static boolean isInLayoutOrder(Region region, int layout) {
+        long prevOffset = -1;
+        for (int i = 0; i < RegionHeader.CHUNKS_PER_REGION; i++) {
+            int index = layoutIndexAt(i, layout);
+            Chunk chunk = region.getChunkAt(index & 31, index >>> 5);
+            if (chunk == null || chunk.isDeleteFlag())
+                continue;
+            if (chunk.getOffsetInFile() <= prevOffset)
+                return false;
+            prevOffset = chunk.getOffsetInFile();
+        }
+        return true;
+    }
+
+    /**
+     * 获得按 layout 排列时第 i 个位置上的区块的头部下标
+     *
+     * @param i      排列中的位置（0~1023）
+     * @param layout 区块的排列方式
+     * @return 头部下标
+     */
+    private static int layoutIndexAt(int i, int layout) {
+        return layout == ChunkLayoutConstants.Z_ORDER ? Z_ORDER_INDICES[i] : i;
+    }
+
+    /**
+     * 把 source 中 [position, position + count) 的数据全部追加到 target 中
+     *
+     * @param source     源文件通道
+     * @param position   起始位置
+     * @param count      字节数
+     * @param target     目标文件通道
+     * @param sourceFile 源文件（用于错误信息）
+     * @throws IOException 拷贝失败或者源文件数据不足时抛出
+     */
+    private static void transferFully(FileChannel source, long position, long count, FileChannel target, File sourceFile) throws IOException {
+        while (count > 0) {
+            // transferTo 单次可能只拷贝一部分（比如单次最多约 2 GiB）
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new RegionFormatException("MCA File format error in " + sourceFile.getName() + ", unable to copy chunk data, no enough bytes.");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
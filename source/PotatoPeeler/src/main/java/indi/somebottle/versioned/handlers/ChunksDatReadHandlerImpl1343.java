@@ -6,8 +6,8 @@ import indi.somebottle.indexing.ChunksSpatialIndex;
 import indi.somebottle.utils.IOUtils;
 import indi.somebottle.utils.NumUtils;
 import indi.somebottle.entities.ForcedChunksLoadResult;
+import indi.somebottle.streams.ByteArrayWindowedInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,7 +40,8 @@ public class ChunksDatReadHandlerImpl1343 implements ChunksDatReadHandler {
     @Override
     public ForcedChunksLoadResult loadForcedIntoSpatialIndex(ChunksSpatialIndex protectedChunksIndex) throws IOException {
         long chunksCount = 0;
-        InputStream bais = new ByteArrayInputStream(chunksDatBytes);
+        // 整个文件已经解压在内存中，作为一个窗口直接查找
+        InputStream bais = new ByteArrayWindowedInputStream(chunksDatBytes, 0, chunksDatBytes.length);
         if (IOUtils.findAndSkipBytes(bais, NBTTagConstants.FORCED_TAG_BIN)) {
             byte[] numBuf = new byte[8];
             // 找到了 Forced 标签，先读取其后 4 个字节，这是 Long 数组长度
@@ -7,8 +7,8 @@ import indi.somebottle.indexing.ChunksSpatialIndex;
 import indi.somebottle.utils.IOUtils;
 import indi.somebottle.utils.NumUtils;
 import indi.somebottle.entities.ForcedChunksLoadResult;
+import indi.somebottle.streams.ByteArrayWindowedInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -149,7 +149,8 @@ public class ChunksDatReadHandlerImpl4325 implements ChunksDatReadHandler {
      */
     @Override
     public ForcedChunksLoadResult loadForcedIntoSpatialIndex(ChunksSpatialIndex protectedChunksIndex) throws IOException {
-        InputStream bais = new ByteArrayInputStream(chunksDatBytes);
+        // 整个文件已经解压在内存中，作为一个窗口直接查找
+        InputStream bais = new ByteArrayWindowedInputStream(chunksDatBytes, 0, chunksDatBytes.length);
         long chunksCount = 0;
         // 先找到 tickets 标签
         if (IOUtils.findAndSkipBytes(bais, NBTTagConstants.TICKETS_COMPOUND_TAG_BIN)) {
@@ -1,14 +1,25 @@
+import indi.somebottle.constants.ChunkFieldConstants;
 import indi.somebottle.constants.DataVersionConstants;
+import indi.somebottle.constants.NBTTagConstants;
+import indi.somebottle.entities.ChunkData;
 import indi.somebottle.entities.ForcedChunksLoadResult;
 import indi.somebottle.exceptions.NBTFormatException;
 import indi.somebottle.indexing.ChunksSpatialIndex;
 import indi.somebottle.indexing.ChunksSpatialIndexFactory;
+import indi.somebottle.streams.DecompressorPool;
 import indi.somebottle.utils.ChunkUtils;
+import net.jpountz.lz4.LZ4BlockOutputStream;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -107,4 +118,268 @@ public class ChunkUtilsTest {
                 () -> ChunkUtils.protectForceLoadedChunks(index, chunksDatPath.toFile())
         );
     }
+
+    /**
+     * Verifies that the InhabitedTime tag is still found when it straddles the boundary between two
+     * decompressed windows, for every compressed chunk format.
+     * 验证当 InhabitedTime 标签横跨两个解压窗口的边界时，各种压缩格式下依然能被找到。
+     *
+     * @throws Exception if compression or parsing fails
+     *                   当压缩或解析失败时抛出
+     */
+    @Test
+    public void findInhabitedTimeMatchesTagAcrossWindowBoundary() throws Exception {
+        // Both the inflate window and the default LZ4 block are 64 KiB. A byte array fills the data
+        // up to just before the boundary so that the InhabitedTime tag straddles it.
+        // inflate 窗口和 LZ4 默认数据块大小都是 64 KiB，用一个字节数组把数据填充到边界之前，让 InhabitedTime 标签横跨边界
+        int tagOffset = 65536 - 5;
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(raw)) {
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeShort(0);
+            out.writeByte(NBTTagConstants.TAG_BYTE_ARRAY);
+            out.writeUTF("data");
+            int fillerLength = tagOffset - (3 + 1 + 2 + 4 + 4);
+            out.writeInt(fillerLength);
+            out.write(new byte[fillerLength]);
+            out.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+            out.writeLong(123456789L);
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+        byte[] payload = raw.toByteArray();
+
+        try (DecompressorPool pool = new DecompressorPool()) {
+            for (int compressionType = 1; compressionType <= 4; compressionType++) {
+                ByteBuffer compressed = ByteBuffer.wrap(compress(payload, compressionType));
+                assertEquals(123456789L, ChunkUtils.findInhabitedTime(compressed, compressionType, pool));
+            }
+        }
+    }
+
+    /**
+     * Verifies that the structural walk finds InhabitedTime inside the pre-1.18 {@code Level}
+     * compound, skipping arrays, lists and strings whose contents look like the tag.
+     * 验证按结构遍历时能在 1.18 之前的 {@code Level} 复合标签中找到 InhabitedTime，并跳过内容和标签字节相同的数组、列表和字符串。
+     *
+     * @throws Exception if parsing fails
+     *                   当解析失败时抛出
+     */
+    @Test
+    public void findInhabitedTimeSkipsLookalikePayloadsInLegacyLevel() throws Exception {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(raw)) {
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeShort(0);
+            out.writeByte(NBTTagConstants.TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(DataVersionConstants.DATA_VERSION_1_12_2);
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeUTF("Level");
+            writeLookalikeTags(out);
+            out.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+            out.writeLong(4242L);
+            out.writeByte(NBTTagConstants.TAG_END);
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+
+        try (DecompressorPool pool = new DecompressorPool()) {
+            assertEquals(4242L, ChunkUtils.findInhabitedTime(ByteBuffer.wrap(compress(raw.toByteArray(), 2)), 2, pool));
+        }
+    }
+
+    /**
+     * Verifies that from 1.18 on, InhabitedTime is read from the root compound and a stray
+     * {@code Level} compound is skipped.
+     * 验证从 1.18 开始，InhabitedTime 从根复合标签中读取，多余的 {@code Level} 复合标签会被跳过。
+     *
+     * @throws Exception if parsing fails
+     *                   当解析失败时抛出
+     */
+    @Test
+    public void findInhabitedTimeReadsRootTagFromModernChunks() throws Exception {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(raw)) {
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeShort(0);
+            out.writeByte(NBTTagConstants.TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(DataVersionConstants.DATA_VERSION_21W43A);
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeUTF("Level");
+            out.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+            out.writeLong(1L);
+            out.writeByte(NBTTagConstants.TAG_END);
+            writeLookalikeTags(out);
+            out.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+            out.writeLong(77L);
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+
+        try (DecompressorPool pool = new DecompressorPool()) {
+            assertEquals(77L, ChunkUtils.findInhabitedTime(ByteBuffer.wrap(compress(raw.toByteArray(), 4)), 4, pool));
+        }
+    }
+
+    /**
+     * Verifies that all requested root fields are collected in one pass, both from the modern root
+     * layout and from the legacy {@code Level} layout.
+     * 验证一次遍历就能提取所有请求的字段，包括新版的根标签布局和旧版的 {@code Level} 布局。
+     *
+     * @throws Exception if parsing fails
+     *                   当解析失败时抛出
+     */
+    @Test
+    public void extractChunkDataCollectsAllFieldsInOnePass() throws Exception {
+        ByteArrayOutputStream modern = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(modern)) {
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeShort(0);
+            out.writeByte(NBTTagConstants.TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(3953);
+            writeChunkFields(out, "minecraft:full", "block_entities");
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(legacy)) {
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeShort(0);
+            out.writeByte(NBTTagConstants.TAG_COMPOUND);
+            out.writeUTF("Level");
+            writeChunkFields(out, "postprocessed", "TileEntities");
+            out.writeByte(NBTTagConstants.TAG_END);
+            out.writeByte(NBTTagConstants.TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(DataVersionConstants.DATA_VERSION_1_12_2);
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+
+        try (DecompressorPool pool = new DecompressorPool()) {
+            ChunkData modernData = ChunkUtils.extractChunkData(ByteBuffer.wrap(compress(modern.toByteArray(), 2)), 2, ChunkFieldConstants.ALL, pool);
+            assertTrue(modernData.has(ChunkFieldConstants.ALL));
+            assertEquals(900L, modernData.getInhabitedTime());
+            assertEquals(123L, modernData.getLastUpdate());
+            assertEquals("minecraft:full", modernData.getStatus());
+            assertEquals(3953, modernData.getDataVersion());
+            assertEquals(2, modernData.getBlockEntityCount());
+
+            ChunkData legacyData = ChunkUtils.extractChunkData(ByteBuffer.wrap(compress(legacy.toByteArray(), 1)), 1, ChunkFieldConstants.ALL, pool);
+            assertTrue(legacyData.has(ChunkFieldConstants.ALL));
+            assertEquals(900L, legacyData.getInhabitedTime());
+            assertEquals("postprocessed", legacyData.getStatus());
+            assertEquals(DataVersionConstants.DATA_VERSION_1_12_2, legacyData.getDataVersion());
+            assertEquals(2, legacyData.getBlockEntityCount());
+
+            // Fields that were not requested are left unset.
+            // 没有请求的字段不会被设置
+            ChunkData onlyInhabited = ChunkUtils.extractChunkData(ByteBuffer.wrap(modern.toByteArray()), 3, ChunkFieldConstants.INHABITED_TIME, pool);
+            assertEquals(900L, onlyInhabited.getInhabitedTime());
+            assertFalse(onlyInhabited.has(ChunkFieldConstants.STATUS));
+            assertFalse(onlyInhabited.has(ChunkFieldConstants.BLOCK_ENTITY_COUNT));
+        }
+    }
+
+    /**
+     * Writes the extractable chunk fields, with a two-element block-entity list.
+     * 写入可提取的区块字段，方块实体列表中有两个元素。
+     */
+    private static void writeChunkFields(DataOutputStream out, String status, String blockEntitiesName) throws Exception {
+        out.writeByte(NBTTagConstants.TAG_LONG);
+        out.writeUTF("LastUpdate");
+        out.writeLong(123L);
+        out.writeByte(NBTTagConstants.TAG_STRING);
+        out.writeUTF("Status");
+        out.writeUTF(status);
+        out.writeByte(NBTTagConstants.TAG_LIST);
+        out.writeUTF(blockEntitiesName);
+        out.writeByte(NBTTagConstants.TAG_COMPOUND);
+        out.writeInt(2);
+        for (int i = 0; i < 2; i++) {
+            out.writeByte(NBTTagConstants.TAG_STRING);
+            out.writeUTF("id");
+            out.writeUTF("minecraft:chest");
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+        out.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+        out.writeLong(900L);
+    }
+
+    /**
+     * Writes tags whose payloads contain the InhabitedTime tag bytes followed by a bogus value, so
+     * that a plain byte search would pick the wrong value.
+     * 写入一些负载中包含 InhabitedTime 标签字节和错误值的标签，单纯的字节查找会读到错误的值。
+     */
+    private static void writeLookalikeTags(DataOutputStream out) throws Exception {
+        ByteArrayOutputStream fake = new ByteArrayOutputStream();
+        fake.write(NBTTagConstants.INHABITED_TIME_TAG_BIN);
+        fake.write(new byte[]{0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F, 0x7F});
+        byte[] fakeBytes = fake.toByteArray();
+        // TAG_String
+        out.writeByte(NBTTagConstants.TAG_STRING);
+        out.writeUTF("Status");
+        out.writeShort(fakeBytes.length);
+        out.write(fakeBytes);
+        // TAG_Byte_Array
+        out.writeByte(NBTTagConstants.TAG_BYTE_ARRAY);
+        out.writeUTF("Biomes");
+        out.writeInt(fakeBytes.length);
+        out.write(fakeBytes);
+        // TAG_Long_Array (length rounded up to whole longs)
+        out.writeByte(NBTTagConstants.TAG_LONG_ARRAY);
+        out.writeUTF("BlockStates");
+        out.writeInt(3);
+        out.write(fakeBytes);
+        out.write(new byte[24 - fakeBytes.length]);
+        // TAG_List of compounds, each holding a byte array
+        out.writeByte(NBTTagConstants.TAG_LIST);
+        out.writeUTF("Sections");
+        out.writeByte(NBTTagConstants.TAG_COMPOUND);
+        out.writeInt(2);
+        for (int i = 0; i < 2; i++) {
+            out.writeByte(NBTTagConstants.TAG_BYTE_ARRAY);
+            out.writeUTF("Blocks");
+            out.writeInt(fakeBytes.length);
+            out.write(fakeBytes);
+            out.writeByte(NBTTagConstants.TAG_END);
+        }
+        // TAG_List of longs
+        out.writeByte(NBTTagConstants.TAG_LIST);
+        out.writeUTF("Ticks");
+        out.writeByte(NBTTagConstants.TAG_LONG);
+        out.writeInt(2);
+        out.writeLong(0x7F7F7F7F7F7F7F7FL);
+        out.writeLong(0x7F7F7F7F7F7F7F7FL);
+    }
+
+    /**
+     * Compresses a payload with the given region-file compression type.
+     * 按给定的 Region 文件压缩类型压缩数据。
+     *
+     * @param input           uncompressed payload
+     *                        未压缩的数据
+     * @param compressionType region-file compression type
+     *                        Region 文件压缩类型
+     * @return compressed payload bytes
+     * 压缩后的数据
+     * @throws Exception if compression fails
+     *                   当压缩失败时抛出
+     */
+    private static byte[] compress(byte[] input, int compressionType) throws Exception {
+        if (compressionType == 3) {
+            return input;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream compressor;
+        if (compressionType == 1) {
+            compressor = new GZIPOutputStream(baos);
+        } else if (compressionType == 2) {
+            compressor = new DeflaterOutputStream(baos);
+        } else {
+            compressor = new LZ4BlockOutputStream(baos);
+        }
+        try (OutputStream out = compressor) {
+            out.write(input);
+        }
+        return baos.toByteArray();
+    }
 }
@@ -0,0 +1,144 @@
+import indi.somebottle.constants.NBTTagConstants;
+import indi.somebottle.streams.WindowedInputStream;
+import indi.somebottle.utils.ByteSearchUtils;
+import indi.somebottle.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers the windowed SWAR byte-sequence search against the original scalar implementation.
+ * 以原先的逐字节实现为基准，覆盖基于窗口的 SWAR 字节序列查找。
+ */
+public class IOUtilsTest {
+    /**
+     * Tags searched for in chunk data and chunks.dat files.
+     * 在区块数据和 chunks.dat 中需要查找的标签。
+     */
+    private static final byte[][] TAGS = {
+            NBTTagConstants.INHABITED_TIME_TAG_BIN,
+            NBTTagConstants.DATA_VERSION_TAG_BIN,
+            NBTTagConstants.TICKETS_COMPOUND_TAG_BIN
+    };
+
+    /**
+     * Verifies on random inputs with planted full and partial tags that the windowed search finds the
+     * same position as the scalar search, whatever the window sizes are.
+     * 在植入了完整标签和部分标签的随机数据上，验证无论窗口大小如何，窗口查找的结果都和逐字节查找一致。
+     *
+     * @throws Exception if reading fails
+     *                   当读取失败时抛出
+     */
+    @Test
+    public void windowedSearchMatchesScalarSearch() throws Exception {
+        Random random = new Random(20241017L);
+        for (int round = 0; round < 2000; round++) {
+            byte[] tag = TAGS[round % TAGS.length];
+            byte[] data = randomData(random, tag, random.nextInt(600));
+            int maxWindow = 1 + random.nextInt(64);
+
+            InputStream scalar = new ByteArrayInputStream(data);
+            boolean scalarFound = IOUtils.findAndSkipBytes(scalar, tag);
+            InputStream windowed = new RandomWindowInputStream(data, maxWindow, random.nextLong());
+            boolean windowedFound = IOUtils.findAndSkipBytes(windowed, tag);
+
+            assertEquals("round " + round, scalarFound, windowedFound);
+            // The next byte after the match (or end of stream) must line up too.
+            // 匹配之后（或者流末尾）的下一个字节也必须一致
+            assertEquals("round " + round, scalar.read(), windowed.read());
+            assertEquals("round " + round, drain(scalar), drain(windowed));
+        }
+    }
+
+    /**
+     * Verifies that the SWAR index search agrees with a naive search at every offset range.
+     * 验证 SWAR 下标查找在各种范围下都和朴素查找的结果一致。
+     */
+    @Test
+    public void indexOfMatchesNaiveSearch() {
+        Random random = new Random(42L);
+        for (int round = 0; round < 2000; round++) {
+            byte[] tag = TAGS[round % TAGS.length];
+            byte[] data = randomData(random, tag, random.nextInt(200));
+            int from = random.nextInt(data.length + 1);
+            int to = from + random.nextInt(data.length - from + 1);
+
+            assertEquals("round " + round, naiveIndexOf(data, from, to, tag), ByteSearchUtils.indexOf(data, from, to, tag));
+        }
+    }
+
+    /**
+     * Builds random bytes drawn mostly from the tag alphabet, with full and truncated copies of the
+     * tag planted at random positions.
+     * 生成主要由标签字节组成的随机数据，并在随机位置植入完整或被截断的标签。
+     */
+    private static byte[] randomData(Random random, byte[] tag, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = random.nextBoolean() ? tag[random.nextInt(tag.length)] : (byte) random.nextInt(256);
+        }
+        int plants = random.nextInt(4);
+        for (int p = 0; p < plants && length > 0; p++) {
+            int pos = random.nextInt(length);
+            int len = Math.min(random.nextBoolean() ? tag.length : random.nextInt(tag.length), length - pos);
+            System.arraycopy(tag, 0, data, pos, len);
+        }
+        return data;
+    }
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte[] seq) {
+        outer:
+        for (int i = from; i + seq.length <= to; i++) {
+            for (int j = 0; j < seq.length; j++) {
+                if (data[i + j] != seq[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int drain(InputStream is) throws IOException {
+        int count = 0;
+        while (is.read() != -1)
+            count++;
+        return count;
+    }
+
+    /**
+     * Serves a byte array as windows of random size.
+     * 把字节数组按随机大小的窗口提供出来。
+     */
+    private static final class RandomWindowInputStream extends WindowedInputStream {
+        private final byte[] data;
+        private final int maxWindow;
+        private final Random random;
+        private int nextStart = 0;
+
+        RandomWindowInputStream(byte[] data, int maxWindow, long seed) {
+            this.data = data;
+            this.maxWindow = maxWindow;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        protected boolean fillWindow() throws IOException {
+            if (nextStart >= data.length)
+                return false;
+            int size = Math.min(1 + random.nextInt(maxWindow), data.length - nextStart);
+            // Copy into a fresh array so windows never share offsets with the source.
+            // 拷贝到新数组中，保证窗口下标和源数据无关
+            window = new byte[size + random.nextInt(4)];
+            System.arraycopy(data, nextStart, window, 0, size);
+            windowPos = 0;
+            windowLimit = size;
+            nextStart += size;
+            return true;
+        }
+    }
+}
@@ -1,9 +1,22 @@
+import indi.somebottle.Potato;
+import indi.somebottle.constants.ChunkLayoutConstants;
+import indi.somebottle.constants.DurabilityConstants;
+import indi.somebottle.entities.ManifestEntry;
+import indi.somebottle.entities.PeelOptions;
 import indi.somebottle.entities.PeelResult;
 import indi.somebottle.entities.Region;
 import indi.somebottle.entities.TaskParams;
 import indi.somebottle.indexing.ChunksSpatialIndexFactory;
+import indi.somebottle.tasks.AdaptiveRegionTasks;
+import indi.somebottle.tasks.DurabilityBarrier;
+import indi.somebottle.tasks.ProgressTracker;
+import indi.somebottle.tasks.RegionTaskDispatcher;
+import indi.somebottle.tasks.TimeBudget;
 import indi.somebottle.tasks.runners.CopyBasedRegionTaskRunner;
 import indi.somebottle.tasks.runners.InPlaceRegionTaskRunner;
+import indi.somebottle.utils.ManifestUtils;
+import indi.somebottle.utils.RegionCompactUtils;
+import indi.somebottle.utils.RegionUtils;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
@@ -11,9 +24,15 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,11 +40,12 @@ import java.util.logging.Logger;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
- * Covers failure-handling paths of region task runners, especially backup and restore behavior.
- * 覆盖 Region 任务执行器的失败处理路径，重点验证备份与恢复行为。
+ * Covers failure-handling paths of region task runners, especially journal replay and restore behavior.
+ * 覆盖 Region 任务执行器的失败处理路径，重点验证日志重放与恢复行为。
  */
 public class RegionTaskRunnerTest {
     /**
@@ -46,22 +66,23 @@ public class RegionTaskRunnerTest {
     public TemporaryFolder temp = new TemporaryFolder();
 
     /**
-     * Verifies that the in-place runner restores the original region file from the backup file when
-     * writing the modified region fails after a partial output has already been produced.
-     * 验证原地处理模式在部分输出已经产生后写入失败时，会从备份文件恢复原始 Region 文件。
+     * Verifies that when in-place compaction fails after its journal has been committed and the
+     * region file has already been damaged, the runner replays the journal and still ends up with a
+     * correctly compacted region file.
+     * 验证原地压实在日志写好、区域文件已经被破坏之后失败时，Runner 会重放日志，最终仍得到正确压实的区域文件。
      *
      * @throws Exception if fixture generation or verification fails
      *                   当夹具生成或结果校验失败时抛出
      */
     @Test
-    public void inPlaceRunnerRestoresBakFileWhenWriteFails() throws Exception {
+    public void inPlaceRunnerReplaysJournalWhenCompactionFails() throws Exception {
         Path worldDir = temp.getRoot().toPath().resolve("world");
         Path regionPath = worldDir.resolve("region").resolve("r.0.0.mca");
         TestDataFactory.writeRegionFile(
                 regionPath,
-                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L)
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
         );
-        byte[] originalBytes = Files.readAllBytes(regionPath);
 
         Queue<File> queue = new ArrayDeque<>();
         queue.add(regionPath.toFile());
@@ -71,10 +92,15 @@ public class RegionTaskRunnerTest {
         runner.run();
 
         PeelResult result = runner.getTaskResult();
-        assertArrayEquals(originalBytes, Files.readAllBytes(regionPath));
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+        assertFalse(Files.exists(regionPath.resolveSibling("r.0.0.mca.journal")));
         assertFalse(Files.exists(regionPath.resolveSibling("r.0.0.mca.bak")));
-        assertEquals(0L, result.getRegionsAffected());
-        assertEquals(0L, result.getChunksRemoved());
+        assertEquals(8192L + 4096L, Files.size(regionPath));
+        assertNull(compacted.getChunkAt(0, 0));
+        assertEquals(50L, compacted.getChunkAt(1, 0).getInhabitedTime());
+        assertEquals(200L, compacted.getChunkModifiedTimeAt(1, 0));
+        assertEquals(1L, result.getRegionsAffected());
+        assertEquals(1L, result.getChunksRemoved());
     }
 
     /**
@@ -92,7 +118,8 @@ public class RegionTaskRunnerTest {
         Path regionPath = worldDir.resolve("region").resolve("r.0.0.mca");
         TestDataFactory.writeRegionFile(
                 regionPath,
-                new TestDataFactory.RegionChunkSpec(0, 0, 1, 0L, 100L)
+                new TestDataFactory.RegionChunkSpec(0, 0, 1, 0L, 100L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 1, 50L, 200L)
         );
         byte[] originalBytes = Files.readAllBytes(regionPath);
 
@@ -112,13 +139,671 @@ public class RegionTaskRunnerTest {
     }
 
     /**
-     * Test double that forces in-place writes to fail after leaving behind a corrupt partial file.
-     * 用于模拟原地写入时先产生损坏文件、随后再失败的测试替身。
+     * Verifies that the copy-based runner hard links unchanged regions when requested, and writes
+     * changed regions straight into the output tree without touching the source.
+     * 验证复制输出模式在指定时会以硬链接输出未修改的 Region，被修改的 Region 直接写到输出目录且不影响源文件。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void copyBasedRunnerLinksUnchangedRegionsAndWritesChangedOnesDirectly() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        Path outputDir = temp.getRoot().toPath().resolve("output");
+        Path unchangedPath = worldDir.resolve("region").resolve("r.0.0.mca");
+        Path changedPath = worldDir.resolve("region").resolve("r.1.0.mca");
+        TestDataFactory.writeRegionFile(
+                unchangedPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 80L, 100L)
+        );
+        TestDataFactory.writeRegionFile(
+                changedPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 90L, 200L)
+        );
+        byte[] changedOriginalBytes = Files.readAllBytes(changedPath);
+
+        Queue<File> queue = new ArrayDeque<>();
+        queue.add(unchangedPath.toFile());
+        queue.add(changedPath.toFile());
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, outputDir);
+        params.linkUnchanged = true;
+        CopyBasedRegionTaskRunner runner = new CopyBasedRegionTaskRunner(queue, params);
+
+        runner.run();
+
+        Path unchangedOutput = outputDir.resolve("region").resolve("r.0.0.mca");
+        Path changedOutput = outputDir.resolve("region").resolve("r.1.0.mca");
+        Region trimmed = RegionUtils.readRegion(changedOutput.toFile());
+        assertTrue(Files.isSameFile(unchangedPath, unchangedOutput));
+        assertArrayEquals(changedOriginalBytes, Files.readAllBytes(changedPath));
+        assertNull(trimmed.getChunkAt(0, 0));
+        assertEquals(90L, trimmed.getChunkAt(1, 0).getInhabitedTime());
+        assertEquals(1L, runner.getTaskResult().getRegionsAffected());
+        assertEquals(1L, runner.getTaskResult().getChunksRemoved());
+    }
+
+    /**
+     * Verifies that a region whose chunks are all removed is deleted in place and simply not
+     * written by the copy-based runner, and that both count it as a deleted region.
+     * 验证所有区块都被移除的 Region 在原地模式下会被删除、在复制输出模式下不会被输出，并且都计入被删除的 Region 数。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void runnersDeleteRegionsWhoseChunksAreAllRemoved() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        Path outputDir = temp.getRoot().toPath().resolve("output");
+        Path regionPath = worldDir.resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 4, 0L, 200L)
+        );
+
+        Queue<File> copyQueue = new ArrayDeque<>();
+        copyQueue.add(regionPath.toFile());
+        TaskParams copyParams = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, outputDir);
+        CopyBasedRegionTaskRunner copyRunner = new CopyBasedRegionTaskRunner(copyQueue, copyParams);
+        copyRunner.run();
+
+        assertFalse(Files.exists(outputDir.resolve("region").resolve("r.0.0.mca")));
+        assertTrue(Files.exists(regionPath));
+        assertEquals(1L, copyRunner.getTaskResult().getRegionsDeleted());
+
+        long originalSize = Files.size(regionPath);
+        Queue<File> inPlaceQueue = new ArrayDeque<>();
+        inPlaceQueue.add(regionPath.toFile());
+        TaskParams inPlaceParams = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        InPlaceRegionTaskRunner inPlaceRunner = new InPlaceRegionTaskRunner(inPlaceQueue, inPlaceParams);
+        inPlaceRunner.run();
+
+        PeelResult result = inPlaceRunner.getTaskResult();
+        assertFalse(Files.exists(regionPath));
+        assertEquals(1L, result.getRegionsAffected());
+        assertEquals(1L, result.getRegionsDeleted());
+        assertEquals(2L, result.getChunksRemoved());
+        assertEquals(originalSize, result.getSizeReduced());
+    }
+
+    /**
+     * Verifies that with a batched durability barrier the in-place runner hands the deletion of the
+     * compaction journal and of a stale legacy backup to the barrier, and that both are gone once the
+     * barrier has been closed.
+     * 验证使用成批刷盘屏障时，原地模式把压实日志和旧版本残留备份的删除交给屏障，屏障关闭后两者都已被删除。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void inPlaceRunnerDefersJournalDeletionToDurabilityBarrier() throws Exception {
+        assertBarrierCleansUpAfterCompaction(DurabilityConstants.BATCHED);
+    }
+
+    /**
+     * Verifies that with durability turned off (the default) the in-place runner still compacts the
+     * region and removes the journal and the stale legacy backup, only without any fsync.
+     * 验证关闭刷盘（默认方式）时，原地模式仍然会压实区域文件并删除压实日志和旧版本残留备份，只是不做 fsync。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void inPlaceRunnerCleansUpWithDurabilityOff() throws Exception {
+        assertEquals(DurabilityConstants.OFF, new PeelOptions().durability);
+        assertBarrierCleansUpAfterCompaction(DurabilityConstants.OFF);
+    }
+
+    /**
+     * Runs the in-place runner over a region with a stale legacy backup through a barrier of the
+     * given mode, and checks the compacted result and that the journal and backup are gone.
+     * 通过指定方式的刷盘屏障对带有旧版本残留备份的 Region 运行原地模式，校验压实结果以及日志和备份都已被删除。
+     *
+     * @param durability durability mode of the barrier
+     *                   屏障的刷盘方式
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    private void assertBarrierCleansUpAfterCompaction(int durability) throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        Path regionPath = worldDir.resolve("region").resolve("r.0.0.mca");
+        Path backupPath = regionPath.resolveSibling("r.0.0.mca.bak");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+        );
+        Files.copy(regionPath, backupPath);
+
+        Queue<File> queue = new ArrayDeque<>();
+        queue.add(regionPath.toFile());
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        DurabilityBarrier barrier = new DurabilityBarrier(durability);
+        params.durabilityBarrier = barrier;
+        InPlaceRegionTaskRunner runner = new InPlaceRegionTaskRunner(queue, params);
+
+        runner.run();
+        barrier.close();
+
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+        assertFalse(Files.exists(regionPath.resolveSibling("r.0.0.mca.journal")));
+        assertFalse(Files.exists(backupPath));
+        assertEquals(0L, barrier.getFailedCount());
+        assertEquals(8192L + 4096L, Files.size(regionPath));
+        assertNull(compacted.getChunkAt(0, 0));
+        assertEquals(50L, compacted.getChunkAt(1, 0).getInhabitedTime());
+        assertEquals(1L, runner.getTaskResult().getRegionsAffected());
+    }
+
+    /**
+     * Verifies that the in-place runner also leaves the fsyncs of region deletions and of layout
+     * rewrites to the durability barrier: the relayout temp file replaces the region file only
+     * through the barrier, and the directory of a deleted region is flushed by it.
+     * 验证原地模式删除区域文件和重新排列区块时，同样把刷盘交给刷盘屏障：重新排列的临时文件由屏障替换原文件，
+     * 被删除的区域文件所在目录也由屏障刷盘。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void inPlaceRunnerHandsDeletionsAndRelayoutsToDurabilityBarrier() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        Path relayoutPath = worldDir.resolve("region").resolve("r.0.0.mca");
+        Path emptiedPath = worldDir.resolve("region").resolve("r.1.0.mca");
+        TestDataFactory.writeRegionFile(
+                relayoutPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 1L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 2L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 2, 3L, 30L),
+                new TestDataFactory.RegionChunkSpec(0, 1, 2, 4L, 40L),
+                new TestDataFactory.RegionChunkSpec(1, 1, 2, 5L, 50L)
+        );
+        TestDataFactory.writeRegionFile(
+                emptiedPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L)
+        );
+
+        Queue<File> queue = new ArrayDeque<>();
+        queue.add(relayoutPath.toFile());
+        queue.add(emptiedPath.toFile());
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        params.chunkLayout = ChunkLayoutConstants.Z_ORDER;
+        RecordingDurabilityBarrier barrier = new RecordingDurabilityBarrier();
+        params.durabilityBarrier = barrier;
+        InPlaceRegionTaskRunner runner = new InPlaceRegionTaskRunner(queue, params);
+
+        runner.run();
+        barrier.close();
+
+        assertEquals(Collections.singletonList(relayoutPath.toFile()), barrier.replacements);
+        assertEquals(Collections.singletonList(emptiedPath.toFile().getAbsoluteFile().getParentFile()), barrier.directories);
+        assertEquals(0L, barrier.getFailedCount());
+        assertFalse(Files.exists(emptiedPath));
+        assertFalse(Files.exists(relayoutPath.resolveSibling("r.0.0.mca.relayout")));
+        assertTrue(RegionUtils.isInLayoutOrder(RegionUtils.readRegion(relayoutPath.toFile()), ChunkLayoutConstants.Z_ORDER));
+        assertEquals(2L, runner.getTaskResult().getRegionsAffected());
+        assertEquals(1L, runner.getTaskResult().getRegionsDeleted());
+    }
+
+    /**
+     * Verifies that the dispatcher hands regions out from the shared queue largest first, whatever
+     * order they were added in, and that progress reaches 100% afterwards. The claim order is
+     * recorded through the progress tracker, which the worker notifies right after each read.
+     * 验证调度器不论添加顺序如何，都从共享队列中按大小从大到小分发 Region，且处理完后进度为 100%。
+     * 领取顺序通过进度统计记录，工作线程每读完一个 Region 就会通知它。
+     *
+     * @throws Exception if fixture generation, dispatching, or verification fails
+     *                   当夹具生成、调度或结果校验失败时抛出
+     */
+    @Test
+    public void dispatcherHandsOutRegionsLargestFirst() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        // 按从小到大的顺序添加，和领取顺序正好相反
+        int[] sectors = {1, 4, 2, 5, 3};
+        List<Long> sizes = new ArrayList<>();
+        for (int i = 0; i < sectors.length; i++) {
+            Path mcaPath = TestDataFactory.writeRegionFile(
+                    worldDir.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L, sectors[i]),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+            sizes.add(Files.size(mcaPath));
+        }
+
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        ClaimOrderTracker tracker = new ClaimOrderTracker();
+        params.progressTracker = tracker;
+        // 只有一个工作线程时，读取顺序就是领取顺序
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(1, params);
+        for (int i = 0; i < sectors.length; i++) {
+            dispatcher.addTask(worldDir.resolve("region").resolve("r." + i + ".0.mca").toFile());
+        }
+        assertEquals(0f, dispatcher.getTaskProcess(), 0f);
+        dispatcher.start();
+
+        assertTrue(dispatcher.waitForCompletion());
+        PeelResult result = dispatcher.getResult();
+        sizes.sort(Collections.reverseOrder());
+        assertEquals(sizes, tracker.claimedSizes);
+        assertEquals(100f, dispatcher.getTaskProcess(), 0f);
+        assertEquals(5L, result.getRegionsAffected());
+        assertEquals(5L, result.getChunksRemoved());
+    }
+
+    /**
+     * Verifies that the staged pipeline processes every region once, including regions that are
+     * larger than the whole in-flight budget, and that the per-stage statistics add up.
+     * 验证分阶段的流水线会处理每个 Region 文件恰好一次（包括比整个在途预算还大的文件），并且各阶段的统计结果能正确汇总。
+     *
+     * @throws Exception if test setup or pipeline execution fails
+     *                   当测试准备或流水线执行失败时抛出
+     */
+    @Test
+    public void pipelineProcessesEveryRegionWithinByteBudget() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        for (int i = 0; i < 6; i++) {
+            TestDataFactory.writeRegionFile(
+                    worldDir.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L, i + 1),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+        }
+        // 所有区块都被删除的区域文件
+        TestDataFactory.writeRegionFile(
+                worldDir.resolve("region").resolve("r.9.0.mca"),
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L)
+        );
+
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(2, params);
+        // 预算比单个区域文件还小，任务只能一个一个地通过流水线
+        dispatcher.usePipeline(1, 4096L);
+        for (int i = 0; i < 6; i++) {
+            dispatcher.addTask(worldDir.resolve("region").resolve("r." + i + ".0.mca").toFile());
+        }
+        dispatcher.addTask(worldDir.resolve("region").resolve("r.9.0.mca").toFile());
+        dispatcher.start();
+
+        assertTrue(dispatcher.waitForCompletion());
+        PeelResult result = dispatcher.getResult();
+        assertEquals(100f, dispatcher.getTaskProcess(), 0f);
+        assertEquals(7L, result.getRegionsAffected());
+        assertEquals(7L, result.getChunksRemoved());
+        assertEquals(1L, result.getRegionsDeleted());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(8192L + 4096L, Files.size(worldDir.resolve("region").resolve("r." + i + ".0.mca")));
+        }
+        assertFalse(Files.exists(worldDir.resolve("region").resolve("r.9.0.mca")));
+    }
+
+    /**
+     * Verifies that the one-thread-per-region mode processes every region once while borrowing a
+     * bounded number of runners, whether or not the runtime supports virtual threads.
+     * 验证每个 Region 一个线程的执行方式在只借用有限个执行器的情况下会处理每个 Region 恰好一次（无论运行时是否支持虚拟线程）。
+     *
+     * @throws Exception if test setup or execution fails
+     *                   当测试准备或执行失败时抛出
+     */
+    @Test
+    public void virtualThreadModeProcessesEveryRegionOnce() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        for (int i = 0; i < 8; i++) {
+            TestDataFactory.writeRegionFile(
+                    worldDir.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L, i + 1),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+        }
+
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(1, params);
+        // 任务比执行器多，多出来的任务要等执行器归还
+        dispatcher.useVirtualThreads(2);
+        for (int i = 0; i < 8; i++) {
+            dispatcher.addTask(worldDir.resolve("region").resolve("r." + i + ".0.mca").toFile());
+        }
+        dispatcher.start();
+
+        assertTrue(dispatcher.waitForCompletion());
+        PeelResult result = dispatcher.getResult();
+        assertEquals(100f, dispatcher.getTaskProcess(), 0f);
+        assertEquals(8L, result.getRegionsAffected());
+        assertEquals(8L, result.getChunksRemoved());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(8192L + 4096L, Files.size(worldDir.resolve("region").resolve("r." + i + ".0.mca")));
+        }
+    }
+
+    /**
+     * Verifies that the adaptive mode processes every region once with its workers gated by the
+     * adjustable concurrency limit.
+     * 验证自动调整并发数的执行方式在工作线程受可调并发名额限制的情况下会处理每个 Region 恰好一次。
+     *
+     * @throws Exception if test setup or execution fails
+     *                   当测试准备或执行失败时抛出
+     */
+    @Test
+    public void adaptiveModeProcessesEveryRegionOnce() throws Exception {
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        for (int i = 0; i < 8; i++) {
+            TestDataFactory.writeRegionFile(
+                    worldDir.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L, i + 1),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+        }
+
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(1, params);
+        dispatcher.useAdaptiveThreads(1, 4);
+        for (int i = 0; i < 8; i++) {
+            dispatcher.addTask(worldDir.resolve("region").resolve("r." + i + ".0.mca").toFile());
+        }
+        dispatcher.start();
+
+        assertTrue(dispatcher.waitForCompletion());
+        PeelResult result = dispatcher.getResult();
+        assertEquals(100f, dispatcher.getTaskProcess(), 0f);
+        assertEquals(8L, result.getRegionsAffected());
+        assertEquals(8L, result.getChunksRemoved());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(8192L + 4096L, Files.size(worldDir.resolve("region").resolve("r." + i + ".0.mca")));
+        }
+    }
+
+    /**
+     * Feeds synthetic throughput windows to the adaptive controller and verifies slow start,
+     * that shrinking files alone (bytes/s down, regions/s up) do not cut the worker count, the
+     * multiplicative decrease when both rates drop, and additive increase afterwards.
+     * 向自适应并发控制输入模拟的统计窗口，验证慢启动、只是文件变小（字节/秒下降而区域/秒上升）时不会减少并发数、
+     * 两种吞吐量都下降时的乘性减，以及之后的加性增。
+     */
+    @Test
+    public void adaptiveConcurrencyFollowsSizeIndependentThroughput() {
+        long mib = 1024 * 1024;
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, temp.getRoot().toPath(), null);
+        AdaptiveRegionTasks tasks = new AdaptiveRegionTasks(new ArrayDeque<>(), params, 2, 12);
+        assertEquals(2, tasks.getConcurrencyLimit());
+
+        // 慢启动：每个窗口翻倍
+        feedWindow(tasks, 1000, 2, 10 * mib);
+        assertEquals(4, tasks.getConcurrencyLimit());
+        feedWindow(tasks, 2000, 4, 10 * mib);
+        assertEquals(8, tasks.getConcurrencyLimit());
+        // 文件变小：字节/秒下降 20%，但区域/秒翻倍，不是并发过高
+        feedWindow(tasks, 3000, 8, 4 * mib);
+        assertEquals(12, tasks.getConcurrencyLimit());
+        // 窗口时长和区域文件数都够了才结算
+        tasks.regionDone(mib, 3500);
+        assertEquals(12, tasks.getConcurrencyLimit());
+        feedWindow(tasks, 4000, 11, mib);
+        assertEquals(12, tasks.getConcurrencyLimit());
+        // 字节/秒和区域/秒都下降：减少四分之一，结束慢启动
+        feedWindow(tasks, 7000, 12, mib);
+        assertEquals(9, tasks.getConcurrencyLimit());
+        // 加性增
+        feedWindow(tasks, 8000, 9, mib);
+        assertEquals(10, tasks.getConcurrencyLimit());
+    }
+
+    /**
+     * Reports the given number of finished regions of one size, the last one at {@code end}.
+     * 报告若干个同样大小的区域文件处理完毕，最后一个的完成时间为 {@code end}。
+     *
+     * @param tasks adaptive execution mode under test
+     *              被测试的自适应执行方式
+     * @param end time at which the window ends
+     *            窗口结束的时间
+     * @param regions number of finished regions
+     *                处理完的区域文件数
+     * @param bytes size of each region
+     *              每个区域文件的大小
+     */
+    private static void feedWindow(AdaptiveRegionTasks tasks, long end, int regions, long bytes) {
+        for (int i = 0; i < regions; i++) {
+            tasks.regionDone(bytes, i == regions - 1 ? end : end - 1);
+        }
+    }
+
+    /**
+     * Verifies that worlds listed in a manifest are processed by one shared dispatcher, each with
+     * its own threshold and output directory, and that results are reported per world.
+     * 验证任务清单中的多个世界由同一个调度器处理，各自使用自己的阈值和输出目录，且结果按世界分别汇总。
+     *
+     * @throws Exception if fixture generation, manifest parsing, or processing fails
+     *                   当夹具生成、清单解析或处理失败时抛出
+     */
+    @Test
+    public void manifestWorldsShareOneDispatcherWithPerWorldResults() throws Exception {
+        Path firstWorld = temp.getRoot().toPath().resolve("first");
+        Path secondWorld = temp.getRoot().toPath().resolve("second");
+        Path secondOutput = temp.getRoot().toPath().resolve("second_out");
+        for (int i = 0; i < 3; i++) {
+            TestDataFactory.writeRegionFile(
+                    firstWorld.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+            TestDataFactory.writeRegionFile(
+                    secondWorld.resolve("region").resolve("r." + i + ".0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+        }
+        Path manifest = temp.newFile("worlds.manifest").toPath();
+        Files.write(manifest, Arrays.asList(
+                "# test manifest",
+                firstWorld + ",priority=2",
+                secondWorld + ",min-inhabited=100,output=" + secondOutput,
+                temp.getRoot().toPath().resolve("missing") + "  # skipped"
+        ));
+
+        List<ManifestEntry> entries = ManifestUtils.readManifest(manifest.toFile(), 0L);
+        Map<String, PeelResult> results = Potato.peelAll(entries, 2, false, new PeelOptions());
+
+        assertEquals(3, entries.size());
+        assertEquals(2, results.size());
+        // 第一个世界原地处理，只删掉 InhabitedTime 为 0 的区块
+        PeelResult first = results.get(firstWorld.toString());
+        assertEquals(3L, first.getChunksRemoved());
+        assertEquals(8192L + 4096L, Files.size(firstWorld.resolve("region").resolve("r.0.0.mca")));
+        // 第二个世界阈值更高，两个区块都被删掉，输出目录中不会有区域文件
+        PeelResult second = results.get(secondWorld.toString());
+        assertEquals(6L, second.getChunksRemoved());
+        assertEquals(3L, second.getRegionsDeleted());
+        assertFalse(Files.exists(secondOutput.resolve("region").resolve("r.0.0.mca")));
+        assertTrue(Files.exists(secondWorld.resolve("region").resolve("r.0.0.mca")));
+    }
+
+    /**
+     * Verifies that all dimensions of a world are found and processed in one run, each with its
+     * own protected chunks list, and that their outputs keep the world-relative layout.
+     * 验证一次处理能找到并处理世界的所有维度，每个维度使用自己的受保护区块清单，且输出保持相对世界目录的结构。
+     *
+     * @throws Exception if fixture generation or processing fails
+     *                   当夹具生成或处理失败时抛出
+     */
+    @Test
+    public void allDimensionsAreProcessedWithTheirOwnProtectedChunks() throws Exception {
+        Path world = temp.getRoot().toPath().resolve("world");
+        Path output = temp.getRoot().toPath().resolve("world_out");
+        Path[] dimensionDirs = {
+                world,
+                world.resolve("DIM-1"),
+                world.resolve("dimensions").resolve("example").resolve("mining")
+        };
+        for (Path dimensionDir : dimensionDirs) {
+            TestDataFactory.writeRegionFile(
+                    dimensionDir.resolve("region").resolve("r.0.0.mca"),
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+        }
+        // 只有下界保护 (0,0) 区块
+        Files.write(world.resolve("DIM-1").resolve(Potato.PROTECTED_CHUNKS_LIST_FILENAME), Arrays.asList("0,0"));
+        // 还没有生成区块的维度会被跳过
+        Files.createDirectories(world.resolve("DIM1").resolve("region"));
+
+        PeelOptions options = new PeelOptions();
+        options.allDimensions = true;
+        PeelResult result = Potato.peel(world.toString(), output.toString(), 2, 0L, false, options);
+
+        // 主世界和数据包维度各删掉一个区块，下界的区块受保护
+        assertEquals(2L, result.getChunksRemoved());
+        for (Path dimensionDir : dimensionDirs) {
+            Path relativeRegionPath = world.relativize(dimensionDir.resolve("region").resolve("r.0.0.mca"));
+            assertTrue(Files.exists(output.resolve(relativeRegionPath)));
+        }
+        assertEquals(8192L + 4096L, Files.size(output.resolve("region").resolve("r.0.0.mca")));
+        assertEquals(8192L + 2 * 4096L, Files.size(output.resolve("DIM-1").resolve("region").resolve("r.0.0.mca")));
+    }
+
+    /**
+     * Verifies that dimension discovery only looks at the known dimension locations: nested region
+     * folders such as backups are not treated as dimensions, and symbolic links (including one that
+     * points back at the world, forming a cycle) are not followed.
+     * 验证维度发现只查看已知的维度位置：备份等嵌套的 region 目录不会被当作维度，
+     * 符号链接（包括指回世界目录、形成环路的链接）也不会被跟随。
+     *
+     * @throws Exception if fixture generation fails
+     *                   当夹具生成失败时抛出
+     */
+    @Test
+    public void allDimensionsDiscoveryIgnoresNestedRegionFoldersAndSymlinks() throws Exception {
+        Path world = temp.getRoot().toPath().resolve("world").toAbsolutePath();
+        List<Path> expected = Arrays.asList(
+                world.resolve("region"),
+                world.resolve("DIM-1").resolve("region"),
+                world.resolve("dimensions").resolve("example").resolve("mining").resolve("region")
+        );
+        for (Path regionDir : expected) {
+            Files.createDirectories(regionDir);
+        }
+        Files.createDirectories(world.resolve("backups").resolve("2024").resolve("region"));
+        Files.createDirectories(world.resolve("dimensions").resolve("example").resolve("mining").resolve("caves").resolve("region"));
+        try {
+            Files.createSymbolicLink(world.resolve("DIM7"), world);
+            Files.createDirectories(world.resolve("DIM2"));
+            Files.createSymbolicLink(world.resolve("DIM2").resolve("region"), world.resolve("region"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // 文件系统不支持符号链接时只检查嵌套目录
+        }
+
+        assertEquals(expected, RegionUtils.findAllRegionDirPaths(world.toString()));
+    }
+
+    /**
+     * Verifies that a time budget orders regions by estimated value, leaves the regions it does not
+     * reach untouched, and records them so that the next run processes them first.
+     * 验证时间预算按估算的价值排序区域文件，不处理预算用完后的区域文件，并把它们记录下来供下次运行优先处理。
+     *
+     * @throws Exception if fixture generation or processing fails
+     *                   当夹具生成或处理失败时抛出
+     */
+    @Test
+    public void timeBudgetSkipsRemainingRegionsAndCarriesThemOver() throws Exception {
+        Path world = temp.newFolder("budget_world").toPath();
+        Path pendingFile = temp.getRoot().toPath().resolve("peeler.pending");
+        File[] mcaFiles = new File[3];
+        for (int i = 0; i < 3; i++) {
+            // 只有 r.1.0.mca 的区块是上次运行（时间戳 1000）之后保存的
+            long timestamp = i == 1 ? 5000L : 100L;
+            Path mcaPath = world.resolve("region").resolve("r." + i + ".0.mca");
+            TestDataFactory.writeRegionFile(
+                    mcaPath,
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, timestamp),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, timestamp)
+            );
+            mcaFiles[i] = mcaPath.toFile();
+        }
+        Files.write(pendingFile, Collections.singletonList(mcaFiles[2].getAbsolutePath()));
+
+        // 上次没处理到的最先，然后是上次运行之后有区块被保存过的
+        TimeBudget ordering = new TimeBudget(System.currentTimeMillis() + 60_000L, 1000L, pendingFile);
+        assertEquals(1, ordering.getCarriedOverCount());
+        assertEquals(0L, ordering.estimateReclaimableBytes(mcaFiles[0]));
+        assertEquals(Arrays.asList(mcaFiles[2], mcaFiles[1], mcaFiles[0]), ordering.sortByValue(Arrays.asList(mcaFiles)));
+
+        // 预算已经用完时一个区域文件都不处理，全部留给下次
+        PeelOptions options = new PeelOptions();
+        options.timeBudget = new TimeBudget(System.currentTimeMillis() - 1, 1000L, pendingFile);
+        PeelResult exhausted = Potato.peel(world.toString(), "", 2, 0L, false, options);
+        assertEquals(3L, exhausted.getRegionsSkipped());
+        assertEquals(0L, exhausted.getChunksRemoved());
+        assertEquals(8192L + 2 * 4096L, Files.size(mcaFiles[0].toPath()));
+        options.timeBudget.save();
+        assertEquals(3, Files.readAllLines(pendingFile).size());
+
+        // 预算足够时全部处理完，记录文件被删除
+        options.timeBudget = new TimeBudget(System.currentTimeMillis() + 60_000L, 1000L, pendingFile);
+        assertEquals(3, options.timeBudget.getCarriedOverCount());
+        PeelResult finished = Potato.peel(world.toString(), "", 2, 0L, false, options);
+        assertEquals(0L, finished.getRegionsSkipped());
+        assertEquals(3L, finished.getChunksRemoved());
+        options.timeBudget.save();
+        assertFalse(Files.exists(pendingFile));
+    }
+
+    /**
+     * Verifies that progress is weighted by region size rather than region count, and that the
+     * dispatcher's tracker counts the regions, chunks and bytes read, decompressed and written.
+     * 验证进度按 Region 文件大小而不是文件数计算，且调度器的统计会累加处理的 Region、区块数以及读取、解压、写出的字节数。
+     *
+     * @throws Exception if fixture generation, dispatching, or verification fails
+     *                   当夹具生成、调度或结果校验失败时抛出
+     */
+    @Test
+    public void progressTrackerReportsByteWeightedProgressAndThroughput() throws Exception {
+        // 一个大文件处理完时，按字节算的进度不是文件数的一半
+        ProgressTracker weighted = new ProgressTracker();
+        weighted.addRegions(2, 4096L);
+        weighted.start();
+        weighted.regionDone(3072L);
+        assertEquals(75f, weighted.getProgress(), 0.01f);
+
+        Path worldDir = temp.getRoot().toPath().resolve("world");
+        long totalBytes = 0;
+        for (int i = 0; i < 3; i++) {
+            Path mcaPath = worldDir.resolve("region").resolve("r." + i + ".0.mca");
+            TestDataFactory.writeRegionFile(
+                    mcaPath,
+                    new TestDataFactory.RegionChunkSpec(0, 0, 2, 0L, 100L, i + 1),
+                    new TestDataFactory.RegionChunkSpec(1, 0, 2, 50L, 200L)
+            );
+            totalBytes += Files.size(mcaPath);
+        }
+
+        TaskParams params = new TaskParams(0L, ChunksSpatialIndexFactory.createRStarTreeIndex(), false, worldDir, null);
+        RegionTaskDispatcher dispatcher = new RegionTaskDispatcher(2, params);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.addTask(worldDir.resolve("region").resolve("r." + i + ".0.mca").toFile());
+        }
+        dispatcher.start();
+        assertTrue(dispatcher.waitForCompletion());
+
+        ProgressTracker tracker = params.progressTracker;
+        long writtenBytes = 0;
+        for (int i = 0; i < 3; i++) {
+            writtenBytes += Files.size(worldDir.resolve("region").resolve("r." + i + ".0.mca"));
+        }
+        assertEquals(100f, tracker.getProgress(), 0f);
+        assertEquals(3L, tracker.getRegionsDone());
+        assertEquals(6L, tracker.getChunksRead());
+        assertEquals(totalBytes, tracker.getBytesRead());
+        assertTrue(tracker.getBytesDecompressed() > 0);
+        assertEquals(writtenBytes, tracker.getBytesWritten());
+        assertTrue(tracker.report().contains("(3/3 regions)"));
+    }
+
+    /**
+     * Test double that commits the compaction journal, damages the region header, and then fails.
+     * 用于模拟写好压实日志、破坏区域文件头部后再失败的测试替身。
      */
     private static final class FailingInPlaceRegionTaskRunner extends InPlaceRegionTaskRunner {
         /**
-         * Creates a runner with deterministic failure behavior for backup-restore testing.
-         * 创建一个用于备份恢复测试的、失败行为可预测的 Runner。
+         * Creates a runner with deterministic failure behavior for journal-replay testing.
+         * 创建一个用于日志重放测试的、失败行为可预测的 Runner。
          *
          * @param queue region work queue
          *              Region 文件任务队列
@@ -130,26 +815,26 @@ public class RegionTaskRunnerTest {
         }
 
         /**
-         * Writes corrupt bytes first and then fails to simulate a mid-write crash.
-         * 先写入损坏字节，再抛出异常，用于模拟写到一半崩溃的场景。
+         * Writes the journal, overwrites the start of the header with junk, and then fails to
+         * simulate a crash in the middle of compaction.
+         * 先写好日志，再用垃圾数据覆盖头部开头，最后抛出异常，用于模拟压实到一半崩溃的场景。
          *
-         * @param region ignored test region
-         *               测试中未使用的 Region 对象
-         * @param sourceFile source region file
-         *                   源 Region 文件
-         * @param outputFile destination region file
-         *                   目标 Region 文件
-         * @param dryRun whether the caller requested dry-run mode
-         *               调用方是否请求 dry-run 模式
+         * @param region region whose deleted chunks should be reclaimed
+         *               需要回收已删除区块的 Region 对象
+         * @param regionFile region file being compacted
+         *                   正在压实的 Region 文件
          * @return never returns normally
          *         不会正常返回
-         * @throws IOException always thrown to trigger restore logic
-         *                     始终抛出，用于触发恢复逻辑
+         * @throws IOException always thrown to trigger journal replay
+         *                     始终抛出，用于触发日志重放
          */
         @Override
-        protected long writeRegion(Region region, File sourceFile, File outputFile, boolean dryRun) throws IOException {
-            Files.write(outputFile.toPath(), new byte[]{1, 2, 3});
-            throw new IOException("simulated in-place write failure");
+        protected long compactRegion(Region region, File regionFile) throws IOException {
+            RegionCompactUtils.prepareCompaction(region, regionFile);
+            try (RandomAccessFile raf = new RandomAccessFile(regionFile, "rw")) {
+                raf.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            }
+            throw new IOException("simulated in-place compaction failure");
         }
     }
 
@@ -194,4 +879,59 @@ public class RegionTaskRunnerTest {
             throw new IOException("simulated copy-based write failure");
         }
     }
+
+    /**
+     * Progress tracker that records the original size of each region in the order it was read.
+     * 按读取顺序记录每个 Region 原始大小的进度统计。
+     */
+    private static final class ClaimOrderTracker extends ProgressTracker {
+        /**
+         * Original sizes of the regions, in read order.
+         * 按读取顺序排列的 Region 原始大小。
+         */
+        final List<Long> claimedSizes = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void regionRead(long chunks, long bytes, long decompressedBytes) {
+            claimedSizes.add(bytes);
+            super.regionRead(chunks, bytes, decompressedBytes);
+        }
+    }
+
+    /**
+     * Durability barrier that records which directories and replacements the runners submit.
+     * 记录 Runner 提交了哪些目录和替换操作的刷盘屏障。
+     */
+    private static final class RecordingDurabilityBarrier extends DurabilityBarrier {
+        /**
+         * Files that were submitted to replace a region file.
+         * 提交用于替换区域文件的目标文件。
+         */
+        final List<File> replacements = new ArrayList<>();
+        /**
+         * Directories that were submitted after a file deletion.
+         * 删除文件后提交的目录。
+         */
+        final List<File> directories = new ArrayList<>();
+
+        /**
+         * Creates a recording barrier that flushes on the submitting thread.
+         * 创建一个在提交线程中立即刷盘的记录用屏障。
+         */
+        RecordingDurabilityBarrier() {
+            super(DurabilityConstants.PER_FILE);
+        }
+
+        @Override
+        public synchronized void submitReplacement(File tempFile, File target, File... deferredDeletions) {
+            replacements.add(target);
+            super.submitReplacement(tempFile, target, deferredDeletions);
+        }
+
+        @Override
+        public synchronized void submitDirectory(File directory) {
+            directories.add(directory);
+            super.submitDirectory(directory);
+        }
+    }
 }
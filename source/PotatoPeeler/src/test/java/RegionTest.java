@@ -1,17 +1,38 @@
+import indi.somebottle.constants.ChunkFieldConstants;
+import indi.somebottle.constants.ChunkLayoutConstants;
+import indi.somebottle.constants.DataVersionConstants;
 import indi.somebottle.entities.Chunk;
+import indi.somebottle.entities.RecompressPolicy;
 import indi.somebottle.entities.Region;
+import indi.somebottle.entities.RegionHeader;
+import indi.somebottle.exceptions.RegionFormatException;
+import indi.somebottle.streams.DecompressorPool;
+import indi.somebottle.streams.MappedRegionFile;
+import indi.somebottle.tasks.ChunkFanOutPool;
+import indi.somebottle.utils.ChunkUtils;
+import indi.somebottle.utils.RecompressUtils;
+import indi.somebottle.utils.RegionCompactUtils;
 import indi.somebottle.utils.RegionUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Covers region-file level read/write behavior against generated minimal Anvil fixtures.
@@ -86,6 +107,411 @@ public class RegionTest {
         assertEquals(222L, rewrittenRegion.getChunkModifiedTimeAt(1, 0));
     }
 
+    /**
+     * Verifies that runs of retained chunks around a deleted one are copied intact, and that a
+     * dry run reports the same size as the real rewrite without creating the output file.
+     * 验证被删除区块前后连续保留的区块能被完整拷贝，并且试运行报告的大小和实际重写一致，且不会创建输出文件。
+     *
+     * @throws Exception if fixture generation, rewrite, or verification fails
+     *                   当夹具生成、重写或结果校验失败时抛出
+     */
+    @Test
+    public void writeRegionCopiesContiguousRunsAndMatchesDryRunSize() throws Exception {
+        Path sourcePath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        Path outputPath = temp.getRoot().toPath().resolve("out").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                sourcePath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 1L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 4, 2L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 1, 3L, 30L),
+                new TestDataFactory.RegionChunkSpec(3, 0, 3, 4L, 40L),
+                new TestDataFactory.RegionChunkSpec(4, 0, 2, 5L, 50L)
+        );
+        Files.createDirectories(outputPath.getParent());
+
+        Region region = RegionUtils.readRegion(sourcePath.toFile());
+        region.getChunkAt(2, 0).setDeleteFlag(true);
+
+        long dryRunBytes = RegionUtils.writeRegion(region, sourcePath.toFile(), null, true);
+        assertFalse(Files.exists(outputPath));
+        long bytesWritten = RegionUtils.writeRegion(region, sourcePath.toFile(), outputPath.toFile(), false);
+        Region rewrittenRegion = RegionUtils.readRegion(outputPath.toFile());
+
+        assertEquals(bytesWritten, dryRunBytes);
+        assertEquals(bytesWritten, RegionUtils.estimateRegionSize(region, Files.size(sourcePath), "r.0.0.mca"));
+        assertEquals(Files.size(outputPath), bytesWritten);
+        assertEquals(4, rewrittenRegion.getExistingChunks().size());
+        assertChunk(rewrittenRegion.getChunkAt(0, 0), 0, 0, 1L);
+        assertChunk(rewrittenRegion.getChunkAt(1, 0), 1, 0, 2L);
+        assertNull(rewrittenRegion.getChunkAt(2, 0));
+        assertChunk(rewrittenRegion.getChunkAt(3, 0), 3, 0, 4L);
+        assertChunk(rewrittenRegion.getChunkAt(4, 0), 4, 0, 5L);
+        assertEquals(50L, rewrittenRegion.getChunkModifiedTimeAt(4, 0));
+    }
+
+    /**
+     * Verifies that in-place compaction leaves chunks before the first freed sector untouched,
+     * slides later chunks down (including one whose new position overlaps its old one), and
+     * truncates the file without leaving a journal behind.
+     * 验证原地压实时第一个空出扇区之前的区块保持不动，之后的区块（包括新旧位置重叠的区块）被往前挪，
+     * 文件被截断，且不会遗留日志文件。
+     *
+     * @throws Exception if fixture generation, compaction, or verification fails
+     *                   当夹具生成、压实或结果校验失败时抛出
+     */
+    @Test
+    public void compactRegionSlidesLaterChunksDownAndTruncates() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 1L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 2L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 1, 3L, 30L, 3),
+                new TestDataFactory.RegionChunkSpec(3, 0, 4, 4L, 40L)
+        );
+
+        Region region = RegionUtils.readRegion(regionPath.toFile());
+        region.getChunkAt(1, 0).setDeleteFlag(true);
+        long expectedSize = RegionUtils.writeRegion(region, regionPath.toFile(), null, true);
+
+        long compactedSize = RegionCompactUtils.compactRegion(region, regionPath.toFile());
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+
+        assertEquals(expectedSize, compactedSize);
+        assertEquals(Files.size(regionPath), compactedSize);
+        assertFalse(Files.exists(regionPath.resolveSibling("r.0.0.mca.journal")));
+        assertEquals(2, compacted.getHeader().getSectorOffset(0));
+        assertEquals(3, compacted.getHeader().getSectorOffset(2));
+        assertEquals(3, compacted.getHeader().getSectorCount(2));
+        assertEquals(6, compacted.getHeader().getSectorOffset(3));
+        assertChunk(compacted.getChunkAt(0, 0), 0, 0, 1L);
+        assertNull(compacted.getChunkAt(1, 0));
+        assertChunk(compacted.getChunkAt(2, 0), 2, 0, 3L);
+        assertChunk(compacted.getChunkAt(3, 0), 3, 0, 4L);
+        assertEquals(30L, compacted.getChunkModifiedTimeAt(2, 0));
+        assertEquals(40L, compacted.getChunkModifiedTimeAt(3, 0));
+    }
+
+    /**
+     * Verifies that removing one chunk near the front of a dense region keeps the journal bounded by
+     * the freed gap instead of the moved bytes, that in-place compaction is declined for such a
+     * region, and that the journal still replays correctly when a crash left the first window's
+     * target range scrambled.
+     * 验证移除稠密 Region 靠前的一个 Chunk 后，日志大小受空出的间隙限制而不是搬移的数据量，
+     * 这样的 Region 不会选择原地压实，且崩溃后第一个窗口的目标范围被写乱时日志仍能正确重放。
+     *
+     * @throws Exception if fixture generation, compaction, or verification fails
+     *                   当夹具生成、压实或结果校验失败时抛出
+     */
+    @Test
+    public void compactionJournalStashIsBoundedByFreedGap() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.RegionChunkSpec[] specs = new TestDataFactory.RegionChunkSpec[64];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new TestDataFactory.RegionChunkSpec(i & 31, i >>> 5, 2, i + 1L, i, 1 + i % 3);
+        }
+        TestDataFactory.writeRegionFile(regionPath, specs);
+
+        Region region = RegionUtils.readRegion(regionPath.toFile());
+        region.getChunkAt(1, 0).setDeleteFlag(true);
+        long expectedSize = RegionUtils.writeRegion(region, regionPath.toFile(), null, true);
+        long freedOffset = region.getChunkAt(1, 0).getOffsetInFile();
+        long gap = 4096L * region.getChunkAt(1, 0).getSectorsOccupiedInFile();
+        long movedBytes = Files.size(regionPath) - freedOffset - gap;
+        assertFalse(RegionCompactUtils.isWorthCompactingInPlace(region, regionPath.toFile()));
+        File journalFile = RegionCompactUtils.prepareCompaction(region, regionPath.toFile());
+
+        // 日志只有固定头部、新头部、每个区块一条搬移记录，以及不超过间隙的暂存数据
+        long journalSize = Files.size(journalFile.toPath());
+        assertTrue(journalSize <= 8192 + 64L * specs.length + gap);
+        assertTrue(journalSize < movedBytes / 4);
+
+        // 模拟第一个窗口搬到一半崩溃：间隙不变时窗口的目标范围不超过间隙的两倍
+        try (FileChannel channel = FileChannel.open(regionPath, StandardOpenOption.WRITE)) {
+            byte[] junk = new byte[(int) (2 * gap)];
+            Arrays.fill(junk, (byte) 0x5A);
+            channel.write(ByteBuffer.wrap(junk), freedOffset);
+        }
+        assertTrue(RegionCompactUtils.replayJournal(regionPath.toFile()));
+
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+        assertEquals(expectedSize, Files.size(regionPath));
+        assertFalse(Files.exists(regionPath.resolveSibling("r.0.0.mca.journal")));
+        assertNull(compacted.getChunkAt(1, 0));
+        for (int i = 0; i < specs.length; i++) {
+            if (i != 1)
+                assertChunk(compacted.getChunkAt(i & 31, i >>> 5), i & 31, i >>> 5, i + 1L);
+        }
+    }
+
+    /**
+     * Verifies that the Z-order layout places chunks in Morton order of their local coordinates,
+     * both when writing to another file and when relaying out a region in place.
+     * 验证 Z-order 排列方式会按局部坐标的 Morton 序放置区块，无论是写入其他文件还是原地重新排列。
+     *
+     * @throws Exception if fixture generation, rewrite, or verification fails
+     *                   当夹具生成、重写或结果校验失败时抛出
+     */
+    @Test
+    public void zOrderLayoutPlacesNeighbouringChunksTogether() throws Exception {
+        Path sourcePath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        Path outputPath = temp.getRoot().toPath().resolve("out").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                sourcePath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 1L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 2L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 2, 3L, 30L),
+                new TestDataFactory.RegionChunkSpec(0, 1, 2, 4L, 40L),
+                new TestDataFactory.RegionChunkSpec(1, 1, 2, 5L, 50L)
+        );
+        Files.createDirectories(outputPath.getParent());
+
+        Region region = RegionUtils.readRegion(sourcePath.toFile());
+        assertTrue(RegionUtils.isInLayoutOrder(region, ChunkLayoutConstants.INDEX));
+        assertFalse(RegionUtils.isInLayoutOrder(region, ChunkLayoutConstants.Z_ORDER));
+
+        RegionUtils.writeRegion(region, sourcePath.toFile(), outputPath.toFile(), false, ChunkLayoutConstants.Z_ORDER);
+        RegionCompactUtils.relayoutRegion(region, sourcePath.toFile(), ChunkLayoutConstants.Z_ORDER);
+
+        for (Path path : new Path[]{outputPath, sourcePath}) {
+            Region rewritten = RegionUtils.readRegion(path.toFile());
+            assertTrue(RegionUtils.isInLayoutOrder(rewritten, ChunkLayoutConstants.Z_ORDER));
+            assertEquals(2, rewritten.getHeader().getSectorOffset(0));
+            assertEquals(3, rewritten.getHeader().getSectorOffset(1));
+            assertEquals(4, rewritten.getHeader().getSectorOffset(32));
+            assertEquals(5, rewritten.getHeader().getSectorOffset(33));
+            assertEquals(6, rewritten.getHeader().getSectorOffset(2));
+            assertChunk(rewritten.getChunkAt(2, 0), 2, 0, 3L);
+            assertChunk(rewritten.getChunkAt(0, 1), 0, 1, 4L);
+            assertEquals(50L, rewritten.getChunkModifiedTimeAt(1, 1));
+        }
+        assertFalse(Files.exists(sourcePath.resolveSibling("r.0.0.mca.relayout")));
+    }
+
+    /**
+     * Verifies that recompressing a padded chunk frees its spare sectors, both in the dry-run size and
+     * after in-place compaction, and that chunks which would not shrink are left untouched.
+     * 验证重新压缩带填充的区块会释放多余的扇区（试运行计算的大小和原地压实后的结果一致），
+     * 而不会变小的区块保持原样。
+     *
+     * @throws Exception if fixture generation, recompression, or verification fails
+     *                   当夹具生成、重新压缩或结果校验失败时抛出
+     */
+    @Test
+    public void recompressChunksShrinksPaddedChunksAndKeepsThemReadable() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 1, 5L, 10L, 3),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 500L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 3, 7L, 30L)
+        );
+
+        Region region = RegionUtils.readRegion(regionPath.toFile());
+        int recompressed = RecompressUtils.recompressChunks(region, regionPath.toFile(), RecompressPolicy.parse("zlib-below:100"));
+        long expectedSize = RegionUtils.writeRegion(region, regionPath.toFile(), null, true);
+        long compactedSize = RegionCompactUtils.compactRegion(region, regionPath.toFile());
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+
+        assertEquals(1, recompressed);
+        assertEquals(expectedSize, compactedSize);
+        assertEquals(5 * 4096L, compactedSize);
+        assertEquals(2, compacted.getHeader().getSectorOffset(0));
+        assertEquals(1, compacted.getHeader().getSectorCount(0));
+        assertEquals(3, compacted.getHeader().getSectorOffset(1));
+        assertEquals(4, compacted.getHeader().getSectorOffset(2));
+        assertEquals(2, compacted.getChunkAt(0, 0).getCompressionType());
+        assertEquals(3, compacted.getChunkAt(2, 0).getCompressionType());
+        assertChunk(compacted.getChunkAt(0, 0), 0, 0, 5L);
+        assertChunk(compacted.getChunkAt(1, 0), 1, 0, 500L);
+        assertChunk(compacted.getChunkAt(2, 0), 2, 0, 7L);
+        assertEquals(10L, compacted.getChunkModifiedTimeAt(0, 0));
+    }
+
+    /**
+     * Verifies that the {@code lz4-above} rule rewrites a hot zlib chunk as LZ4 even though that
+     * frees no sector, as long as it needs no more sectors, and leaves the cold chunk alone.
+     * 验证 {@code lz4-above} 规则会把高 InhabitedTime 的 zlib 区块改写为 LZ4（即使没有省下扇区，只要不多占扇区），
+     * 低 InhabitedTime 的区块保持原样。
+     *
+     * @throws Exception if fixture generation, recompression, or verification fails
+     *                   当夹具生成、重新压缩或结果校验失败时抛出
+     */
+    @Test
+    public void lz4AboveRecompressesHotChunksWithoutNeedingToSaveSectors() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 500L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 5L, 20L)
+        );
+        long originalSize = Files.size(regionPath);
+
+        Region region = RegionUtils.readRegion(regionPath.toFile());
+        // 测试夹具中的区块没有 DataVersion，当作 1.20.5 保存的区块
+        region.getChunkAt(0, 0).getData().setDataVersion(DataVersionConstants.DATA_VERSION_1_20_5);
+        region.getChunkAt(1, 0).getData().setDataVersion(DataVersionConstants.DATA_VERSION_1_20_5);
+        int recompressed = RecompressUtils.recompressChunks(region, regionPath.toFile(), RecompressPolicy.parse("lz4-above:100"));
+        long compactedSize = RegionCompactUtils.compactRegion(region, regionPath.toFile());
+        Region compacted = RegionUtils.readRegion(regionPath.toFile());
+
+        assertEquals(1, recompressed);
+        assertEquals(originalSize, compactedSize);
+        assertEquals(4, compacted.getChunkAt(0, 0).getCompressionType());
+        assertEquals(2, compacted.getChunkAt(1, 0).getCompressionType());
+        assertChunk(compacted.getChunkAt(0, 0), 0, 0, 500L);
+        assertChunk(compacted.getChunkAt(1, 0), 1, 0, 5L);
+    }
+
+    /**
+     * Verifies that lazy reading only inflates chunks accepted by the filter, leaving the others as
+     * header-only descriptors.
+     * 验证延迟读取时只有通过过滤器的 Chunk 会被解压，其余 Chunk 只保留头部描述信息。
+     *
+     * @throws Exception if fixture generation or region parsing fails
+     *                   当夹具生成或 Region 解析失败时抛出
+     */
+    @Test
+    public void readRegionOnlyInflatesChunksAcceptedByFilter() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.writeRegionFile(
+                regionPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 7L, 100L),
+                new TestDataFactory.RegionChunkSpec(5, 3, 2, 70L, 200L)
+        );
+
+        Region region = RegionUtils.readRegion(regionPath.toFile(), chunk -> chunk.getGlobalX() == 5);
+
+        assertEquals(2, region.getExistingChunks().size());
+        assertFalse(region.getChunkAt(0, 0).isInhabitedTimeLoaded());
+        assertEquals(2, region.getChunkAt(0, 0).getCompressionType());
+        assertTrue(region.getChunkAt(5, 3).isInhabitedTimeLoaded());
+        assertChunk(region.getChunkAt(5, 3), 5, 3, 70L);
+    }
+
+    /**
+     * Verifies that one decompressor pool can be reused across several regions and compression types
+     * without leaking state from one chunk into the next.
+     * 验证同一个解压器池可以在多个 Region、多种压缩类型之间复用，且不会把前一个 Chunk 的状态带到下一个。
+     *
+     * @throws Exception if fixture generation or region parsing fails
+     *                   当夹具生成或 Region 解析失败时抛出
+     */
+    @Test
+    public void readRegionReusesDecompressorPoolAcrossRegions() throws Exception {
+        Path firstPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        Path secondPath = temp.getRoot().toPath().resolve("region").resolve("r.1.0.mca");
+        TestDataFactory.writeRegionFile(
+                firstPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 2, 1L, 10L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 1, 2L, 20L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 4, 3L, 30L)
+        );
+        TestDataFactory.writeRegionFile(
+                secondPath,
+                new TestDataFactory.RegionChunkSpec(0, 0, 4, 4L, 40L),
+                new TestDataFactory.RegionChunkSpec(1, 0, 2, 5L, 50L),
+                new TestDataFactory.RegionChunkSpec(2, 0, 1, 6L, 60L)
+        );
+
+        try (DecompressorPool pool = new DecompressorPool()) {
+            Region first = RegionUtils.readRegion(firstPath.toFile(), chunk -> true, pool);
+            Region second = RegionUtils.readRegion(secondPath.toFile(), chunk -> true, pool);
+
+            assertChunk(first.getChunkAt(0, 0), 0, 0, 1L);
+            assertChunk(first.getChunkAt(1, 0), 1, 0, 2L);
+            assertChunk(first.getChunkAt(2, 0), 2, 0, 3L);
+            assertChunk(second.getChunkAt(0, 0), 32, 0, 4L);
+            assertChunk(second.getChunkAt(1, 0), 33, 0, 5L);
+            assertChunk(second.getChunkAt(2, 0), 34, 0, 6L);
+        }
+    }
+
+    /**
+     * Verifies that a region with enough chunks is decompressed in parallel by the fan-out pool and
+     * that every chunk ends up with the same InhabitedTime as in a serial read.
+     * 验证 Chunk 足够多的 Region 会交给并行解压线程池处理，且每个 Chunk 读到的 InhabitedTime 与串行读取时一致。
+     *
+     * @throws Exception if fixture generation or region parsing fails
+     *                   当夹具生成或 Region 解析失败时抛出
+     */
+    @Test
+    public void readRegionFansOutChunkDecompression() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.RegionChunkSpec[] specs = new TestDataFactory.RegionChunkSpec[100];
+        int[] compressionTypes = {1, 2, 3, 4};
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new TestDataFactory.RegionChunkSpec(i & 31, i >>> 5, compressionTypes[i & 3], i * 7L, i);
+        }
+        TestDataFactory.writeRegionFile(regionPath, specs);
+
+        try (DecompressorPool pool = new DecompressorPool();
+             ChunkFanOutPool fanOutPool = new ChunkFanOutPool(4)) {
+            Region region = RegionUtils.readRegion(regionPath.toFile(), chunk -> true, ChunkFieldConstants.INHABITED_TIME, pool, fanOutPool);
+
+            assertEquals(100, region.getExistingChunks().size());
+            for (int i = 0; i < specs.length; i++) {
+                assertChunk(region.getChunkAt(i & 31, i >>> 5), i & 31, i >>> 5, i * 7L);
+            }
+        }
+    }
+
+    /**
+     * Verifies that when one chunk of a fanned-out region is corrupt, the failure is reported only
+     * after every other batch has finished reading the mapped region, so the mapping can be safely
+     * unmapped, and that the pool can still be used afterwards.
+     * 验证并行解压的 Region 中有一个 Chunk 损坏时，异常要等其余所有批次都读完内存映射后才抛出，
+     * 之后解除映射是安全的，且线程池之后仍然可以继续使用。
+     *
+     * @throws Exception if fixture generation or verification fails
+     *                   当夹具生成或结果校验失败时抛出
+     */
+    @Test
+    public void fanOutFailureWaitsForEveryBatchBeforeThrowing() throws Exception {
+        Path regionPath = temp.getRoot().toPath().resolve("region").resolve("r.0.0.mca");
+        TestDataFactory.RegionChunkSpec[] specs = new TestDataFactory.RegionChunkSpec[100];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new TestDataFactory.RegionChunkSpec(i & 31, i >>> 5, 2, i * 7L, i);
+        }
+        TestDataFactory.writeRegionFile(regionPath, specs);
+        // 把第一个区块的压缩类型改成不支持的值，它所在的批次最先失败
+        try (FileChannel channel = FileChannel.open(regionPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{99}), 2 * 4096 + 4);
+        }
+
+        try (ChunkFanOutPool fanOutPool = new ChunkFanOutPool(4)) {
+            List<Chunk> chunks = new ArrayList<>();
+            try (MappedRegionFile regionData = new MappedRegionFile(regionPath.toFile())) {
+                RegionHeader header = new RegionHeader();
+                header.decode(regionData.header());
+                for (int i = 0; i < specs.length; i++) {
+                    chunks.add(ChunkUtils.readChunkDescriptor(regionData, header.getSectorOffset(i) * 4096L, header.getSectorCount(i), i & 31, i >>> 5, 0, 0));
+                }
+                try {
+                    fanOutPool.loadChunkData(regionData, chunks, ChunkFieldConstants.INHABITED_TIME);
+                    fail("Expected the corrupt chunk to fail decompression");
+                } catch (RegionFormatException expected) {
+                    // 异常抛出时其余区块都已经读完
+                    for (int i = 1; i < specs.length; i++) {
+                        assertChunk(chunks.get(i), i & 31, i >>> 5, i * 7L);
+                    }
+                }
+            }
+
+            // 同一个线程池还能继续读取其他区域
+            Path healthyPath = temp.getRoot().toPath().resolve("region").resolve("r.1.0.mca");
+            for (int i = 0; i < specs.length; i++) {
+                specs[i] = new TestDataFactory.RegionChunkSpec(i & 31, i >>> 5, 2, i * 3L, i);
+            }
+            TestDataFactory.writeRegionFile(healthyPath, specs);
+            try (DecompressorPool pool = new DecompressorPool()) {
+                Region region = RegionUtils.readRegion(healthyPath.toFile(), chunk -> true, ChunkFieldConstants.INHABITED_TIME, pool, fanOutPool);
+                assertEquals(100, region.getExistingChunks().size());
+                assertChunk(region.getChunkAt(5, 1), 32 + 5, 1, 37 * 3L);
+            }
+        }
+    }
+
     /**
      * Asserts the core metadata extracted from a parsed chunk.
      * 断言解析后 Chunk 的核心元数据是否符合预期。
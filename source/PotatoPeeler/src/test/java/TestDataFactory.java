@@ -61,6 +61,11 @@ final class TestDataFactory {
          * 要写入 Region 时间戳表的时间戳数值。
          */
         final long timestamp;
+        /**
+         * Minimum number of sectors the chunk occupies; the payload is padded with zeros up to it.
+         * Chunk 至少占用的扇区数，不足的部分用零填充。
+         */
+        final int minSectors;
 
         /**
          * Creates a chunk specification for a generated region fixture.
@@ -78,11 +83,33 @@ final class TestDataFactory {
          *                  时间戳表中的时间戳值
          */
         RegionChunkSpec(int localX, int localZ, int compressionType, long inhabitedTime, long timestamp) {
+            this(localX, localZ, compressionType, inhabitedTime, timestamp, 1);
+        }
+
+        /**
+         * Creates a chunk specification whose sector run is padded to at least {@code minSectors}.
+         * 创建一个至少占用 {@code minSectors} 个扇区的 Chunk 规格。
+         *
+         * @param localX chunk local x coordinate
+         *               Chunk 局部 X 坐标
+         * @param localZ chunk local z coordinate
+         *               Chunk 局部 Z 坐标
+         * @param compressionType Anvil compression type
+         *                        Anvil 压缩类型
+         * @param inhabitedTime chunk inhabited time
+         *                      Chunk 的 InhabitedTime
+         * @param timestamp chunk timestamp table value
+         *                  时间戳表中的时间戳值
+         * @param minSectors minimum number of sectors to occupy
+         *                   至少占用的扇区数
+         */
+        RegionChunkSpec(int localX, int localZ, int compressionType, long inhabitedTime, long timestamp, int minSectors) {
             this.localX = localX;
             this.localZ = localZ;
             this.compressionType = compressionType;
             this.inhabitedTime = inhabitedTime;
             this.timestamp = timestamp;
+            this.minSectors = minSectors;
         }
     }
 
@@ -150,7 +177,7 @@ final class TestDataFactory {
             byte[] payload = compress(chunkNbt, chunk.compressionType);
             int chunkDataLength = 1 + payload.length;
             int totalChunkBytes = 4 + chunkDataLength;
-            int sectorsOccupied = Math.max(1, (int) Math.ceil(totalChunkBytes / (double) SECTOR_SIZE));
+            int sectorsOccupied = Math.max(chunk.minSectors, (int) Math.ceil(totalChunkBytes / (double) SECTOR_SIZE));
 
             int entryOffset = (chunk.localX + chunk.localZ * 32) * 4;
             writeMedium(header, entryOffset, nextSectorOffset);
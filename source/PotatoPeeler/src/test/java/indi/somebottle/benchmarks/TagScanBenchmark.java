@@ -0,0 +1,81 @@
+package indi.somebottle.benchmarks;
+
+import indi.somebottle.constants.NBTTagConstants;
+import indi.somebottle.streams.ByteArrayWindowedInputStream;
+import indi.somebottle.utils.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison between the original per-byte tag search and the windowed SWAR search.
+ * Not run by surefire; run {@link #main} with the test classpath after {@code mvn test-compile}.
+ * 原先逐字节标签查找与基于窗口的 SWAR 查找之间的 JMH 对比。
+ * 不会被 surefire 执行，执行 {@code mvn test-compile} 后以测试 classpath 运行 {@link #main} 即可。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagScanBenchmark {
+    /**
+     * Size of the decompressed chunk data; the tag sits near its end, like in real chunks where
+     * InhabitedTime follows the sections.
+     * 解压后区块数据的大小；标签位于末尾附近，和实际区块中 InhabitedTime 位于 sections 之后的情况类似。
+     */
+    @Param({"16384", "131072"})
+    public int size;
+
+    /**
+     * Chunk-like NBT bytes containing one InhabitedTime tag.
+     * 包含一个 InhabitedTime 标签的类 NBT 数据。
+     */
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1L);
+        data = new byte[size];
+        byte[] tag = NBTTagConstants.INHABITED_TIME_TAG_BIN;
+        for (int i = 0; i < size; i++) {
+            // Mix in tag bytes so the first-byte filter sees realistic false candidates.
+            // 混入标签中的字节，让首字节过滤时有接近实际的误报候选
+            data[i] = random.nextInt(4) == 0 ? tag[random.nextInt(tag.length)] : (byte) random.nextInt(256);
+        }
+        System.arraycopy(tag, 0, data, size - tag.length - 64, tag.length);
+    }
+
+    @Benchmark
+    public int scalarStream() throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(data);
+        return IOUtils.findAndSkipBytes(is, NBTTagConstants.INHABITED_TIME_TAG_BIN) ? is.read() : -1;
+    }
+
+    @Benchmark
+    public int windowedSwar() throws IOException {
+        ByteArrayWindowedInputStream is = new ByteArrayWindowedInputStream(data, 0, data.length);
+        return IOUtils.findAndSkipBytes(is, NBTTagConstants.INHABITED_TIME_TAG_BIN) ? is.read() : -1;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TagScanBenchmark.class.getSimpleName()).build()).run();
+    }
+}